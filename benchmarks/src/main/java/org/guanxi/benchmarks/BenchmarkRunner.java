@@ -0,0 +1,70 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.ProfilerConfig;
+
+/**
+ * Runs the benchmarks with the JMH command line, always adding the gc profiler so
+ * allocation per operation is reported alongside throughput and average time.
+ * With no benchmarks named on the command line, all of them are run.
+ *
+ * java -jar target/benchmarks.jar [JMH options] [benchmark regexps]
+ *
+ * @author alistair
+ */
+public class BenchmarkRunner {
+  /** The name the gc profiler goes by on the command line */
+  private static final String GC_PROFILER = "gc";
+
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions commandLine = new CommandLineOptions(args);
+
+    if (commandLine.shouldHelp()) {
+      commandLine.showHelp();
+      return;
+    }
+    if (commandLine.shouldList() || commandLine.shouldListProfilers() || commandLine.shouldListResultFormats()) {
+      // Leave anything other than running benchmarks to JMH
+      org.openjdk.jmh.Main.main(args);
+      return;
+    }
+
+    ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+    if (commandLine.getIncludes().isEmpty()) {
+      options.include(BenchmarkRunner.class.getPackage().getName() + "\\..*");
+    }
+
+    boolean hasGCProfiler = false;
+    for (ProfilerConfig profiler : commandLine.getProfilers()) {
+      if (profiler.getKlass().equals(GC_PROFILER) || profiler.getKlass().equals(GCProfiler.class.getName())) {
+        hasGCProfiler = true;
+      }
+    }
+    if (!hasGCProfiler) {
+      options.addProfiler(GCProfiler.class);
+    }
+
+    new Runner(options.build()).run();
+  }
+}
@@ -0,0 +1,144 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.benchmarks.metadata;
+
+import org.apache.xmlbeans.XmlException;
+import org.guanxi.benchmarks.trust.SyntheticFederation;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.metadata.Metadata;
+import org.guanxi.common.metadata.impl.GuanxiSAML2MetadataImpl;
+import org.guanxi.common.trust.X509CertificateCache;
+import org.guanxi.xal.saml_2_0.metadata.EntitiesDescriptorDocument;
+import org.guanxi.xal.saml_2_0.metadata.EntitiesDescriptorType;
+import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorDocument;
+import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures building the entity handlers for an aggregate with a loader executor, the
+ * way ShibbolethSAML2MetadataParser.loadEntities does, either straight from the
+ * aggregate or from a copy of each entity. XMLBeans locks the whole document while
+ * any part of it is read, so handlers built from the aggregate itself take turns
+ * whatever the number of threads, while copies can be read at the same time.
+ *
+ * The aggregate is parsed from text before every invocation, as it would be from the
+ * metadata cache file, so all the entities are in one document that hasn't been read
+ * yet. Only compare threads above 1 on a machine with at least that many cores.
+ *
+ * @author alistair
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EntityLoadBenchmark {
+  /** The number of IdPs in the aggregate */
+  @Param({"200"})
+  public int entities;
+
+  /** The number of threads in the loader executor */
+  @Param({"1", "4"})
+  public int threads;
+
+  /** Whether to build each handler from a copy of the entity */
+  @Param({"false", "true"})
+  public boolean copy;
+
+  private String aggregateXML;
+  private EntityDescriptorType[] descriptors;
+  private ExecutorService executor;
+
+  @Setup(Level.Trial)
+  public void createAggregate() throws GuanxiException, XmlException {
+    SyntheticFederation federation = new SyntheticFederation(entities, 1);
+
+    EntitiesDescriptorDocument built = EntitiesDescriptorDocument.Factory.newInstance();
+    EntitiesDescriptorType aggregate = built.addNewEntitiesDescriptor();
+    for (int c=0; c < federation.size(); c++) {
+      aggregate.addNewEntityDescriptor().set(federation.getIdP(c).getMetadata());
+    }
+
+    aggregateXML = built.xmlText();
+    executor = Executors.newFixedThreadPool(threads);
+  }
+
+  /**
+   * A real load starts from a freshly parsed aggregate and decodes every certificate,
+   * so don't let anything the last invocation worked out be reused
+   */
+  @Setup(Level.Invocation)
+  public void parseAggregate() throws XmlException {
+    descriptors = EntitiesDescriptorDocument.Factory.parse(aggregateXML).getEntitiesDescriptor().getEntityDescriptorArray();
+    X509CertificateCache.getInstance().clear();
+  }
+
+  @TearDown(Level.Trial)
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  @Benchmark
+  public Metadata[] loadEntities() throws Exception {
+    List<Future<Metadata>> pending = new ArrayList<Future<Metadata>>(descriptors.length);
+    for (EntityDescriptorType entityDescriptor : descriptors) {
+      // As the parser does, copy into a new document in this thread so only the copying takes turns
+      final EntityDescriptorType entity;
+      if (copy) {
+        entity = EntityDescriptorDocument.Factory.newInstance().addNewEntityDescriptor();
+        entity.set(entityDescriptor);
+      }
+      else {
+        entity = entityDescriptor;
+      }
+      pending.add(executor.submit(new Callable<Metadata>() {
+        public Metadata call() {
+          GuanxiSAML2MetadataImpl handler = new GuanxiSAML2MetadataImpl();
+          handler.setPrivateData(entity);
+          return handler;
+        }
+      }));
+    }
+
+    Metadata[] handlers = new Metadata[pending.size()];
+    for (int c=0; c < handlers.length; c++) {
+      handlers[c] = pending.get(c).get();
+    }
+    return handlers;
+  }
+}
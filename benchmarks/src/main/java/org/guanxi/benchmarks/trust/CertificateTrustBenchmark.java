@@ -0,0 +1,134 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.benchmarks.trust;
+
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.trust.TrustUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the certificate side of TrustUtils: explicit key validation against the
+ * metadata, PKIX path validation against the federation CA, KeyName matching,
+ * pulling the certificates out of the metadata and comparing fingerprints.
+ * Each invocation moves on to the next IdP in the federation.
+ *
+ * keyDescriptors is how many KeyDescriptors each role has. The signing key is in the
+ * last one so more of them means more rollover keys to get past.
+ *
+ * @author alistair
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CertificateTrustBenchmark {
+  /** The number of IdPs in the federation */
+  @Param({"16"})
+  public int entities;
+
+  /** The number of KeyDescriptors in each role */
+  @Param({"1", "3"})
+  public int keyDescriptors;
+
+  /** Stands in for the trust engine generation so PKIX results can be cached */
+  private static final long TRUST_GENERATION = 1;
+
+  private SyntheticFederation federation;
+  private X509Certificate[][] signingChains;
+  private int next;
+
+  @Setup
+  public void createFederation() throws GuanxiException {
+    federation = new SyntheticFederation(entities, keyDescriptors);
+    signingChains = new X509Certificate[entities][];
+    for (int c=0; c < entities; c++) {
+      signingChains[c] = new X509Certificate[] {federation.getIdP(c).getSigningCertificate()};
+    }
+  }
+
+  @Benchmark
+  public boolean validateEmbeddedCertSSO() throws GuanxiException {
+    SyntheticFederation.IdP idp = nextIdP();
+    return TrustUtils.validateEmbeddedCert(idp.getMetadata(), signingChains[next], TrustUtils.ENTITY_TYPE_SSO);
+  }
+
+  @Benchmark
+  public boolean validateEmbeddedCertAA() throws GuanxiException {
+    SyntheticFederation.IdP idp = nextIdP();
+    return TrustUtils.validateEmbeddedCert(idp.getMetadata(), signingChains[next], TrustUtils.ENTITY_TYPE_AA);
+  }
+
+  @Benchmark
+  public boolean validatePKIXPath() {
+    return TrustUtils.validatePKIXPath(nextIdP().getSigningCertificate(), federation.getCACertificate());
+  }
+
+  @Benchmark
+  public boolean validatePKIXPathCached() {
+    return TrustUtils.validatePKIXPath(nextIdP().getSigningCertificate(), federation.getCACertificate(), TRUST_GENERATION);
+  }
+
+  @Benchmark
+  public boolean compareX509SubjectWithKeyName() {
+    SyntheticFederation.IdP idp = nextIdP();
+    return TrustUtils.compareX509SubjectWithKeyName(idp.getSigningCertificate(), idp.getHostName());
+  }
+
+  @Benchmark
+  public boolean compareX509SubjectWithKeyNameMismatch() {
+    X509Certificate x509 = nextIdP().getSigningCertificate();
+    return TrustUtils.compareX509SubjectWithKeyName(x509, federation.getIdP((next + 1) % federation.size()).getHostName());
+  }
+
+  @Benchmark
+  public X509Certificate[] getX509CertsFromMetadata() throws GuanxiException {
+    return TrustUtils.getX509CertsFromMetadata(nextIdP().getMetadata().getIDPSSODescriptorArray());
+  }
+
+  @Benchmark
+  public boolean checkCertfingerprints() throws GuanxiException {
+    X509Certificate x509 = nextIdP().getSigningCertificate();
+    return TrustUtils.checkCertfingerprints(x509, x509);
+  }
+
+  @Benchmark
+  public boolean checkCertfingerprintsMismatch() throws GuanxiException {
+    X509Certificate x509 = nextIdP().getSigningCertificate();
+    return TrustUtils.checkCertfingerprints(x509, federation.getCACertificate());
+  }
+
+  private SyntheticFederation.IdP nextIdP() {
+    next = (next + 1) % federation.size();
+    return federation.getIdP(next);
+  }
+}
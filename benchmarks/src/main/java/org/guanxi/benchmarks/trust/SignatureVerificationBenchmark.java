@@ -0,0 +1,91 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.benchmarks.trust;
+
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.trust.TrustUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures TrustUtils.verifySignature on SAML2 and Shibboleth SAML 1.1 Responses signed
+ * by SecUtils. The Responses are verified both from an already parsed Document and
+ * straight off the wire, which includes parsing them. Each invocation moves on to
+ * the next IdP in the federation so no one certificate or Response stays hot.
+ *
+ * The state is per thread as verification marks the ID attribute on the Document.
+ *
+ * @author alistair
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SignatureVerificationBenchmark {
+  /** The number of IdPs in the federation */
+  @Param({"16"})
+  public int entities;
+
+  private SyntheticFederation federation;
+  private int next;
+
+  @Setup
+  public void createFederation() throws GuanxiException {
+    federation = new SyntheticFederation(entities, 1);
+  }
+
+  @Benchmark
+  public boolean verifySAML2Response() throws GuanxiException {
+    return TrustUtils.verifySignature(nextIdP().getSAML2Response());
+  }
+
+  @Benchmark
+  public boolean verifySAML11Response() throws GuanxiException {
+    return TrustUtils.verifySignature(nextIdP().getSAML11Response());
+  }
+
+  @Benchmark
+  public Document verifySAML2ResponseFromWire() throws GuanxiException {
+    return TrustUtils.verifySignature(new ByteArrayInputStream(nextIdP().getSAML2Bytes()));
+  }
+
+  @Benchmark
+  public Document verifySAML11ResponseFromWire() throws GuanxiException {
+    return TrustUtils.verifySignature(new ByteArrayInputStream(nextIdP().getSAML11Bytes()));
+  }
+
+  private SyntheticFederation.IdP nextIdP() {
+    next = (next + 1) % federation.size();
+    return federation.getIdP(next);
+  }
+}
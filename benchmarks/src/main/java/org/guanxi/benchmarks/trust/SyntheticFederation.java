@@ -0,0 +1,418 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.benchmarks.trust;
+
+import org.apache.xml.security.utils.Constants;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.X509Extensions;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.XMLFactory;
+import org.guanxi.common.security.SecUtils;
+import org.guanxi.common.security.SecUtilsConfig;
+import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorDocument;
+import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
+import org.guanxi.xal.saml_2_0.metadata.EndpointType;
+import org.guanxi.xal.saml_2_0.metadata.KeyDescriptorType;
+import org.guanxi.xal.saml_2_0.metadata.RoleDescriptorType;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import javax.security.auth.x500.X500Principal;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * A made up federation of Identity Providers for the benchmarks to work on. Each IdP
+ * has SAML2 metadata with IDPSSODescriptor and AttributeAuthorityDescriptor KeyDescriptors,
+ * a SAML2 Response and a Shibboleth SAML 1.1 Response, both signed by SecUtils.
+ *
+ * Keys and certificates are made the same way SecUtils.createSelfSignedKeystore makes
+ * them, 1024 bit RSA with SHA1withRSA, but the signing certificate is issued by a
+ * federation CA so PKIX validation has something to do. The subject DNs have the extra
+ * OU=Unknown etc. that commandline tools add, as that's what KeyName matching sees in
+ * the wild. Older rollover certificates come before the current one in each role,
+ * so explicit key validation has to get past them.
+ *
+ * @author alistair
+ */
+public class SyntheticFederation {
+  /** The DN of the federation CA */
+  public static final String CA_DN = "CN=Guanxi Benchmark Federation CA, O=Guanxi, C=GB";
+
+  /** The SAML2 protocol namespace */
+  private static final String SAML2_PROTOCOL_NS = "urn:oasis:names:tc:SAML:2.0:protocol";
+  /** The SAML2 assertion namespace */
+  private static final String SAML2_ASSERTION_NS = "urn:oasis:names:tc:SAML:2.0:assertion";
+  /** The SAML 1.x protocol namespace */
+  private static final String SAML1_PROTOCOL_NS = "urn:oasis:names:tc:SAML:1.0:protocol";
+  /** The SAML 1.x assertion namespace */
+  private static final String SAML1_ASSERTION_NS = "urn:oasis:names:tc:SAML:1.0:assertion";
+  /** The password for the keystore and all the private keys in it */
+  private static final String KEYSTORE_PASSWORD = "benchmark";
+  /** How long the certificates are valid for, the same as SecUtils */
+  private static final long VALIDITY = 20L * 24 * 60 * 60 * 1000;
+
+  /** Fixed seed so every run works on the same shaped data */
+  private final Random random = new Random(20100101L);
+  /** The federation CA's certificate */
+  private final X509Certificate caCert;
+  /** The IdPs in the federation */
+  private final IdP[] idps;
+
+  /**
+   * Builds a federation
+   *
+   * @param entityCount the number of IdPs
+   * @param keyDescriptors the number of KeyDescriptors in each role, the last of which has the signing key
+   * @throws GuanxiException if the keys, metadata or responses can't be made
+   */
+  public SyntheticFederation(int entityCount, int keyDescriptors) throws GuanxiException {
+    if (Security.getProvider("BC") == null) {
+      Security.addProvider(new BouncyCastleProvider());
+    }
+
+    try {
+      KeyPair caKeyPair = generateKeyPair();
+      caCert = generateCertificate(CA_DN, caKeyPair.getPublic(), CA_DN, caKeyPair.getPrivate(), true);
+
+      // All the IdPs' keys go in one keystore for SecUtils to sign with
+      KeyStore ks = KeyStore.getInstance("JKS");
+      ks.load(null, null);
+
+      idps = new IdP[entityCount];
+      for (int c=0; c < entityCount; c++) {
+        String hostName = "idp" + c + ".example" + c + ".ac.uk";
+        String subjectDN = "CN=" + hostName + ", OU=Unknown, O=Unknown, L=Unknown, ST=Unknown, C=Unknown";
+
+        KeyPair keyPair = generateKeyPair();
+        X509Certificate signingCert = generateCertificate(subjectDN, keyPair.getPublic(), CA_DN, caKeyPair.getPrivate(), false);
+
+        // The rollover certificates are the older self signed ones the IdP used to have
+        X509Certificate[] roleCerts = new X509Certificate[keyDescriptors];
+        for (int k=0; k < keyDescriptors - 1; k++) {
+          KeyPair oldKeyPair = generateKeyPair();
+          roleCerts[k] = generateCertificate(subjectDN, oldKeyPair.getPublic(), subjectDN, oldKeyPair.getPrivate(), false);
+        }
+        roleCerts[keyDescriptors - 1] = signingCert;
+
+        ks.setKeyEntry(hostName, keyPair.getPrivate(), KEYSTORE_PASSWORD.toCharArray(),
+                       new Certificate[] {signingCert, caCert});
+
+        idps[c] = new IdP("urn:guanxi:benchmark:" + hostName, hostName, signingCert, roleCerts);
+      }
+
+      File keystoreFile = File.createTempFile("guanxi-benchmark-", ".jks");
+      keystoreFile.deleteOnExit();
+      FileOutputStream fos = new FileOutputStream(keystoreFile);
+      ks.store(fos, KEYSTORE_PASSWORD.toCharArray());
+      fos.close();
+
+      for (IdP idp : idps) {
+        SecUtilsConfig config = new SecUtilsConfig();
+        config.setKeystoreType("JKS");
+        config.setKeystoreFile(keystoreFile.getPath());
+        config.setKeystorePass(KEYSTORE_PASSWORD);
+        config.setPrivateKeyAlias(idp.hostName);
+        config.setPrivateKeyPass(KEYSTORE_PASSWORD);
+        config.setCertificateAlias(idp.hostName);
+        config.setKeyType(SecUtilsConfig.KEY_TYPE_RSA);
+
+        idp.metadata = createMetadata(idp);
+        idp.saml2Response = SecUtils.getInstance().saml2Sign(config, createSAML2Response(idp), idp.saml2ResponseID);
+        idp.saml11Response = SecUtils.getInstance().sign(config, createSAML11Response(idp), "#" + idp.saml11ResponseID);
+        idp.saml2Bytes = serialise(idp.saml2Response);
+        idp.saml11Bytes = serialise(idp.saml11Response);
+      }
+    }
+    catch(GuanxiException ge) {
+      throw ge;
+    }
+    catch(Exception e) {
+      throw new GuanxiException(e);
+    }
+  }
+
+  /**
+   * Returns the certificate of the CA that issued all the IdPs' signing certificates
+   *
+   * @return the federation CA certificate
+   */
+  public X509Certificate getCACertificate() {
+    return caCert;
+  }
+
+  /**
+   * Returns an IdP in the federation
+   *
+   * @param index which IdP, from 0 to size() - 1
+   * @return the IdP
+   */
+  public IdP getIdP(int index) {
+    return idps[index];
+  }
+
+  public int size() {
+    return idps.length;
+  }
+
+  /**
+   * Creates the metadata for an IdP, with the same KeyDescriptors in its IDPSSODescriptor
+   * and AttributeAuthorityDescriptor
+   *
+   * @param idp the IdP
+   * @return the IdP's EntityDescriptor
+   * @throws Exception if a certificate can't be encoded
+   */
+  private EntityDescriptorType createMetadata(IdP idp) throws Exception {
+    EntityDescriptorType entityDescriptor = EntityDescriptorDocument.Factory.newInstance().addNewEntityDescriptor();
+    entityDescriptor.setEntityID(idp.entityID);
+
+    RoleDescriptorType sso = entityDescriptor.addNewIDPSSODescriptor();
+    sso.setProtocolSupportEnumeration(Arrays.asList(SAML2_PROTOCOL_NS, "urn:mace:shibboleth:1.0"));
+    addKeyDescriptors(sso, idp);
+    EndpointType ssoService = entityDescriptor.getIDPSSODescriptorArray(0).addNewSingleSignOnService();
+    ssoService.setBinding("urn:mace:shibboleth:1.0:profiles:AuthnRequest");
+    ssoService.setLocation("https://" + idp.hostName + "/guanxi_idp/shibb/sso");
+
+    RoleDescriptorType aa = entityDescriptor.addNewAttributeAuthorityDescriptor();
+    aa.setProtocolSupportEnumeration(Arrays.asList(SAML2_PROTOCOL_NS, "urn:oasis:names:tc:SAML:1.1:protocol"));
+    addKeyDescriptors(aa, idp);
+    EndpointType attributeService = entityDescriptor.getAttributeAuthorityDescriptorArray(0).addNewAttributeService();
+    attributeService.setBinding("urn:oasis:names:tc:SAML:1.0:bindings:SOAP-binding");
+    attributeService.setLocation("https://" + idp.hostName + ":8443/guanxi_idp/shibb/aa");
+
+    return entityDescriptor;
+  }
+
+  private void addKeyDescriptors(RoleDescriptorType role, IdP idp) throws Exception {
+    for (X509Certificate x509 : idp.roleCerts) {
+      KeyDescriptorType keyDescriptor = role.addNewKeyDescriptor();
+      keyDescriptor.addNewKeyInfo().addKeyName(idp.hostName);
+      keyDescriptor.getKeyInfo().addNewX509Data().addX509Certificate(x509.getEncoded());
+    }
+  }
+
+  /**
+   * Creates an unsigned SAML2 Response with an authentication and attribute statement.
+   * There's a text node after the Issuer as SecUtils.saml2Sign expects the Response
+   * to be laid out.
+   *
+   * @param idp the IdP issuing the Response
+   * @return the Response
+   */
+  private Document createSAML2Response(IdP idp) {
+    Document doc = XMLFactory.getDocumentBuilder().newDocument();
+    idp.saml2ResponseID = newID();
+
+    Element response = doc.createElementNS(SAML2_PROTOCOL_NS, "samlp:Response");
+    response.setAttributeNS(Constants.NamespaceSpecNS, "xmlns:samlp", SAML2_PROTOCOL_NS);
+    response.setAttributeNS(Constants.NamespaceSpecNS, "xmlns:saml", SAML2_ASSERTION_NS);
+    response.setAttribute("ID", idp.saml2ResponseID);
+    response.setAttribute("Version", "2.0");
+    response.setAttribute("IssueInstant", "2010-01-01T00:00:00Z");
+    response.setAttribute("Destination", "https://sp.example.ac.uk/Shibboleth.sso/SAML2/POST");
+    response.setIdAttribute("ID", true);
+    doc.appendChild(response);
+
+    appendText(doc, response, SAML2_ASSERTION_NS, "saml:Issuer", idp.entityID);
+    response.appendChild(doc.createTextNode("\n"));
+    Element status = append(doc, response, SAML2_PROTOCOL_NS, "samlp:Status");
+    append(doc, status, SAML2_PROTOCOL_NS, "samlp:StatusCode").setAttribute("Value", "urn:oasis:names:tc:SAML:2.0:status:Success");
+    response.appendChild(doc.createTextNode("\n"));
+
+    Element assertion = append(doc, response, SAML2_ASSERTION_NS, "saml:Assertion");
+    assertion.setAttribute("ID", newID());
+    assertion.setAttribute("Version", "2.0");
+    assertion.setAttribute("IssueInstant", "2010-01-01T00:00:00Z");
+    appendText(doc, assertion, SAML2_ASSERTION_NS, "saml:Issuer", idp.entityID);
+    Element subject = append(doc, assertion, SAML2_ASSERTION_NS, "saml:Subject");
+    Element nameID = appendText(doc, subject, SAML2_ASSERTION_NS, "saml:NameID", newID());
+    nameID.setAttribute("Format", "urn:oasis:names:tc:SAML:2.0:nameid-format:transient");
+    Element authn = append(doc, assertion, SAML2_ASSERTION_NS, "saml:AuthnStatement");
+    authn.setAttribute("AuthnInstant", "2010-01-01T00:00:00Z");
+    appendText(doc, append(doc, authn, SAML2_ASSERTION_NS, "saml:AuthnContext"), SAML2_ASSERTION_NS,
+               "saml:AuthnContextClassRef", "urn:oasis:names:tc:SAML:2.0:ac:classes:PasswordProtectedTransport");
+    Element attributes = append(doc, assertion, SAML2_ASSERTION_NS, "saml:AttributeStatement");
+    addSAML2Attribute(doc, attributes, "urn:oid:1.3.6.1.4.1.5923.1.1.1.1", "member", "staff");
+    addSAML2Attribute(doc, attributes, "urn:oid:1.3.6.1.4.1.5923.1.1.1.10", newID());
+    addSAML2Attribute(doc, attributes, "urn:oid:0.9.2342.19200300.100.1.3", "someone@" + idp.hostName);
+
+    return doc;
+  }
+
+  private void addSAML2Attribute(Document doc, Element attributeStatement, String name, String... values) {
+    Element attribute = append(doc, attributeStatement, SAML2_ASSERTION_NS, "saml:Attribute");
+    attribute.setAttribute("Name", name);
+    attribute.setAttribute("NameFormat", "urn:oasis:names:tc:SAML:2.0:attrname-format:uri");
+    for (String value : values) {
+      appendText(doc, attribute, SAML2_ASSERTION_NS, "saml:AttributeValue", value);
+    }
+  }
+
+  /**
+   * Creates an unsigned Shibboleth SAML 1.1 Response with an authentication statement
+   *
+   * @param idp the IdP issuing the Response
+   * @return the Response
+   */
+  private Document createSAML11Response(IdP idp) {
+    Document doc = XMLFactory.getDocumentBuilder().newDocument();
+    idp.saml11ResponseID = newID();
+
+    Element response = doc.createElementNS(SAML1_PROTOCOL_NS, "samlp:Response");
+    response.setAttributeNS(Constants.NamespaceSpecNS, "xmlns:samlp", SAML1_PROTOCOL_NS);
+    response.setAttributeNS(Constants.NamespaceSpecNS, "xmlns:saml", SAML1_ASSERTION_NS);
+    response.setAttribute("ResponseID", idp.saml11ResponseID);
+    response.setAttribute("MajorVersion", "1");
+    response.setAttribute("MinorVersion", "1");
+    response.setAttribute("IssueInstant", "2010-01-01T00:00:00Z");
+    response.setAttribute("Recipient", "https://sp.example.ac.uk/Shibboleth.sso/SAML/POST");
+    response.setIdAttribute("ResponseID", true);
+    doc.appendChild(response);
+
+    Element status = append(doc, response, SAML1_PROTOCOL_NS, "samlp:Status");
+    append(doc, status, SAML1_PROTOCOL_NS, "samlp:StatusCode").setAttribute("Value", "samlp:Success");
+
+    Element assertion = append(doc, response, SAML1_ASSERTION_NS, "saml:Assertion");
+    assertion.setAttribute("AssertionID", newID());
+    assertion.setAttribute("Issuer", idp.entityID);
+    assertion.setAttribute("IssueInstant", "2010-01-01T00:00:00Z");
+    assertion.setAttribute("MajorVersion", "1");
+    assertion.setAttribute("MinorVersion", "1");
+    Element conditions = append(doc, assertion, SAML1_ASSERTION_NS, "saml:Conditions");
+    conditions.setAttribute("NotBefore", "2010-01-01T00:00:00Z");
+    conditions.setAttribute("NotOnOrAfter", "2010-01-01T00:05:00Z");
+    appendText(doc, append(doc, conditions, SAML1_ASSERTION_NS, "saml:AudienceRestrictionCondition"),
+               SAML1_ASSERTION_NS, "saml:Audience", "urn:guanxi:benchmark:sp");
+    Element authn = append(doc, assertion, SAML1_ASSERTION_NS, "saml:AuthenticationStatement");
+    authn.setAttribute("AuthenticationInstant", "2010-01-01T00:00:00Z");
+    authn.setAttribute("AuthenticationMethod", "urn:oasis:names:tc:SAML:1.0:am:password");
+    Element subject = append(doc, authn, SAML1_ASSERTION_NS, "saml:Subject");
+    Element nameIdentifier = appendText(doc, subject, SAML1_ASSERTION_NS, "saml:NameIdentifier", newID());
+    nameIdentifier.setAttribute("Format", "urn:mace:shibboleth:1.0:nameIdentifier");
+    nameIdentifier.setAttribute("NameQualifier", idp.entityID);
+    appendText(doc, append(doc, subject, SAML1_ASSERTION_NS, "saml:SubjectConfirmation"), SAML1_ASSERTION_NS,
+               "saml:ConfirmationMethod", "urn:oasis:names:tc:SAML:1.0:cm:bearer");
+
+    return doc;
+  }
+
+  private Element append(Document doc, Element parent, String namespace, String name) {
+    Element element = doc.createElementNS(namespace, name);
+    parent.appendChild(element);
+    return element;
+  }
+
+  private Element appendText(Document doc, Element parent, String namespace, String name, String text) {
+    Element element = append(doc, parent, namespace, name);
+    element.setTextContent(text);
+    return element;
+  }
+
+  private String newID() {
+    return "_" + new BigInteger(128, random).toString(16);
+  }
+
+  private byte[] serialise(Document doc) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    XMLFactory.getTransformer().transform(new DOMSource(doc), new StreamResult(out));
+    return out.toByteArray();
+  }
+
+  private KeyPair generateKeyPair() throws Exception {
+    KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+    keyGen.initialize(1024, new SecureRandom());
+    return keyGen.generateKeyPair();
+  }
+
+  private X509Certificate generateCertificate(String subjectDN, PublicKey subjectKey, String issuerDN,
+                                              PrivateKey issuerKey, boolean ca) throws Exception {
+    Date validFrom = new Date(System.currentTimeMillis() - (10 * 60 * 1000));
+    Date validTo = new Date(validFrom.getTime() + VALIDITY);
+
+    X509V3CertificateGenerator x509 = new X509V3CertificateGenerator();
+    x509.setSignatureAlgorithm("SHA1withRSA");
+    x509.setIssuerDN(new X500Principal(issuerDN));
+    x509.setSubjectDN(new X500Principal(subjectDN));
+    x509.setPublicKey(subjectKey);
+    x509.setNotBefore(validFrom);
+    x509.setNotAfter(validTo);
+    x509.setSerialNumber(new BigInteger(128, random));
+    if (ca) {
+      x509.addExtension(X509Extensions.BasicConstraints, true, new BasicConstraints(true));
+    }
+    return x509.generate(issuerKey, "BC");
+  }
+
+  /**
+   * One IdP in the federation, with everything the benchmarks need from it
+   */
+  public static class IdP {
+    private final String entityID;
+    private final String hostName;
+    private final X509Certificate signingCert;
+    private final X509Certificate[] roleCerts;
+    private EntityDescriptorType metadata;
+    private String saml2ResponseID;
+    private String saml11ResponseID;
+    private Document saml2Response;
+    private Document saml11Response;
+    private byte[] saml2Bytes;
+    private byte[] saml11Bytes;
+
+    IdP(String entityID, String hostName, X509Certificate signingCert, X509Certificate[] roleCerts) {
+      this.entityID = entityID;
+      this.hostName = hostName;
+      this.signingCert = signingCert;
+      this.roleCerts = roleCerts;
+    }
+
+    public String getEntityID() { return entityID; }
+    /** The KeyName in the metadata and CN of the certificates */
+    public String getHostName() { return hostName; }
+    /** The certificate the Responses are signed with, issued by the federation CA */
+    public X509Certificate getSigningCertificate() { return signingCert; }
+    /** The certificates in each role's KeyDescriptors, the signing certificate last */
+    public X509Certificate[] getRoleCertificates() { return roleCerts.clone(); }
+    public EntityDescriptorType getMetadata() { return metadata; }
+    public Document getSAML2Response() { return saml2Response; }
+    public Document getSAML11Response() { return saml11Response; }
+    /** The signed SAML2 Response as it would come off the wire */
+    public byte[] getSAML2Bytes() { return saml2Bytes; }
+    /** The signed SAML 1.1 Response as it would come off the wire */
+    public byte[] getSAML11Bytes() { return saml11Bytes; }
+  }
+}
@@ -28,9 +28,7 @@ import java.util.TimeZone;
 import java.util.zip.*;
 
 import javax.servlet.http.HttpServletRequest;
-import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
@@ -60,6 +58,8 @@ public class Utils {
   public static final boolean RFC1951_NO_WRAP = true;
   /** Shortcut for using default compression level */
   public static final int RFC1951_DEFAULT_COMPRESSION_LEVEL = Deflater.DEFAULT_COMPRESSION;
+  /** Upper case hex digits */
+  private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
   
   /**
    * Returns the parameters and their values from an HTTP request
@@ -91,9 +91,7 @@ public class Utils {
       DOMSource domSource = new DOMSource(inDocToEncode);
       StringWriter writer = new StringWriter();
       StreamResult result = new StreamResult(writer);
-      TransformerFactory tf = TransformerFactory.newInstance();
-      Transformer transformer = tf.newTransformer();
-      transformer.transform(domSource, result);
+      XMLFactory.getTransformer().transform(domSource, result);
       return Base64.encode(writer.toString().getBytes());
     }
     catch(TransformerException te) {
@@ -123,6 +121,44 @@ public class Utils {
     }
   }
 
+  /**
+   * Converts bytes to upper case hex, two digits per byte with no separators
+   *
+   * @param bytes the bytes to convert
+   * @return the bytes in hex
+   */
+  public static String toHex(byte[] bytes) {
+    char[] hex = new char[bytes.length * 2];
+    for (int c=0; c < bytes.length; c++) {
+      hex[c * 2] = HEX_DIGITS[(bytes[c] >> 4) & 0x0f];
+      hex[(c * 2) + 1] = HEX_DIGITS[bytes[c] & 0x0f];
+    }
+    return new String(hex);
+  }
+
+  /**
+   * Converts bytes to upper case hex, two digits per byte with a separator between each pair
+   *
+   * @param bytes the bytes to convert
+   * @param separator what goes between each pair of digits, e.g. ':'
+   * @return the bytes in hex
+   */
+  public static String toHex(byte[] bytes, char separator) {
+    if (bytes.length == 0) {
+      return "";
+    }
+
+    char[] hex = new char[(bytes.length * 3) - 1];
+    for (int c=0; c < bytes.length; c++) {
+      if (c > 0) {
+        hex[(c * 3) - 1] = separator;
+      }
+      hex[c * 3] = HEX_DIGITS[(bytes[c] >> 4) & 0x0f];
+      hex[(c * 3) + 1] = HEX_DIGITS[bytes[c] & 0x0f];
+    }
+    return new String(hex);
+  }
+
   /**
    * Gets the text value of a particular node in the config file
    *
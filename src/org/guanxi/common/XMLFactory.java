@@ -0,0 +1,346 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common;
+
+import org.apache.log4j.Logger;
+import org.apache.xml.security.utils.IgnoreAllErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.ErrorListener;
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Hands out the JAXP objects Guanxi needs to work with XML. Looking up the factories
+ * is slow and none of the parsers, transformers or XPath objects are thread safe, so
+ * each thread gets its own and keeps reusing them.
+ *
+ * Parsers are namespace aware and won't process DTDs, so SAML messages and metadata
+ * can't pull in external entities. Transformers won't load external DTDs or stylesheets
+ * either.
+ *
+ * @author alistair
+ */
+public class XMLFactory {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(XMLFactory.class.getName());
+
+  /** Each thread's parser */
+  private static final ThreadLocal<DocumentBuilder> documentBuilder = new ThreadLocal<DocumentBuilder>() {
+    protected DocumentBuilder initialValue() {
+      try {
+        return createDocumentBuilderFactory().newDocumentBuilder();
+      }
+      catch(ParserConfigurationException pce) {
+        throw new IllegalStateException(pce);
+      }
+    }
+  };
+
+  /** Each thread's TransformerFactory, which can also turn SAX events into DOM */
+  private static final ThreadLocal<SAXTransformerFactory> transformerFactory = new ThreadLocal<SAXTransformerFactory>() {
+    protected SAXTransformerFactory initialValue() {
+      return createTransformerFactory();
+    }
+  };
+
+  /** Refuses to resolve anything, so stylesheets can't pull in other documents */
+  private static final URIResolver NO_EXTERNAL_URIS = new URIResolver() {
+    public Source resolve(String href, String base) throws TransformerException {
+      throw new TransformerException("Not resolving external URI " + href);
+    }
+  };
+
+  /** Each thread's SAXParserFactory, for parsing stream sources handed to the transformers */
+  private static final ThreadLocal<SAXParserFactory> saxParserFactory = new ThreadLocal<SAXParserFactory>() {
+    protected SAXParserFactory initialValue() {
+      return createSAXParserFactory();
+    }
+  };
+
+  /** Each thread's serialiser */
+  private static final ThreadLocal<Transformer> transformer = new ThreadLocal<Transformer>() {
+    protected Transformer initialValue() {
+      try {
+        return new SecureTransformer(transformerFactory.get().newTransformer());
+      }
+      catch(TransformerConfigurationException tce) {
+        throw new IllegalStateException(tce);
+      }
+    }
+  };
+
+  /** Each thread's compiled XPath expressions, by namespace context and then expression */
+  private static final ThreadLocal<Map<NamespaceContext, Map<String, XPathExpression>>> xPathExpressions =
+    new ThreadLocal<Map<NamespaceContext, Map<String, XPathExpression>>>() {
+      protected Map<NamespaceContext, Map<String, XPathExpression>> initialValue() {
+        return new HashMap<NamespaceContext, Map<String, XPathExpression>>();
+      }
+    };
+
+  /** Each thread's XPathFactory */
+  private static final ThreadLocal<XPathFactory> xPathFactory = new ThreadLocal<XPathFactory>() {
+    protected XPathFactory initialValue() {
+      return XPathFactory.newInstance();
+    }
+  };
+
+  private XMLFactory() {}
+
+  /**
+   * Returns the current thread's parser, reset and ready to use. It must not
+   * be passed to other threads.
+   *
+   * @return a namespace aware parser that won't process DTDs
+   */
+  public static DocumentBuilder getDocumentBuilder() {
+    DocumentBuilder builder = documentBuilder.get();
+    builder.reset();
+    builder.setErrorHandler(new IgnoreAllErrorHandler());
+    return builder;
+  }
+
+  /**
+   * Returns the current thread's serialiser, reset and ready to use. It must not
+   * be passed to other threads.
+   *
+   * @return an identity Transformer
+   */
+  public static Transformer getTransformer() {
+    Transformer identity = transformer.get();
+    identity.reset();
+    return identity;
+  }
+
+  /**
+   * Returns the current thread's TransformerFactory, for things like building DOM
+   * from SAX events. It must not be passed to other threads.
+   *
+   * @return the thread's TransformerFactory
+   */
+  public static SAXTransformerFactory getTransformerFactory() {
+    return transformerFactory.get();
+  }
+
+  /**
+   * Returns an XPath expression compiled for the current thread. Each thread compiles
+   * an expression once and keeps it. The expression must not be passed to other threads.
+   *
+   * @param expression the XPath expression
+   * @param namespaces the prefixes used in the expression. This should be the same
+   *                   object each time, as expressions are kept per namespace context.
+   * @return the compiled expression
+   * @throws XPathExpressionException if the expression can't be compiled
+   */
+  public static XPathExpression getXPathExpression(String expression, NamespaceContext namespaces) throws XPathExpressionException {
+    Map<NamespaceContext, Map<String, XPathExpression>> threadExpressions = xPathExpressions.get();
+    Map<String, XPathExpression> expressions = threadExpressions.get(namespaces);
+    if (expressions == null) {
+      expressions = new HashMap<String, XPathExpression>();
+      threadExpressions.put(namespaces, expressions);
+    }
+
+    XPathExpression compiled = expressions.get(expression);
+    if (compiled == null) {
+      XPath xPath = xPathFactory.get().newXPath();
+      xPath.setNamespaceContext(namespaces);
+      compiled = xPath.compile(expression);
+      expressions.put(expression, compiled);
+    }
+
+    return compiled;
+  }
+
+  /**
+   * Creates a namespace aware DocumentBuilderFactory that won't process DTDs or external entities
+   *
+   * @return a hardened DocumentBuilderFactory
+   */
+  private static DocumentBuilderFactory createDocumentBuilderFactory() {
+    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+    dbf.setNamespaceAware(true);
+    dbf.setXIncludeAware(false);
+    dbf.setExpandEntityReferences(false);
+
+    setFeature(dbf, XMLConstants.FEATURE_SECURE_PROCESSING, true);
+    setFeature(dbf, "http://apache.org/xml/features/disallow-doctype-decl", true);
+    setFeature(dbf, "http://xml.org/sax/features/external-general-entities", false);
+    setFeature(dbf, "http://xml.org/sax/features/external-parameter-entities", false);
+    setFeature(dbf, "http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+
+    return dbf;
+  }
+
+  /**
+   * Creates a TransformerFactory with secure processing on that won't load external DTDs or stylesheets
+   *
+   * @return a hardened SAXTransformerFactory
+   */
+  private static SAXTransformerFactory createTransformerFactory() {
+    SAXTransformerFactory tf = (SAXTransformerFactory)TransformerFactory.newInstance();
+
+    try {
+      tf.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+    }
+    catch(TransformerConfigurationException tce) {
+      logger.warn("XML transformer does not support " + XMLConstants.FEATURE_SECURE_PROCESSING);
+    }
+    // XMLConstants.ACCESS_EXTERNAL_DTD and ACCESS_EXTERNAL_STYLESHEET, which only JAXP 1.5 has
+    setAttribute(tf, "http://javax.xml.XMLConstants/property/accessExternalDTD", "");
+    setAttribute(tf, "http://javax.xml.XMLConstants/property/accessExternalStylesheet", "");
+
+    // Not every transformer knows those, e.g. Xalan, so nothing external is resolved either
+    tf.setURIResolver(NO_EXTERNAL_URIS);
+
+    return tf;
+  }
+
+  /**
+   * Creates a namespace aware SAXParserFactory that won't process DTDs or external entities,
+   * for parsing what's handed to the transformers
+   *
+   * @return a hardened SAXParserFactory
+   */
+  private static SAXParserFactory createSAXParserFactory() {
+    SAXParserFactory spf = SAXParserFactory.newInstance();
+    spf.setNamespaceAware(true);
+    spf.setXIncludeAware(false);
+
+    setFeature(spf, XMLConstants.FEATURE_SECURE_PROCESSING, true);
+    setFeature(spf, "http://apache.org/xml/features/disallow-doctype-decl", true);
+    setFeature(spf, "http://xml.org/sax/features/external-general-entities", false);
+    setFeature(spf, "http://xml.org/sax/features/external-parameter-entities", false);
+    setFeature(spf, "http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+
+    return spf;
+  }
+
+  private static void setFeature(SAXParserFactory spf, String feature, boolean value) {
+    try {
+      spf.setFeature(feature, value);
+    }
+    catch(ParserConfigurationException pce) {
+      logger.warn("XML parser does not support " + feature);
+    }
+    catch(SAXException se) {
+      // Not every parser knows every feature
+      logger.warn("XML parser does not support " + feature);
+    }
+  }
+
+  private static void setAttribute(TransformerFactory tf, String attribute, Object value) {
+    try {
+      tf.setAttribute(attribute, value);
+    }
+    catch(IllegalArgumentException iae) {
+      // Not every transformer knows every attribute
+      logger.warn("XML transformer does not support " + attribute);
+    }
+  }
+
+  private static void setFeature(DocumentBuilderFactory dbf, String feature, boolean value) {
+    try {
+      dbf.setFeature(feature, value);
+    }
+    catch(ParserConfigurationException pce) {
+      // Not every parser knows every feature
+      logger.warn("XML parser does not support " + feature);
+    }
+  }
+
+  /**
+   * Passes everything through to a Transformer apart from stream sources, which are
+   * parsed with a hardened parser rather than whatever the transformer would use.
+   * Not every transformer can be told not to load external DTDs, e.g. Xalan.
+   */
+  private static class SecureTransformer extends Transformer {
+    private final Transformer transformer;
+
+    SecureTransformer(Transformer transformer) {
+      this.transformer = transformer;
+    }
+
+    public void transform(Source xmlSource, Result outputTarget) throws TransformerException {
+      if (xmlSource instanceof StreamSource) {
+        StreamSource stream = (StreamSource)xmlSource;
+        InputSource input;
+        if (stream.getInputStream() != null) {
+          input = new InputSource(stream.getInputStream());
+        }
+        else if (stream.getReader() != null) {
+          input = new InputSource(stream.getReader());
+        }
+        else {
+          input = new InputSource(stream.getSystemId());
+        }
+        input.setSystemId(stream.getSystemId());
+        input.setPublicId(stream.getPublicId());
+
+        try {
+          xmlSource = new SAXSource(saxParserFactory.get().newSAXParser().getXMLReader(), input);
+        }
+        catch(ParserConfigurationException pce) {
+          throw new TransformerException(pce);
+        }
+        catch(SAXException se) {
+          throw new TransformerException(se);
+        }
+      }
+
+      transformer.transform(xmlSource, outputTarget);
+    }
+
+    public void reset() {
+      transformer.reset();
+      transformer.setURIResolver(NO_EXTERNAL_URIS);
+    }
+
+    public void setParameter(String name, Object value) { transformer.setParameter(name, value); }
+    public Object getParameter(String name) { return transformer.getParameter(name); }
+    public void clearParameters() { transformer.clearParameters(); }
+    public void setURIResolver(URIResolver resolver) { transformer.setURIResolver(resolver); }
+    public URIResolver getURIResolver() { return transformer.getURIResolver(); }
+    public void setOutputProperties(Properties oformat) { transformer.setOutputProperties(oformat); }
+    public Properties getOutputProperties() { return transformer.getOutputProperties(); }
+    public void setOutputProperty(String name, String value) { transformer.setOutputProperty(name, value); }
+    public String getOutputProperty(String name) { return transformer.getOutputProperty(name); }
+    public void setErrorListener(ErrorListener listener) { transformer.setErrorListener(listener); }
+    public ErrorListener getErrorListener() { return transformer.getErrorListener(); }
+  }
+}
@@ -18,12 +18,17 @@ package org.guanxi.common.entity;
 
 import org.guanxi.common.GuanxiException;
 import org.guanxi.common.metadata.Metadata;
+import org.guanxi.common.trust.CertificateValidityIndex;
 import org.guanxi.common.trust.TrustEngine;
 
 /**
  * This is responsible for managing Entity metadata and the
  * trust based on that metadata.
  * 
+ * getValidityIndex, addMetadata(Metadata[]) and replaceAllMetadata were added after
+ * the interface was first published, so implementations from outside Guanxi Common
+ * have to implement them. GuanxiEntityManagerImpl can be extended instead.
+ * 
  * @author matthew alistair
  */
 public interface EntityManager {
@@ -53,6 +58,23 @@ public interface EntityManager {
 	 */
 	public void addMetadata(Metadata metadata);
 
+  /**
+   * Adds the metadata for a number of entities in one go, e.g. all the entities
+   * loaded from the source. This will overwrite existing metadata for the entities.
+   *
+   * @param metadata the metadata that has been loaded from the source
+   */
+  public void addMetadata(Metadata[] metadata);
+
+  /**
+   * Replaces all the metadata loaded for the source with new metadata in one go,
+   * e.g. when the source is reloaded. Anyone looking up an entity while this
+   * happens finds it in either the old metadata or the new, never neither.
+   *
+   * @param metadata the metadata that has been loaded from the source
+   */
+  public void replaceAllMetadata(Metadata[] metadata);
+
 	/**
 	 * This returns the metadata associated with a particular entityID.
 	 * If the entityID is not associated with metadata then null is returned.
@@ -104,4 +126,11 @@ public interface EntityManager {
    * @param entityID the entity who's metadata is to be removed
    */
   public void removeMetadata(String entityID);
+
+  /**
+   * Returns an index of when the keys in all the entities' metadata expire
+   *
+   * @return the validity index for the entities currently loaded
+   */
+  public CertificateValidityIndex getValidityIndex();
 }
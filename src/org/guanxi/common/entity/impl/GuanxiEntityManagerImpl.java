@@ -19,21 +19,30 @@ package org.guanxi.common.entity.impl;
 import org.guanxi.common.entity.EntityManager;
 import org.guanxi.common.metadata.Metadata;
 import org.guanxi.common.GuanxiException;
+import org.guanxi.common.trust.CertificateValidityIndex;
 import org.guanxi.common.trust.TrustEngine;
 
-import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Guanxi implementation of the MetadataManager interface.
  * This class works with XMLBeans defined SAML2 metadata objects
  *
+ * The entities are held in a generation that looking up an entity reads without a
+ * lock. replaceAllMetadata and addMetadata(Metadata[]) build a new generation to one
+ * side and swap it in, so a reload is seen all at once and an entity that's in both
+ * the old and new metadata is never missing. Adding or removing a single entity
+ * changes the current generation in place, as it always did, so loading the entities
+ * one at a time doesn't copy them all on every add.
+ *
  * @author alistair
  */
 public class GuanxiEntityManagerImpl implements EntityManager {
   /** The class to use for handling metadata entities */
   private String entityHandlerClass = null;
-  /** The list of entities this manger looks after */
-  private HashMap<String, Metadata> metadataHandlers = null;
+  /** The entities this manager looks after */
+  private volatile Generation generation = new Generation(new ConcurrentHashMap<String, Metadata>());
   /** The trust engine implementation */
   private TrustEngine trustEngine = null;
 
@@ -47,28 +56,47 @@ public class GuanxiEntityManagerImpl implements EntityManager {
     }
   }
 
-  public void init() {
-    metadataHandlers = new HashMap<String, Metadata>();
+  public synchronized void init() {
+    generation = new Generation(new ConcurrentHashMap<String, Metadata>());
   }
 
   /** @see org.guanxi.common.entity.EntityManager#addMetadata(org.guanxi.common.metadata.Metadata) */
-  public void addMetadata(Metadata metadata) {
-    metadataHandlers.put(metadata.getEntityID(), metadata);
+  public synchronized void addMetadata(Metadata metadata) {
+    generation.handlers.put(metadata.getEntityID(), metadata);
+    generation.changed();
+  }
+
+  /** @see org.guanxi.common.entity.EntityManager#addMetadata(org.guanxi.common.metadata.Metadata[]) */
+  public synchronized void addMetadata(Metadata[] metadata) {
+    Map<String, Metadata> handlers = new ConcurrentHashMap<String, Metadata>(generation.handlers);
+    for (Metadata entity : metadata) {
+      handlers.put(entity.getEntityID(), entity);
+    }
+    generation = new Generation(handlers);
+  }
+
+  /** @see org.guanxi.common.entity.EntityManager#replaceAllMetadata(org.guanxi.common.metadata.Metadata[]) */
+  public synchronized void replaceAllMetadata(Metadata[] metadata) {
+    Map<String, Metadata> handlers = new ConcurrentHashMap<String, Metadata>(metadata.length * 2);
+    for (Metadata entity : metadata) {
+      handlers.put(entity.getEntityID(), entity);
+    }
+    generation = new Generation(handlers);
   }
 
   /** @see org.guanxi.common.entity.EntityManager#getMetadata(String) */
   public Metadata getMetadata(String entityID) {
-    return metadataHandlers.get(entityID);
+    return generation.handlers.get(entityID);
   }
 
   /** @see org.guanxi.common.entity.EntityManager#removeAllMetadata() */
-  public void removeAllMetadata() {
-    metadataHandlers.clear();
+  public synchronized void removeAllMetadata() {
+    generation = new Generation(new ConcurrentHashMap<String, Metadata>());
   }
 
   /** @see org.guanxi.common.entity.EntityManager#handlesEntity(String)  */
   public boolean handlesEntity(String entityID) {
-    return metadataHandlers.containsKey(entityID);
+    return generation.handlers.containsKey(entityID);
   }
 
   /** @see org.guanxi.common.entity.EntityManager#setEntityHandlerClass(String)   */
@@ -88,12 +116,57 @@ public class GuanxiEntityManagerImpl implements EntityManager {
 
   /** @see org.guanxi.common.entity.EntityManager#getEntityIDs() */
   public String[] getEntityIDs() {
-    String[] entityIDs = new String[metadataHandlers.keySet().size()];
-    return metadataHandlers.keySet().toArray(entityIDs);
+    Map<String, Metadata> handlers = generation.handlers;
+    String[] entityIDs = new String[handlers.size()];
+    return handlers.keySet().toArray(entityIDs);
   }
 
   /** @see org.guanxi.common.entity.EntityManager#removeMetadata(String) */
-  public void removeMetadata(String entityID) {
-    metadataHandlers.remove(entityID);
+  public synchronized void removeMetadata(String entityID) {
+    if (generation.handlers.remove(entityID) != null) {
+      generation.changed();
+    }
+  }
+
+  /** @see org.guanxi.common.entity.EntityManager#getValidityIndex() */
+  public CertificateValidityIndex getValidityIndex() {
+    Generation current = generation;
+    CertificateValidityIndex index = current.validityIndex;
+    if (index == null) {
+      long builtFrom = current.changes;
+      index = new CertificateValidityIndex(current.handlers.values());
+      synchronized(this) {
+        // Only keep it if no entity was added or removed while it was being built
+        if (current.changes == builtFrom) {
+          current.validityIndex = index;
+        }
+      }
+    }
+    return index;
+  }
+
+  /**
+   * The entities, along with anything worked out from them
+   */
+  private static class Generation {
+    /** The entities, keyed on entityID */
+    final Map<String, Metadata> handlers;
+    /** When the entities' keys expire. Built when it's first asked for after the entities change */
+    volatile CertificateValidityIndex validityIndex = null;
+    /** Goes up every time an entity is added or removed in place, so an older index isn't kept */
+    volatile long changes = 0;
+
+    Generation(Map<String, Metadata> handlers) {
+      this.handlers = handlers;
+    }
+
+    /**
+     * Drops what was worked out from the entities, after one was added or removed
+     * in place. Only called with the manager locked.
+     */
+    void changed() {
+      changes++;
+      validityIndex = null;
+    }
   }
 }
@@ -0,0 +1,310 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.common.entity.impl;
+
+import org.apache.log4j.Logger;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.entity.EntityManager;
+import org.guanxi.common.metadata.Metadata;
+import org.guanxi.common.metadata.MetadataSnapshot;
+import org.guanxi.common.trust.CertificateValidityIndex;
+import org.guanxi.common.trust.TrustEngine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An EntityManager that keeps its entities in a memory mapped MetadataSnapshot rather
+ * than on the heap. An entity's handler is only built when getMetadata first asks for
+ * it and is then kept in a bounded least recently used cache, so the heap only holds
+ * the entities that are actually being talked to. An entity that's dropped from the
+ * cache is read from the snapshot again the next time it's asked for.
+ *
+ * Metadata added with addMetadata is held on the heap as usual and takes precedence
+ * over the snapshot.
+ *
+ * @author alistair
+ */
+public class LazyEntityManagerImpl implements EntityManager {
+  /** Default maximum number of entity handlers to keep */
+  public static final int DEFAULT_MAX_LOADED = 1000;
+
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(LazyEntityManagerImpl.class.getName());
+
+  /** The class to use for handling metadata entities */
+  private String entityHandlerClass = null;
+  /** The trust engine implementation */
+  private TrustEngine trustEngine = null;
+  /** Where the entities are read from, or null if there isn't a snapshot */
+  private volatile MetadataSnapshot snapshot = null;
+  /** Metadata that was added rather than read from the snapshot */
+  private final Map<String, Metadata> addedHandlers = new HashMap<String, Metadata>();
+  /** Entities in the snapshot that have been removed */
+  private final Set<String> removedEntities = new HashSet<String>();
+  /** The handlers built from the snapshot, in least recently used order */
+  private final LinkedHashMap<String, Metadata> loadedHandlers;
+  /** The maximum number of handlers built from the snapshot to keep */
+  private volatile int maxLoaded = DEFAULT_MAX_LOADED;
+  /** When the entities' keys expire. Built when it's first asked for after the entities change */
+  private volatile CertificateValidityIndex validityIndex = null;
+  /** Goes up every time the entities change, so an index built from older entities isn't kept */
+  private long version = 0;
+  /** How many times an entity had to be read from the snapshot */
+  private final AtomicLong loads = new AtomicLong();
+
+  public LazyEntityManagerImpl() {
+    loadedHandlers = new LinkedHashMap<String, Metadata>(64, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<String, Metadata> eldest) {
+        return size() > maxLoaded;
+      }
+    };
+  }
+
+  /**
+   * Replaces all the entities with those in a snapshot. Any handlers built from the
+   * old snapshot or added are dropped, as are any removals.
+   *
+   * @param snapshot the new snapshot or null to have no entities from a snapshot
+   */
+  public void setSnapshot(MetadataSnapshot snapshot) {
+    setSnapshot(snapshot, Collections.<String>emptySet());
+  }
+
+  /**
+   * Replaces all the entities with those in a snapshot, keeping the handlers
+   * already built or added for entities that are the same in both. Any other
+   * handlers are dropped, as are any removals.
+   *
+   * @param snapshot the new snapshot
+   * @param unchangedEntityIDs the entities that are the same in both snapshots
+   */
+  public synchronized void setSnapshot(MetadataSnapshot snapshot, Collection<String> unchangedEntityIDs) {
+    this.snapshot = snapshot;
+    loadedHandlers.keySet().retainAll(unchangedEntityIDs);
+    addedHandlers.keySet().retainAll(unchangedEntityIDs);
+    removedEntities.clear();
+    entitiesChanged();
+  }
+
+  public MetadataSnapshot getSnapshot() {
+    return snapshot;
+  }
+
+  /** @see org.guanxi.common.entity.EntityManager#createNewEntityHandler()  */
+  public Metadata createNewEntityHandler() throws GuanxiException {
+    try {
+      return (Metadata)Class.forName(entityHandlerClass).newInstance();
+    }
+    catch(Exception e) {
+      throw new GuanxiException(e);
+    }
+  }
+
+  /** @see org.guanxi.common.entity.EntityManager#addMetadata(org.guanxi.common.metadata.Metadata) */
+  public synchronized void addMetadata(Metadata metadata) {
+    addedHandlers.put(metadata.getEntityID(), metadata);
+    removedEntities.remove(metadata.getEntityID());
+    entitiesChanged();
+  }
+
+  /** @see org.guanxi.common.entity.EntityManager#addMetadata(org.guanxi.common.metadata.Metadata[]) */
+  public synchronized void addMetadata(Metadata[] metadata) {
+    for (Metadata entity : metadata) {
+      addedHandlers.put(entity.getEntityID(), entity);
+      removedEntities.remove(entity.getEntityID());
+    }
+    entitiesChanged();
+  }
+
+  /** @see org.guanxi.common.entity.EntityManager#replaceAllMetadata(org.guanxi.common.metadata.Metadata[]) */
+  public synchronized void replaceAllMetadata(Metadata[] metadata) {
+    setSnapshot(null);
+    addMetadata(metadata);
+  }
+
+  /**
+   * Returns the metadata for an entity, building its handler from the snapshot if
+   * it's not been asked for recently. The snapshot is read outside the lock so other
+   * entities can be looked up while it is.
+   *
+   * @see org.guanxi.common.entity.EntityManager#getMetadata(String)
+   */
+  public Metadata getMetadata(String entityID) {
+    MetadataSnapshot current;
+    synchronized(this) {
+      Metadata metadata = addedHandlers.get(entityID);
+      if (metadata == null) {
+        metadata = loadedHandlers.get(entityID);
+      }
+      if ((metadata != null) || (removedEntities.contains(entityID))) {
+        return metadata;
+      }
+      current = snapshot;
+    }
+
+    if ((current == null) || (!current.contains(entityID))) {
+      return null;
+    }
+
+    Metadata metadata;
+    try {
+      metadata = createNewEntityHandler();
+      metadata.setPrivateData(current.getEntityDescriptor(entityID));
+      loads.incrementAndGet();
+    }
+    catch(GuanxiException ge) {
+      logger.error("Could not load " + entityID + " from the metadata snapshot", ge);
+      return null;
+    }
+
+    synchronized(this) {
+      // Don't keep it if the snapshot's changed or the entity's been replaced since
+      if ((current == snapshot) && (!addedHandlers.containsKey(entityID)) && (!removedEntities.contains(entityID))) {
+        Metadata loaded = loadedHandlers.get(entityID);
+        if (loaded != null) {
+          // Another thread got there first
+          return loaded;
+        }
+        loadedHandlers.put(entityID, metadata);
+      }
+    }
+
+    return metadata;
+  }
+
+  /** @see org.guanxi.common.entity.EntityManager#removeAllMetadata() */
+  public synchronized void removeAllMetadata() {
+    setSnapshot(null);
+  }
+
+  /** @see org.guanxi.common.entity.EntityManager#handlesEntity(String)  */
+  public synchronized boolean handlesEntity(String entityID) {
+    if (addedHandlers.containsKey(entityID)) {
+      return true;
+    }
+    return (snapshot != null) && (snapshot.contains(entityID)) && (!removedEntities.contains(entityID));
+  }
+
+  /** @see org.guanxi.common.entity.EntityManager#setEntityHandlerClass(String)   */
+  public void setEntityHandlerClass(String entityHandlerClass) {
+    this.entityHandlerClass = entityHandlerClass;
+  }
+
+  /** @see org.guanxi.common.entity.EntityManager#setTrustEngine(org.guanxi.common.trust.TrustEngine) */
+  public void setTrustEngine(TrustEngine trustEngine) {
+    this.trustEngine = trustEngine;
+  }
+
+  /** @see org.guanxi.common.entity.EntityManager#getTrustEngine() */
+  public TrustEngine getTrustEngine() {
+    return trustEngine;
+  }
+
+  /** @see org.guanxi.common.entity.EntityManager#getEntityIDs() */
+  public synchronized String[] getEntityIDs() {
+    Set<String> entityIDs = new LinkedHashSet<String>(addedHandlers.keySet());
+    if (snapshot != null) {
+      for (String entityID : snapshot.getEntityIDs()) {
+        if (!removedEntities.contains(entityID)) {
+          entityIDs.add(entityID);
+        }
+      }
+    }
+    return entityIDs.toArray(new String[entityIDs.size()]);
+  }
+
+  /** @see org.guanxi.common.entity.EntityManager#removeMetadata(String) */
+  public synchronized void removeMetadata(String entityID) {
+    addedHandlers.remove(entityID);
+    loadedHandlers.remove(entityID);
+    if ((snapshot != null) && (snapshot.contains(entityID))) {
+      removedEntities.add(entityID);
+    }
+    entitiesChanged();
+  }
+
+  /**
+   * Builds the index from the certificates in the snapshot, so none of the
+   * entities in it have to be loaded. The index is built outside the lock and
+   * only kept if the entities haven't changed in the meantime.
+   *
+   * @see org.guanxi.common.entity.EntityManager#getValidityIndex()
+   */
+  public CertificateValidityIndex getValidityIndex() {
+    CertificateValidityIndex index = validityIndex;
+    if (index != null) {
+      return index;
+    }
+
+    long builtFrom;
+    List<Metadata> added;
+    Map<String, List<byte[]>> unloaded = new HashMap<String, List<byte[]>>();
+    synchronized(this) {
+      builtFrom = version;
+      added = new ArrayList<Metadata>(addedHandlers.values());
+      if (snapshot != null) {
+        String[] entityIDs = snapshot.getEntityIDs();
+        for (int c=0; c < entityIDs.length; c++) {
+          if ((!addedHandlers.containsKey(entityIDs[c])) && (!removedEntities.contains(entityIDs[c]))) {
+            unloaded.put(entityIDs[c], snapshot.getCertificates(c));
+          }
+        }
+      }
+    }
+
+    index = new CertificateValidityIndex(added, unloaded);
+    synchronized(this) {
+      if (version == builtFrom) {
+        validityIndex = index;
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Drops anything worked out from the entities. Must be called with the lock held.
+   */
+  private void entitiesChanged() {
+    version++;
+    validityIndex = null;
+  }
+
+  /**
+   * Returns the number of entity handlers built from the snapshot that are being kept
+   *
+   * @return the number of handlers in the cache
+   */
+  public synchronized int getLoadedCount() {
+    return loadedHandlers.size();
+  }
+
+  public void setMaxLoaded(int maxLoaded) { this.maxLoaded = maxLoaded; }
+  public int getMaxLoaded() { return maxLoaded; }
+
+  public long getLoads() { return loads.get(); }
+}
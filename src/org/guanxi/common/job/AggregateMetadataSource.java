@@ -0,0 +1,144 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.job;
+
+import org.apache.log4j.Logger;
+import org.apache.xml.security.exceptions.XMLSecurityException;
+import org.apache.xml.security.signature.XMLSignature;
+import org.apache.xml.security.signature.XMLSignatureException;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.Utils;
+import org.guanxi.common.job.MetadataLoader.EntityLoad;
+import org.guanxi.common.metadata.MetadataSnapshot;
+import org.guanxi.xal.saml_2_0.metadata.EntitiesDescriptorDocument;
+import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
+import org.guanxi.xal.saml_2_0.metadata.ExtensionsType;
+import org.guanxi.xal.w3.xmldsig.SignatureType;
+import org.w3c.dom.Element;
+
+import java.security.cert.X509Certificate;
+
+/**
+ * Metadata parsed into an aggregate document
+ *
+ * @author alistair
+ */
+class AggregateMetadataSource extends MetadataSource {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(AggregateMetadataSource.class.getName());
+
+  private final EntitiesDescriptorDocument doc;
+
+  AggregateMetadataSource(SAML2MetadataParserConfig config, MetadataSnapshotStore snapshots,
+                          MetadataValidators validators, EntitiesDescriptorDocument doc, boolean cached) {
+    super(config, snapshots, validators, cached);
+    this.doc = doc;
+  }
+
+  EntitiesDescriptorDocument getDocument() {
+    return doc;
+  }
+
+  SignatureType getSignature() {
+    return doc.getEntitiesDescriptor().getSignature();
+  }
+
+  protected boolean checkSignature(X509Certificate signingCertificate) {
+    try {
+      XMLSignature signature = new XMLSignature((Element)getSignature().getDomNode(),"");
+      return signature.checkSignatureValue(signingCertificate);
+    }
+    catch(XMLSignatureException xse) {
+      logger.error("Failed to get signature of metadata", xse);
+    }
+    catch(XMLSecurityException xse) {
+      logger.error("Problem with the signature of metadata", xse);
+    }
+
+    return false;
+  }
+
+  ExtensionsType getExtensions() {
+    return doc.getEntitiesDescriptor().getExtensions();
+  }
+
+  int read(EntityLoad load) throws GuanxiException {
+    EntityDescriptorType[] descriptors = doc.getEntitiesDescriptor().getEntityDescriptorArray();
+
+    /* XMLBeans locks the whole aggregate whenever any of it's read, so handlers built in
+     * parallel, or kept between reloads, get a copy of their entity in its own document.
+     */
+    boolean copy = (load.isDiff()) || (config.getLoaderExecutor() != null);
+    for (EntityDescriptorType entityDescriptor : descriptors) {
+      load.addEntity(entityDescriptor, copy);
+    }
+    load.finish();
+    return descriptors.length;
+  }
+
+  EntityDescriptorType[] cache() {
+    EntityDescriptorType[] descriptors = doc.getEntitiesDescriptor().getEntityDescriptorArray();
+    if (cached) {
+      return descriptors;
+    }
+
+    // Cache the metadata locally. The XML is what was verified, the snapshot is for speed
+    String cacheFile = config.getMetadataCacheFile();
+    try {
+      Utils.writeSAML2MetadataToDisk(doc, cacheFile);
+    }
+    catch(GuanxiException ge) {
+      logger.error("Could not cache metadata to : " + cacheFile, ge);
+      dropValidators();
+      snapshots.commit(null, null);
+      return descriptors;
+    }
+
+    snapshots.commit(writeSnapshot(descriptors), verifiedSigner);
+    saveValidators();
+    cached = true;
+    return descriptors;
+  }
+
+  /**
+   * Writes the snapshot of the metadata
+   *
+   * @param descriptors the entities in the metadata
+   * @return the snapshot, ready to commit, or null if there isn't to be one or it can't be written
+   */
+  private MetadataSnapshot.Writer writeSnapshot(EntityDescriptorType[] descriptors) {
+    MetadataSnapshot.Writer writer = snapshots.create();
+    if (writer == null) {
+      return null;
+    }
+
+    try {
+      if (getExtensions() != null) {
+        writer.setExtensions(getExtensions());
+      }
+      for (EntityDescriptorType entityDescriptor : descriptors) {
+        writer.addEntity(entityDescriptor);
+      }
+      return writer;
+    }
+    catch(GuanxiException ge) {
+      logger.error("Could not write metadata snapshot for : " + config.getMetadataCacheFile(), ge);
+      writer.abort();
+      return null;
+    }
+  }
+}
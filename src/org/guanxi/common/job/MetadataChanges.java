@@ -0,0 +1,70 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.common.job;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What changed in a metadata source's entities when its metadata was reloaded
+ *
+ * @author alistair
+ */
+public class MetadataChanges {
+  /** Where the metadata came from */
+  private final String source;
+  /** Entities that weren't in the previous metadata */
+  private final List<String> added = new ArrayList<String>();
+  /** Entities whose metadata changed */
+  private final List<String> replaced = new ArrayList<String>();
+  /** Entities that are no longer in the metadata */
+  private final List<String> removed = new ArrayList<String>();
+  /** How many entities were left as they were */
+  private int unchanged = 0;
+
+  public MetadataChanges(String source) {
+    this.source = source;
+  }
+
+  void entityAdded(String entityID) { added.add(entityID); }
+  void entityReplaced(String entityID) { replaced.add(entityID); }
+  void entityRemoved(String entityID) { removed.add(entityID); }
+  void entityUnchanged() { unchanged++; }
+  void entitiesUnchanged(int count) { unchanged += count; }
+
+  public String getSource() { return source; }
+  public List<String> getAdded() { return Collections.unmodifiableList(added); }
+  public List<String> getReplaced() { return Collections.unmodifiableList(replaced); }
+  public List<String> getRemoved() { return Collections.unmodifiableList(removed); }
+  public int getUnchanged() { return unchanged; }
+
+  /**
+   * Determines whether anything changed
+   *
+   * @return true if any entities were added, replaced or removed, otherwise false
+   */
+  public boolean hasChanges() {
+    return (!added.isEmpty()) || (!replaced.isEmpty()) || (!removed.isEmpty());
+  }
+
+  public String toString() {
+    return source + " : " + added.size() + " added, " + replaced.size() + " replaced, " +
+           removed.size() + " removed, " + unchanged + " unchanged";
+  }
+}
@@ -0,0 +1,161 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.job;
+
+import org.apache.xmlbeans.XmlException;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.metadata.StreamedMetadataSignature;
+import org.guanxi.xal.saml_2_0.metadata.EntitiesDescriptorDocument;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * Downloads the metadata for ShibbolethSAML2MetadataParser, but only if it's changed
+ * since it was cached. The request carries the validators saved alongside the cache
+ * file and if the source answers 304 Not Modified, nothing is downloaded. Otherwise the
+ * metadata is parsed into an AggregateMetadataSource or, if the config says to stream it,
+ * saved to a file next to the cache file for a StreamedMetadataSource. The cache file
+ * itself is left alone until the job accepts the new metadata.
+ *
+ * @author alistair
+ */
+class MetadataFetcher {
+  /** Added to the name of the cache file to get the name of the file streamed metadata is downloaded to */
+  static final String DOWNLOAD_EXTENSION = ".download";
+
+  private final SAML2MetadataParserConfig config;
+  /** The snapshot kept alongside the cache file */
+  private final MetadataSnapshotStore snapshots;
+  /** The validators the metadata came with or, if it wasn't modified, the cached ones */
+  private MetadataValidators validators = null;
+
+  MetadataFetcher(SAML2MetadataParserConfig config, MetadataSnapshotStore snapshots) {
+    this.config = config;
+    this.snapshots = snapshots;
+  }
+
+  /**
+   * Asks the source for the metadata, sending the validators of the cached metadata
+   *
+   * @return the metadata or null if the source says the cached metadata is what it has
+   * @throws GuanxiException if the metadata can't be downloaded or parsed
+   */
+  MetadataSource fetch() throws GuanxiException {
+    MetadataValidators cachedValidators = loadCachedValidators();
+
+    try {
+      URLConnection connection = openConnection(cachedValidators);
+      if (isNotModified(connection)) {
+        validators = cachedValidators;
+        return null;
+      }
+
+      validators = MetadataValidators.fromConnection(connection);
+      if (config.isStreaming()) {
+        return download(connection);
+      }
+      return new AggregateMetadataSource(config, snapshots, validators, parse(connection), false);
+    }
+    catch(IOException ioe) {
+      throw new GuanxiException(ioe);
+    }
+  }
+
+  MetadataValidators getValidators() { return validators; }
+
+  private EntitiesDescriptorDocument parse(URLConnection connection) throws IOException, GuanxiException {
+    InputStream in = connection.getInputStream();
+    try {
+      return EntitiesDescriptorDocument.Factory.parse(in);
+    }
+    catch(XmlException xe) {
+      throw new GuanxiException(xe);
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  private StreamedMetadataSource download(URLConnection connection) throws IOException, GuanxiException {
+    File file = new File(config.getMetadataCacheFile() + DOWNLOAD_EXTENSION);
+    StreamedMetadataSignature signature;
+    InputStream in = connection.getInputStream();
+    try {
+      OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+      try {
+        // The signature's digest is checked on the way
+        signature = StreamedMetadataSignature.read(in, out);
+      }
+      finally {
+        out.close();
+      }
+    }
+    catch(GuanxiException ge) {
+      file.delete();
+      throw ge;
+    }
+    finally {
+      in.close();
+    }
+    return new StreamedMetadataSource(config, snapshots, validators, file, signature, false);
+  }
+
+  /**
+   * Loads the validators saved with the cache file. They're only any use
+   * if there's metadata in the cache for them to validate.
+   *
+   * @return the validators or null if there aren't any
+   */
+  private MetadataValidators loadCachedValidators() {
+    if (new File(config.getMetadataCacheFile()).exists()) {
+      return MetadataValidators.load(config.getMetadataCacheFile());
+    }
+    return null;
+  }
+
+  /**
+   * Opens a connection to the metadata source
+   *
+   * @param cachedValidators the validators of the cached metadata, to only download
+   *                         it if it's changed. Can be null.
+   * @return the unconnected connection
+   * @throws IOException if the connection can't be opened
+   */
+  private URLConnection openConnection(MetadataValidators cachedValidators) throws IOException {
+    URLConnection connection = new URL(config.getMetadataURL()).openConnection();
+    if (config.getWho() != null) {
+      connection.setRequestProperty("User-Agent", config.getWho());
+    }
+    if (cachedValidators != null) {
+      cachedValidators.apply(connection);
+    }
+    return connection;
+  }
+
+  private boolean isNotModified(URLConnection connection) throws IOException {
+    return (connection instanceof HttpURLConnection) &&
+           (((HttpURLConnection)connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED);
+  }
+}
@@ -0,0 +1,421 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.job;
+
+import org.apache.log4j.Logger;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.entity.EntityManager;
+import org.guanxi.common.entity.impl.LazyEntityManagerImpl;
+import org.guanxi.common.metadata.Metadata;
+import org.guanxi.common.metadata.MetadataSnapshot;
+import org.guanxi.common.trust.Fingerprint;
+import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorDocument;
+import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
+import org.guanxi.xal.saml_2_0.metadata.ExtensionsType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Loads the entities in the metadata into an entity manager for ShibbolethSAML2MetadataParser,
+ * building their handlers with the parser's createEntityHandler, or hands a
+ * LazyEntityManagerImpl the snapshot instead. This is also what remembers what was last
+ * loaded from each source between jobs, which is only the validators the metadata came
+ * with, to spot that it hasn't changed, and the fingerprint of each entity, to reload
+ * only the entities that have. None of the metadata itself is
+ * kept, so if it's needed again it comes from the snapshot or cache file.
+ *
+ * @author alistair
+ */
+class MetadataLoader {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(MetadataLoader.class.getName());
+
+  /** The validators of the metadata last loaded from each source, keyed on its cache file.
+   *  Quartz creates a new job on every invocation so this has to outlive the job. */
+  private static final Map<String, MetadataValidators> loadedValidators = Collections.synchronizedMap(new HashMap<String, MetadataValidators>());
+  /** The fingerprint of each entity last loaded from each source by a reload, keyed on its cache file */
+  private static final Map<String, Map<String, Fingerprint>> loadedDigests = Collections.synchronizedMap(new HashMap<String, Map<String, Fingerprint>>());
+
+  private final ShibbolethSAML2MetadataParser parser;
+  private final SAML2MetadataParserConfig config;
+  /** The snapshot kept alongside the cache file */
+  private final MetadataSnapshotStore snapshots;
+
+  MetadataLoader(ShibbolethSAML2MetadataParser parser, SAML2MetadataParserConfig config, MetadataSnapshotStore snapshots) {
+    this.parser = parser;
+    this.config = config;
+    this.snapshots = snapshots;
+  }
+
+  /**
+   * Determines whether the metadata with the given validators is what was last loaded from the source
+   *
+   * @param validators the validators of the metadata, can be null
+   * @return true if it was the last metadata loaded, otherwise false
+   */
+  boolean isLoaded(MetadataValidators validators) {
+    return (validators != null) && (validators.equals(loadedValidators.get(config.getMetadataCacheFile())));
+  }
+
+  /**
+   * Records that the metadata with the given validators has been loaded from the source
+   *
+   * @param validators the validators of the metadata, or null if it didn't come with any
+   */
+  void loaded(MetadataValidators validators) {
+    if (validators != null) {
+      loadedValidators.put(config.getMetadataCacheFile(), validators);
+    }
+    else {
+      loadedValidators.remove(config.getMetadataCacheFile());
+    }
+  }
+
+  /**
+   * Loads the entities from the metadata into an entity manager, replacing the ones it has
+   *
+   * @param manager the entity manager
+   * @param source the metadata
+   * @param changes where to record what changed since the last reload, to only build
+   *                handlers for the entities that have. If this is null, all the
+   *                entities get handlers.
+   * @return the number of entities loaded
+   * @throws GuanxiException if the metadata can't be read or any of the handlers built
+   */
+  int load(EntityManager manager, MetadataSource source, MetadataChanges changes) throws GuanxiException {
+    EntityLoad load = new EntityLoad(manager, changes);
+
+    int entities = -1;
+    if (manager instanceof LazyEntityManagerImpl) {
+      entities = loadLazily((LazyEntityManagerImpl)manager, source, load);
+    }
+    if (entities < 0) {
+      entities = source.read(load);
+    }
+
+    loaded(source.getValidators());
+    return entities;
+  }
+
+  /**
+   * Hands the snapshot of the metadata to a manager that loads each entity from it
+   * when it's first asked for. The snapshot is memory mapped, so none of the entities
+   * are on the heap until then.
+   *
+   * @param manager the entity manager
+   * @param source the metadata
+   * @param load the load the entities would otherwise be read into
+   * @return the number of entities in the snapshot or -1 if there's no snapshot
+   * @throws GuanxiException if the metadata can't be read
+   */
+  private int loadLazily(LazyEntityManagerImpl manager, MetadataSource source, EntityLoad load) throws GuanxiException {
+    if (!source.snapshot(load)) {
+      logger.warn("No metadata snapshot to load " + config.getMetadataURL() + " lazily from. Loading all entities");
+      return -1;
+    }
+
+    try {
+      return setSnapshot(manager, snapshots.map(), load.changes);
+    }
+    catch(GuanxiException ge) {
+      logger.error("Could not map metadata snapshot for " + config.getMetadataURL() + ". Loading all entities", ge);
+      return -1;
+    }
+  }
+
+  /**
+   * Gives a lazy manager a mapped snapshot
+   *
+   * @param manager the entity manager
+   * @param mapped the snapshot
+   * @param changes where to record what changed since the last snapshot, keeping the
+   *                handlers the manager's already built for unchanged entities. If
+   *                this is null, the manager drops all the handlers it's built.
+   * @return the number of entities in the snapshot
+   */
+  private int setSnapshot(LazyEntityManagerImpl manager, MetadataSnapshot mapped, MetadataChanges changes) {
+    String cacheFile = config.getMetadataCacheFile();
+    if (changes == null) {
+      manager.setSnapshot(mapped);
+      loadedDigests.remove(cacheFile);
+      return mapped.size();
+    }
+
+    // The snapshot holds each entity as it's fingerprinted, so nothing needs parsing
+    Map<String, Fingerprint> previous = getLoadedDigests();
+    Map<String, Fingerprint> digests = new HashMap<String, Fingerprint>(mapped.size() * 2);
+    Set<String> unchanged = new HashSet<String>();
+    for (int c=0; c < mapped.size(); c++) {
+      String entityID = mapped.getEntityID(c);
+      Fingerprint digest = mapped.getEntityDigest(c);
+      digests.put(entityID, digest);
+
+      Fingerprint previousDigest = previous.get(entityID);
+      if (!manager.handlesEntity(entityID)) {
+        changes.entityAdded(entityID);
+      }
+      else if ((previousDigest != null) && (previousDigest.equals(digest))) {
+        changes.entityUnchanged();
+        unchanged.add(entityID);
+      }
+      else {
+        changes.entityReplaced(entityID);
+      }
+    }
+    for (String entityID : manager.getEntityIDs()) {
+      if (!digests.containsKey(entityID)) {
+        changes.entityRemoved(entityID);
+      }
+    }
+
+    manager.setSnapshot(mapped, unchanged);
+    loadedDigests.put(cacheFile, digests);
+    return mapped.size();
+  }
+
+  /**
+   * Returns the fingerprints of the entities last loaded from the source by a reload
+   *
+   * @return the fingerprints, keyed on entityID, which are empty if there wasn't a reload
+   */
+  private Map<String, Fingerprint> getLoadedDigests() {
+    Map<String, Fingerprint> previous = loadedDigests.get(config.getMetadataCacheFile());
+    if (previous == null) {
+      return Collections.emptyMap();
+    }
+    return previous;
+  }
+
+  /**
+   * Builds an entity handler with the config's loader executor, or there and then if there isn't one
+   *
+   * @param build builds the handler
+   * @return the handler, when it's been built
+   */
+  private Future<Metadata> submit(Callable<Metadata> build) {
+    ExecutorService executor = config.getLoaderExecutor();
+    if (executor == null) {
+      FutureTask<Metadata> task = new FutureTask<Metadata>(build);
+      task.run();
+      return task;
+    }
+
+    return executor.submit(build);
+  }
+
+  /**
+   * Copies an entity into a document of its own. XmlObject.copy keeps the copy in the
+   * same synchronization domain as the original, so it would still be locked along with
+   * every other entity in the aggregate.
+   *
+   * @param entityDescriptor the entity's metadata
+   * @return the copy
+   */
+  private static EntityDescriptorType copyEntity(EntityDescriptorType entityDescriptor) {
+    EntityDescriptorType copy = EntityDescriptorDocument.Factory.newInstance().addNewEntityDescriptor();
+    copy.set(entityDescriptor);
+    return copy;
+  }
+
+  /**
+   * Waits for entity handlers to be built
+   *
+   * @param pending the handlers being built
+   * @return the handlers, in the order they were submitted
+   * @throws GuanxiException if any of the handlers couldn't be built
+   */
+  private static Metadata[] getEntityHandlers(List<Future<Metadata>> pending) throws GuanxiException {
+    Metadata[] handlers = new Metadata[pending.size()];
+    try {
+      for (int c=0; c < handlers.length; c++) {
+        handlers[c] = pending.get(c).get();
+      }
+    }
+    catch(InterruptedException ie) {
+      cancel(pending);
+      Thread.currentThread().interrupt();
+      throw new GuanxiException(ie);
+    }
+    catch(ExecutionException ee) {
+      cancel(pending);
+      if (ee.getCause() instanceof GuanxiException) {
+        throw (GuanxiException)ee.getCause();
+      }
+      throw new GuanxiException(ee.getCause());
+    }
+
+    return handlers;
+  }
+
+  private static void cancel(List<Future<Metadata>> pending) {
+    for (Future<Metadata> future : pending) {
+      future.cancel(false);
+    }
+  }
+
+  /**
+   * Builds the handlers for the entities in the metadata and adds them all to an
+   * entity manager in one go. When diffing, only the entities that have changed since
+   * the last reload get handlers and entities no longer in the metadata are removed.
+   */
+  class EntityLoad {
+    /** The manager the entities are being loaded into */
+    private final EntityManager manager;
+    /** Where to record what's changed, or null to load all the entities */
+    private final MetadataChanges changes;
+    /** The fingerprint of each entity from the last reload */
+    private final Map<String, Fingerprint> previous;
+    /** The fingerprint of each entity in this load */
+    private final Map<String, Fingerprint> digests = new HashMap<String, Fingerprint>();
+    /** The entities that haven't changed since the last reload */
+    private final Set<String> unchanged = new HashSet<String>();
+    /** The handlers being built */
+    private final List<Future<Metadata>> pending = new ArrayList<Future<Metadata>>();
+
+    EntityLoad(EntityManager manager, MetadataChanges changes) {
+      this.manager = manager;
+      this.changes = changes;
+      previous = isDiff() ? getLoadedDigests() : Collections.<String, Fingerprint>emptyMap();
+    }
+
+    /**
+     * Determines whether only the entities that have changed are being loaded
+     *
+     * @return true if diffing, otherwise false
+     */
+    boolean isDiff() {
+      return (changes != null);
+    }
+
+    /**
+     * Loads the shibmeta:KeyAuthority CAs in the metadata's root Extensions into the manager's trust engine
+     *
+     * @param extensions the root Extensions
+     */
+    void addExtensions(ExtensionsType extensions) {
+      parser.loadCAListFromExtensions(extensions, manager);
+    }
+
+    /**
+     * Adds an entity to the load
+     *
+     * @param entityDescriptor the entity's metadata
+     * @param copy whether to build the handler from a copy of the metadata in a document
+     *             of its own, so it doesn't keep the document the metadata's in alive or
+     *             take turns with the other entities in it
+     * @throws GuanxiException if the metadata can't be fingerprinted
+     */
+    void addEntity(EntityDescriptorType entityDescriptor, boolean copy) throws GuanxiException {
+      if ((isDiff()) && (isUnchanged(entityDescriptor.getEntityID(), MetadataSnapshot.digest(entityDescriptor)))) {
+        return;
+      }
+
+      final EntityDescriptorType entity = copy ? copyEntity(entityDescriptor) : entityDescriptor;
+      pending.add(submit(new Callable<Metadata>() {
+        public Metadata call() throws GuanxiException {
+          return parser.createEntityHandler(manager, entity);
+        }
+      }));
+    }
+
+    /**
+     * Adds an entity in a snapshot to the load. The entity's only read from the
+     * snapshot if it needs a handler.
+     *
+     * @param source the snapshot
+     * @param position the position of the entity in the snapshot
+     */
+    void addEntity(final MetadataSnapshot source, final int position) {
+      if ((isDiff()) && (isUnchanged(source.getEntityID(position), source.getEntityDigest(position)))) {
+        return;
+      }
+
+      pending.add(submit(new Callable<Metadata>() {
+        public Metadata call() throws GuanxiException {
+          return parser.createEntityHandler(manager, source.getEntityDescriptor(position));
+        }
+      }));
+    }
+
+    private boolean isUnchanged(String entityID, Fingerprint digest) {
+      digests.put(entityID, digest);
+
+      Fingerprint previousDigest = previous.get(entityID);
+      if ((previousDigest != null) && (previousDigest.equals(digest)) && (manager.handlesEntity(entityID))) {
+        changes.entityUnchanged();
+        unchanged.add(entityID);
+        return true;
+      }
+
+      if (manager.handlesEntity(entityID)) {
+        changes.entityReplaced(entityID);
+      }
+      else {
+        changes.entityAdded(entityID);
+      }
+      return false;
+    }
+
+    /**
+     * Waits for the handlers to be built then replaces all the manager's entities with
+     * them in one go. If diffing, the handlers of unchanged entities are kept and any
+     * entities that are no longer in the metadata are dropped.
+     *
+     * @throws GuanxiException if any of the handlers can't be built, in which case nothing's changed
+     */
+    void finish() throws GuanxiException {
+      Metadata[] handlers = getEntityHandlers(pending);
+
+      String cacheFile = config.getMetadataCacheFile();
+      if (isDiff()) {
+        // The unchanged handlers go into the new generation with the new ones
+        List<Metadata> generation = new ArrayList<Metadata>(Arrays.asList(handlers));
+        for (String entityID : manager.getEntityIDs()) {
+          if (!digests.containsKey(entityID)) {
+            changes.entityRemoved(entityID);
+          }
+          else if (unchanged.contains(entityID)) {
+            Metadata metadata = manager.getMetadata(entityID);
+            if (metadata != null) {
+              generation.add(metadata);
+            }
+          }
+        }
+        handlers = generation.toArray(new Metadata[generation.size()]);
+        loadedDigests.put(cacheFile, digests);
+      }
+      else {
+        // Nothing to compare the next reload with
+        loadedDigests.remove(cacheFile);
+      }
+
+      manager.replaceAllMetadata(handlers);
+    }
+  }
+}
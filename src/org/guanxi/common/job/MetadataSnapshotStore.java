@@ -0,0 +1,164 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.job;
+
+import org.apache.log4j.Logger;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.metadata.MetadataSnapshot;
+
+import java.io.File;
+import java.security.cert.X509Certificate;
+
+/**
+ * Looks after the snapshot kept next to a metadata cache file, if the config says to
+ * keep one. A snapshot is only written once the metadata has been cached and is removed
+ * whenever the cache changes without one, so it can't go stale. It also keeps track of
+ * whether the snapshot is of the metadata the job is working with, having been loaded
+ * or written since the store was created, so it can be handed to a LazyEntityManagerImpl.
+ *
+ * @author alistair
+ */
+class MetadataSnapshotStore {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(MetadataSnapshotStore.class.getName());
+
+  private final SAML2MetadataParserConfig config;
+  /** The snapshot file */
+  private final File file;
+  /** Whether the snapshot is of the metadata the job is working with */
+  private boolean current = false;
+
+  MetadataSnapshotStore(SAML2MetadataParserConfig config) {
+    this.config = config;
+    file = new File(config.getMetadataCacheFile() + ShibbolethSAML2MetadataParser.SNAPSHOT_EXTENSION);
+  }
+
+  /**
+   * Loads the snapshot, if the config says to keep one. A snapshot that says the
+   * signature was verified is only used if the cache file is still the XML the
+   * signature was verified on.
+   *
+   * @return the snapshot or null if there isn't one that can be used
+   */
+  MetadataSnapshot load() {
+    if ((!config.isSnapshot()) || (!file.exists())) {
+      return null;
+    }
+
+    try {
+      MetadataSnapshot loaded = MetadataSnapshot.load(file);
+      if (!config.getMetadataURL().equals(loaded.getSource())) {
+        logger.warn("Snapshot " + file + " is of " + loaded.getSource() + " not " + config.getMetadataURL());
+        return null;
+      }
+      if ((loaded.isSignatureVerified()) && (!loaded.isSignatureVerified(new File(config.getMetadataCacheFile())))) {
+        logger.warn("Cache file " + config.getMetadataCacheFile() + " has changed since snapshot " + file +
+                    " was written. Loading from cache");
+        return null;
+      }
+      current = true;
+      return loaded;
+    }
+    catch(GuanxiException ge) {
+      logger.warn("Could not load metadata snapshot " + file + ". Loading from cache", ge);
+      return null;
+    }
+  }
+
+  /**
+   * Starts a snapshot for the metadata, if the config says to keep one
+   *
+   * @return the writer for the snapshot, or null if there isn't to be one
+   */
+  MetadataSnapshot.Writer create() {
+    if (!config.isSnapshot()) {
+      return null;
+    }
+
+    try {
+      return MetadataSnapshot.create(file, config.getMetadataURL());
+    }
+    catch(GuanxiException ge) {
+      logger.error("Could not create metadata snapshot for : " + config.getMetadataCacheFile(), ge);
+      return null;
+    }
+  }
+
+  /**
+   * Saves the snapshot for the metadata that's just been cached or, if there isn't
+   * one, removes any that's there so it can't go stale
+   *
+   * @param writer the snapshot with all the entities written or null if there isn't one
+   * @param signingCertificate the certificate the metadata's signature was verified
+   *                           with, or null if it wasn't verified. The signature is
+   *                           tied to the cache file, which is the XML it was verified on.
+   */
+  void commit(MetadataSnapshot.Writer writer, X509Certificate signingCertificate) {
+    current = false;
+    try {
+      if (writer != null) {
+        if (signingCertificate != null) {
+          writer.commit(true, signingCertificate, MetadataSnapshot.digest(new File(config.getMetadataCacheFile())));
+        }
+        else {
+          writer.commit(false, null);
+        }
+        current = true;
+        return;
+      }
+    }
+    catch(GuanxiException ge) {
+      logger.error("Could not save metadata snapshot to : " + file, ge);
+      writer.abort();
+    }
+
+    if ((file.exists()) && (!file.delete())) {
+      logger.error("Could not remove stale metadata snapshot : " + file);
+    }
+  }
+
+  /**
+   * Throws away a snapshot that was being written
+   *
+   * @param writer the snapshot, can be null
+   */
+  void abort(MetadataSnapshot.Writer writer) {
+    if (writer != null) {
+      writer.abort();
+    }
+  }
+
+  /**
+   * Memory maps the snapshot
+   *
+   * @return the mapped snapshot
+   * @throws GuanxiException if the snapshot can't be mapped
+   */
+  MetadataSnapshot map() throws GuanxiException {
+    return MetadataSnapshot.map(file);
+  }
+
+  /**
+   * Determines whether the snapshot is of the metadata the job is working with,
+   * having been loaded or committed since the store was created
+   *
+   * @return true if the snapshot is current, otherwise false
+   */
+  boolean isCurrent() {
+    return current;
+  }
+}
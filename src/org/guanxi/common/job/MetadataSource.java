@@ -0,0 +1,227 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.job;
+
+import org.apache.log4j.Logger;
+import org.apache.xml.security.exceptions.XMLSecurityException;
+import org.apache.xml.security.keys.KeyInfo;
+import org.apache.xml.security.signature.XMLSignature;
+import org.apache.xml.security.signature.XMLSignatureException;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.Utils;
+import org.guanxi.common.job.MetadataLoader.EntityLoad;
+import org.guanxi.common.metadata.MetadataSnapshot;
+import org.guanxi.xal.saml_2_0.metadata.EntitiesDescriptorDocument;
+import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
+import org.guanxi.xal.saml_2_0.metadata.ExtensionsType;
+import org.guanxi.xal.w3.xmldsig.SignatureType;
+import org.w3c.dom.Element;
+
+import java.security.cert.X509Certificate;
+
+/**
+ * The metadata a ShibbolethSAML2MetadataParser job is working with. Each kind of
+ * metadata, an aggregate document, a streamed file or a snapshot, verifies its own
+ * signature, reads its own entities and caches itself.
+ *
+ * @author alistair
+ */
+abstract class MetadataSource {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(MetadataSource.class.getName());
+
+  protected final SAML2MetadataParserConfig config;
+  /** The snapshot kept alongside the cache file */
+  protected final MetadataSnapshotStore snapshots;
+  /** The validators the metadata came with, which are saved when it's cached */
+  protected MetadataValidators validators;
+  /** Whether the metadata is already in the cache file, along with any snapshot of it */
+  protected boolean cached;
+  /** The certificate the signature was verified with, or null if it hasn't been */
+  protected X509Certificate verifiedSigner = null;
+
+  MetadataSource(SAML2MetadataParserConfig config, MetadataSnapshotStore snapshots,
+                 MetadataValidators validators, boolean cached) {
+    this.config = config;
+    this.snapshots = snapshots;
+    this.validators = validators;
+    this.cached = cached;
+  }
+
+  /**
+   * Loads the metadata from the snapshot, if the config says to keep one and there's
+   * one for the source, otherwise from the cache file
+   *
+   * @param config the job's config
+   * @param snapshots the snapshot kept alongside the cache file
+   * @param cached whether the source says the cache file is what was last loaded
+   * @return the metadata
+   * @throws GuanxiException if the cache file can't be read
+   */
+  static MetadataSource fromCache(SAML2MetadataParserConfig config, MetadataSnapshotStore snapshots,
+                                  boolean cached) throws GuanxiException {
+    MetadataValidators validators = MetadataValidators.load(config.getMetadataCacheFile());
+
+    MetadataSnapshot snapshot = snapshots.load();
+    if (snapshot != null) {
+      return new SnapshotMetadataSource(config, snapshots, validators, snapshot);
+    }
+    if (config.isStreaming()) {
+      return StreamedMetadataSource.fromCache(config, snapshots, validators, cached);
+    }
+    return new AggregateMetadataSource(config, snapshots, validators,
+                                       Utils.parseSAML2Metadata("file:///" + config.getMetadataCacheFile()), cached);
+  }
+
+  /**
+   * Returns the signature block from the metadata
+   *
+   * @return the signature or null if there isn't one
+   */
+  abstract SignatureType getSignature();
+
+  /**
+   * Checks the signature on the metadata
+   *
+   * @param signingCertificate the certificate from the signature
+   * @return true if the signature verifies, otherwise false
+   */
+  protected abstract boolean checkSignature(X509Certificate signingCertificate);
+
+  /**
+   * Returns the Extensions of the metadata's root, for its CAs
+   *
+   * @return the Extensions or null if there aren't any or they're loaded along with the entities
+   * @throws GuanxiException if the Extensions can't be read
+   */
+  abstract ExtensionsType getExtensions() throws GuanxiException;
+
+  /**
+   * Adds all the entities to a load and finishes it
+   *
+   * @param load the load
+   * @return the number of entities read
+   * @throws GuanxiException if the metadata can't be read or any of the handlers built
+   */
+  abstract int read(EntityLoad load) throws GuanxiException;
+
+  /**
+   * Caches the metadata, along with its snapshot and validators
+   *
+   * @return all the entities in the metadata
+   */
+  abstract EntityDescriptorType[] cache();
+
+  /**
+   * Makes sure there's a snapshot of the metadata, for a LazyEntityManagerImpl
+   *
+   * @param load the load the manager's entities would otherwise be read into
+   * @return true if the snapshot is of the metadata, otherwise false
+   * @throws GuanxiException if the metadata can't be read
+   */
+  boolean snapshot(EntityLoad load) throws GuanxiException {
+    return snapshots.isCurrent();
+  }
+
+  /**
+   * Extracts the certificate to verify the signature on the metadata with
+   *
+   * @return the certificate or null if there isn't one
+   */
+  X509Certificate getSigningCertificate() {
+    SignatureType sig = getSignature();
+    if (sig == null) {
+      logger.error("Metadata is not signed");
+      return null;
+    }
+
+    try {
+      XMLSignature signature = new XMLSignature((Element)sig.getDomNode(),"");
+      KeyInfo keyInfo = signature.getKeyInfo();
+      if (keyInfo == null) {
+        logger.error("no key info in metadata signature");
+      }
+      else if (keyInfo.containsX509Data()) {
+        return keyInfo.getX509Certificate();
+      }
+      else {
+        logger.error("no x509 data in metadata signature");
+      }
+    }
+    catch(XMLSignatureException xse) {
+      logger.error("Failed to get signature of metadata", xse);
+    }
+    catch(XMLSecurityException xse) {
+      logger.error("Problem with the signature of metadata", xse);
+    }
+
+    return null;
+  }
+
+  /**
+   * Verifies the signature on the metadata, remembering the signer for the snapshot
+   *
+   * @return true if the signature verifies, otherwise false
+   */
+  boolean verifySignature() {
+    X509Certificate signingCertificate = getSigningCertificate();
+    if (signingCertificate == null) {
+      logger.error("no X509 in metadata signature");
+      return false;
+    }
+
+    if (checkSignature(signingCertificate)) {
+      verifiedSigner = signingCertificate;
+      return true;
+    }
+    return false;
+  }
+
+  /** The aggregate, if the metadata is one, for ShibbolethSAML2MetadataParser.doc */
+  EntitiesDescriptorDocument getDocument() { return null; }
+  /** The snapshot, if the metadata is one, for ShibbolethSAML2MetadataParser.snapshot */
+  MetadataSnapshot getSnapshot() { return null; }
+  /** The validators the metadata came with, or null if they couldn't be saved with it */
+  MetadataValidators getValidators() { return validators; }
+
+  /**
+   * Saves the validators alongside the cache file the metadata's just been written to
+   */
+  protected void saveValidators() {
+    String cacheFile = config.getMetadataCacheFile();
+    try {
+      if (validators != null) {
+        validators.save(cacheFile);
+      }
+      else {
+        MetadataValidators.delete(cacheFile);
+      }
+    }
+    catch(GuanxiException ge) {
+      logger.error("Could not save metadata validators for : " + cacheFile, ge);
+      dropValidators();
+    }
+  }
+
+  /**
+   * Removes the validators, which mustn't vouch for a cache file that's not what the source sent
+   */
+  protected void dropValidators() {
+    MetadataValidators.delete(config.getMetadataCacheFile());
+    validators = null;
+  }
+}
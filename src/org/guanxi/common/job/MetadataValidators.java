@@ -0,0 +1,197 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.common.job;
+
+import org.apache.log4j.Logger;
+import org.guanxi.common.GuanxiException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLConnection;
+import java.util.Properties;
+
+/**
+ * The HTTP validators, ETag and Last-Modified, that a metadata source sent with
+ * the metadata in the cache file. They're kept in a file next to the cache file so
+ * a refresh can ask the source for the metadata only if it's changed, using
+ * If-None-Match and If-Modified-Since. The values are sent back exactly as the
+ * source sent them, as that's what it'll be comparing them with.
+ *
+ * @author alistair
+ */
+public class MetadataValidators {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(MetadataValidators.class.getName());
+  /** Added to the name of the metadata cache file to get the name of the validators file */
+  public static final String VALIDATORS_EXTENSION = ".validators";
+
+  private static final String HEADER_ETAG = "ETag";
+  private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+  private static final String PROPERTY_ETAG = "etag";
+  private static final String PROPERTY_LAST_MODIFIED = "last-modified";
+
+  /** The source's entity tag for the metadata, or null if it didn't send one */
+  private final String eTag;
+  /** When the source says the metadata last changed, or null if it didn't say */
+  private final String lastModified;
+
+  public MetadataValidators(String eTag, String lastModified) {
+    this.eTag = eTag;
+    this.lastModified = lastModified;
+  }
+
+  /**
+   * Gets the validators from the response to a metadata request
+   *
+   * @param connection the connection the metadata was downloaded on
+   * @return the validators or null if the source didn't send any
+   */
+  public static MetadataValidators fromConnection(URLConnection connection) {
+    String eTag = connection.getHeaderField(HEADER_ETAG);
+    String lastModified = connection.getHeaderField(HEADER_LAST_MODIFIED);
+    if ((eTag == null) && (lastModified == null)) {
+      return null;
+    }
+    return new MetadataValidators(eTag, lastModified);
+  }
+
+  /**
+   * Loads the validators saved alongside a metadata cache file
+   *
+   * @param metadataCacheFile full path and name of the metadata cache file
+   * @return the validators or null if there aren't any or they can't be read
+   */
+  public static MetadataValidators load(String metadataCacheFile) {
+    File file = getFile(metadataCacheFile);
+    if (!file.exists()) {
+      return null;
+    }
+
+    Properties properties = new Properties();
+    try {
+      InputStream in = new FileInputStream(file);
+      try {
+        properties.load(in);
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch(IOException ioe) {
+      logger.warn("Could not read metadata validators from " + file, ioe);
+      return null;
+    }
+
+    String eTag = properties.getProperty(PROPERTY_ETAG);
+    String lastModified = properties.getProperty(PROPERTY_LAST_MODIFIED);
+    if ((eTag == null) && (lastModified == null)) {
+      return null;
+    }
+    return new MetadataValidators(eTag, lastModified);
+  }
+
+  /**
+   * Saves the validators alongside a metadata cache file. They're written to a
+   * temporary file first so a crash can't leave half of them behind.
+   *
+   * @param metadataCacheFile full path and name of the metadata cache file
+   * @throws GuanxiException if the validators can't be written
+   */
+  public void save(String metadataCacheFile) throws GuanxiException {
+    Properties properties = new Properties();
+    if (eTag != null) {
+      properties.setProperty(PROPERTY_ETAG, eTag);
+    }
+    if (lastModified != null) {
+      properties.setProperty(PROPERTY_LAST_MODIFIED, lastModified);
+    }
+
+    File file = getFile(metadataCacheFile);
+    File tmpFile = new File(file.getPath() + ".tmp");
+    try {
+      OutputStream out = new FileOutputStream(tmpFile);
+      try {
+        properties.store(out, "Validators for " + metadataCacheFile);
+      }
+      finally {
+        out.close();
+      }
+    }
+    catch(IOException ioe) {
+      tmpFile.delete();
+      throw new GuanxiException(ioe);
+    }
+
+    // Windows won't rename over an existing file
+    if ((!tmpFile.renameTo(file)) && ((!file.delete()) || (!tmpFile.renameTo(file)))) {
+      tmpFile.delete();
+      throw new GuanxiException("Could not save metadata validators to " + file);
+    }
+  }
+
+  /**
+   * Removes the validators saved alongside a metadata cache file, so the next
+   * refresh downloads the metadata whether it's changed or not
+   *
+   * @param metadataCacheFile full path and name of the metadata cache file
+   */
+  public static void delete(String metadataCacheFile) {
+    File file = getFile(metadataCacheFile);
+    if ((file.exists()) && (!file.delete())) {
+      logger.warn("Could not remove metadata validators " + file);
+    }
+  }
+
+  /**
+   * Makes a metadata request conditional on the metadata having changed
+   *
+   * @param connection the unconnected connection to the metadata source
+   */
+  public void apply(URLConnection connection) {
+    if (eTag != null) {
+      connection.setRequestProperty("If-None-Match", eTag);
+    }
+    if (lastModified != null) {
+      connection.setRequestProperty("If-Modified-Since", lastModified);
+    }
+  }
+
+  public String getETag() { return eTag; }
+  public String getLastModified() { return lastModified; }
+
+  public boolean equals(Object obj) {
+    if (!(obj instanceof MetadataValidators)) {
+      return false;
+    }
+    MetadataValidators other = (MetadataValidators)obj;
+    return ((eTag == null) ? (other.eTag == null) : eTag.equals(other.eTag)) &&
+           ((lastModified == null) ? (other.lastModified == null) : lastModified.equals(other.lastModified));
+  }
+
+  public int hashCode() {
+    return (((eTag == null) ? 0 : eTag.hashCode()) * 31) + ((lastModified == null) ? 0 : lastModified.hashCode());
+  }
+
+  private static File getFile(String metadataCacheFile) {
+    return new File(metadataCacheFile + VALIDATORS_EXTENSION);
+  }
+}
@@ -17,6 +17,7 @@
 package org.guanxi.common.job;
 
 import java.io.File;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Represents a configuration object that is passed to a
@@ -42,6 +43,12 @@ public class SAML2MetadataParserConfig extends SimpleGuanxiJobConfig {
   private String pemLocation = null;
   /** Whether the metadata is signed */
   private boolean signed;
+  /** Whether to read the metadata one entity at a time rather than as one document */
+  private boolean streaming;
+  /** Whether to keep a binary snapshot of the metadata alongside the cache file, for faster restarts */
+  private boolean snapshot;
+  /** Builds the entity handlers in parallel. If this is null they're built in the job's thread */
+  private ExecutorService loaderExecutor = null;
 
   /**
    * Initialisation
@@ -84,4 +91,20 @@ public class SAML2MetadataParserConfig extends SimpleGuanxiJobConfig {
 
   public boolean getSigned() { return signed; }
   public void setSigned(boolean signed) { this.signed = signed; }
+
+  public boolean isStreaming() { return streaming; }
+  public void setStreaming(boolean streaming) { this.streaming = streaming; }
+
+  public boolean isSnapshot() { return snapshot; }
+  public void setSnapshot(boolean snapshot) { this.snapshot = snapshot; }
+
+  /**
+   * Sets what builds the entity handlers when the metadata is loaded, e.g. a fixed
+   * thread pool or a ForkJoinPool shared by all the metadata jobs. The job doesn't
+   * shut it down.
+   *
+   * @param loaderExecutor the executor or null to build the handlers in the job's thread
+   */
+  public void setLoaderExecutor(ExecutorService loaderExecutor) { this.loaderExecutor = loaderExecutor; }
+  public ExecutorService getLoaderExecutor() { return loaderExecutor; }
 }
@@ -6,10 +6,6 @@
 package org.guanxi.common.job;
 
 import org.apache.log4j.Logger;
-import org.apache.xml.security.signature.XMLSignature;
-import org.apache.xml.security.signature.XMLSignatureException;
-import org.apache.xml.security.keys.KeyInfo;
-import org.apache.xml.security.exceptions.XMLSecurityException;
 import org.apache.xml.security.Init;
 import org.apache.xmlbeans.XmlException;
 import org.guanxi.xal.saml_2_0.metadata.EntitiesDescriptorDocument;
@@ -19,27 +15,46 @@ import org.guanxi.xal.w3.xmldsig.SignatureType;
 import org.guanxi.xal.w3.xmldsig.KeyInfoType;
 import org.guanxi.xal.w3.xmldsig.X509DataType;
 import org.guanxi.xal.shibboleth_1_0.metadata.KeyAuthorityDocument;
-import org.guanxi.common.Utils;
 import org.guanxi.common.GuanxiException;
 import org.guanxi.common.entity.EntityManager;
 import org.guanxi.common.entity.EntityFarm;
+import org.guanxi.common.metadata.Metadata;
+import org.guanxi.common.metadata.MetadataSnapshot;
 import org.guanxi.common.trust.TrustUtils;
-import org.w3c.dom.Element;
+import org.guanxi.common.trust.TrustAnchorStore;
+import org.guanxi.common.trust.X509CertificateCache;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import java.security.cert.X509Certificate;
 import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
-import java.io.IOException;
-import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
 
+/**
+ * The base of the jobs that load SAML2 metadata into an entity manager. init gets the
+ * metadata with a MetadataFetcher, or from the cache if the source can't be reached,
+ * and the job verifies it and loads the entities with a MetadataLoader.
+ *
+ * @author alistair
+ */
 public abstract class ShibbolethSAML2MetadataParser {
   /** Our logger */
   protected Logger logger = null;
   protected SAML2MetadataParserConfig config = null;
   protected EntitiesDescriptorDocument doc = null;
   protected EntityDescriptorType[] entityDescriptors = null;
+  /** Whether the metadata source says the metadata hasn't changed since it was last loaded */
+  protected boolean metadataUnchanged = false;
+  /** The snapshot the metadata was loaded from instead of the cache file, if there was one */
+  protected MetadataSnapshot snapshot = null;
+  /** The metadata the job is working with */
+  private MetadataSource source = null;
+  /** The snapshot kept alongside the cache file */
+  private MetadataSnapshotStore snapshots = null;
+  /** Builds the entity handlers and remembers what was loaded from the source between jobs */
+  private MetadataLoader loader = null;
+  /** Added to the name of the cache file to get the name of the snapshot file */
+  public static final String SNAPSHOT_EXTENSION = ".snapshot";
 
   static {
     // Initialise xml-security library
@@ -47,20 +62,40 @@ public abstract class ShibbolethSAML2MetadataParser {
   }
 
   /**
-   * Initialises the SAML2 parsing operation
+   * Initialises the SAML2 parsing operation. The metadata is only downloaded if it's
+   * changed since it was cached. If it's unchanged and already loaded, it's only read
+   * from the snapshot or cache file if the job asks for it.
    */
   public void init() {
     logger = Logger.getLogger(config.getJobClass());
+    metadataUnchanged = false;
+    source = null;
+    doc = null;
+    snapshot = null;
+    snapshots = new MetadataSnapshotStore(config);
+    loader = new MetadataLoader(this, config, snapshots);
 
     try {
       // Load the metadata from the URL
-      doc = Utils.parseSAML2Metadata(config.getMetadataURL());
+      MetadataFetcher fetcher = new MetadataFetcher(config, snapshots);
+      MetadataSource fetched = fetcher.fetch();
+      if (fetched != null) {
+        use(fetched);
+      }
+      else if (loader.isLoaded(fetcher.getValidators())) {
+        logger.info("Metadata not modified : " + config.getMetadataURL());
+        metadataUnchanged = true;
+      }
+      else {
+        // Nothing's been loaded since startup but the cache is what the source has
+        use(MetadataSource.fromCache(config, snapshots, false));
+      }
     }
     catch(GuanxiException ge) {
       logger.error("Error parsing metadata. Loading from cache", ge);
       try {
         // Load the metadata from the cache
-        doc = Utils.parseSAML2Metadata("file:///" + config.getMetadataCacheFile());
+        use(MetadataSource.fromCache(config, snapshots, false));
       }
       catch(GuanxiException gex) {
         logger.error("Could not load metadata from cache : " + config.getMetadataCacheFile(), gex);
@@ -69,17 +104,111 @@ public abstract class ShibbolethSAML2MetadataParser {
   }
 
   /**
-   * Loads the SAML2 entities from the metadata and caches them locally
+   * Determines whether the metadata source said the metadata hasn't changed since
+   * it was last loaded, in which case there's no need to verify it or load it again.
+   *
+   * @return true if the metadata is the same as was last loaded, otherwise false
    */
-  protected void loadAndCacheEntities() {
-    entityDescriptors = doc.getEntitiesDescriptor().getEntityDescriptorArray();
+  public boolean isMetadataUnchanged() {
+    return metadataUnchanged;
+  }
+
+  private void use(MetadataSource source) {
+    this.source = source;
+    doc = source.getDocument();
+    snapshot = source.getSnapshot();
+  }
+
+  /**
+   * Makes sure there's metadata to work with, reading unchanged metadata from the cache
+   *
+   * @throws GuanxiException if there's no metadata
+   */
+  private void requireMetadata() throws GuanxiException {
+    if (source != null) {
+      return;
+    }
+    if (!metadataUnchanged) {
+      throw new GuanxiException("No metadata loaded from " + config.getMetadataURL());
+    }
+    use(MetadataSource.fromCache(config, snapshots, true));
+  }
 
-    // Cache the metadata locally
+  /**
+   * As requireMetadata, for the methods that don't throw
+   *
+   * @return true if there's metadata, otherwise false
+   */
+  private boolean hasMetadata() {
     try {
-      Utils.writeSAML2MetadataToDisk(doc, config.getMetadataCacheFile());
+      requireMetadata();
+      return true;
     }
     catch(GuanxiException ge) {
-      logger.error("Could not cache metadata to : " + config.getMetadataCacheFile(), ge);
+      logger.error("Could not load metadata from cache : " + config.getMetadataCacheFile(), ge);
+      return false;
+    }
+  }
+
+  /**
+   * Loads the entities from the metadata into an entity manager, all in one go once
+   * their handlers are built. Streamed metadata must be verified first, as it's
+   * cached and has its CAs loaded along with the entities.
+   *
+   * @param manager the entity manager, normally from loadEntityManagerForReplace
+   * @return the number of entities loaded
+   * @throws GuanxiException if the metadata can't be read or any of the entity handlers built
+   */
+  protected int loadEntities(EntityManager manager) throws GuanxiException {
+    requireMetadata();
+    return loader.load(manager, source, null);
+  }
+
+  /**
+   * As loadEntities, but only entities that have changed since the last reload get
+   * new handlers and entities no longer in the metadata are removed.
+   *
+   * @param manager the entity manager, normally from loadEntityManager
+   * @return what changed
+   * @throws GuanxiException if the metadata can't be read or any of the handlers built,
+   * in which case the manager's left as it was
+   */
+  protected MetadataChanges reloadEntities(EntityManager manager) throws GuanxiException {
+    MetadataChanges changes = new MetadataChanges(config.getMetadataURL());
+    if (metadataUnchanged) {
+      changes.entitiesUnchanged(manager.getEntityIDs().length);
+      return changes;
+    }
+
+    requireMetadata();
+    loader.load(manager, source, changes);
+    logger.info("Metadata changes for " + changes);
+    return changes;
+  }
+
+  /**
+   * Creates the handler for an entity that loadEntities or reloadEntities gives to
+   * the entity manager. With a loader executor, this is called from its threads.
+   *
+   * @param manager the entity manager
+   * @param entityDescriptor the entity's metadata
+   * @return the handler for the entity
+   * @throws GuanxiException if the handler can't be created
+   */
+  protected Metadata createEntityHandler(EntityManager manager, EntityDescriptorType entityDescriptor) throws GuanxiException {
+    Metadata metadata = manager.createNewEntityHandler();
+    metadata.setPrivateData(entityDescriptor);
+    return metadata;
+  }
+
+  /**
+   * Loads the SAML2 entities from the metadata and caches them locally, along with
+   * the validators the metadata came with. Unchanged metadata is already cached.
+   */
+  protected void loadAndCacheEntities() {
+    if (hasMetadata()) {
+      entityDescriptors = source.cache();
+      loader.loaded(source.getValidators());
     }
   }
 
@@ -113,26 +242,7 @@ public abstract class ShibbolethSAML2MetadataParser {
    * @return true if the signature verifies, otherwise false
    */
   protected boolean verifyMetadataSignature() {
-    SignatureType sig = getSignatureFromMetadata();
-    X509Certificate metadataCert = getX509FromMetadataSignature();
-
-    if (metadataCert != null) {
-      try {
-        XMLSignature signature = new XMLSignature((Element)sig.getDomNode(),"");
-        return signature.checkSignatureValue(metadataCert);
-      }
-      catch(XMLSignatureException xse) {
-        logger.error("Failed to get signature of metadata", xse);
-      }
-      catch(XMLSecurityException xse) {
-        logger.error("Problem with the signature of metadata", xse);
-      }
-    }
-    else {
-      logger.error("no X509 in metadata signature");
-    }
-
-    return false;
+    return hasMetadata() && source.verifySignature();
   }
 
   /**
@@ -141,7 +251,7 @@ public abstract class ShibbolethSAML2MetadataParser {
    * @return Signature block from the metadata
    */
   protected SignatureType getSignatureFromMetadata() {
-    return doc.getEntitiesDescriptor().getSignature();
+    return hasMetadata() ? source.getSignature() : null;
   }
 
   /**
@@ -151,56 +261,45 @@ public abstract class ShibbolethSAML2MetadataParser {
    * @return X509Certificate of the signing public key
    */
   protected X509Certificate getX509FromMetadataSignature() {
-    SignatureType sig = getSignatureFromMetadata();
-    if (sig == null) {
-      logger.error("Metadata is not signed");
-    }
-    else {
-      try {
-        XMLSignature signature = new XMLSignature((Element)sig.getDomNode(),"");
-        KeyInfo keyInfo = signature.getKeyInfo();
-        if (keyInfo != null) {
-          if(keyInfo.containsX509Data()) {
-            return signature.getKeyInfo().getX509Certificate();
-          }
-          else {
-            logger.error("no x509 data in metadata signature");
-          }
-        }
-        else {
-          logger.error("no key info in metadata signature");
-        }
-      }
-      catch(XMLSignatureException xse) {
-        logger.error("Failed to get signature of metadata", xse);
-      }
-      catch(XMLSecurityException xse) {
-        logger.error("Problem with the signature of metadata", xse);
-      }
-    }
-
-    return null;
+    return hasMetadata() ? source.getSigningCertificate() : null;
   }
 
   /**
-   * Loads all the shibmeta:KeyAuthority nodes from the SAML2 metadata
+   * Loads all the shibmeta:KeyAuthority nodes from the SAML2 metadata into the
+   * trust engine, replacing the CAs it has in one go.
    *
    * @param manager EntityManager instance for this metadata
    * @return true if the CA lists was loaded, otherwise false
    */
   protected boolean loadCAListFromMetadata(EntityManager manager) {
-    boolean loaded = false;
+    if (!hasMetadata()) {
+      return false;
+    }
 
-    /* Are there any extensions? If there aren't, it doesn't matter
-     * as the trust engine handling this metadata might not need them.
-     */
-    if (doc.getEntitiesDescriptor().getExtensions() == null) {
+    try {
+      /* Are there any extensions? If there aren't, it doesn't matter
+       * as the trust engine handling this metadata might not need them.
+       */
+      ExtensionsType extensions = source.getExtensions();
+      return (extensions != null) && (loadCAListFromExtensions(extensions, manager));
+    }
+    catch(GuanxiException ge) {
+      logger.error("Could not read the Extensions from the metadata", ge);
       return false;
     }
+  }
 
+  /**
+   * Loads the shibmeta:KeyAuthority CAs from the Extensions of the metadata's root
+   * into the trust engine. If any of them can't be loaded, it keeps the ones it had.
+   *
+   * @param extensions the root Extensions
+   * @param manager EntityManager instance for this metadata
+   * @return true if the CA lists was loaded, otherwise false
+   */
+  protected boolean loadCAListFromExtensions(ExtensionsType extensions, EntityManager manager) {
     try {
-      CertificateFactory certFactory = CertificateFactory.getInstance("x.509");
-      ExtensionsType extensions = doc.getEntitiesDescriptor().getExtensions();
+      X509CertificateCache certCache = X509CertificateCache.getInstance();
 
       /* Find the shibmeta:KeyAuthority node. This lists all the root CAs
        * that we trust.
@@ -215,38 +314,45 @@ public abstract class ShibbolethSAML2MetadataParser {
         }
       }
 
-      // Load all the root CAs into the trust engine
-      if (keyAuthorityNode != null) {
-        KeyAuthorityDocument keyAuthDoc = KeyAuthorityDocument.Factory.parse(keyAuthorityNode);
-        KeyInfoType[] keyInfos = keyAuthDoc.getKeyAuthority().getKeyInfoArray();
-        for (KeyInfoType keyInfo : keyInfos) {
-          X509DataType[] x509Datas = keyInfo.getX509DataArray();
-          for (X509DataType x509Data : x509Datas) {
-            byte[][] x509Certs = x509Data.getX509CertificateArray();
-            for (byte[] x509CertBytes : x509Certs) {
-              ByteArrayInputStream certByteStream = new ByteArrayInputStream(x509CertBytes);
-              manager.getTrustEngine().addCACert((X509Certificate)certFactory.generateCertificate(certByteStream));
-              certByteStream.close();
-              loaded = true;
-            }
+      if (keyAuthorityNode == null) {
+        logger.error("Could not find shibmeta:KeyAuthority in metadata");
+        return false;
+      }
+
+      KeyAuthorityDocument keyAuthDoc = KeyAuthorityDocument.Factory.parse(keyAuthorityNode);
+
+      // How many CAs are allowed between an entity and a root CA
+      int verifyDepth = TrustAnchorStore.DEFAULT_VERIFY_DEPTH;
+      if (keyAuthDoc.getKeyAuthority().isSetVerifyDepth()) {
+        verifyDepth = keyAuthDoc.getKeyAuthority().getVerifyDepth();
+      }
+
+      // Gather up all the root CAs...
+      ArrayList<X509Certificate> caCerts = new ArrayList<X509Certificate>();
+      KeyInfoType[] keyInfos = keyAuthDoc.getKeyAuthority().getKeyInfoArray();
+      for (KeyInfoType keyInfo : keyInfos) {
+        X509DataType[] x509Datas = keyInfo.getX509DataArray();
+        for (X509DataType x509Data : x509Datas) {
+          byte[][] x509Certs = x509Data.getX509CertificateArray();
+          for (byte[] x509CertBytes : x509Certs) {
+            caCerts.add(certCache.getCertificate(x509CertBytes));
           }
         }
       }
-      else {
-        logger.error("Could not find shibmeta:KeyAuthority in metadata");
-      }
+
+      // ...and swap them into the trust engine
+      manager.getTrustEngine().setCACerts(caCerts, verifyDepth);
+
+      return !caCerts.isEmpty();
     }
     catch(CertificateException ce) {
-      logger.error("Could not prepare certificate factory", ce);
-    }
-    catch(IOException ioe) {
-      logger.error("Could not close byte stream", ioe);
+      logger.error("Could not decode CA certificate", ce);
     }
     catch(XmlException xe) {
       logger.error("Could not load shibboleth extensions from metadata", xe);
     }
 
-    return loaded;
+    return false;
   }
 
   /**
@@ -263,6 +369,19 @@ public abstract class ShibbolethSAML2MetadataParser {
     return manager;
   }
 
+  /**
+   * Loads the appropriate EntityManager for the current metadata source, ready for
+   * loadEntities to replace all its metadata in one go. The manager isn't emptied,
+   * so the previous metadata stays available until then.
+   *
+   * @param contextKey The key in the servlet context under which the manager is hiding
+   * @return EntityManager for the current metadata source
+   */
+  protected EntityManager loadEntityManagerForReplace(String contextKey) {
+    EntityFarm farm = (EntityFarm)config.getServletContext().getAttribute(contextKey);
+    return farm.getEntityManagerForSource(config.getMetadataURL());
+  }
+
   /**
    * Loads the appropriate EntityManager for the current metadata source
    *
@@ -0,0 +1,93 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.job;
+
+import org.apache.log4j.Logger;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.job.MetadataLoader.EntityLoad;
+import org.guanxi.common.metadata.MetadataSnapshot;
+import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
+import org.guanxi.xal.saml_2_0.metadata.ExtensionsType;
+import org.guanxi.xal.w3.xmldsig.SignatureType;
+
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Metadata loaded from the snapshot of the cache file, which is already cached
+ *
+ * @author alistair
+ */
+class SnapshotMetadataSource extends MetadataSource {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(SnapshotMetadataSource.class.getName());
+
+  private final MetadataSnapshot snapshot;
+
+  SnapshotMetadataSource(SAML2MetadataParserConfig config, MetadataSnapshotStore snapshots,
+                         MetadataValidators validators, MetadataSnapshot snapshot) {
+    super(config, snapshots, validators, true);
+    this.snapshot = snapshot;
+  }
+
+  MetadataSnapshot getSnapshot() {
+    return snapshot;
+  }
+
+  SignatureType getSignature() {
+    // Only the signer was kept
+    return null;
+  }
+
+  X509Certificate getSigningCertificate() {
+    return snapshot.getSigningCertificate();
+  }
+
+  protected boolean checkSignature(X509Certificate signingCertificate) {
+    /* The signature was verified before the snapshot was written and the snapshot's
+     * only loaded if the cache file is still the XML it was verified on.
+     */
+    return snapshot.isSignatureVerified();
+  }
+
+  ExtensionsType getExtensions() throws GuanxiException {
+    return snapshot.getExtensions();
+  }
+
+  int read(EntityLoad load) throws GuanxiException {
+    // Each entity's read from the snapshot in the task that builds its handler
+    for (int c=0; c < snapshot.size(); c++) {
+      load.addEntity(snapshot, c);
+    }
+    load.finish();
+    return snapshot.size();
+  }
+
+  EntityDescriptorType[] cache() {
+    List<EntityDescriptorType> descriptors = new ArrayList<EntityDescriptorType>(snapshot.size());
+    for (int c=0; c < snapshot.size(); c++) {
+      try {
+        descriptors.add(snapshot.getEntityDescriptor(c));
+      }
+      catch(GuanxiException ge) {
+        logger.error("Could not read " + snapshot.getEntityID(c) + " from metadata snapshot", ge);
+      }
+    }
+    return descriptors.toArray(new EntityDescriptorType[descriptors.size()]);
+  }
+}
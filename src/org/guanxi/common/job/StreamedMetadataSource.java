@@ -0,0 +1,214 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.job;
+
+import org.apache.log4j.Logger;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.job.MetadataLoader.EntityLoad;
+import org.guanxi.common.metadata.MetadataHandler;
+import org.guanxi.common.metadata.MetadataSnapshot;
+import org.guanxi.common.metadata.StreamedMetadataSignature;
+import org.guanxi.common.metadata.StreamingMetadataParser;
+import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
+import org.guanxi.xal.saml_2_0.metadata.ExtensionsType;
+import org.guanxi.xal.w3.xmldsig.SignatureType;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.cert.X509Certificate;
+
+/**
+ * Metadata streamed to a file, which is read one entity at a time and becomes the
+ * cache file once its entities have been loaded
+ *
+ * @author alistair
+ */
+class StreamedMetadataSource extends MetadataSource {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(StreamedMetadataSource.class.getName());
+
+  /** Where the metadata was streamed to */
+  private File file;
+  /** The signature, with the digest checked as the metadata was streamed */
+  private final StreamedMetadataSignature signature;
+
+  StreamedMetadataSource(SAML2MetadataParserConfig config, MetadataSnapshotStore snapshots, MetadataValidators validators,
+                         File file, StreamedMetadataSignature signature, boolean cached) {
+    super(config, snapshots, validators, cached);
+    this.file = file;
+    this.signature = signature;
+  }
+
+  /**
+   * Reads the metadata cache file, checking its signature
+   *
+   * @param config the job's config
+   * @param snapshots the snapshot kept alongside the cache file
+   * @param validators the validators saved with the cache file
+   * @param cached whether the source says the cache file is what was last loaded
+   * @return the metadata
+   * @throws GuanxiException if the cache file can't be read
+   */
+  static StreamedMetadataSource fromCache(SAML2MetadataParserConfig config, MetadataSnapshotStore snapshots,
+                                          MetadataValidators validators, boolean cached) throws GuanxiException {
+    File cacheFile = new File(config.getMetadataCacheFile());
+    try {
+      InputStream in = new BufferedInputStream(new FileInputStream(cacheFile));
+      try {
+        return new StreamedMetadataSource(config, snapshots, validators, cacheFile,
+                                          StreamedMetadataSignature.read(in, null), cached);
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch(IOException ioe) {
+      throw new GuanxiException(ioe);
+    }
+  }
+
+  SignatureType getSignature() {
+    return signature.getSignature();
+  }
+
+  protected boolean checkSignature(X509Certificate signingCertificate) {
+    return signature.verify(signingCertificate);
+  }
+
+  ExtensionsType getExtensions() {
+    // The CAs are loaded along with the entities
+    return null;
+  }
+
+  int read(EntityLoad load) throws GuanxiException {
+    MetadataSnapshot.Writer writer = cached ? null : snapshots.create();
+    int entities;
+    try {
+      entities = stream(load, writer, true);
+      load.finish();
+    }
+    catch(GuanxiException ge) {
+      snapshots.abort(writer);
+      throw ge;
+    }
+
+    cache(writer);
+    return entities;
+  }
+
+  boolean snapshot(EntityLoad load) throws GuanxiException {
+    if (cached) {
+      return snapshots.isCurrent();
+    }
+
+    // The manager reads its entities from the snapshot, so only the snapshot needs them
+    MetadataSnapshot.Writer writer = snapshots.create();
+    if (writer == null) {
+      return false;
+    }
+    try {
+      stream(load, writer, false);
+    }
+    catch(GuanxiException ge) {
+      snapshots.abort(writer);
+      throw ge;
+    }
+
+    cache(writer);
+    return snapshots.isCurrent();
+  }
+
+  EntityDescriptorType[] cache() {
+    logger.error("Streamed metadata from " + config.getMetadataURL() + " is only loaded with loadEntities");
+    return new EntityDescriptorType[0];
+  }
+
+  /**
+   * Makes the streamed metadata the cache file, along with its snapshot and validators
+   *
+   * @param writer the snapshot of the metadata, or null if there isn't one
+   */
+  private void cache(MetadataSnapshot.Writer writer) {
+    if (cached) {
+      return;
+    }
+
+    String cacheFile = config.getMetadataCacheFile();
+    File cache = new File(cacheFile);
+    if (!file.equals(cache)) {
+      cache.delete();
+      if (!file.renameTo(cache)) {
+        logger.error("Could not cache metadata to : " + cacheFile);
+        dropValidators();
+        snapshots.abort(writer);
+        snapshots.commit(null, null);
+        return;
+      }
+      file = cache;
+    }
+
+    snapshots.commit(writer, verifiedSigner);
+    saveValidators();
+    cached = true;
+  }
+
+  /**
+   * Reads the metadata one entity at a time. CAs in the root Extensions go to the
+   * trust engine of the load's manager.
+   *
+   * @param load the load to add the entities to
+   * @param writer the snapshot to write the entities to, or null if there isn't one
+   * @param addEntities whether to add the entities to the load
+   * @return the number of entities read
+   * @throws GuanxiException if the metadata can't be read
+   */
+  private int stream(final EntityLoad load, final MetadataSnapshot.Writer writer,
+                     final boolean addEntities) throws GuanxiException {
+    try {
+      InputStream in = new BufferedInputStream(new FileInputStream(file));
+      try {
+        return StreamingMetadataParser.parse(in, new MetadataHandler() {
+          public void handleExtensions(ExtensionsType extensions) throws GuanxiException {
+            load.addExtensions(extensions);
+            if (writer != null) {
+              writer.setExtensions(extensions);
+            }
+          }
+
+          public void handleEntity(EntityDescriptorType entityDescriptor) throws GuanxiException {
+            // Each streamed entity is its own document already
+            if (addEntities) {
+              load.addEntity(entityDescriptor, false);
+            }
+            if (writer != null) {
+              writer.addEntity(entityDescriptor);
+            }
+          }
+        });
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch(IOException ioe) {
+      throw new GuanxiException(ioe);
+    }
+  }
+}
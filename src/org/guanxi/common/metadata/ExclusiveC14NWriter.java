@@ -0,0 +1,321 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.common.metadata;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Writes the Exclusive XML Canonicalization (without comments) of a document as
+ * its StAX events go past, so the digest of something the size of a federation
+ * aggregate can be worked out without a DOM. Only the namespaces an element or its
+ * attributes use are output, plus any in the InclusiveNamespaces PrefixList, and
+ * only if the nearest output ancestor didn't already output the same ones.
+ *
+ * The caller decides what's in the node set, e.g. leaving out the enveloped
+ * signature, by not passing its events on.
+ *
+ * @author alistair
+ */
+class ExclusiveC14NWriter {
+  /** The PrefixList name for the default namespace */
+  private static final String DEFAULT_PREFIX = "#default";
+
+  /** Where the canonical form goes */
+  private final Writer out;
+  /** The prefixes to treat as inclusive c14n would, "" for the default namespace */
+  private final Set<String> inclusivePrefixes;
+  /** The namespaces in scope, whether or not they were output */
+  private final Map<String, String> inScope = new HashMap<String, String>();
+  /** The namespaces the output ancestors have declared */
+  private final Map<String, String> rendered = new HashMap<String, String>();
+  /** For each open element, what inScope and rendered held before it changed them */
+  private final List<Undo> undo = new ArrayList<Undo>();
+  /** Open element names, for the end tags */
+  private final List<String> openElements = new ArrayList<String>();
+  /** Whether the document element has been closed */
+  private boolean afterDocumentElement = false;
+
+  /**
+   * @param out where to write the canonical form, as UTF-8
+   * @param inclusivePrefixes the PrefixList of the InclusiveNamespaces, can be null
+   */
+  ExclusiveC14NWriter(Writer out, Collection<String> inclusivePrefixes) {
+    this.out = out;
+    this.inclusivePrefixes = new TreeSet<String>();
+    if (inclusivePrefixes != null) {
+      for (String prefix : inclusivePrefixes) {
+        this.inclusivePrefixes.add(DEFAULT_PREFIX.equals(prefix) ? "" : prefix);
+      }
+    }
+  }
+
+  /**
+   * Outputs a start tag
+   *
+   * @param element the element
+   * @throws IOException if the canonical form can't be written
+   */
+  void startElement(StartElement element) throws IOException {
+    Undo changes = new Undo();
+
+    for (int c=0; c < element.nsPrefixes.length; c++) {
+      changes.change(inScope, element.nsPrefixes[c], element.nsURIs[c]);
+    }
+
+    // The namespaces the element uses, plus the inclusive ones
+    TreeSet<String> prefixes = new TreeSet<String>();
+    prefixes.add(element.prefix);
+    for (int c=0; c < element.attrLocalNames.length; c++) {
+      if (element.attrPrefixes[c].length() > 0) {
+        prefixes.add(element.attrPrefixes[c]);
+      }
+    }
+    for (String prefix : inclusivePrefixes) {
+      if (inScope.get(prefix) != null) {
+        prefixes.add(prefix);
+      }
+    }
+    prefixes.remove(XMLConstants.XML_NS_PREFIX);
+
+    out.write('<');
+    out.write(element.qName());
+
+    // Default namespace first, then by prefix, which is how a TreeSet sorts them
+    for (String prefix : prefixes) {
+      String uri = value(inScope.get(prefix));
+      if (uri.equals(value(rendered.get(prefix)))) {
+        continue;
+      }
+      if ((prefix.length() > 0) && (uri.length() == 0)) {
+        // A prefix can't be undeclared
+        continue;
+      }
+      changes.change(rendered, prefix, uri);
+
+      out.write(prefix.length() == 0 ? " xmlns=\"" : " xmlns:" + prefix + "=\"");
+      writeAttributeValue(uri);
+      out.write('"');
+    }
+
+    // Attributes by namespace URI then local name
+    Integer[] order = new Integer[element.attrLocalNames.length];
+    for (int c=0; c < order.length; c++) {
+      order[c] = c;
+    }
+    if (order.length > 1) {
+      Arrays.sort(order, element);
+    }
+    for (Integer c : order) {
+      out.write(' ');
+      if (element.attrPrefixes[c].length() > 0) {
+        out.write(element.attrPrefixes[c]);
+        out.write(':');
+      }
+      out.write(element.attrLocalNames[c]);
+      out.write("=\"");
+      writeAttributeValue(element.attrValues[c]);
+      out.write('"');
+    }
+
+    out.write('>');
+
+    undo.add(changes);
+    openElements.add(element.qName());
+  }
+
+  /**
+   * Outputs the end tag of the most recently started element
+   *
+   * @throws IOException if the canonical form can't be written
+   */
+  void endElement() throws IOException {
+    out.write("</");
+    out.write(openElements.remove(openElements.size() - 1));
+    out.write('>');
+
+    undo.remove(undo.size() - 1).revert();
+    if (openElements.isEmpty()) {
+      afterDocumentElement = true;
+    }
+  }
+
+  /**
+   * Outputs character content
+   *
+   * @param text the characters
+   * @param start where they start in text
+   * @param length how many there are
+   * @throws IOException if the canonical form can't be written
+   */
+  void characters(char[] text, int start, int length) throws IOException {
+    // Anything between the top level nodes isn't part of the canonical form
+    if (openElements.isEmpty()) {
+      return;
+    }
+
+    int end = start + length;
+    for (int c=start; c < end; c++) {
+      char ch = text[c];
+      switch (ch) {
+        case '&': out.write("&amp;"); break;
+        case '<': out.write("&lt;"); break;
+        case '>': out.write("&gt;"); break;
+        case '\r': out.write("&#xD;"); break;
+        default: out.write(ch);
+      }
+    }
+  }
+
+  /**
+   * Outputs a processing instruction
+   *
+   * @param target the PI target
+   * @param data the PI data, can be null
+   * @throws IOException if the canonical form can't be written
+   */
+  void processingInstruction(String target, String data) throws IOException {
+    if (afterDocumentElement) {
+      out.write('\n');
+    }
+    out.write("<?");
+    out.write(target);
+    if ((data != null) && (data.length() > 0)) {
+      out.write(' ');
+      out.write(data);
+    }
+    out.write("?>");
+    if ((openElements.isEmpty()) && (!afterDocumentElement)) {
+      out.write('\n');
+    }
+  }
+
+  private void writeAttributeValue(String value) throws IOException {
+    for (int c=0; c < value.length(); c++) {
+      char ch = value.charAt(c);
+      switch (ch) {
+        case '&': out.write("&amp;"); break;
+        case '<': out.write("&lt;"); break;
+        case '"': out.write("&quot;"); break;
+        case '\t': out.write("&#x9;"); break;
+        case '\n': out.write("&#xA;"); break;
+        case '\r': out.write("&#xD;"); break;
+        default: out.write(ch);
+      }
+    }
+  }
+
+  private static String value(String uri) {
+    return (uri == null) ? "" : uri;
+  }
+
+  /**
+   * A start tag, copied from a StAX reader so it can be output later if need be
+   */
+  static class StartElement implements Comparator<Integer> {
+    final String prefix;
+    final String localName;
+    final String[] nsPrefixes;
+    final String[] nsURIs;
+    final String[] attrPrefixes;
+    final String[] attrLocalNames;
+    final String[] attrNamespaces;
+    final String[] attrValues;
+
+    /**
+     * @param reader a reader positioned on a START_ELEMENT
+     */
+    StartElement(XMLStreamReader reader) {
+      prefix = value(reader.getPrefix());
+      localName = reader.getLocalName();
+
+      int namespaces = reader.getNamespaceCount();
+      nsPrefixes = new String[namespaces];
+      nsURIs = new String[namespaces];
+      for (int c=0; c < namespaces; c++) {
+        nsPrefixes[c] = value(reader.getNamespacePrefix(c));
+        nsURIs[c] = value(reader.getNamespaceURI(c));
+      }
+
+      int attributes = reader.getAttributeCount();
+      attrPrefixes = new String[attributes];
+      attrLocalNames = new String[attributes];
+      attrNamespaces = new String[attributes];
+      attrValues = new String[attributes];
+      for (int c=0; c < attributes; c++) {
+        attrPrefixes[c] = value(reader.getAttributePrefix(c));
+        attrLocalNames[c] = reader.getAttributeLocalName(c);
+        attrNamespaces[c] = value(reader.getAttributeNamespace(c));
+        attrValues[c] = reader.getAttributeValue(c);
+      }
+    }
+
+    String qName() {
+      return (prefix.length() == 0) ? localName : prefix + ":" + localName;
+    }
+
+    public int compare(Integer one, Integer two) {
+      int byNamespace = attrNamespaces[one].compareTo(attrNamespaces[two]);
+      return (byNamespace != 0) ? byNamespace : attrLocalNames[one].compareTo(attrLocalNames[two]);
+    }
+  }
+
+  /**
+   * The namespace mappings an element changed, so they can be put back at its end tag
+   */
+  private static class Undo {
+    private List<Map<String, String>> maps = Collections.emptyList();
+    private List<String> prefixes;
+    private List<String> previous;
+
+    void change(Map<String, String> map, String prefix, String uri) {
+      if (maps.isEmpty()) {
+        maps = new ArrayList<Map<String, String>>(2);
+        prefixes = new ArrayList<String>(2);
+        previous = new ArrayList<String>(2);
+      }
+      maps.add(map);
+      prefixes.add(prefix);
+      previous.add(map.put(prefix, uri));
+    }
+
+    void revert() {
+      // Backwards, in case an element changed the same mapping twice
+      for (int c=maps.size() - 1; c >= 0; c--) {
+        if (previous.get(c) == null) {
+          maps.get(c).remove(prefixes.get(c));
+        }
+        else {
+          maps.get(c).put(prefixes.get(c), previous.get(c));
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,46 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.common.metadata;
+
+import org.guanxi.common.GuanxiException;
+import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
+import org.guanxi.xal.saml_2_0.metadata.ExtensionsType;
+
+/**
+ * Receives the parts of a metadata aggregate as StreamingMetadataParser reads them
+ *
+ * @author alistair
+ */
+public interface MetadataHandler {
+  /**
+   * Called with the Extensions of the aggregate's root, if it has any, before any entities
+   *
+   * @param extensions the root Extensions
+   * @throws GuanxiException if the extensions can't be handled. This stops the parse.
+   */
+  public void handleExtensions(ExtensionsType extensions) throws GuanxiException;
+
+  /**
+   * Called with each EntityDescriptor as soon as it's been read, at whatever depth
+   * of EntitiesDescriptor it's in. Nothing else refers to it once the handler returns.
+   *
+   * @param entityDescriptor the entity's metadata
+   * @throws GuanxiException if the entity can't be handled. This stops the parse.
+   */
+  public void handleEntity(EntityDescriptorType entityDescriptor) throws GuanxiException;
+}
@@ -0,0 +1,724 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.common.metadata;
+
+import org.apache.xmlbeans.XmlException;
+import org.apache.xmlbeans.XmlObject;
+import org.apache.xmlbeans.XmlOptions;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.trust.Fingerprint;
+import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorDocument;
+import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
+import org.guanxi.xal.saml_2_0.metadata.ExtensionsDocument;
+import org.guanxi.xal.saml_2_0.metadata.ExtensionsType;
+import org.guanxi.xal.saml_2_0.metadata.KeyDescriptorType;
+import org.guanxi.xal.saml_2_0.metadata.RoleDescriptorType;
+import org.guanxi.xal.w3.xmldsig.X509DataType;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A binary snapshot of a metadata aggregate, written alongside the XML cache file so
+ * a restart doesn't have to parse the whole aggregate again. Each entity is kept as its
+ * own record, holding the entity's compact XML and the DER of every certificate in its
+ * KeyDescriptors, so an entity can be read on its own, without the rest of the
+ * aggregate, and its certificates without parsing any XML.
+ *
+ * The snapshot also records whether the aggregate's signature was verified when it was
+ * written, who signed it and the SHA-256 of the XML cache file that was verified. The
+ * flag only counts, through isSignatureVerified(File), while the cache file still has
+ * that digest, so a snapshot can't vouch for XML it wasn't written from.
+ *
+ * The layout, in DataOutput form, is:
+ *
+ * <pre>
+ * int MAGIC, int VERSION
+ * entity records: int xmlLength, byte[] xml, int certCount, (int derLength, byte[] der)*
+ * index: UTF source, long created, boolean signatureVerified,
+ *        int sourceDigestLength, byte[] sourceDigest,
+ *        int signingCertLength, byte[] signingCert,
+ *        int extensionsLength, byte[] extensions,
+ *        int entityCount, (UTF entityID, long recordOffset)*
+ * long indexOffset
+ * byte[32] SHA-256 of everything before it
+ * </pre>
+ *
+ * The index comes last so the records can be written as the entities stream in.
+ * The digest at the end is checked whenever a snapshot is loaded or mapped, so a
+ * snapshot that's been damaged or changed since it was written isn't read. Nor is a
+ * snapshot with a different VERSION. Either way the XML cache is used instead.
+ *
+ * A snapshot can be loaded onto the heap or memory mapped. Only the index is read
+ * when a snapshot is mapped, the records stay in the file until an entity is asked for.
+ *
+ * @author alistair
+ */
+public class MetadataSnapshot {
+  /** "GXMS" */
+  public static final int MAGIC = 0x47584D53;
+  /** The version of the layout. Change this whenever the layout changes */
+  public static final int VERSION = 2;
+
+  /** The digest the snapshot and the cache file are checked with */
+  private static final String DIGEST_ALGORITHM = Fingerprint.SHA256;
+  /** The length of the digest at the end of the snapshot */
+  private static final int DIGEST_LENGTH = 32;
+
+  /** How entities and Extensions are saved. Compact, with each entity carrying its own namespaces */
+  private static final XmlOptions xmlOptions = new XmlOptions();
+  static {
+    xmlOptions.setSaveOuter();
+    xmlOptions.setSaveAggressiveNamespaces();
+  }
+
+  /** The snapshot */
+  private final ByteBuffer buffer;
+  /** Where the metadata came from */
+  private final String source;
+  /** When the snapshot was written */
+  private final long created;
+  /** Whether the signature on the metadata was verified before the snapshot was written */
+  private final boolean signatureVerified;
+  /** The SHA-256 of the XML the signature was verified on, or null if there wasn't one */
+  private final Fingerprint sourceDigest;
+  /** The certificate that signed the metadata, or null if it wasn't signed */
+  private final X509Certificate signingCertificate;
+  /** The Extensions of the aggregate's root, or null if it didn't have any */
+  private final byte[] extensions;
+  /** The entities, in the order they were written */
+  private final String[] entityIDs;
+  /** Where each entity's record starts */
+  private final long[] offsets;
+  /** The position of each entity in entityIDs */
+  private final Map<String, Integer> entityIndex;
+
+  private MetadataSnapshot(ByteBuffer buffer) throws GuanxiException {
+    this.buffer = buffer;
+
+    try {
+      if ((buffer.getInt(0) != MAGIC) || (buffer.getInt(4) != VERSION)) {
+        throw new GuanxiException("Not a version " + VERSION + " metadata snapshot");
+      }
+      checkDigest(buffer);
+
+      ByteBuffer index = buffer.duplicate();
+      index.position((int)buffer.getLong(buffer.limit() - DIGEST_LENGTH - 8));
+      source = readUTF(index);
+      created = index.getLong();
+      signatureVerified = (index.get() != 0);
+      byte[] verifiedDigest = readBytes(index);
+      sourceDigest = (verifiedDigest.length == 0) ? null : Fingerprint.fromBytes(DIGEST_ALGORITHM, verifiedDigest);
+      byte[] signingCert = readBytes(index);
+      signingCertificate = (signingCert.length == 0) ? null : decodeCertificate(signingCert);
+      byte[] rootExtensions = readBytes(index);
+      extensions = (rootExtensions.length == 0) ? null : rootExtensions;
+
+      int entityCount = index.getInt();
+      entityIDs = new String[entityCount];
+      offsets = new long[entityCount];
+      entityIndex = new HashMap<String, Integer>(entityCount * 2);
+      for (int c=0; c < entityCount; c++) {
+        entityIDs[c] = readUTF(index);
+        offsets[c] = index.getLong();
+        entityIndex.put(entityIDs[c], c);
+      }
+    }
+    catch(BufferUnderflowException bue) {
+      throw new GuanxiException("Truncated metadata snapshot");
+    }
+    catch(IllegalArgumentException iae) {
+      throw new GuanxiException("Corrupt metadata snapshot");
+    }
+    catch(IndexOutOfBoundsException ioobe) {
+      throw new GuanxiException("Corrupt metadata snapshot");
+    }
+  }
+
+  /**
+   * Loads a snapshot
+   *
+   * @param file the snapshot file
+   * @return the snapshot
+   * @throws GuanxiException if the snapshot can't be read or isn't the current version
+   */
+  public static MetadataSnapshot load(File file) throws GuanxiException {
+    try {
+      FileInputStream in = new FileInputStream(file);
+      try {
+        FileChannel channel = in.getChannel();
+        if (channel.size() > Integer.MAX_VALUE) {
+          throw new GuanxiException("Metadata snapshot too large : " + file);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int)channel.size());
+        while (buffer.hasRemaining()) {
+          if (channel.read(buffer) < 0) {
+            throw new GuanxiException("Truncated metadata snapshot : " + file);
+          }
+        }
+        buffer.flip();
+        return new MetadataSnapshot(buffer);
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch(IOException ioe) {
+      throw new GuanxiException(ioe);
+    }
+  }
+
+  /**
+   * Memory maps a snapshot. Only the index is parsed, each entity is read from the
+   * file when it's asked for, though the whole file is read once to check its digest.
+   * The mapping lasts until the snapshot is garbage collected, which on Windows means
+   * the file can't be replaced until then.
+   *
+   * @param file the snapshot file
+   * @return the snapshot
+   * @throws GuanxiException if the snapshot can't be mapped or isn't the current version
+   */
+  public static MetadataSnapshot map(File file) throws GuanxiException {
+    try {
+      FileInputStream in = new FileInputStream(file);
+      try {
+        FileChannel channel = in.getChannel();
+        if (channel.size() > Integer.MAX_VALUE) {
+          throw new GuanxiException("Metadata snapshot too large : " + file);
+        }
+        return new MetadataSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+      }
+      finally {
+        // The mapping outlives the channel
+        in.close();
+      }
+    }
+    catch(IOException ioe) {
+      throw new GuanxiException(ioe);
+    }
+  }
+
+  /**
+   * Starts writing a snapshot. Nothing replaces the file until the writer is committed.
+   *
+   * @param file the snapshot file
+   * @param source where the metadata came from
+   * @return the writer
+   * @throws GuanxiException if the snapshot can't be written
+   */
+  public static Writer create(File file, String source) throws GuanxiException {
+    return new Writer(file, source);
+  }
+
+  public String getSource() { return source; }
+  public long getCreated() { return created; }
+  public boolean isSignatureVerified() { return signatureVerified; }
+  public Fingerprint getSourceDigest() { return sourceDigest; }
+  public X509Certificate getSigningCertificate() { return signingCertificate; }
+
+  /**
+   * Determines whether the signature on the metadata was verified before the snapshot
+   * was written, and the XML it was verified on is still what's in the cache file
+   *
+   * @param cacheFile the XML cache file the snapshot was written alongside
+   * @return true if the signature was verified and the cache file hasn't changed since, otherwise false
+   * @throws GuanxiException if the cache file can't be read
+   */
+  public boolean isSignatureVerified(File cacheFile) throws GuanxiException {
+    if ((!signatureVerified) || (sourceDigest == null) || (!cacheFile.exists())) {
+      return false;
+    }
+    return sourceDigest.equals(digest(cacheFile));
+  }
+
+  /**
+   * Returns the number of entities in the snapshot
+   *
+   * @return the number of entities
+   */
+  public int size() {
+    return entityIDs.length;
+  }
+
+  /**
+   * Returns the IDs of the entities in the snapshot
+   *
+   * @return the entityIDs in the order they were in the aggregate
+   */
+  public String[] getEntityIDs() {
+    return entityIDs.clone();
+  }
+
+  /**
+   * Returns the ID of an entity in the snapshot
+   *
+   * @param position the position of the entity in getEntityIDs
+   * @return the entityID
+   */
+  public String getEntityID(int position) {
+    return entityIDs[position];
+  }
+
+  /**
+   * Determines whether an entity is in the snapshot
+   *
+   * @param entityID the ID of the entity
+   * @return true if the entity is in the snapshot, otherwise false
+   */
+  public boolean contains(String entityID) {
+    return entityIndex.containsKey(entityID);
+  }
+
+  /**
+   * Returns the Extensions of the aggregate's root
+   *
+   * @return the root Extensions or null if there weren't any
+   * @throws GuanxiException if the Extensions can't be parsed
+   */
+  public ExtensionsType getExtensions() throws GuanxiException {
+    if (extensions == null) {
+      return null;
+    }
+
+    try {
+      return ExtensionsDocument.Factory.parse(new ByteArrayInputStream(extensions)).getExtensions();
+    }
+    catch(XmlException xe) {
+      throw new GuanxiException(xe);
+    }
+    catch(IOException ioe) {
+      throw new GuanxiException(ioe);
+    }
+  }
+
+  /**
+   * Reads an entity's metadata. Each call parses the entity again, so different
+   * threads can read different entities at the same time.
+   *
+   * @param entityID the ID of the entity
+   * @return the entity's metadata or null if it's not in the snapshot
+   * @throws GuanxiException if the entity can't be parsed
+   */
+  public EntityDescriptorType getEntityDescriptor(String entityID) throws GuanxiException {
+    Integer position = entityIndex.get(entityID);
+    if (position == null) {
+      return null;
+    }
+    return getEntityDescriptor(position);
+  }
+
+  /**
+   * Finds where an entity is in the snapshot
+   *
+   * @param entityID the ID of the entity
+   * @return the position of the entity in getEntityIDs or -1 if it's not in the snapshot
+   */
+  public int indexOf(String entityID) {
+    Integer position = entityIndex.get(entityID);
+    return (position == null) ? -1 : position;
+  }
+
+  /**
+   * Reads an entity's metadata
+   *
+   * @param position the position of the entity in getEntityIDs
+   * @return the entity's metadata
+   * @throws GuanxiException if the entity can't be parsed
+   */
+  public EntityDescriptorType getEntityDescriptor(int position) throws GuanxiException {
+    ByteBuffer record = record(position);
+    byte[] xml = readBytes(record);
+
+    try {
+      return EntityDescriptorDocument.Factory.parse(new ByteArrayInputStream(xml)).getEntityDescriptor();
+    }
+    catch(XmlException xe) {
+      throw new GuanxiException(xe);
+    }
+    catch(IOException ioe) {
+      throw new GuanxiException(ioe);
+    }
+  }
+
+  /**
+   * Fingerprints an entity's metadata as it's held in the snapshot, without parsing it.
+   * This is the same as digest gives for the metadata the entity was written from.
+   *
+   * @param position the position of the entity in getEntityIDs
+   * @return the SHA-256 fingerprint of the entity's metadata
+   */
+  public Fingerprint getEntityDigest(int position) {
+    return Fingerprint.of(readBytes(record(position)));
+  }
+
+  /**
+   * Fingerprints an entity's metadata, in the compact form it's kept in a snapshot,
+   * so two versions of an entity can be compared without comparing the metadata.
+   *
+   * @param entityDescriptor the entity's metadata
+   * @return the SHA-256 fingerprint of the entity's metadata
+   * @throws GuanxiException if the metadata can't be saved
+   */
+  public static Fingerprint digest(EntityDescriptorType entityDescriptor) throws GuanxiException {
+    return Fingerprint.of(save(entityDescriptor));
+  }
+
+  /**
+   * Fingerprints a file, such as the XML cache file a snapshot is written alongside
+   *
+   * @param file the file
+   * @return the SHA-256 fingerprint of the file's contents
+   * @throws GuanxiException if the file can't be read
+   */
+  public static Fingerprint digest(File file) throws GuanxiException {
+    MessageDigest digest = newDigest();
+    try {
+      InputStream in = new FileInputStream(file);
+      try {
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          digest.update(buffer, 0, read);
+        }
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch(IOException ioe) {
+      throw new GuanxiException(ioe);
+    }
+    return Fingerprint.fromBytes(DIGEST_ALGORITHM, digest.digest());
+  }
+
+  /**
+   * Returns the DER of the certificates in an entity's KeyDescriptors, without
+   * parsing the entity
+   *
+   * @param position the position of the entity in getEntityIDs
+   * @return the DER of each certificate, in the order they're in the metadata
+   */
+  public List<byte[]> getCertificates(int position) {
+    ByteBuffer record = record(position);
+    // Skip the XML
+    int xmlLength = record.getInt();
+    record.position(record.position() + xmlLength);
+
+    int certCount = record.getInt();
+    List<byte[]> certs = new ArrayList<byte[]>(certCount);
+    for (int c=0; c < certCount; c++) {
+      certs.add(readBytes(record));
+    }
+    return certs;
+  }
+
+  /**
+   * Checks the digest at the end of a snapshot matches everything before it
+   *
+   * @param buffer the snapshot
+   * @throws GuanxiException if the snapshot's too short or has been changed since it was written
+   */
+  private static void checkDigest(ByteBuffer buffer) throws GuanxiException {
+    int digested = buffer.limit() - DIGEST_LENGTH;
+    if (digested < 16) {
+      throw new GuanxiException("Truncated metadata snapshot");
+    }
+
+    ByteBuffer content = buffer.duplicate();
+    content.position(0);
+    content.limit(digested);
+    MessageDigest digest = newDigest();
+    digest.update(content);
+
+    byte[] expected = new byte[DIGEST_LENGTH];
+    ByteBuffer stored = buffer.duplicate();
+    stored.position(digested);
+    stored.get(expected);
+
+    if (!MessageDigest.isEqual(expected, digest.digest())) {
+      throw new GuanxiException("Metadata snapshot has been changed since it was written");
+    }
+  }
+
+  private static MessageDigest newDigest() throws GuanxiException {
+    try {
+      return MessageDigest.getInstance(DIGEST_ALGORITHM);
+    }
+    catch(NoSuchAlgorithmException nsae) {
+      throw new GuanxiException(nsae);
+    }
+  }
+
+  private ByteBuffer record(int position) {
+    // Each reader gets its own position in the snapshot
+    ByteBuffer record = buffer.duplicate();
+    record.position((int)offsets[position]);
+    return record;
+  }
+
+  private static byte[] readBytes(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  private static String readUTF(ByteBuffer buffer) throws GuanxiException {
+    // DataOutput.writeUTF is near enough UTF-8 for entityIDs and URLs
+    byte[] bytes = new byte[buffer.getShort() & 0xffff];
+    buffer.get(bytes);
+    try {
+      return new String(bytes, "UTF-8");
+    }
+    catch(UnsupportedEncodingException uee) {
+      throw new GuanxiException(uee);
+    }
+  }
+
+  private static byte[] save(XmlObject xml) throws GuanxiException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      xml.save(bytes, xmlOptions);
+    }
+    catch(IOException ioe) {
+      throw new GuanxiException(ioe);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static X509Certificate decodeCertificate(byte[] der) throws GuanxiException {
+    try {
+      return (X509Certificate)CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(der));
+    }
+    catch(CertificateException ce) {
+      throw new GuanxiException(ce);
+    }
+  }
+
+  /**
+   * Writes a snapshot one entity at a time. The snapshot goes to a temporary
+   * file, which only replaces the snapshot when it's committed.
+   */
+  public static class Writer {
+    /** The snapshot file */
+    private final File file;
+    /** Where the snapshot's written until it's committed */
+    private final File tmpFile;
+    /** Where the metadata came from */
+    private final String source;
+    /** The temporary file */
+    private final DataOutputStream out;
+    /** Digests everything written to the temporary file */
+    private final DigestOutputStream digestOut;
+    /** The entities written so far */
+    private final List<String> entityIDs = new ArrayList<String>();
+    /** Where each entity's record starts */
+    private final List<Long> offsets = new ArrayList<Long>();
+    /** The root Extensions, or null if there aren't any */
+    private byte[] extensions = null;
+
+    private Writer(File file, String source) throws GuanxiException {
+      this.file = file;
+      this.source = source;
+      tmpFile = new File(file.getPath() + ".tmp");
+
+      try {
+        digestOut = new DigestOutputStream(new FileOutputStream(tmpFile), newDigest());
+        out = new DataOutputStream(new BufferedOutputStream(digestOut));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+      }
+      catch(IOException ioe) {
+        tmpFile.delete();
+        throw new GuanxiException(ioe);
+      }
+    }
+
+    /**
+     * Sets the Extensions of the aggregate's root
+     *
+     * @param rootExtensions the root Extensions
+     * @throws GuanxiException if the Extensions can't be saved
+     */
+    public void setExtensions(ExtensionsType rootExtensions) throws GuanxiException {
+      try {
+        extensions = save(rootExtensions);
+      }
+      catch(GuanxiException ge) {
+        abort();
+        throw ge;
+      }
+    }
+
+    /**
+     * Adds an entity to the snapshot
+     *
+     * @param entityDescriptor the entity's metadata
+     * @throws GuanxiException if the entity can't be written
+     */
+    public void addEntity(EntityDescriptorType entityDescriptor) throws GuanxiException {
+      try {
+        byte[] xml = save(entityDescriptor);
+        List<byte[]> certs = getCertificates(entityDescriptor);
+
+        offsets.add(Long.valueOf(out.size()));
+        entityIDs.add(entityDescriptor.getEntityID());
+
+        out.writeInt(xml.length);
+        out.write(xml);
+        out.writeInt(certs.size());
+        for (byte[] der : certs) {
+          out.writeInt(der.length);
+          out.write(der);
+        }
+      }
+      catch(GuanxiException ge) {
+        abort();
+        throw ge;
+      }
+      catch(IOException ioe) {
+        abort();
+        throw new GuanxiException(ioe);
+      }
+    }
+
+    /**
+     * Writes the index and replaces the snapshot with the one that's been written,
+     * for metadata that's not tied to a verified cache file
+     *
+     * @param signatureVerified whether the signature on the metadata was verified
+     * @param signingCertificate the certificate that signed the metadata, or null if it wasn't signed
+     * @throws GuanxiException if the snapshot can't be written
+     */
+    public void commit(boolean signatureVerified, X509Certificate signingCertificate) throws GuanxiException {
+      commit(signatureVerified, signingCertificate, null);
+    }
+
+    /**
+     * Writes the index and replaces the snapshot with the one that's been written
+     *
+     * @param signatureVerified whether the signature on the metadata was verified
+     * @param signingCertificate the certificate that signed the metadata, or null if it wasn't signed
+     * @param sourceDigest the digest of the XML cache file the signature was verified on, from
+     *                     digest(File), or null if there isn't one. Without it isSignatureVerified(File)
+     *                     is always false.
+     * @throws GuanxiException if the snapshot can't be written
+     */
+    public void commit(boolean signatureVerified, X509Certificate signingCertificate,
+                       Fingerprint sourceDigest) throws GuanxiException {
+      try {
+        long indexOffset = out.size();
+        out.writeUTF(source);
+        out.writeLong(System.currentTimeMillis());
+        out.writeBoolean(signatureVerified);
+        writeBytes((sourceDigest == null) ? new byte[0] : sourceDigest.getBytes());
+        writeBytes((signingCertificate == null) ? new byte[0] : signingCertificate.getEncoded());
+        writeBytes((extensions == null) ? new byte[0] : extensions);
+        out.writeInt(entityIDs.size());
+        for (int c=0; c < entityIDs.size(); c++) {
+          out.writeUTF(entityIDs.get(c));
+          out.writeLong(offsets.get(c));
+        }
+        out.writeLong(indexOffset);
+
+        // The digest covers everything before it
+        out.flush();
+        digestOut.on(false);
+        out.write(digestOut.getMessageDigest().digest());
+        out.close();
+      }
+      catch(IOException ioe) {
+        abort();
+        throw new GuanxiException(ioe);
+      }
+      catch(CertificateEncodingException cee) {
+        abort();
+        throw new GuanxiException(cee);
+      }
+
+      // Windows won't rename over an existing file
+      if ((!tmpFile.renameTo(file)) && ((!file.delete()) || (!tmpFile.renameTo(file)))) {
+        tmpFile.delete();
+        throw new GuanxiException("Could not save metadata snapshot to " + file);
+      }
+    }
+
+    /**
+     * Throws away what's been written, leaving the snapshot as it was
+     */
+    public void abort() {
+      try {
+        out.close();
+      }
+      catch(IOException ioe) {
+        // Going anyway
+      }
+      tmpFile.delete();
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+
+    private static List<byte[]> getCertificates(EntityDescriptorType entityDescriptor) {
+      List<byte[]> certs = new ArrayList<byte[]>();
+      addCertificates(entityDescriptor.getIDPSSODescriptorArray(), certs);
+      addCertificates(entityDescriptor.getAttributeAuthorityDescriptorArray(), certs);
+      addCertificates(entityDescriptor.getSPSSODescriptorArray(), certs);
+      return certs;
+    }
+
+    private static void addCertificates(RoleDescriptorType[] roles, List<byte[]> certs) {
+      for (RoleDescriptorType role : roles) {
+        // RoleDescriptor/KeyDescriptor/KeyInfo/X509Data/X509Certificate
+        for (KeyDescriptorType keyDescriptor : role.getKeyDescriptorArray()) {
+          if (keyDescriptor.getKeyInfo() == null) {
+            continue;
+          }
+          for (X509DataType x509Data : keyDescriptor.getKeyInfo().getX509DataArray()) {
+            Collections.addAll(certs, x509Data.getX509CertificateArray());
+          }
+        }
+      }
+    }
+  }
+}
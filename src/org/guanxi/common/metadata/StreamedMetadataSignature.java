@@ -0,0 +1,476 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.common.metadata;
+
+import org.apache.log4j.Logger;
+import org.apache.xml.security.algorithms.SignatureAlgorithm;
+import org.apache.xml.security.exceptions.XMLSecurityException;
+import org.apache.xml.security.keys.KeyInfo;
+import org.apache.xml.security.signature.Reference;
+import org.apache.xml.security.signature.SignedInfo;
+import org.apache.xml.security.signature.XMLSignature;
+import org.apache.xml.security.transforms.Transforms;
+import org.apache.xmlbeans.XmlException;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.xal.w3.xmldsig.SignatureDocument;
+import org.guanxi.xal.w3.xmldsig.SignatureType;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
+import java.io.BufferedWriter;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The enveloped signature on a metadata aggregate, checked as the aggregate streams
+ * past rather than from a DOM of the whole thing. The Exclusive C14N of the aggregate,
+ * less the signature, is digested on the fly so memory use doesn't depend on the size
+ * of the aggregate. The signature itself is small and is kept for checking the
+ * SignatureValue and getting the signing certificate.
+ *
+ * Only signatures as the SAML metadata profile has them are supported: the
+ * Signature is the first child of the root, with a single Reference to the root
+ * and the enveloped signature and Exclusive C14N transforms.
+ *
+ * @author alistair
+ */
+public class StreamedMetadataSignature {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(StreamedMetadataSignature.class.getName());
+  /** The XML Signature namespace */
+  private static final String DSIG_NS = "http://www.w3.org/2000/09/xmldsig#";
+  /** The Exclusive C14N namespace, for InclusiveNamespaces */
+  private static final String EXC_C14N_NS = "http://www.w3.org/2001/10/xml-exc-c14n#";
+
+  /** The signature, or null if the aggregate isn't signed */
+  private final SignatureType signature;
+  /** The signature as xml-security sees it */
+  private final XMLSignature xmlSignature;
+  /** Whether the digest of the aggregate matches the one in the signature */
+  private final boolean digestMatches;
+
+  private StreamedMetadataSignature(SignatureType signature, XMLSignature xmlSignature, boolean digestMatches) {
+    this.signature = signature;
+    this.xmlSignature = xmlSignature;
+    this.digestMatches = digestMatches;
+  }
+
+  /**
+   * Reads an aggregate, digesting it for its signature as it goes
+   *
+   * @param in the aggregate
+   * @param copy where to copy the aggregate's bytes as they're read, can be null.
+   *             All of the input is copied, even after the end of the document.
+   * @return the signature on the aggregate
+   * @throws GuanxiException if the aggregate can't be parsed or the signature isn't one
+   * that can be checked as it streams
+   */
+  public static StreamedMetadataSignature read(InputStream in, OutputStream copy) throws GuanxiException {
+    InputStream source = (copy == null) ? in : new CopyingInputStream(in, copy);
+
+    try {
+      // Some readers close the stream at the end of the document, before the rest is drained
+      XMLStreamReader reader = createReader(new FilterInputStream(source) {
+        public void close() {}
+      });
+      try {
+        StreamedMetadataSignature result = read(reader);
+
+        // Everything after the document still needs copying
+        byte[] buffer = new byte[8192];
+        while (source.read(buffer) != -1);
+
+        return result;
+      }
+      finally {
+        reader.close();
+      }
+    }
+    catch(XMLStreamException xse) {
+      throw new GuanxiException(xse);
+    }
+    catch(IOException ioe) {
+      throw new GuanxiException(ioe);
+    }
+  }
+
+  /**
+   * Creates a StAX reader for metadata. DTDs aren't supported, so there are no
+   * external entities to worry about. The JDK's reader gives a null URI for xmlns=""
+   * which XMLBeans can't cope with, so it's given as "" instead.
+   *
+   * @param in the metadata
+   * @return the reader
+   * @throws XMLStreamException if the reader can't be created
+   */
+  static XMLStreamReader createReader(InputStream in) throws XMLStreamException {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    factory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, Boolean.TRUE);
+    return new StreamReaderDelegate(factory.createXMLStreamReader(in)) {
+      public String getNamespaceURI(int index) {
+        String uri = super.getNamespaceURI(index);
+        return (uri == null) ? "" : uri;
+      }
+    };
+  }
+
+  private static StreamedMetadataSignature read(XMLStreamReader reader) throws XMLStreamException, IOException, GuanxiException {
+    int depth = 0;
+    ExclusiveC14NWriter.StartElement root = null;
+    StringBuilder pendingText = new StringBuilder();
+    boolean unsigned = false;
+
+    SignatureType signature = null;
+    XMLSignature xmlSignature = null;
+    Reference reference = null;
+    MessageDigest digest = null;
+    Writer digestWriter = null;
+    ExclusiveC14NWriter c14n = null;
+
+    while (reader.hasNext()) {
+      switch (reader.next()) {
+        case XMLStreamConstants.START_ELEMENT:
+          depth++;
+          if (depth == 1) {
+            // Can't output the root until the signature says how
+            root = new ExclusiveC14NWriter.StartElement(reader);
+            break;
+          }
+
+          if ((depth == 2) && (c14n == null) && (!unsigned)) {
+            if ((DSIG_NS.equals(reader.getNamespaceURI())) && ("Signature".equals(reader.getLocalName()))) {
+              // The enveloped signature isn't digested, XMLBeans reads it all
+              signature = parseSignature(reader);
+              depth--;
+
+              xmlSignature = createXMLSignature(signature);
+              reference = getReference(xmlSignature, root);
+              digest = createDigest(reference);
+              digestWriter = new BufferedWriter(new OutputStreamWriter(new DigestOutputStream(new NullOutputStream(), digest), "UTF-8"));
+              c14n = new ExclusiveC14NWriter(digestWriter, getInclusivePrefixes(reference));
+
+              c14n.startElement(root);
+              c14n.characters(pendingText.toString().toCharArray(), 0, pendingText.length());
+              break;
+            }
+
+            // The profile has the Signature first, so anything else means there isn't one
+            unsigned = true;
+          }
+
+          if (c14n != null) {
+            c14n.startElement(new ExclusiveC14NWriter.StartElement(reader));
+          }
+          break;
+
+        case XMLStreamConstants.END_ELEMENT:
+          if (c14n != null) {
+            c14n.endElement();
+          }
+          depth--;
+          break;
+
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.CDATA:
+        case XMLStreamConstants.SPACE:
+          if (c14n != null) {
+            c14n.characters(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+          }
+          else if ((depth == 1) && (!unsigned)) {
+            pendingText.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+          }
+          break;
+
+        case XMLStreamConstants.PROCESSING_INSTRUCTION:
+          if (c14n != null) {
+            c14n.processingInstruction(reader.getPITarget(), reader.getPIData());
+          }
+          else if (depth > 0) {
+            unsigned = true;
+          }
+          break;
+
+        default:
+          // Comments aren't part of the canonical form and there's no DTD
+          break;
+      }
+    }
+
+    if (signature == null) {
+      return new StreamedMetadataSignature(null, null, false);
+    }
+
+    digestWriter.flush();
+    boolean digestMatches;
+    try {
+      digestMatches = MessageDigest.isEqual(digest.digest(), reference.getDigestValue());
+    }
+    catch(XMLSecurityException xse) {
+      throw new GuanxiException(xse);
+    }
+    if (!digestMatches) {
+      logger.error("Digest of the streamed metadata does not match the signature");
+    }
+
+    return new StreamedMetadataSignature(signature, xmlSignature, digestMatches);
+  }
+
+  /**
+   * Determines whether the aggregate had a signature
+   *
+   * @return true if there was a signature, otherwise false
+   */
+  public boolean isSigned() {
+    return signature != null;
+  }
+
+  /**
+   * Returns the signature on the aggregate
+   *
+   * @return the Signature or null if it wasn't signed
+   */
+  public SignatureType getSignature() {
+    return signature;
+  }
+
+  /**
+   * Determines whether the digest of the aggregate's bytes matches the signature's
+   *
+   * @return true if the digests match, otherwise false
+   */
+  public boolean isDigestValid() {
+    return digestMatches;
+  }
+
+  /**
+   * Returns the certificate in the signature's KeyInfo
+   *
+   * @return the signing certificate or null if the signature doesn't have one
+   * @throws GuanxiException if the KeyInfo can't be read
+   */
+  public X509Certificate getCertificate() throws GuanxiException {
+    if (xmlSignature == null) {
+      return null;
+    }
+
+    try {
+      KeyInfo keyInfo = xmlSignature.getKeyInfo();
+      if ((keyInfo == null) || (!keyInfo.containsX509Data())) {
+        return null;
+      }
+      return keyInfo.getX509Certificate();
+    }
+    catch(XMLSecurityException xse) {
+      throw new GuanxiException(xse);
+    }
+  }
+
+  /**
+   * Verifies the signature on the aggregate. The aggregate's digest has already been
+   * worked out, so all that's left is to check the SignatureValue over the SignedInfo.
+   *
+   * @param x509 the certificate of the key the aggregate should have been signed with
+   * @return true if the signature verifies, otherwise false
+   */
+  public boolean verify(X509Certificate x509) {
+    if ((signature == null) || (!digestMatches)) {
+      return false;
+    }
+
+    try {
+      SignedInfo signedInfo = xmlSignature.getSignedInfo();
+      SignatureAlgorithm algorithm = new SignatureAlgorithm(signedInfo.getSignatureMethodElement(), "");
+      algorithm.initVerify(x509.getPublicKey());
+      algorithm.update(signedInfo.getCanonicalizedOctetStream());
+      return algorithm.verify(xmlSignature.getSignatureValue());
+    }
+    catch(XMLSecurityException xse) {
+      logger.error("Could not verify the signature on the metadata", xse);
+      return false;
+    }
+  }
+
+  private static SignatureType parseSignature(XMLStreamReader reader) throws GuanxiException {
+    try {
+      return SignatureDocument.Factory.parse(reader).getSignature();
+    }
+    catch(XmlException xe) {
+      throw new GuanxiException(xe);
+    }
+  }
+
+  private static XMLSignature createXMLSignature(SignatureType signature) throws GuanxiException {
+    try {
+      return new XMLSignature((Element)signature.getDomNode(), "");
+    }
+    catch(XMLSecurityException xse) {
+      throw new GuanxiException(xse);
+    }
+  }
+
+  /**
+   * Gets the signature's Reference, making sure it's one that can be checked as the
+   * aggregate streams past
+   *
+   * @param xmlSignature the signature
+   * @param root the root element of the aggregate
+   * @return the Reference to the root
+   * @throws GuanxiException if the Reference isn't to the root or has transforms that aren't supported
+   */
+  private static Reference getReference(XMLSignature xmlSignature, ExclusiveC14NWriter.StartElement root) throws GuanxiException {
+    try {
+      SignedInfo signedInfo = xmlSignature.getSignedInfo();
+      if (signedInfo.getLength() != 1) {
+        throw new GuanxiException("Metadata signature must have one Reference");
+      }
+
+      Reference reference = signedInfo.item(0);
+      String uri = reference.getURI();
+      if ((uri != null) && (uri.length() > 0) && (!uri.equals("#" + getID(root)))) {
+        throw new GuanxiException("Metadata signature reference is not for the root : " + uri);
+      }
+
+      Transforms transforms = reference.getTransforms();
+      if ((transforms == null) || (transforms.getLength() != 2) ||
+          (!Transforms.TRANSFORM_ENVELOPED_SIGNATURE.equals(transforms.item(0).getURI())) ||
+          (!Transforms.TRANSFORM_C14N_EXCL_OMIT_COMMENTS.equals(transforms.item(1).getURI()))) {
+        throw new GuanxiException("Metadata signature transforms must be enveloped signature and exclusive c14n");
+      }
+
+      return reference;
+    }
+    catch(XMLSecurityException xse) {
+      throw new GuanxiException(xse);
+    }
+  }
+
+  private static MessageDigest createDigest(Reference reference) throws GuanxiException {
+    try {
+      return MessageDigest.getInstance(reference.getMessageDigestAlgorithm().getJCEAlgorithmString());
+    }
+    catch(XMLSecurityException xse) {
+      throw new GuanxiException(xse);
+    }
+    catch(NoSuchAlgorithmException nsae) {
+      throw new GuanxiException(nsae);
+    }
+  }
+
+  /**
+   * Gets the PrefixList from the InclusiveNamespaces of the Exclusive C14N transform
+   *
+   * @param reference the Reference
+   * @return the prefixes, which may be empty
+   * @throws GuanxiException if the transforms can't be read
+   */
+  private static List<String> getInclusivePrefixes(Reference reference) throws GuanxiException {
+    List<String> prefixes = new ArrayList<String>();
+    try {
+      Element transform = reference.getTransforms().item(1).getElement();
+      for (Node child = transform.getFirstChild(); child != null; child = child.getNextSibling()) {
+        if ((child.getNodeType() == Node.ELEMENT_NODE) &&
+            (EXC_C14N_NS.equals(child.getNamespaceURI())) &&
+            ("InclusiveNamespaces".equals(child.getLocalName()))) {
+          String prefixList = ((Element)child).getAttribute("PrefixList").trim();
+          if (prefixList.length() > 0) {
+            prefixes.addAll(Arrays.asList(prefixList.split("\\s+")));
+          }
+        }
+      }
+    }
+    catch(XMLSecurityException xse) {
+      throw new GuanxiException(xse);
+    }
+    return prefixes;
+  }
+
+  private static String getID(ExclusiveC14NWriter.StartElement element) {
+    for (int c=0; c < element.attrLocalNames.length; c++) {
+      if ((element.attrNamespaces[c].length() == 0) && ("ID".equals(element.attrLocalNames[c]))) {
+        return element.attrValues[c];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Copies everything read from a stream to another stream
+   */
+  private static class CopyingInputStream extends FilterInputStream {
+    private final OutputStream copy;
+
+    CopyingInputStream(InputStream in, OutputStream copy) {
+      super(in);
+      this.copy = copy;
+    }
+
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) {
+        copy.write(b);
+      }
+      return b;
+    }
+
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int count = super.read(buffer, offset, length);
+      if (count > 0) {
+        copy.write(buffer, offset, count);
+      }
+      return count;
+    }
+
+    public long skip(long n) throws IOException {
+      // Skipped bytes wouldn't be copied
+      byte[] buffer = new byte[(int)Math.min(n, 8192)];
+      int count = read(buffer, 0, buffer.length);
+      return (count < 0) ? 0 : count;
+    }
+
+    public boolean markSupported() {
+      return false;
+    }
+  }
+
+  /**
+   * Somewhere for the canonical form to go once it's been digested
+   */
+  private static class NullOutputStream extends OutputStream {
+    public void write(int b) {}
+    public void write(byte[] b, int off, int len) {}
+  }
+}
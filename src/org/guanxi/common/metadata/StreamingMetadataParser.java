@@ -0,0 +1,130 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.common.metadata;
+
+import org.apache.xmlbeans.XmlException;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorDocument;
+import org.guanxi.xal.saml_2_0.metadata.ExtensionsDocument;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+
+/**
+ * Reads a SAML2 metadata aggregate one EntityDescriptor at a time, rather than as one
+ * EntitiesDescriptorDocument. Each EntityDescriptor is parsed into its own XMLBeans
+ * document and handed over as soon as its end tag has been read, so the most that's
+ * ever held is one entity, whatever the size of the aggregate.
+ *
+ * Nothing is verified here. For a signed aggregate, check the signature with
+ * StreamedMetadataSignature first, e.g. while saving the aggregate to disk, then
+ * parse the saved copy.
+ *
+ * @author alistair
+ */
+public class StreamingMetadataParser {
+  /** The SAML2 metadata namespace */
+  private static final String METADATA_NS = "urn:oasis:names:tc:SAML:2.0:metadata";
+
+  private StreamingMetadataParser() {}
+
+  /**
+   * Parses a metadata aggregate
+   *
+   * @param in the aggregate
+   * @param handler what to give the Extensions and entities to
+   * @return the number of entities in the aggregate
+   * @throws GuanxiException if the aggregate can't be parsed or the handler fails
+   */
+  public static int parse(InputStream in, MetadataHandler handler) throws GuanxiException {
+    int entities = 0;
+
+    try {
+      XMLStreamReader reader = StreamedMetadataSignature.createReader(in);
+      try {
+        int depth = 0;
+        while (reader.hasNext()) {
+          int event = reader.next();
+          if (event == XMLStreamConstants.END_ELEMENT) {
+            depth--;
+            continue;
+          }
+          if (event != XMLStreamConstants.START_ELEMENT) {
+            continue;
+          }
+
+          depth++;
+          if (!METADATA_NS.equals(reader.getNamespaceURI())) {
+            // Signatures and the like, which aren't needed here
+            skipElement(reader);
+            depth--;
+          }
+          else if ("EntityDescriptor".equals(reader.getLocalName())) {
+            // XMLBeans reads up to the entity's end tag
+            handler.handleEntity(EntityDescriptorDocument.Factory.parse(reader).getEntityDescriptor());
+            depth--;
+            entities++;
+          }
+          else if ("Extensions".equals(reader.getLocalName())) {
+            // Only the root's Extensions apply to the whole aggregate
+            if (depth == 2) {
+              handler.handleExtensions(ExtensionsDocument.Factory.parse(reader).getExtensions());
+            }
+            else {
+              skipElement(reader);
+            }
+            depth--;
+          }
+          // An EntitiesDescriptor, at the root or nested, is read into
+        }
+      }
+      finally {
+        reader.close();
+      }
+    }
+    catch(XMLStreamException xse) {
+      throw new GuanxiException(xse);
+    }
+    catch(XmlException xe) {
+      throw new GuanxiException(xe);
+    }
+
+    return entities;
+  }
+
+  /**
+   * Moves a reader from a start tag to its end tag
+   *
+   * @param reader the reader, positioned on a START_ELEMENT
+   * @throws XMLStreamException if the document can't be read
+   */
+  private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+    int depth = 1;
+    while (depth > 0) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        depth++;
+      }
+      else if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      }
+    }
+  }
+}
@@ -19,16 +19,25 @@ package org.guanxi.common.metadata.impl;
 import org.guanxi.common.metadata.IdPMetadata;
 import org.guanxi.common.metadata.SPMetadata;
 import org.guanxi.common.definitions.Shibboleth;
+import org.guanxi.common.trust.EntityKeyIndex;
 import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
 import org.guanxi.xal.saml_2_0.metadata.EndpointType;
 
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class GuanxiSAML2MetadataImpl implements IdPMetadata, SPMetadata {
+  /** Source of metadata versions, shared by all entities so a version is never reused */
+  private static final AtomicLong versions = new AtomicLong();
+
   /** The SAML2 metadata backing this object */
   private EntityDescriptorType saml2Metadata = null;
   /** The hostname the metadata is associated with */
   private String hostName = null;
+  /** The public keys embedded in the metadata, indexed by role */
+  private EntityKeyIndex keyIndex = null;
+  /** Changes every time the metadata is set, so anything worked out from it can be keyed on it */
+  private long version = 0;
 
   /** @see org.guanxi.common.metadata.Metadata#getEntityID()  */
   public String getEntityID() {
@@ -70,6 +79,8 @@ public class GuanxiSAML2MetadataImpl implements IdPMetadata, SPMetadata {
   /** @see org.guanxi.common.metadata.IdPMetadata#setPrivateData(Object)  */
   public void setPrivateData(Object privateData) {
     this.saml2Metadata = (EntityDescriptorType)privateData;
+    keyIndex = EntityKeyIndex.build(saml2Metadata);
+    version = versions.incrementAndGet();
   }
 
   /** @see org.guanxi.common.metadata.IdPMetadata#getPrivateData()  */
@@ -77,6 +88,26 @@ public class GuanxiSAML2MetadataImpl implements IdPMetadata, SPMetadata {
     return saml2Metadata;
   }
 
+  /**
+   * Gets the index of the public keys embedded in the metadata. This is built
+   * when the metadata is set.
+   *
+   * @return the key index for the entity
+   */
+  public EntityKeyIndex getKeyIndex() {
+    return keyIndex;
+  }
+
+  /**
+   * Gets the version of the metadata. This changes every time the metadata is set,
+   * so a decision made using one version doesn't apply to the next.
+   *
+   * @return the metadata version
+   */
+  public long getVersion() {
+    return version;
+  }
+
   /** @see org.guanxi.common.metadata.Metadata#setHostName(String)  */
   public void setHostName(String hostName) {
     this.hostName = hostName;
@@ -22,6 +22,8 @@ import org.apache.xml.security.c14n.Canonicalizer;
 import org.apache.xml.security.transforms.Transforms;
 import org.apache.xml.security.transforms.params.InclusiveNamespaces;
 import org.guanxi.common.GuanxiException;
+import org.guanxi.common.Utils;
+import org.guanxi.common.trust.Fingerprint;
 import org.bouncycastle.asn1.DERObjectIdentifier;
 import org.bouncycastle.asn1.x509.X509Name;
 import org.bouncycastle.x509.X509V3CertificateGenerator;
@@ -200,23 +202,10 @@ public class SecUtils {
 
   public String encrypt(String data) {
     try {
-      char[] hexChars ={'0','1','2','3','4','5','6','7','8','9','A','B','C','D','E','F'};
-      MessageDigest md5 = MessageDigest.getInstance("MD5");
-      md5.reset();
-      md5.update(data.getBytes());
-      byte[] hashBytes = md5.digest();
-      String hex = "";
-      int msb;
-      int lsb = 0;
-      int i;
-      for (i = 0; i < hashBytes.length; i++) {
-        msb = ((int)hashBytes[i] & 0x000000FF) / 16;
-        lsb = ((int)hashBytes[i] & 0x000000FF) % 16;
-        hex = hex + hexChars[msb] + hexChars[lsb];
-      }
-      return(hex);
+      return Utils.toHex(Fingerprint.digest("MD5", data.getBytes()));
     }
-    catch (NoSuchAlgorithmException e) {
+    catch(IllegalArgumentException iae) {
+      // No MD5
       return null;
     }
   }
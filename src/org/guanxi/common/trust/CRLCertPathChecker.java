@@ -0,0 +1,105 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.trust;
+
+import org.apache.log4j.Logger;
+
+import java.security.cert.CertPathValidatorException;
+import java.security.cert.Certificate;
+import java.security.cert.PKIXCertPathChecker;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Checks every certificate in a PKIX path against a CRLIndex. Nothing is fetched
+ * while the path is being validated, so this can be left on for every validation.
+ *
+ * If the index has no current CRL for a certificate's issuer the certificate is
+ * accepted, unless the checker has been told a CRL is required. A certificate in
+ * a CRL that's gone stale is still treated as revoked.
+ *
+ * The checker never changes so a new one is made whenever the CRLs are reloaded.
+ *
+ * @author alistair
+ */
+public class CRLCertPathChecker extends PKIXCertPathChecker {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(CRLCertPathChecker.class.getName());
+
+  /** The revoked serial numbers */
+  private final CRLIndex index;
+  /** Whether a certificate must have a current CRL from its issuer */
+  private final boolean requireCRL;
+
+  /**
+   * Creates a checker that accepts certificates whose issuer has no current CRL
+   *
+   * @param index the revoked serial numbers
+   */
+  public CRLCertPathChecker(CRLIndex index) {
+    this(index, false);
+  }
+
+  /**
+   * Creates a checker
+   *
+   * @param index the revoked serial numbers
+   * @param requireCRL true to reject certificates whose issuer has no current CRL
+   */
+  public CRLCertPathChecker(CRLIndex index, boolean requireCRL) {
+    this.index = index;
+    this.requireCRL = requireCRL;
+  }
+
+  /** @see java.security.cert.PKIXCertPathChecker#init(boolean) */
+  public void init(boolean forward) {
+    // Each certificate is checked on its own so direction doesn't matter
+  }
+
+  /** @see java.security.cert.PKIXCertPathChecker#isForwardCheckingSupported() */
+  public boolean isForwardCheckingSupported() {
+    return true;
+  }
+
+  /** @see java.security.cert.PKIXCertPathChecker#getSupportedExtensions() */
+  public Set<String> getSupportedExtensions() {
+    return null;
+  }
+
+  /** @see java.security.cert.PKIXCertPathChecker#check(java.security.cert.Certificate, java.util.Collection) */
+  public void check(Certificate cert, Collection<String> unresolvedCritExts) throws CertPathValidatorException {
+    X509Certificate x509 = (X509Certificate)cert;
+
+    if (index.isRevoked(x509.getIssuerX500Principal(), x509.getSerialNumber())) {
+      throw new CertPathValidatorException("Certificate " + x509.getSerialNumber() + " from " +
+                                           x509.getIssuerX500Principal() + " has been revoked");
+    }
+
+    if (!index.hasCurrentCRL(x509.getIssuerX500Principal(), System.currentTimeMillis())) {
+      if (requireCRL) {
+        throw new CertPathValidatorException("No current CRL from " + x509.getIssuerX500Principal());
+      }
+      if (logger.isDebugEnabled()) {
+        logger.debug("No current CRL from " + x509.getIssuerX500Principal());
+      }
+    }
+  }
+
+  public CRLIndex getIndex() { return index; }
+  public boolean isRequireCRL() { return requireCRL; }
+}
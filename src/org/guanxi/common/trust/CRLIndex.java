@@ -0,0 +1,326 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.trust;
+
+import org.apache.log4j.Logger;
+
+import javax.security.auth.x500.X500Principal;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLEntry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * An immutable index of the serial numbers revoked by a set of CRLs, so revocation
+ * can be checked on every PKIX validation without going anywhere near the CRLs.
+ *
+ * The serial numbers for each issuer are sorted and written to a file as fixed width
+ * two's complement values, which is memory mapped and binary searched. Each issuer
+ * also has a Bloom filter in memory so the usual answer, not revoked, doesn't touch
+ * the file at all.
+ *
+ * If there's more than one CRL for an issuer, the serial numbers from all of them
+ * count and the latest nextUpdate is used.
+ *
+ * @author alistair
+ */
+public class CRLIndex {
+  /** The width of a serial number in the index. RFC 5280 allows 20 octets plus one for the sign */
+  public static final int SERIAL_WIDTH = 21;
+
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(CRLIndex.class.getName());
+  /** Bits in each Bloom filter per serial number, giving about 1% false positives */
+  private static final int BLOOM_BITS_PER_SERIAL = 10;
+  /** Hashes per serial number in the Bloom filters */
+  private static final int BLOOM_HASHES = 7;
+
+  /** The revoked serial numbers for each issuer */
+  private final Map<X500Principal, Section> sections;
+  /** The sorted serial numbers of all the issuers, one after the other */
+  private final ByteBuffer serials;
+  /** The total number of revoked serial numbers */
+  private final int size;
+
+  private CRLIndex(Map<X500Principal, Section> sections, ByteBuffer serials, int size) {
+    this.sections = sections;
+    this.serials = serials;
+    this.size = size;
+  }
+
+  /**
+   * Builds an index from a set of CRLs. The CRLs must already have been verified.
+   *
+   * @param crls the CRLs to index
+   * @param indexFile where to write the serial numbers. It's mapped into memory so shouldn't
+   *                  be changed or deleted while the index is in use, except on platforms
+   *                  where a mapped file can safely be deleted.
+   * @return the index
+   * @throws IOException if the index file can't be written or mapped
+   */
+  public static CRLIndex build(Collection<X509CRL> crls, File indexFile) throws IOException {
+    // Gather up the serial numbers for each issuer, in order
+    Map<X500Principal, TreeSet<BigInteger>> revoked = new HashMap<X500Principal, TreeSet<BigInteger>>();
+    Map<X500Principal, Long> nextUpdates = new HashMap<X500Principal, Long>();
+    for (X509CRL crl : crls) {
+      X500Principal issuer = crl.getIssuerX500Principal();
+
+      TreeSet<BigInteger> issuerSerials = revoked.get(issuer);
+      if (issuerSerials == null) {
+        issuerSerials = new TreeSet<BigInteger>();
+        revoked.put(issuer, issuerSerials);
+      }
+
+      if (crl.getRevokedCertificates() != null) {
+        for (X509CRLEntry entry : crl.getRevokedCertificates()) {
+          if (entry.getSerialNumber().bitLength() < SERIAL_WIDTH * 8) {
+            issuerSerials.add(entry.getSerialNumber());
+          }
+          else {
+            logger.warn("Ignoring oversized serial number " + entry.getSerialNumber() + " in CRL from " + issuer);
+          }
+        }
+      }
+
+      // No nextUpdate means the issuer doesn't say when there'll be a new CRL, so it never goes stale
+      long nextUpdate = (crl.getNextUpdate() == null) ? Long.MAX_VALUE : crl.getNextUpdate().getTime();
+      Long previous = nextUpdates.get(issuer);
+      if ((previous == null) || (previous.longValue() < nextUpdate)) {
+        nextUpdates.put(issuer, Long.valueOf(nextUpdate));
+      }
+    }
+
+    int size = 0;
+    for (TreeSet<BigInteger> issuerSerials : revoked.values()) {
+      size += issuerSerials.size();
+    }
+
+    RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+    try {
+      file.setLength((long)size * SERIAL_WIDTH);
+      MappedByteBuffer serials = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long)size * SERIAL_WIDTH);
+
+      Map<X500Principal, Section> sections = new HashMap<X500Principal, Section>();
+      byte[] encoded = new byte[SERIAL_WIDTH];
+      int index = 0;
+      for (Map.Entry<X500Principal, TreeSet<BigInteger>> entry : revoked.entrySet()) {
+        BloomFilter bloom = new BloomFilter(entry.getValue().size());
+        int start = index;
+        for (BigInteger serial : entry.getValue()) {
+          encode(serial, encoded);
+          serials.put(encoded);
+          bloom.add(encoded);
+          index++;
+        }
+        sections.put(entry.getKey(), new Section(start, index - start, bloom, nextUpdates.get(entry.getKey()).longValue()));
+      }
+      serials.force();
+
+      return new CRLIndex(Collections.unmodifiableMap(sections), serials, size);
+    }
+    finally {
+      // The mapping stays valid once the file's closed
+      file.close();
+    }
+  }
+
+  /**
+   * Determines whether there's a CRL for an issuer that's still current
+   *
+   * @param issuer the issuer of a certificate
+   * @param now the time to check against, in milliseconds
+   * @return true if there's a CRL for the issuer whose nextUpdate hasn't passed, otherwise false
+   */
+  public boolean hasCurrentCRL(X500Principal issuer, long now) {
+    Section section = sections.get(issuer);
+    return (section != null) && (section.nextUpdate > now);
+  }
+
+  /**
+   * Determines whether there's any CRL for an issuer
+   *
+   * @param issuer the issuer of a certificate
+   * @return true if the index has a CRL for the issuer, otherwise false
+   */
+  public boolean hasCRL(X500Principal issuer) {
+    return sections.containsKey(issuer);
+  }
+
+  /**
+   * Determines whether a certificate has been revoked by its issuer
+   *
+   * @param issuer the issuer of the certificate
+   * @param serialNumber the serial number of the certificate
+   * @return true if the issuer's CRL lists the serial number, otherwise false
+   */
+  public boolean isRevoked(X500Principal issuer, BigInteger serialNumber) {
+    Section section = sections.get(issuer);
+    if ((section == null) || (serialNumber.bitLength() >= SERIAL_WIDTH * 8)) {
+      return false;
+    }
+
+    byte[] encoded = new byte[SERIAL_WIDTH];
+    encode(serialNumber, encoded);
+
+    if (!section.bloom.mightContain(encoded)) {
+      return false;
+    }
+
+    // Binary search the issuer's part of the index
+    int low = section.start;
+    int high = section.start + section.count - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = compare(mid, encoded);
+      if (cmp < 0) {
+        low = mid + 1;
+      }
+      else if (cmp > 0) {
+        high = mid - 1;
+      }
+      else {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Returns the issuers the index has CRLs for
+   *
+   * @return the CRL issuers
+   */
+  public List<X500Principal> getIssuers() {
+    return new ArrayList<X500Principal>(sections.keySet());
+  }
+
+  /**
+   * Returns the total number of revoked serial numbers in the index
+   *
+   * @return number of serial numbers
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Compares the serial number at a position in the index with an encoded one.
+   * The first byte carries the sign so it's compared signed and the rest unsigned.
+   *
+   * @param position the position of the serial number in the index
+   * @param encoded the encoded serial number to compare with
+   * @return negative, zero or positive as the one in the index is less than, equal to or greater
+   */
+  private int compare(int position, byte[] encoded) {
+    int offset = position * SERIAL_WIDTH;
+    int cmp = serials.get(offset) - encoded[0];
+    for (int c=1; (cmp == 0) && (c < SERIAL_WIDTH); c++) {
+      cmp = (serials.get(offset + c) & 0xff) - (encoded[c] & 0xff);
+    }
+    return cmp;
+  }
+
+  /**
+   * Encodes a serial number as a fixed width, sign extended, two's complement value
+   *
+   * @param serialNumber the serial number, which must fit in SERIAL_WIDTH bytes
+   * @param encoded where to put the encoded serial number
+   */
+  private static void encode(BigInteger serialNumber, byte[] encoded) {
+    byte[] bytes = serialNumber.toByteArray();
+    byte pad = (serialNumber.signum() < 0) ? (byte)0xff : (byte)0;
+    int padding = SERIAL_WIDTH - bytes.length;
+    for (int c=0; c < padding; c++) {
+      encoded[c] = pad;
+    }
+    System.arraycopy(bytes, 0, encoded, padding, bytes.length);
+  }
+
+  /**
+   * Where an issuer's serial numbers are in the index
+   */
+  private static class Section {
+    final int start;
+    final int count;
+    final BloomFilter bloom;
+    final long nextUpdate;
+
+    Section(int start, int count, BloomFilter bloom, long nextUpdate) {
+      this.start = start;
+      this.count = count;
+      this.bloom = bloom;
+      this.nextUpdate = nextUpdate;
+    }
+  }
+
+  /**
+   * A Bloom filter over encoded serial numbers. Only ever written while the index is being built.
+   */
+  private static class BloomFilter {
+    private final long[] bits;
+    private final int numBits;
+
+    BloomFilter(int expected) {
+      numBits = Math.max(64, expected * BLOOM_BITS_PER_SERIAL);
+      bits = new long[(numBits + 63) / 64];
+    }
+
+    void add(byte[] encoded) {
+      int h1 = hash(encoded, 0x811c9dc5);
+      int h2 = hash(encoded, 0x01000193) | 1;
+      for (int c=0; c < BLOOM_HASHES; c++) {
+        int bit = ((h1 + (c * h2)) & 0x7fffffff) % numBits;
+        bits[bit >>> 6] |= 1L << bit;
+      }
+    }
+
+    boolean mightContain(byte[] encoded) {
+      int h1 = hash(encoded, 0x811c9dc5);
+      int h2 = hash(encoded, 0x01000193) | 1;
+      for (int c=0; c < BLOOM_HASHES; c++) {
+        int bit = ((h1 + (c * h2)) & 0x7fffffff) % numBits;
+        if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /** FNV-1a style hash with a variable seed */
+    private static int hash(byte[] encoded, int seed) {
+      int h = seed;
+      for (byte b : encoded) {
+        h ^= (b & 0xff);
+        h *= 0x01000193;
+      }
+      return h ^ (h >>> 16);
+    }
+  }
+}
@@ -0,0 +1,371 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.trust;
+
+import org.apache.log4j.Logger;
+import org.guanxi.common.GuanxiException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.GeneralSecurityException;
+import java.security.cert.CRL;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps a directory of CRLs, optionally downloading them from their distribution
+ * points, and compiles them into a CRLIndex whenever they change. Each new index is
+ * handed to the trust engine as a CRLCertPathChecker, so PKIX validation checks
+ * revocation without ever fetching a CRL itself.
+ *
+ * CRLs are only used if they're signed by one of the trust engine's CAs, or by one of
+ * the intermediate CAs the store has been given that chains back to them, as anyone
+ * could have put a CRL on the distribution point or in the directory. Whenever the
+ * trust engine's CAs change, the CRLs are verified and indexed again.
+ *
+ * refresh is meant to be called in the background, e.g. from a scheduled job, as it
+ * can take as long as the distribution points do to respond.
+ *
+ * @author alistair
+ */
+public class CRLStore {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(CRLStore.class.getName());
+  /** The extension of CRL files in the directory */
+  private static final String CRL_EXTENSION = ".crl";
+  /** The start of the names of index files in the directory */
+  private static final String INDEX_PREFIX = "crl-index-";
+  /** The extension of index files in the directory */
+  private static final String INDEX_EXTENSION = ".idx";
+
+  /** The directory holding the CRLs and the index */
+  private String crlDir = null;
+  /** Where to download CRLs from, if anywhere */
+  private List<String> crlURLs = new ArrayList<String>();
+  /** The value of User-Agent to set when downloading */
+  private String who = null;
+  /** How long, in milliseconds, to wait for a distribution point */
+  private int timeout = 30000;
+  /** Whether a certificate must have a current CRL from its issuer */
+  private boolean requireCRL = false;
+  /** The trust engine to give the index to and whose CAs must have signed the CRLs */
+  private TrustEngine trustEngine = null;
+  /** Intermediate CAs below the trust engine's CAs that can also sign CRLs */
+  private List<X509Certificate> intermediateCerts = new ArrayList<X509Certificate>();
+  /** The current index */
+  private volatile CRLIndex index = null;
+  /** The file the current index is mapped from */
+  private File indexFile = null;
+  /** The generation of the trust engine's CAs the current index was verified against */
+  private volatile long indexGeneration = -1;
+
+  /**
+   * Initialisation. Removes any indexes left behind by earlier runs and loads
+   * the CRLs that are already in the directory.
+   *
+   * @throws GuanxiException if the CRLs can't be indexed
+   */
+  public void init() throws GuanxiException {
+    File dir = new File(crlDir);
+    if (!dir.exists()) {
+      dir.mkdirs();
+    }
+
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if ((file.getName().startsWith(INDEX_PREFIX)) && (file.getName().endsWith(INDEX_EXTENSION)) &&
+            (!file.equals(indexFile)) && (!file.delete())) {
+          logger.warn("Could not delete old CRL index " + file);
+        }
+      }
+    }
+
+    load();
+  }
+
+  /**
+   * Downloads any CRLs that have changed at their distribution points and if any
+   * have, or the trust engine's CAs have changed since the last time, reindexes the
+   * directory. A distribution point that can't be reached leaves its CRL as it was.
+   *
+   * @throws GuanxiException if the CRLs can't be indexed
+   */
+  public void refresh() throws GuanxiException {
+    boolean changed = false;
+    for (String crlURL : crlURLs) {
+      try {
+        changed |= download(crlURL);
+      }
+      catch(IOException ioe) {
+        logger.error("Could not download CRL from " + crlURL, ioe);
+      }
+    }
+
+    if ((changed) || (index == null) ||
+        ((trustEngine != null) && (trustEngine.getGeneration() != indexGeneration))) {
+      load();
+    }
+  }
+
+  /**
+   * Indexes all the CRLs in the directory that are signed by one of the trust
+   * engine's CAs, or an intermediate below them, and gives the new index to the
+   * trust engine
+   *
+   * @throws GuanxiException if the CRLs can't be indexed
+   */
+  public synchronized void load() throws GuanxiException {
+    List<X509CRL> crls = new ArrayList<X509CRL>();
+    X509Certificate[] caCerts = (trustEngine == null) ? null : trustEngine.getCACerts();
+    X509Certificate[] signers = (trustEngine == null) ? null : getSigners(caCerts);
+
+    File[] files = new File(crlDir).listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.getName().endsWith(CRL_EXTENSION)) {
+          for (X509CRL crl : readCRLs(file)) {
+            if (verify(crl, signers)) {
+              crls.add(crl);
+            }
+          }
+        }
+      }
+    }
+
+    File newIndexFile = null;
+    try {
+      newIndexFile = File.createTempFile(INDEX_PREFIX, INDEX_EXTENSION, new File(crlDir));
+      index = CRLIndex.build(crls, newIndexFile);
+    }
+    catch(IOException ioe) {
+      if (newIndexFile != null) {
+        newIndexFile.delete();
+      }
+      throw new GuanxiException(ioe);
+    }
+
+    // Where a mapped file can't be deleted, it'll go when the JVM does
+    if ((indexFile != null) && (!indexFile.delete())) {
+      indexFile.deleteOnExit();
+    }
+    indexFile = newIndexFile;
+
+    logger.info("Indexed " + index.size() + " revoked certificates from " + crls.size() + " CRLs");
+
+    if (trustEngine != null) {
+      // Giving the engine the checker moves its generation on, so that's the one to remember
+      trustEngine.setRevocationChecker(new CRLCertPathChecker(index, requireCRL));
+      indexGeneration = trustEngine.getGeneration();
+
+      // If the CAs changed while we were verifying, make sure the next refresh verifies again
+      if (!Arrays.equals(caCerts, trustEngine.getCACerts())) {
+        indexGeneration = -1;
+      }
+    }
+  }
+
+  /**
+   * Downloads a CRL into the directory if it's changed since it was last downloaded
+   *
+   * @param crlURL the CRL distribution point
+   * @return true if a new CRL was downloaded, otherwise false
+   * @throws IOException if the CRL can't be downloaded
+   */
+  private boolean download(String crlURL) throws IOException {
+    File crlFile = new File(crlDir, fileName(crlURL));
+
+    URLConnection connection = new URL(crlURL).openConnection();
+    connection.setConnectTimeout(timeout);
+    connection.setReadTimeout(timeout);
+    if (who != null) {
+      connection.setRequestProperty("User-Agent", who);
+    }
+    if (crlFile.exists()) {
+      connection.setIfModifiedSince(crlFile.lastModified());
+    }
+
+    if ((connection instanceof HttpURLConnection) &&
+        (((HttpURLConnection)connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED)) {
+      return false;
+    }
+
+    // Download next to the old CRL and swap it in so a failed download leaves it alone
+    File tmpFile = new File(crlDir, crlFile.getName() + ".tmp");
+    InputStream in = connection.getInputStream();
+    try {
+      OutputStream out = new FileOutputStream(tmpFile);
+      try {
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          out.write(buffer, 0, read);
+        }
+      }
+      finally {
+        out.close();
+      }
+    }
+    finally {
+      in.close();
+    }
+
+    if ((crlFile.exists()) && (!crlFile.delete())) {
+      tmpFile.delete();
+      throw new IOException("Could not replace " + crlFile);
+    }
+    if (!tmpFile.renameTo(crlFile)) {
+      throw new IOException("Could not rename " + tmpFile + " to " + crlFile);
+    }
+    if (connection.getLastModified() != 0) {
+      crlFile.setLastModified(connection.getLastModified());
+    }
+
+    return true;
+  }
+
+  /**
+   * Reads the CRLs in a file, which can be DER or PEM
+   *
+   * @param file the file to read
+   * @return the CRLs in the file, which may be none if it can't be read
+   */
+  private List<X509CRL> readCRLs(File file) {
+    List<X509CRL> crls = new ArrayList<X509CRL>();
+    try {
+      InputStream in = new FileInputStream(file);
+      try {
+        for (CRL crl : CertificateFactory.getInstance("X.509").generateCRLs(in)) {
+          crls.add((X509CRL)crl);
+        }
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch(IOException ioe) {
+      logger.error("Could not read CRL " + file, ioe);
+    }
+    catch(GeneralSecurityException gse) {
+      logger.error("Could not parse CRL " + file, gse);
+    }
+    return crls;
+  }
+
+  /**
+   * Works out which certificates can sign CRLs. These are the trust engine's CAs
+   * and any intermediate CAs that chain back to them.
+   *
+   * @param caCerts the trust engine's CAs
+   * @return the certificates whose CRLs can be used
+   */
+  private X509Certificate[] getSigners(X509Certificate[] caCerts) {
+    if ((intermediateCerts == null) || (intermediateCerts.isEmpty())) {
+      return caCerts;
+    }
+
+    List<X509Certificate> signers = new ArrayList<X509Certificate>(Arrays.asList(caCerts));
+
+    // The intermediates only vouch for each other, so the chain can use all of them
+    X509Certificate[] intermediates = intermediateCerts.toArray(new X509Certificate[intermediateCerts.size()]);
+    TrustAnchorStore anchors = new TrustAnchorStore(Arrays.asList(caCerts), intermediates.length + 1, 0);
+    for (X509Certificate intermediate : intermediates) {
+      if (X509ChainBuilder.build(intermediate, intermediates, anchors) != null) {
+        signers.add(intermediate);
+      }
+      else {
+        logger.error("Ignoring intermediate CA " + intermediate.getSubjectX500Principal() +
+                     " as it doesn't chain to a trusted CA");
+      }
+    }
+
+    return signers.toArray(new X509Certificate[signers.size()]);
+  }
+
+  /**
+   * Verifies a CRL was signed by one of the trust engine's CAs or an intermediate
+   * below them. If there's no trust engine the CRL is taken on trust.
+   *
+   * @param crl the CRL to verify
+   * @param signers the certificates whose CRLs can be used, or null if there's no trust engine
+   * @return true if the CRL can be used, otherwise false
+   */
+  private boolean verify(X509CRL crl, X509Certificate[] signers) {
+    if (signers == null) {
+      return true;
+    }
+
+    for (X509Certificate caX509 : signers) {
+      if (caX509.getSubjectX500Principal().equals(crl.getIssuerX500Principal())) {
+        try {
+          crl.verify(caX509.getPublicKey());
+          return true;
+        }
+        catch(GeneralSecurityException gse) {
+          // Could be a rolled over CA with the same name, so keep looking
+        }
+      }
+    }
+
+    logger.error("Ignoring CRL from " + crl.getIssuerX500Principal() + " as it isn't signed by a trusted CA");
+    return false;
+  }
+
+  /**
+   * Works out the name of the file to keep a downloaded CRL in
+   *
+   * @param crlURL the CRL distribution point
+   * @return the file name
+   */
+  private static String fileName(String crlURL) {
+    return crlURL.replaceAll("[^A-Za-z0-9.-]", "_") + CRL_EXTENSION;
+  }
+
+  public CRLIndex getIndex() { return index; }
+
+  public void setCrlDir(String crlDir) { this.crlDir = crlDir; }
+  public String getCrlDir() { return crlDir; }
+
+  public void setCrlURLs(List<String> crlURLs) { this.crlURLs = crlURLs; }
+  public List<String> getCrlURLs() { return crlURLs; }
+
+  public void setWho(String who) { this.who = who; }
+  public String getWho() { return who; }
+
+  public void setTimeout(int timeout) { this.timeout = timeout; }
+  public int getTimeout() { return timeout; }
+
+  public void setRequireCRL(boolean requireCRL) { this.requireCRL = requireCRL; }
+  public boolean isRequireCRL() { return requireCRL; }
+
+  public void setTrustEngine(TrustEngine trustEngine) { this.trustEngine = trustEngine; }
+  public TrustEngine getTrustEngine() { return trustEngine; }
+
+  public void setIntermediateCerts(List<X509Certificate> intermediateCerts) { this.intermediateCerts = intermediateCerts; }
+  public List<X509Certificate> getIntermediateCerts() { return intermediateCerts; }
+}
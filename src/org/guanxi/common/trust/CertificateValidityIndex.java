@@ -0,0 +1,200 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.trust;
+
+import org.guanxi.common.metadata.Metadata;
+import org.guanxi.common.metadata.impl.GuanxiSAML2MetadataImpl;
+
+import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable index of when every key in a set of metadata stops being usable,
+ * sorted by notAfter, so the keys that have expired or are about to can be found
+ * with a binary search rather than by walking every EntityDescriptor.
+ *
+ * The index is built from the EntityKeyIndex of each entity, so only entities
+ * whose metadata handler has one are included. Entities whose handlers haven't
+ * been built, e.g. because they're only loaded when they're asked for, can be
+ * included from their certificates instead.
+ *
+ * @author alistair
+ */
+public class CertificateValidityIndex {
+  /** Milliseconds in a day */
+  private static final long ONE_DAY = 24L * 60 * 60 * 1000;
+
+  /** The keys, in order of notAfter */
+  private final Entry[] entries;
+  /** The notAfter of each entry, for searching */
+  private final long[] notAfters;
+
+  /**
+   * Builds the index for a set of entities
+   *
+   * @param entities the metadata for the entities
+   */
+  public CertificateValidityIndex(Collection<Metadata> entities) {
+    this(entities, Collections.<String, List<byte[]>>emptyMap());
+  }
+
+  /**
+   * Builds the index for a set of entities, some of which only have their certificates to go on
+   *
+   * @param entities the metadata for the entities whose handlers have been built
+   * @param unloadedEntities the DER of the certificates in the KeyDescriptors of the
+   *                         other entities, keyed on entityID
+   */
+  public CertificateValidityIndex(Collection<Metadata> entities, Map<String, List<byte[]>> unloadedEntities) {
+    List<Entry> all = new ArrayList<Entry>();
+    for (Metadata entityMetadata : entities) {
+      if (entityMetadata instanceof GuanxiSAML2MetadataImpl) {
+        EntityKeyIndex keyIndex = ((GuanxiSAML2MetadataImpl)entityMetadata).getKeyIndex();
+        for (Map.Entry<Fingerprint, ValidityWindow> key : keyIndex.getKeyValidity().entrySet()) {
+          all.add(new Entry(entityMetadata.getEntityID(), key.getKey(), key.getValue()));
+        }
+      }
+    }
+
+    for (Map.Entry<String, List<byte[]>> entity : unloadedEntities.entrySet()) {
+      // As EntityKeyIndex does it, one window per key
+      Map<Fingerprint, ValidityWindow> keyValidity = new HashMap<Fingerprint, ValidityWindow>();
+      for (byte[] der : entity.getValue()) {
+        try {
+          X509CertificateCache.CachedCertificate cached = X509CertificateCache.getInstance().getEntry(der);
+          Fingerprint key = Fingerprint.of(cached.getPublicKey());
+          ValidityWindow window = new ValidityWindow(cached.getCertificate());
+          ValidityWindow previous = keyValidity.get(key);
+          keyValidity.put(key, (previous == null) ? window : previous.merge(window));
+        }
+        catch(CertificateException ce) {
+          // Not a key anyone can use
+        }
+      }
+
+      for (Map.Entry<Fingerprint, ValidityWindow> key : keyValidity.entrySet()) {
+        all.add(new Entry(entity.getKey(), key.getKey(), key.getValue()));
+      }
+    }
+
+    entries = all.toArray(new Entry[all.size()]);
+    Arrays.sort(entries, new Comparator<Entry>() {
+      public int compare(Entry one, Entry two) {
+        long diff = one.window.getNotAfter() - two.window.getNotAfter();
+        return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+      }
+    });
+
+    notAfters = new long[entries.length];
+    for (int c=0; c < entries.length; c++) {
+      notAfters[c] = entries[c].window.getNotAfter();
+    }
+  }
+
+  /**
+   * Finds all the keys that stop being usable before a certain time, including
+   * those that already have
+   *
+   * @param time the time, in milliseconds
+   * @return the keys, soonest to expire first
+   */
+  public List<Entry> getExpiringBefore(long time) {
+    return Collections.unmodifiableList(Arrays.asList(entries).subList(0, firstNotBefore(time)));
+  }
+
+  /**
+   * Finds the keys that are still usable but won't be in a number of days, e.g. to
+   * warn operators about certificates that need renewing
+   *
+   * @param days how many days ahead to look
+   * @return the keys, soonest to expire first
+   */
+  public List<Entry> getExpiringWithin(int days) {
+    long now = System.currentTimeMillis();
+    return Collections.unmodifiableList(Arrays.asList(entries).subList(firstNotBefore(now),
+                                                                       firstNotBefore(now + (days * ONE_DAY))));
+  }
+
+  /**
+   * Finds the keys that are no longer usable
+   *
+   * @return the expired keys, longest expired first
+   */
+  public List<Entry> getExpired() {
+    return getExpiringBefore(System.currentTimeMillis());
+  }
+
+  /**
+   * Returns the number of keys in the index
+   *
+   * @return number of keys
+   */
+  public int size() {
+    return entries.length;
+  }
+
+  /**
+   * Finds the first entry whose notAfter is at or after a time
+   *
+   * @param time the time, in milliseconds
+   * @return the index of the entry, or the number of entries if there isn't one
+   */
+  private int firstNotBefore(long time) {
+    int low = 0;
+    int high = notAfters.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (notAfters[mid] < time) {
+        low = mid + 1;
+      }
+      else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * A key in an entity's metadata and when it's usable
+   */
+  public static class Entry {
+    private final String entityID;
+    private final Fingerprint keyFingerprint;
+    private final ValidityWindow window;
+
+    Entry(String entityID, Fingerprint keyFingerprint, ValidityWindow window) {
+      this.entityID = entityID;
+      this.keyFingerprint = keyFingerprint;
+      this.window = window;
+    }
+
+    public String getEntityID() { return entityID; }
+    public Fingerprint getKeyFingerprint() { return keyFingerprint; }
+    public ValidityWindow getValidity() { return window; }
+
+    public String toString() {
+      return entityID + " " + keyFingerprint + " " + window;
+    }
+  }
+}
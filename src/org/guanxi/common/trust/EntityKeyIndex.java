@@ -0,0 +1,243 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.trust;
+
+import org.apache.log4j.Logger;
+import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
+import org.guanxi.xal.saml_2_0.metadata.RoleDescriptorType;
+import org.guanxi.xal.saml_2_0.metadata.KeyDescriptorType;
+import org.guanxi.xal.w3.xmldsig.X509DataType;
+
+import java.security.PublicKey;
+import java.security.cert.CertificateException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The public keys embedded in an entity's metadata, indexed by role. Each key is
+ * held as the SHA-256 Fingerprint of its SubjectPublicKeyInfo encoding, so explicit key
+ * validation is one hash of the presented key and a set lookup rather than a walk
+ * through the KeyDescriptors comparing key parameters. As the hash is over the
+ * encoded key, any key algorithm works, including EC.
+ *
+ * The validity window of each key is also kept, so an expired key can be spotted
+ * with one comparison, without looking at the certificates again.
+ *
+ * The KeyNames for each role are also compiled into a KeyNameMatcher so PKIX
+ * validation can match a certificate subject to them without walking the metadata.
+ *
+ * The index is built once, when the metadata for the entity is loaded.
+ *
+ * @author alistair
+ */
+public class EntityKeyIndex {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(EntityKeyIndex.class.getName());
+
+  /** The key hashes for each role, keyed on TrustUtils.ENTITY_TYPE_* */
+  private final Map<Integer, Set<Fingerprint>> roleKeys;
+  /** The KeyNames for each role, keyed on TrustUtils.ENTITY_TYPE_* */
+  private final Map<Integer, KeyNameMatcher> roleKeyNames;
+  /** When each key is usable, across all roles */
+  private final Map<Fingerprint, ValidityWindow> keyValidity;
+
+  private EntityKeyIndex(Map<Integer, Set<Fingerprint>> roleKeys, Map<Integer, KeyNameMatcher> roleKeyNames,
+                         Map<Fingerprint, ValidityWindow> keyValidity) {
+    this.roleKeys = roleKeys;
+    this.roleKeyNames = roleKeyNames;
+    this.keyValidity = keyValidity;
+  }
+
+  /**
+   * Builds the key index for an entity from its SAML2 metadata
+   *
+   * @param saml2Metadata the SAML2 metadata for the entity
+   * @return the key index for the entity
+   */
+  public static EntityKeyIndex build(EntityDescriptorType saml2Metadata) {
+    Map<Integer, Set<Fingerprint>> roleKeys = new HashMap<Integer, Set<Fingerprint>>();
+    Map<Fingerprint, ValidityWindow> keyValidity = new HashMap<Fingerprint, ValidityWindow>();
+
+    roleKeys.put(TrustUtils.ENTITY_TYPE_SSO, indexRole(saml2Metadata.getEntityID(), saml2Metadata.getIDPSSODescriptorArray(), keyValidity));
+    roleKeys.put(TrustUtils.ENTITY_TYPE_AA, indexRole(saml2Metadata.getEntityID(), saml2Metadata.getAttributeAuthorityDescriptorArray(), keyValidity));
+    roleKeys.put(TrustUtils.ENTITY_TYPE_SP, indexRole(saml2Metadata.getEntityID(), saml2Metadata.getSPSSODescriptorArray(), keyValidity));
+
+    Map<Integer, KeyNameMatcher> roleKeyNames = new HashMap<Integer, KeyNameMatcher>();
+    roleKeyNames.put(TrustUtils.ENTITY_TYPE_SSO, compileKeyNames(saml2Metadata.getIDPSSODescriptorArray()));
+    roleKeyNames.put(TrustUtils.ENTITY_TYPE_AA, compileKeyNames(saml2Metadata.getAttributeAuthorityDescriptorArray()));
+    roleKeyNames.put(TrustUtils.ENTITY_TYPE_SP, compileKeyNames(saml2Metadata.getSPSSODescriptorArray()));
+
+    return new EntityKeyIndex(roleKeys, roleKeyNames, Collections.unmodifiableMap(keyValidity));
+  }
+
+  /**
+   * Returns the KeyNames the metadata has for a role
+   *
+   * @param entityType TrustUtils.ENTITY_TYPE_SSO, ENTITY_TYPE_AA or ENTITY_TYPE_SP
+   * @return the compiled KeyNames for the role
+   */
+  public KeyNameMatcher getKeyNameMatcher(int entityType) {
+    KeyNameMatcher matcher = roleKeyNames.get(entityType);
+    return (matcher == null) ? KeyNameMatcher.EMPTY : matcher;
+  }
+
+  /**
+   * Determines whether a public key is embedded in the metadata for a role
+   *
+   * @param entityType TrustUtils.ENTITY_TYPE_SSO, ENTITY_TYPE_AA or ENTITY_TYPE_SP
+   * @param key the public key to look for
+   * @return true if the key is in the metadata for the role, otherwise false
+   */
+  public boolean containsKey(int entityType, PublicKey key) {
+    Set<Fingerprint> keys = roleKeys.get(entityType);
+    if ((keys == null) || (keys.isEmpty())) {
+      return false;
+    }
+
+    return containsKeyFingerprint(entityType, hashKey(key));
+  }
+
+  /**
+   * Determines whether a public key, already hashed with hashKey, is embedded in the metadata for a role
+   *
+   * @param entityType TrustUtils.ENTITY_TYPE_SSO, ENTITY_TYPE_AA or ENTITY_TYPE_SP
+   * @param keyFingerprint the hash of the public key to look for
+   * @return true if the key is in the metadata for the role, otherwise false
+   */
+  public boolean containsKeyFingerprint(int entityType, Fingerprint keyFingerprint) {
+    Set<Fingerprint> keys = roleKeys.get(entityType);
+    if ((keys == null) || (keys.isEmpty())) {
+      return false;
+    }
+
+    return keys.contains(keyFingerprint);
+  }
+
+  /**
+   * Returns when a key in the metadata is usable
+   *
+   * @param keyFingerprint the fingerprint of the key, from hashKey
+   * @return the key's validity window or null if the key isn't in the metadata
+   */
+  public ValidityWindow getValidity(Fingerprint keyFingerprint) {
+    return keyValidity.get(keyFingerprint);
+  }
+
+  /**
+   * Returns the validity windows of all the keys in the metadata
+   *
+   * @return each key's validity window, keyed on its fingerprint
+   */
+  public Map<Fingerprint, ValidityWindow> getKeyValidity() {
+    return keyValidity;
+  }
+
+  /**
+   * Returns the number of distinct keys the metadata has for a role
+   *
+   * @param entityType TrustUtils.ENTITY_TYPE_SSO, ENTITY_TYPE_AA or ENTITY_TYPE_SP
+   * @return the number of keys for the role
+   */
+  public int getKeyCount(int entityType) {
+    Set<Fingerprint> keys = roleKeys.get(entityType);
+    return (keys == null) ? 0 : keys.size();
+  }
+
+  /**
+   * Fingerprints the SubjectPublicKeyInfo encoding of a public key
+   *
+   * @param key the public key to fingerprint
+   * @return the SHA-256 fingerprint of the encoded key
+   */
+  public static Fingerprint hashKey(PublicKey key) {
+    return Fingerprint.of(key);
+  }
+
+  /**
+   * Hashes all the X509 keys in the KeyDescriptors of a set of role descriptors
+   *
+   * @param entityID the entity the roles belong to, for logging
+   * @param roles the role descriptors to index
+   * @param keyValidity where to record the validity window of each key
+   * @return the set of key hashes for the roles
+   */
+  private static Set<Fingerprint> indexRole(String entityID, RoleDescriptorType[] roles,
+                                            Map<Fingerprint, ValidityWindow> keyValidity) {
+    if ((roles == null) || (roles.length == 0)) {
+      return Collections.emptySet();
+    }
+
+    Set<Fingerprint> keys = new HashSet<Fingerprint>();
+    for (RoleDescriptorType role : roles) {
+      // RoleDescriptor/KeyDescriptor
+      for (KeyDescriptorType keyDescriptor : role.getKeyDescriptorArray()) {
+        if (keyDescriptor.getKeyInfo() == null) {
+          continue;
+        }
+
+        // RoleDescriptor/KeyDescriptor/KeyInfo/X509Data/X509Certificate
+        for (X509DataType x509Data : keyDescriptor.getKeyInfo().getX509DataArray()) {
+          for (byte[] x509CertBytes : x509Data.getX509CertificateArray()) {
+            try {
+              X509CertificateCache.CachedCertificate cached = X509CertificateCache.getInstance().getEntry(x509CertBytes);
+              Fingerprint key = hashKey(cached.getPublicKey());
+              keys.add(key);
+
+              ValidityWindow window = new ValidityWindow(cached.getCertificate());
+              ValidityWindow previous = keyValidity.get(key);
+              keyValidity.put(key, (previous == null) ? window : previous.merge(window));
+            }
+            catch(CertificateException ce) {
+              logger.error("Could not decode certificate in metadata for " + entityID, ce);
+            }
+          }
+        }
+      }
+    }
+
+    return keys;
+  }
+
+  /**
+   * Gathers up all the KeyNames in the KeyDescriptors of a set of role descriptors
+   *
+   * @param roles the role descriptors
+   * @return the compiled KeyNames for the roles
+   */
+  private static KeyNameMatcher compileKeyNames(RoleDescriptorType[] roles) {
+    if ((roles == null) || (roles.length == 0)) {
+      return KeyNameMatcher.EMPTY;
+    }
+
+    Set<String> keyNames = new HashSet<String>();
+    boolean hasKeyInfo = false;
+    for (RoleDescriptorType role : roles) {
+      // RoleDescriptor/KeyDescriptor/KeyInfo/KeyName
+      for (KeyDescriptorType keyDescriptor : role.getKeyDescriptorArray()) {
+        if (keyDescriptor.getKeyInfo() != null) {
+          hasKeyInfo = true;
+          Collections.addAll(keyNames, keyDescriptor.getKeyInfo().getKeyNameArray());
+        }
+      }
+    }
+
+    return new KeyNameMatcher(keyNames, hasKeyInfo);
+  }
+}
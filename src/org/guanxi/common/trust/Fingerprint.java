@@ -0,0 +1,250 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.trust;
+
+import org.guanxi.common.Utils;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The digest of a certificate, key or anything else, held as the raw digest bytes
+ * so fingerprints can be compared and used as map keys without going through hex
+ * strings. Fingerprints are only equal if they're from the same algorithm, and the
+ * bytes are compared in constant time so comparing with a secret fingerprint
+ * doesn't give it away a byte at a time.
+ *
+ * MessageDigests aren't thread safe and are expensive to look up so each thread
+ * keeps one per algorithm.
+ *
+ * @author alistair
+ */
+public final class Fingerprint {
+  /** The algorithm used for fingerprints by default */
+  public static final String SHA256 = "SHA-256";
+  /** The algorithm federations traditionally publish certificate fingerprints with */
+  public static final String SHA1 = "SHA-1";
+
+  /** Each thread's MessageDigests, keyed by algorithm */
+  private static final ThreadLocal<Map<String, MessageDigest>> digests = new ThreadLocal<Map<String, MessageDigest>>() {
+    protected Map<String, MessageDigest> initialValue() {
+      return new HashMap<String, MessageDigest>();
+    }
+  };
+
+  /** The digest algorithm */
+  private final String algorithm;
+  /** The digest */
+  private final byte[] digest;
+  /** The hash code, worked out once as fingerprints are mostly used as keys */
+  private final int hash;
+  /** The digest in hex, once it's been asked for */
+  private volatile String hex = null;
+
+  private Fingerprint(String algorithm, byte[] digest) {
+    this.algorithm = algorithm;
+    this.digest = digest;
+
+    int h = algorithm.hashCode();
+    for (byte b : digest) {
+      h = (31 * h) + b;
+    }
+    hash = h;
+  }
+
+  /**
+   * Fingerprints some data with SHA-256
+   *
+   * @param data the data to fingerprint
+   * @return the fingerprint of the data
+   */
+  public static Fingerprint of(byte[] data) {
+    return of(SHA256, data);
+  }
+
+  /**
+   * Fingerprints some data
+   *
+   * @param algorithm the digest algorithm, such as SHA-256 or SHA-1
+   * @param data the data to fingerprint
+   * @return the fingerprint of the data
+   * @throws IllegalArgumentException if the algorithm isn't supported
+   */
+  public static Fingerprint of(String algorithm, byte[] data) {
+    return new Fingerprint(algorithm, digest(algorithm, data));
+  }
+
+  /**
+   * Fingerprints the SubjectPublicKeyInfo encoding of a public key with SHA-256
+   *
+   * @param key the public key to fingerprint
+   * @return the fingerprint of the key
+   */
+  public static Fingerprint of(PublicKey key) {
+    return of(SHA256, key.getEncoded());
+  }
+
+  /**
+   * Fingerprints the DER encoding of a certificate
+   *
+   * @param algorithm the digest algorithm, such as SHA-256 or SHA-1
+   * @param x509 the certificate to fingerprint
+   * @return the fingerprint of the certificate
+   * @throws CertificateEncodingException if the certificate can't be encoded
+   */
+  public static Fingerprint of(String algorithm, X509Certificate x509) throws CertificateEncodingException {
+    return of(algorithm, x509.getEncoded());
+  }
+
+  /**
+   * Recreates a fingerprint from its digest, e.g. one that was saved to disk
+   *
+   * @param algorithm the digest algorithm the fingerprint was made with
+   * @param digest the digest
+   * @return the fingerprint
+   */
+  public static Fingerprint fromBytes(String algorithm, byte[] digest) {
+    return new Fingerprint(algorithm, digest.clone());
+  }
+
+  /**
+   * Recreates a fingerprint from its hex form, e.g. from configuration
+   *
+   * @param algorithm the digest algorithm the fingerprint was made with
+   * @param hex the digest in hex, in either case, optionally with colons between the bytes
+   * @return the fingerprint
+   * @throws IllegalArgumentException if the hex is malformed
+   */
+  public static Fingerprint fromHex(String algorithm, String hex) {
+    String digits = hex.replace(":", "");
+    if ((digits.length() % 2) != 0) {
+      throw new IllegalArgumentException("Odd number of hex digits in " + hex);
+    }
+
+    byte[] digest = new byte[digits.length() / 2];
+    for (int c=0; c < digest.length; c++) {
+      int high = Character.digit(digits.charAt(c * 2), 16);
+      int low = Character.digit(digits.charAt((c * 2) + 1), 16);
+      if ((high < 0) || (low < 0)) {
+        throw new IllegalArgumentException("Not a hex fingerprint : " + hex);
+      }
+      digest[c] = (byte)((high << 4) | low);
+    }
+    return new Fingerprint(algorithm, digest);
+  }
+
+  /**
+   * Digests some data with this thread's MessageDigest for the algorithm
+   *
+   * @param algorithm the digest algorithm
+   * @param data the data to digest
+   * @return the digest
+   * @throws IllegalArgumentException if the algorithm isn't supported
+   */
+  public static byte[] digest(String algorithm, byte[] data) {
+    Map<String, MessageDigest> threadDigests = digests.get();
+    MessageDigest md = threadDigests.get(algorithm);
+    if (md == null) {
+      try {
+        md = MessageDigest.getInstance(algorithm);
+      }
+      catch(NoSuchAlgorithmException nsae) {
+        throw new IllegalArgumentException(nsae);
+      }
+      threadDigests.put(algorithm, md);
+    }
+
+    // digest resets the MessageDigest ready for next time
+    return md.digest(data);
+  }
+
+  /**
+   * Converts bytes to upper case hex, two digits per byte with no separators
+   *
+   * @param bytes the bytes to convert
+   * @return the bytes in hex
+   */
+  public static String toHex(byte[] bytes) {
+    return Utils.toHex(bytes);
+  }
+
+  /**
+   * Returns the digest in upper case hex with no separators
+   *
+   * @return the hex form of the fingerprint
+   */
+  public String toHex() {
+    String fingerprintHex = hex;
+    if (fingerprintHex == null) {
+      fingerprintHex = toHex(digest);
+      hex = fingerprintHex;
+    }
+    return fingerprintHex;
+  }
+
+  /**
+   * Returns the digest bytes
+   *
+   * @return a copy of the digest
+   */
+  public byte[] getBytes() {
+    return digest.clone();
+  }
+
+  public String getAlgorithm() {
+    return algorithm;
+  }
+
+  /**
+   * Fingerprints are equal if they're from the same algorithm and have the same digest.
+   * The digests are compared in constant time.
+   *
+   * @see Object#equals(Object)
+   */
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof Fingerprint)) {
+      return false;
+    }
+
+    Fingerprint other = (Fingerprint)obj;
+    if ((!algorithm.equals(other.algorithm)) || (digest.length != other.digest.length)) {
+      return false;
+    }
+
+    int diff = 0;
+    for (int c=0; c < digest.length; c++) {
+      diff |= digest[c] ^ other.digest[c];
+    }
+    return diff == 0;
+  }
+
+  public int hashCode() {
+    return hash;
+  }
+
+  public String toString() {
+    return algorithm + ":" + toHex();
+  }
+}
@@ -0,0 +1,123 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.trust;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Matches certificate subjects against a set of KeyNames from metadata. A subject
+ * matches a KeyName if the KeyName is its full DN or one of its CNs, or is one of the
+ * host parts of a CN ignoring case. The KeyNames are put into sets when the metadata
+ * is loaded so matching a subject is a handful of hash lookups.
+ *
+ * @author alistair
+ */
+public class KeyNameMatcher {
+  /** A matcher with no KeyNames, which matches nothing */
+  public static final KeyNameMatcher EMPTY = new KeyNameMatcher(Collections.<String>emptySet(), false);
+
+  /** The KeyNames as they are in the metadata */
+  private final Set<String> keyNames;
+  /** The KeyNames in lower case, for matching host parts */
+  private final Set<String> lowerCaseKeyNames;
+  /** Whether the KeyNames came from at least one KeyInfo */
+  private final boolean hasKeyInfo;
+
+  /**
+   * Compiles a set of KeyNames
+   *
+   * @param keyNames the KeyNames from the metadata
+   * @param hasKeyInfo true if the KeyNames came from at least one KeyInfo, even an empty one.
+   *                   The hostname only counts as a KeyName if there's a KeyInfo.
+   */
+  public KeyNameMatcher(Set<String> keyNames, boolean hasKeyInfo) {
+    this.keyNames = new HashSet<String>(keyNames);
+    this.hasKeyInfo = hasKeyInfo;
+
+    lowerCaseKeyNames = new HashSet<String>();
+    for (String keyName : keyNames) {
+      lowerCaseKeyNames.add(keyName.toLowerCase(Locale.ENGLISH));
+    }
+  }
+
+  /**
+   * Determines whether a subject matches any of the KeyNames or the hostname.
+   * The Shibboleth spec says the hostname is also a KeyName.
+   *
+   * @param subject the parsed certificate subject
+   * @param hostName the hostname for the validation context, can be null
+   * @return true if the subject matches, otherwise false
+   */
+  public boolean matches(ParsedSubject subject, String hostName) {
+    if (!hasKeyInfo) {
+      return false;
+    }
+
+    if (keyNames.contains(subject.getDN())) {
+      return true;
+    }
+
+    List<String> commonNames = subject.getCommonNames();
+    for (int c = 0; c < commonNames.size(); c++) {
+      if (keyNames.contains(commonNames.get(c))) {
+        return true;
+      }
+    }
+
+    List<String> hostParts = subject.getHostParts();
+    for (int c = 0; c < hostParts.size(); c++) {
+      if (lowerCaseKeyNames.contains(hostParts.get(c))) {
+        return true;
+      }
+    }
+
+    return (hostName != null) && matchesKeyName(subject, hostName);
+  }
+
+  /**
+   * Determines whether a subject matches a single KeyName
+   *
+   * @param subject the parsed certificate subject
+   * @param keyName the KeyName
+   * @return true if the subject matches, otherwise false
+   */
+  public static boolean matchesKeyName(ParsedSubject subject, String keyName) {
+    // Try the full DN
+    if (subject.getDN().equals(keyName)) {
+      return true;
+    }
+
+    // Try the CN
+    if (subject.getCommonNames().contains(keyName)) {
+      return true;
+    }
+
+    // Try getting down to the hostname
+    List<String> hostParts = subject.getHostParts();
+    for (int c = 0; c < hostParts.size(); c++) {
+      if (hostParts.get(c).equalsIgnoreCase(keyName)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+}
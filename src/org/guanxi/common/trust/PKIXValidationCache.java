@@ -0,0 +1,247 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.trust;
+
+import java.nio.ByteBuffer;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the outcome of PKIX path validation for a certificate and trust anchor
+ * so the same IdP presenting the same certificate doesn't go through the whole
+ * CertPathValidator every time. Both successes and failures are cached, each with
+ * their own time to live, and no result outlives either of the certificates it
+ * was worked out from.
+ *
+ * Results are keyed on the end entity certificate, any intermediate or anchor
+ * certificates used to validate it and the generation of the trust engine that
+ * supplied the anchors, so reloading the CA list in the trust engine makes all
+ * earlier results unreachable.
+ *
+ * @author alistair
+ */
+public class PKIXValidationCache {
+  /** Default time to keep a successful validation */
+  public static final long DEFAULT_POSITIVE_TTL = 10 * 60 * 1000;
+  /** Default time to keep a failed validation */
+  public static final long DEFAULT_NEGATIVE_TTL = 60 * 1000;
+  /** Default maximum number of results to hold */
+  public static final int DEFAULT_MAX_ENTRIES = 4096;
+
+  /** The length of a SHA-256 digest */
+  private static final int DIGEST_LENGTH = 32;
+
+  /** The cache shared by all of TrustUtils */
+  private static final PKIXValidationCache instance = new PKIXValidationCache(DEFAULT_MAX_ENTRIES);
+
+  /** The cached results, in least recently used order */
+  private final LinkedHashMap<ByteBuffer, Result> results;
+  /** The maximum number of results to hold */
+  private volatile int maxEntries;
+  /** How long, in milliseconds, to keep a successful validation */
+  private volatile long positiveTTL = DEFAULT_POSITIVE_TTL;
+  /** How long, in milliseconds, to keep a failed validation */
+  private volatile long negativeTTL = DEFAULT_NEGATIVE_TTL;
+  /** How many lookups found a result */
+  private final AtomicLong hits = new AtomicLong();
+  /** How many lookups didn't */
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Returns the PKIX result cache shared by the trust code
+   *
+   * @return the process wide PKIXValidationCache
+   */
+  public static PKIXValidationCache getInstance() {
+    return instance;
+  }
+
+  /**
+   * Creates a new cache
+   *
+   * @param maxEntries the maximum number of results to hold
+   */
+  public PKIXValidationCache(int maxEntries) {
+    this.maxEntries = maxEntries;
+    results = new LinkedHashMap<ByteBuffer, Result>(64, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Result> eldest) {
+        return size() > PKIXValidationCache.this.maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Looks up a previous validation result
+   *
+   * @param x509ToVerify the certificate that was validated
+   * @param caX509 the trust anchor it was validated against
+   * @param trustGeneration the generation of the trust engine that supplied the anchor
+   * @return Boolean.TRUE or Boolean.FALSE if there's a current result, otherwise null
+   */
+  public Boolean get(X509Certificate x509ToVerify, X509Certificate caX509, long trustGeneration) {
+    return get(new X509Certificate[] {x509ToVerify, caX509}, trustGeneration);
+  }
+
+  /**
+   * Looks up a previous validation result for a certificate chain
+   *
+   * @param certs the certificate that was validated followed by the other certificates
+   *              that were used to validate it, in the order they were used
+   * @param trustGeneration the generation of the trust engine that supplied the anchors
+   * @return Boolean.TRUE or Boolean.FALSE if there's a current result, otherwise null
+   */
+  public Boolean get(X509Certificate[] certs, long trustGeneration) {
+    ByteBuffer key = key(certs, trustGeneration);
+    if (key == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+
+    Result result;
+    synchronized(results) {
+      result = results.get(key);
+      if ((result != null) && (result.expires <= System.currentTimeMillis())) {
+        results.remove(key);
+        result = null;
+      }
+    }
+
+    if (result == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+
+    hits.incrementAndGet();
+    return Boolean.valueOf(result.valid);
+  }
+
+  /**
+   * Records the result of validating a certificate
+   *
+   * @param x509ToVerify the certificate that was validated
+   * @param caX509 the trust anchor it was validated against
+   * @param trustGeneration the generation of the trust engine that supplied the anchor
+   * @param valid true if the certificate validated, otherwise false
+   */
+  public void put(X509Certificate x509ToVerify, X509Certificate caX509, long trustGeneration, boolean valid) {
+    put(new X509Certificate[] {x509ToVerify, caX509}, trustGeneration, valid);
+  }
+
+  /**
+   * Records the result of validating a certificate chain
+   *
+   * @param certs the certificate that was validated followed by the other certificates
+   *              that were used to validate it, in the order they were used
+   * @param trustGeneration the generation of the trust engine that supplied the anchors
+   * @param valid true if the certificate validated, otherwise false
+   */
+  public void put(X509Certificate[] certs, long trustGeneration, boolean valid) {
+    put(certs, trustGeneration, valid, Long.MAX_VALUE);
+  }
+
+  /**
+   * Records the result of validating a certificate chain, which must be forgotten
+   * by a certain time, e.g. when the trust anchor the chain was built to expires.
+   *
+   * @param certs the certificate that was validated followed by the other certificates
+   *              that were used to validate it, in the order they were used
+   * @param trustGeneration the generation of the trust engine that supplied the anchors
+   * @param valid true if the certificate validated, otherwise false
+   * @param notAfter the latest time, in milliseconds, to keep the result
+   */
+  public void put(X509Certificate[] certs, long trustGeneration, boolean valid, long notAfter) {
+    ByteBuffer key = key(certs, trustGeneration);
+    if (key == null) {
+      return;
+    }
+
+    // Don't keep the result past the point where any of the certificates expires
+    long expires = Math.min(System.currentTimeMillis() + (valid ? positiveTTL : negativeTTL), notAfter);
+    for (X509Certificate x509 : certs) {
+      expires = Math.min(expires, x509.getNotAfter().getTime());
+    }
+
+    synchronized(results) {
+      results.put(key, new Result(valid, expires));
+    }
+  }
+
+  /**
+   * Empties the cache
+   */
+  public void clear() {
+    synchronized(results) {
+      results.clear();
+    }
+  }
+
+  public int size() {
+    synchronized(results) {
+      return results.size();
+    }
+  }
+
+  public void setPositiveTTL(long positiveTTL) { this.positiveTTL = positiveTTL; }
+  public long getPositiveTTL() { return positiveTTL; }
+
+  public void setNegativeTTL(long negativeTTL) { this.negativeTTL = negativeTTL; }
+  public long getNegativeTTL() { return negativeTTL; }
+
+  public void setMaxEntries(int maxEntries) { this.maxEntries = maxEntries; }
+  public int getMaxEntries() { return maxEntries; }
+
+  public long getHits() { return hits.get(); }
+  public long getMisses() { return misses.get(); }
+
+  /**
+   * Works out the cache key for a set of certificates and trust engine generation
+   *
+   * @param certs the certificates, in order
+   * @param trustGeneration the generation of the trust engine
+   * @return the key or null if any of the certificates can't be encoded
+   */
+  private static ByteBuffer key(X509Certificate[] certs, long trustGeneration) {
+    try {
+      ByteBuffer key = ByteBuffer.allocate((certs.length * DIGEST_LENGTH) + 8);
+      for (X509Certificate x509 : certs) {
+        key.put(Fingerprint.digest(Fingerprint.SHA256, x509.getEncoded()));
+      }
+      key.putLong(trustGeneration);
+      key.flip();
+      return key;
+    }
+    catch(CertificateEncodingException cee) {
+      return null;
+    }
+  }
+
+  /**
+   * The outcome of a validation and when to forget it
+   */
+  private static class Result {
+    final boolean valid;
+    final long expires;
+
+    Result(boolean valid, long expires) {
+      this.valid = valid;
+      this.expires = expires;
+    }
+  }
+}
@@ -0,0 +1,111 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.trust;
+
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The parts of a certificate's subject that KeyNames in metadata are matched against:
+ * the full DN, the values of its CNs and, for CNs of the form host/other, the host parts.
+ * Working these out means splitting the DN with regular expressions, so it's done once
+ * per certificate and the results are kept.
+ *
+ * @author alistair
+ */
+public class ParsedSubject {
+  /** The maximum number of certificates to remember the subjects of */
+  public static final int MAX_CACHED_SUBJECTS = 1024;
+
+  /** Subjects already worked out, in least recently used order */
+  private static final LinkedHashMap<X509Certificate, ParsedSubject> subjects =
+    new LinkedHashMap<X509Certificate, ParsedSubject>(64, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<X509Certificate, ParsedSubject> eldest) {
+        return size() > MAX_CACHED_SUBJECTS;
+      }
+    };
+
+  /** The subject DN, as X509Certificate.getSubjectDN().getName() gives it */
+  private final String dn;
+  /** The values of the CNs in the DN */
+  private final List<String> commonNames;
+  /** The parts of the CN values either side of any '/', in lower case */
+  private final List<String> hostParts;
+
+  /**
+   * Returns the parsed subject of a certificate, parsing it only if it hasn't
+   * been seen recently.
+   *
+   * @param x509 the certificate
+   * @return the parsed subject of the certificate
+   */
+  public static ParsedSubject getInstance(X509Certificate x509) {
+    ParsedSubject subject;
+    synchronized(subjects) {
+      subject = subjects.get(x509);
+    }
+
+    if (subject == null) {
+      subject = new ParsedSubject(x509.getSubjectDN().getName());
+      synchronized(subjects) {
+        subjects.put(x509, subject);
+      }
+    }
+
+    return subject;
+  }
+
+  /**
+   * Parses a subject DN
+   *
+   * @param dn the DN, in the form X509Certificate.getSubjectDN().getName() gives it
+   */
+  public ParsedSubject(String dn) {
+    this.dn = dn;
+
+    ArrayList<String> cns = new ArrayList<String>();
+    ArrayList<String> parts = new ArrayList<String>();
+    String[] split;
+    for (String currentEntry : dn.split(",\\s*")) {
+      split = currentEntry.split("=");
+      if ((split.length > 1) && (split[0].equals("CN"))) {
+        cns.add(split[1]);
+
+        // Get down to the hostname
+        for (String namePart : split[1].split("/")) {
+          parts.add(namePart.toLowerCase(Locale.ENGLISH));
+        }
+      }
+    }
+
+    commonNames = Collections.unmodifiableList(cns);
+    hostParts = Collections.unmodifiableList(parts);
+  }
+
+  public String getDN() { return dn; }
+  public List<String> getCommonNames() { return commonNames; }
+  public List<String> getHostParts() { return hostParts; }
+
+  public String toString() {
+    return dn;
+  }
+}
@@ -0,0 +1,263 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.trust;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the SAML messages that have already been accepted so the same message
+ * can't be used twice. Messages are identified by their issuer and ID and are kept
+ * until they expire, which is their NotOnOrAfter time plus an allowance for clock skew.
+ *
+ * The cache is split into stripes, each with its own lock, so concurrent assertion
+ * consumers rarely wait on each other, and a lookup is a single hash lookup in one
+ * stripe. The total number of messages held is capped. If a stripe fills up with
+ * messages that haven't expired, the oldest is evicted and counted, as an evicted
+ * message could be replayed.
+ *
+ * @author alistair
+ */
+public class ReplayCache {
+  /** Default maximum number of messages to remember */
+  public static final int DEFAULT_MAX_ENTRIES = 100000;
+  /** Default number of stripes */
+  public static final int DEFAULT_STRIPES = 16;
+  /** Default allowance, in milliseconds, for clocks being out of step */
+  public static final long DEFAULT_CLOCK_SKEW = 3 * 60 * 1000;
+  /** Default time, in milliseconds, to remember a message that doesn't say when it expires */
+  public static final long DEFAULT_MESSAGE_LIFETIME = 5 * 60 * 1000;
+  /** The most expired messages to clear out on each insert, so inserts take constant time */
+  private static final int MAX_PURGE = 8;
+
+  /** The stripes, each mapping issuer and ID to expiry time in insertion order */
+  private final Stripe[] stripes;
+  /** The allowance for clock skew */
+  private volatile long clockSkew = DEFAULT_CLOCK_SKEW;
+  /** How long to remember messages that don't say when they expire */
+  private volatile long messageLifetime = DEFAULT_MESSAGE_LIFETIME;
+  /** How many replays have been caught */
+  private final AtomicLong replays = new AtomicLong();
+  /** How many messages have been forgotten because they expired */
+  private final AtomicLong expirations = new AtomicLong();
+  /** How many messages have been forgotten before they expired to keep under the cap */
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * Creates a cache with the default size and number of stripes
+   */
+  public ReplayCache() {
+    this(DEFAULT_MAX_ENTRIES, DEFAULT_STRIPES);
+  }
+
+  /**
+   * Creates a cache
+   *
+   * @param maxEntries the maximum number of messages to remember
+   * @param stripeCount the number of independently locked stripes
+   */
+  public ReplayCache(int maxEntries, int stripeCount) {
+    stripes = new Stripe[stripeCount];
+    int maxStripeEntries = Math.max(1, maxEntries / stripeCount);
+    for (int c=0; c < stripeCount; c++) {
+      stripes[c] = new Stripe(maxStripeEntries, expirations, evictions);
+    }
+  }
+
+  /**
+   * Checks whether a message has been seen before and if it hasn't, remembers it.
+   * Both happen atomically so only one of two concurrent copies of a message gets through.
+   *
+   * @param issuer the entityID of the message issuer
+   * @param messageID the ID of the message, e.g. Response/@ID or Response/@ResponseID
+   * @param notOnOrAfter when the message expires, in milliseconds, or 0 if it doesn't say
+   * @return true if the message has been seen before and hasn't expired, otherwise false
+   */
+  public boolean isReplay(String issuer, String messageID, long notOnOrAfter) {
+    long now = System.currentTimeMillis();
+    long expires = (notOnOrAfter > 0) ? notOnOrAfter + clockSkew : now + messageLifetime;
+    String key = key(issuer, messageID);
+
+    Stripe stripe = stripeFor(key);
+    synchronized(stripe) {
+      Long seen = stripe.get(key);
+      if ((seen != null) && (seen.longValue() > now)) {
+        replays.incrementAndGet();
+        return true;
+      }
+
+      if (seen != null) {
+        // It's expired so it goes to the back of the queue with its new expiry
+        stripe.remove(key);
+        expirations.incrementAndGet();
+      }
+
+      stripe.purge(now);
+      stripe.put(key, expires);
+      return false;
+    }
+  }
+
+  /**
+   * Checks whether any of a message's IDs have been seen before, e.g. the ID of a
+   * Response and those of the assertions in it, and remembers the ones that haven't.
+   * A message with an assertion lifted from one that's been accepted is a replay
+   * even though its own ID is new.
+   *
+   * @param issuer the entityID of the message issuer
+   * @param messageIDs the IDs of the message and the parts of it that can be replayed on their own
+   * @param notOnOrAfter when the message expires, in milliseconds, or 0 if it doesn't say
+   * @return true if any of the IDs have been seen before and haven't expired, otherwise false
+   */
+  public boolean isReplay(String issuer, String[] messageIDs, long notOnOrAfter) {
+    boolean replay = false;
+    for (String messageID : messageIDs) {
+      // Remember all of them, so any that were lifted from this message are caught later
+      if ((messageID != null) && (isReplay(issuer, messageID, notOnOrAfter))) {
+        replay = true;
+      }
+    }
+    return replay;
+  }
+
+  /**
+   * Determines whether a message has been seen before, without remembering it
+   *
+   * @param issuer the entityID of the message issuer
+   * @param messageID the ID of the message
+   * @return true if the message has been seen and hasn't expired, otherwise false
+   */
+  public boolean contains(String issuer, String messageID) {
+    String key = key(issuer, messageID);
+    Stripe stripe = stripeFor(key);
+    synchronized(stripe) {
+      Long seen = stripe.get(key);
+      return (seen != null) && (seen.longValue() > System.currentTimeMillis());
+    }
+  }
+
+  /**
+   * Returns the number of messages being remembered, including any that
+   * have expired but haven't been cleared out yet
+   *
+   * @return the number of messages in the cache
+   */
+  public int size() {
+    int size = 0;
+    for (Stripe stripe : stripes) {
+      synchronized(stripe) {
+        size += stripe.size();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Forgets all messages. The statistics are left alone.
+   */
+  public void clear() {
+    for (Stripe stripe : stripes) {
+      synchronized(stripe) {
+        stripe.clear();
+      }
+    }
+  }
+
+  public void setClockSkew(long clockSkew) { this.clockSkew = clockSkew; }
+  public long getClockSkew() { return clockSkew; }
+
+  public void setMessageLifetime(long messageLifetime) { this.messageLifetime = messageLifetime; }
+  public long getMessageLifetime() { return messageLifetime; }
+
+  public long getReplays() { return replays.get(); }
+  public long getExpirations() { return expirations.get(); }
+  public long getEvictions() { return evictions.get(); }
+
+  /**
+   * Summary of the cache statistics, suitable for logging
+   *
+   * @return the statistics as a String
+   */
+  public String toString() {
+    return "ReplayCache[size=" + size() + ", replays=" + replays.get() + ", expirations=" + expirations.get() +
+           ", evictions=" + evictions.get() + "]";
+  }
+
+  private static String key(String issuer, String messageID) {
+    // Neither an entityID nor an XML ID can contain a space
+    return issuer + " " + messageID;
+  }
+
+  private Stripe stripeFor(String key) {
+    // Spread the hash so stripes get an even share of similar keys
+    int hash = key.hashCode();
+    hash ^= (hash >>> 16);
+    return stripes[(hash & 0x7fffffff) % stripes.length];
+  }
+
+  /**
+   * One stripe of the cache. Callers must hold its lock.
+   */
+  private static class Stripe extends LinkedHashMap<String, Long> {
+    private static final long serialVersionUID = 1L;
+
+    private final int maxEntries;
+    /** The cache's count of messages forgotten because they expired */
+    private final AtomicLong expirations;
+    /** The cache's count of messages forgotten before they expired */
+    private final AtomicLong evictions;
+
+    Stripe(int maxEntries, AtomicLong expirations, AtomicLong evictions) {
+      super(64, 0.75f, false);
+      this.maxEntries = maxEntries;
+      this.expirations = expirations;
+      this.evictions = evictions;
+    }
+
+    /**
+     * Clears out a few expired messages from the front of the stripe. Messages
+     * are in the order they arrived, which is roughly the order they expire in.
+     *
+     * @param now the current time
+     */
+    void purge(long now) {
+      Iterator<Long> expiries = values().iterator();
+      for (int c=0; (c < MAX_PURGE) && (expiries.hasNext()); c++) {
+        if (expiries.next().longValue() > now) {
+          return;
+        }
+        expiries.remove();
+        expirations.incrementAndGet();
+      }
+    }
+
+    protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+      if (size() > maxEntries) {
+        if (eldest.getValue().longValue() > System.currentTimeMillis()) {
+          evictions.incrementAndGet();
+        }
+        else {
+          expirations.incrementAndGet();
+        }
+        return true;
+      }
+      return false;
+    }
+  }
+}
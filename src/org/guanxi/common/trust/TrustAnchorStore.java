@@ -0,0 +1,311 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.trust;
+
+import org.apache.log4j.Logger;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.x509.AuthorityKeyIdentifier;
+import org.bouncycastle.asn1.x509.SubjectKeyIdentifier;
+import org.bouncycastle.x509.extension.X509ExtensionUtil;
+
+import javax.security.auth.x500.X500Principal;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.cert.PKIXCertPathChecker;
+import java.security.cert.PKIXParameters;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable set of CA certificates used as trust anchors, indexed so the
+ * possible issuers of a certificate can be found without scanning them all.
+ * Anchors are indexed by subject DN and by Subject Key Identifier. A certificate
+ * with an Authority Key Identifier is matched on that, otherwise on its issuer DN.
+ *
+ * Every store has a generation number, which a trust engine changes whenever
+ * it builds a new store, so anything worked out from the anchors can be keyed
+ * on the generation. The PKIXParameters for the anchors are also worked out once
+ * per store and copied for each validation, along with any revocation checker.
+ *
+ * @author alistair
+ */
+public class TrustAnchorStore {
+  /** The Shibboleth default for KeyAuthority/@VerifyDepth. The CA has to have issued the certificate itself */
+  public static final int DEFAULT_VERIFY_DEPTH = 1;
+
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(TrustAnchorStore.class.getName());
+  /** OID of the Subject Key Identifier extension */
+  private static final String OID_SUBJECT_KEY_IDENTIFIER = "2.5.29.14";
+  /** OID of the Authority Key Identifier extension */
+  private static final String OID_AUTHORITY_KEY_IDENTIFIER = "2.5.29.35";
+
+  /** The anchors in the order they were added */
+  private final X509Certificate[] anchors;
+  /** The anchors indexed by subject DN */
+  private final Map<X500Principal, List<X509Certificate>> bySubject;
+  /** The anchors that have a Subject Key Identifier, indexed by it */
+  private final Map<ByteBuffer, List<X509Certificate>> byKeyIdentifier;
+  /** The maximum number of CAs, including the anchor, allowed above a certificate */
+  private final int verifyDepth;
+  /** Checks certificates haven't been revoked, or null if they're not checked */
+  private final PKIXCertPathChecker revocationChecker;
+  /** The PKIX settings for the anchors, copied for each validation. Null if there are no anchors */
+  private final PKIXParameters pkixTemplate;
+  /** The generation of the trust engine that built the store */
+  private final long generation;
+
+  /**
+   * Builds a store from a set of CA certificates, with the default verify depth
+   *
+   * @param caCerts the CA certificates to trust
+   * @param generation the generation of the trust engine building the store
+   */
+  public TrustAnchorStore(Collection<X509Certificate> caCerts, long generation) {
+    this(caCerts, DEFAULT_VERIFY_DEPTH, generation);
+  }
+
+  /**
+   * Builds a store from a set of CA certificates
+   *
+   * @param caCerts the CA certificates to trust
+   * @param verifyDepth the maximum number of CAs, including the anchor, allowed above a certificate
+   * @param generation the generation of the trust engine building the store
+   */
+  public TrustAnchorStore(Collection<X509Certificate> caCerts, int verifyDepth, long generation) {
+    this(caCerts, verifyDepth, null, generation);
+  }
+
+  /**
+   * Builds a store from a set of CA certificates, checking revocation with a PKIXCertPathChecker
+   *
+   * @param caCerts the CA certificates to trust
+   * @param verifyDepth the maximum number of CAs, including the anchor, allowed above a certificate
+   * @param revocationChecker checks certificates haven't been revoked, or null not to check
+   * @param generation the generation of the trust engine building the store
+   */
+  public TrustAnchorStore(Collection<X509Certificate> caCerts, int verifyDepth,
+                          PKIXCertPathChecker revocationChecker, long generation) {
+    this.generation = generation;
+    this.revocationChecker = revocationChecker;
+    this.verifyDepth = verifyDepth;
+    anchors = caCerts.toArray(new X509Certificate[caCerts.size()]);
+    bySubject = new HashMap<X500Principal, List<X509Certificate>>();
+    byKeyIdentifier = new HashMap<ByteBuffer, List<X509Certificate>>();
+
+    for (X509Certificate caX509 : anchors) {
+      index(bySubject, caX509.getSubjectX500Principal(), caX509);
+
+      byte[] ski = getSubjectKeyIdentifier(caX509);
+      if (ski != null) {
+        index(byKeyIdentifier, ByteBuffer.wrap(ski), caX509);
+      }
+    }
+
+    // Candidate lists are handed out so make sure no-one can change them
+    freeze(bySubject);
+    freeze(byKeyIdentifier);
+
+    pkixTemplate = createPKIXParameters(anchors, revocationChecker);
+  }
+
+  /**
+   * Finds all the anchors that could have issued a certificate. If the certificate
+   * has an Authority Key Identifier that matches any anchors, only those are
+   * returned, otherwise all the anchors whose subject DN is the certificate's
+   * issuer DN are. Nothing is verified, that's up to PKIX validation.
+   *
+   * @param x509 the certificate whose issuer is wanted
+   * @return the candidate issuers, which may be empty
+   */
+  public List<X509Certificate> getCandidateIssuers(X509Certificate x509) {
+    if (!byKeyIdentifier.isEmpty()) {
+      byte[] aki = getAuthorityKeyIdentifier(x509);
+      if (aki != null) {
+        List<X509Certificate> candidates = byKeyIdentifier.get(ByteBuffer.wrap(aki));
+        if (candidates != null) {
+          return candidates;
+        }
+      }
+    }
+
+    List<X509Certificate> candidates = bySubject.get(x509.getIssuerX500Principal());
+    if (candidates == null) {
+      return Collections.emptyList();
+    }
+    return candidates;
+  }
+
+  /**
+   * Returns all the anchors in the store
+   *
+   * @return copy of the anchors, in the order they were added
+   */
+  public X509Certificate[] getCertificates() {
+    return anchors.clone();
+  }
+
+  /**
+   * Returns the number of anchors in the store
+   *
+   * @return number of anchors
+   */
+  public int size() {
+    return anchors.length;
+  }
+
+  /**
+   * Returns the PKIX settings for validating a certificate path against the anchors.
+   * The PKIX provider's own revocation checking is off, as it always has been for
+   * metadata based trust, but the store's revocation checker is included if it has one.
+   *
+   * @return a copy of the PKIX settings that the caller is free to change,
+   * or null if there are no anchors
+   */
+  public PKIXParameters getPKIXParameters() {
+    if (pkixTemplate == null) {
+      return null;
+    }
+    return (PKIXParameters)pkixTemplate.clone();
+  }
+
+  /**
+   * Returns the maximum number of CAs allowed above a certificate. The anchor counts,
+   * so 1 means the anchor must have issued the certificate itself.
+   *
+   * @return the verify depth
+   */
+  public int getVerifyDepth() {
+    return verifyDepth;
+  }
+
+  /**
+   * Returns the revocation checker the PKIX settings include
+   *
+   * @return the revocation checker or null if revocation isn't checked
+   */
+  public PKIXCertPathChecker getRevocationChecker() {
+    return revocationChecker;
+  }
+
+  /**
+   * Returns the generation of the trust engine that built the store
+   *
+   * @return the store's generation
+   */
+  public long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Extracts the keyIdentifier from a certificate's Subject Key Identifier extension
+   *
+   * @param x509 the certificate
+   * @return the key identifier or null if there isn't one
+   */
+  public static byte[] getSubjectKeyIdentifier(X509Certificate x509) {
+    byte[] extension = x509.getExtensionValue(OID_SUBJECT_KEY_IDENTIFIER);
+    if (extension == null) {
+      return null;
+    }
+
+    try {
+      return SubjectKeyIdentifier.getInstance(X509ExtensionUtil.fromExtensionValue(extension)).getKeyIdentifier();
+    }
+    catch(IOException ioe) {
+      logger.warn("Could not parse Subject Key Identifier of " + x509.getSubjectX500Principal(), ioe);
+      return null;
+    }
+  }
+
+  /**
+   * Extracts the keyIdentifier from a certificate's Authority Key Identifier extension
+   *
+   * @param x509 the certificate
+   * @return the key identifier or null if there isn't one
+   */
+  public static byte[] getAuthorityKeyIdentifier(X509Certificate x509) {
+    byte[] extension = x509.getExtensionValue(OID_AUTHORITY_KEY_IDENTIFIER);
+    if (extension == null) {
+      return null;
+    }
+
+    try {
+      ASN1Sequence aki = (ASN1Sequence)X509ExtensionUtil.fromExtensionValue(extension);
+      return new AuthorityKeyIdentifier(aki).getKeyIdentifier();
+    }
+    catch(IOException ioe) {
+      logger.warn("Could not parse Authority Key Identifier of " + x509.getSubjectX500Principal(), ioe);
+      return null;
+    }
+    catch(ClassCastException cce) {
+      logger.warn("Malformed Authority Key Identifier in " + x509.getSubjectX500Principal());
+      return null;
+    }
+  }
+
+  private static PKIXParameters createPKIXParameters(X509Certificate[] anchors, PKIXCertPathChecker revocationChecker) {
+    if (anchors.length == 0) {
+      return null;
+    }
+
+    Set<TrustAnchor> trust = new HashSet<TrustAnchor>();
+    for (X509Certificate caX509 : anchors) {
+      trust.add(new TrustAnchor(caX509, null));
+    }
+
+    try {
+      PKIXParameters pkixParams = new PKIXParameters(trust);
+      /* In case we get here via a "virtual" KeyName, we're not interested
+       * in the validity of the cert per se.
+       */
+      pkixParams.setRevocationEnabled(false);
+      if (revocationChecker != null) {
+        pkixParams.addCertPathChecker(revocationChecker);
+      }
+      return pkixParams;
+    }
+    catch(InvalidAlgorithmParameterException iape) {
+      // Only thrown if there are no anchors
+      throw new IllegalStateException(iape);
+    }
+  }
+
+  private static <K> void index(Map<K, List<X509Certificate>> index, K key, X509Certificate x509) {
+    List<X509Certificate> certs = index.get(key);
+    if (certs == null) {
+      certs = new ArrayList<X509Certificate>(1);
+      index.put(key, certs);
+    }
+    certs.add(x509);
+  }
+
+  private static <K> void freeze(Map<K, List<X509Certificate>> index) {
+    for (Map.Entry<K, List<X509Certificate>> entry : index.entrySet()) {
+      entry.setValue(Collections.unmodifiableList(entry.getValue()));
+    }
+  }
+}
@@ -0,0 +1,230 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.trust;
+
+import org.apache.xml.security.exceptions.XMLSecurityException;
+import org.apache.xml.security.keys.KeyInfo;
+import org.apache.xml.security.keys.content.X509Data;
+import org.apache.xml.security.signature.XMLSignature;
+import org.apache.xml.security.utils.Constants;
+import org.apache.xmlbeans.XmlObject;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.XMLFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
+
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.dom.DOMResult;
+import javax.xml.transform.sax.TransformerHandler;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+
+/**
+ * Everything the trust checks need to know about one message or connection, worked
+ * out once and shared between them. For a signed SAML message that's the DOM, the
+ * signature and the certificates from the signature's KeyInfo. For a back channel
+ * connection it's just the certificate chain. The fingerprint of the entity's key
+ * is worked out the first time it's needed.
+ *
+ * A TrustContext belongs to one thread and one trust decision.
+ *
+ * @author alistair
+ */
+public class TrustContext {
+  /** The message as DOM, or null for a connection */
+  private final Document document;
+  /** The message signature, or null for a connection */
+  private final XMLSignature signature;
+  /** The entity's certificate followed by any intermediate CAs */
+  private final X509Certificate[] certificates;
+  /** The fingerprint of the entity's public key, once it's been worked out */
+  private Fingerprint keyFingerprint = null;
+  /** The fingerprint of the entity's certificate, once it's been worked out */
+  private Fingerprint certificateFingerprint = null;
+  /** The fingerprint of the whole certificate chain, once it's been worked out */
+  private Fingerprint chainFingerprint = null;
+
+  private TrustContext(Document document, XMLSignature signature, X509Certificate[] certificates) {
+    this.document = document;
+    this.signature = signature;
+    this.certificates = certificates;
+  }
+
+  /**
+   * Creates the context for a signed SAML message held by XMLBeans. XMLBeans streams
+   * the message straight into a DOM, as xml-security needs DOM Level 3 which XMLBeans
+   * doesn't support.
+   *
+   * @param samlMessage the signed SAML message
+   * @return the context for the message
+   * @throws GuanxiException if the message isn't signed or the certificates can't be decoded
+   */
+  public static TrustContext forMessage(XmlObject samlMessage) throws GuanxiException {
+    try {
+      TransformerHandler domBuilder = XMLFactory.getTransformerFactory().newTransformerHandler();
+      DOMResult result = new DOMResult();
+      domBuilder.setResult(result);
+      samlMessage.save(domBuilder, domBuilder);
+      return forMessage((Document)result.getNode());
+    }
+    catch(TransformerConfigurationException tce) {
+      throw new GuanxiException(tce);
+    }
+    catch(SAXException se) {
+      throw new GuanxiException(se);
+    }
+  }
+
+  /**
+   * Creates the context for a signed SAML message that has already been parsed
+   *
+   * @param doc the signed SAML message, namespace aware
+   * @return the context for the message
+   * @throws GuanxiException if the message isn't signed or the certificates can't be decoded
+   */
+  public static TrustContext forMessage(Document doc) throws GuanxiException {
+    Element sigElement = (Element)doc.getElementsByTagNameNS(Constants.SignatureSpecNS, "Signature").item(0);
+    if (sigElement == null) {
+      throw new GuanxiException("No signature in Response");
+    }
+
+    try {
+      XMLSignature signature = new XMLSignature(sigElement, "");
+
+      // Decode the certificates through the cache rather than let xml-security do it every time
+      X509CertificateCache certCache = X509CertificateCache.getInstance();
+      ArrayList<X509Certificate> x509Certs = new ArrayList<X509Certificate>();
+      KeyInfo keyInfo = signature.getKeyInfo();
+      if (keyInfo != null) {
+        for (int c=0; c < keyInfo.lengthX509Data(); c++) {
+          X509Data x509Data = keyInfo.itemX509Data(c);
+          for (int i=0; i < x509Data.lengthCertificate(); i++) {
+            x509Certs.add(certCache.getCertificate(x509Data.itemCertificate(i).getCertificateBytes()));
+          }
+        }
+      }
+
+      if (x509Certs.isEmpty()) {
+        throw new GuanxiException("No X509Certificate in signature");
+      }
+
+      return new TrustContext(doc, signature, x509Certs.toArray(new X509Certificate[x509Certs.size()]));
+    }
+    catch(XMLSecurityException xse) {
+      throw new GuanxiException(xse);
+    }
+    catch(CertificateException ce) {
+      throw new GuanxiException(ce);
+    }
+  }
+
+  /**
+   * Creates the context for a back channel connection
+   *
+   * @param certificates the certificate chain from the connection, the entity's own first
+   * @return the context for the connection
+   */
+  public static TrustContext forConnection(X509Certificate[] certificates) {
+    return new TrustContext(null, null, certificates);
+  }
+
+  /**
+   * Returns the SHA-256 hash of the entity's public key, as used by EntityKeyIndex
+   *
+   * @return the fingerprint of the entity's key
+   */
+  public Fingerprint getKeyFingerprint() {
+    if (keyFingerprint == null) {
+      keyFingerprint = EntityKeyIndex.hashKey(getCertificate().getPublicKey());
+    }
+    return keyFingerprint;
+  }
+
+  /**
+   * Returns the SHA-256 hash of the entity's encoded certificate
+   *
+   * @return the fingerprint of the entity's certificate
+   * @throws GuanxiException if the certificate can't be encoded
+   */
+  public Fingerprint getCertificateFingerprint() throws GuanxiException {
+    if (certificateFingerprint == null) {
+      try {
+        certificateFingerprint = Fingerprint.of(Fingerprint.SHA256, getCertificate());
+      }
+      catch(CertificateEncodingException cee) {
+        throw new GuanxiException(cee);
+      }
+    }
+    return certificateFingerprint;
+  }
+
+  /**
+   * Returns a SHA-256 hash over all the certificates, the entity's own and any
+   * intermediate CAs, in the order they were presented. With just the entity's
+   * certificate this is the same as getCertificateFingerprint.
+   *
+   * @return the fingerprint of the certificate chain
+   * @throws GuanxiException if any of the certificates can't be encoded
+   */
+  public Fingerprint getChainFingerprint() throws GuanxiException {
+    if (chainFingerprint == null) {
+      if (certificates.length == 1) {
+        chainFingerprint = getCertificateFingerprint();
+      }
+      else {
+        try {
+          // Hash the hashes, rather than copying all the certificates into one array
+          byte[] digests = new byte[certificates.length * 32];
+          for (int c=0; c < certificates.length; c++) {
+            System.arraycopy(Fingerprint.digest(Fingerprint.SHA256, certificates[c].getEncoded()), 0, digests, c * 32, 32);
+          }
+          chainFingerprint = Fingerprint.of(Fingerprint.SHA256, digests);
+        }
+        catch(CertificateEncodingException cee) {
+          throw new GuanxiException(cee);
+        }
+      }
+    }
+    return chainFingerprint;
+  }
+
+  /**
+   * Returns the entity's certificate, i.e. the one that signed the message
+   * or the one at the start of the connection's chain
+   *
+   * @return the entity's certificate
+   */
+  public X509Certificate getCertificate() {
+    return certificates[0];
+  }
+
+  /**
+   * Determines whether the context is for a back channel connection rather than a message
+   *
+   * @return true for a connection, false for a message
+   */
+  public boolean isConnection() {
+    return signature == null;
+  }
+
+  public X509Certificate[] getCertificates() { return certificates; }
+  public Document getDocument() { return document; }
+  public XMLSignature getSignature() { return signature; }
+}
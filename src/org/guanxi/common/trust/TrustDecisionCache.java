@@ -0,0 +1,218 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.trust;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers whether a trust engine trusted an entity presenting a particular
+ * certificate on a back channel connection, so an Attribute Authority presenting
+ * the same certificate on every attribute query doesn't go through explicit key
+ * and PKIX validation every time. Both decisions are cached, each with their own
+ * time to live.
+ *
+ * Decisions are keyed on the entityID, the host name the entity was connected to,
+ * the fingerprint of the certificate chain it presented, the version of the entity's
+ * metadata and the generation of the trust anchors. A decision for one host or chain
+ * is never used for another, and reloading either the metadata or the CA list makes
+ * all earlier decisions unreachable and they age out of the cache.
+ *
+ * @author alistair
+ */
+public class TrustDecisionCache {
+  /** Default time to keep a decision to trust */
+  public static final long DEFAULT_POSITIVE_TTL = 10 * 60 * 1000;
+  /** Default time to keep a decision not to trust */
+  public static final long DEFAULT_NEGATIVE_TTL = 60 * 1000;
+  /** Default maximum number of decisions to hold */
+  public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+  /** The cached decisions, in least recently used order */
+  private final LinkedHashMap<Key, Decision> decisions;
+  /** The maximum number of decisions to hold */
+  private volatile int maxEntries;
+  /** How long, in milliseconds, to keep a decision to trust */
+  private volatile long positiveTTL = DEFAULT_POSITIVE_TTL;
+  /** How long, in milliseconds, to keep a decision not to trust */
+  private volatile long negativeTTL = DEFAULT_NEGATIVE_TTL;
+  /** How many lookups found a decision */
+  private final AtomicLong hits = new AtomicLong();
+  /** How many lookups didn't */
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Creates a new cache with the default size
+   */
+  public TrustDecisionCache() {
+    this(DEFAULT_MAX_ENTRIES);
+  }
+
+  /**
+   * Creates a new cache
+   *
+   * @param maxEntries the maximum number of decisions to hold
+   */
+  public TrustDecisionCache(int maxEntries) {
+    this.maxEntries = maxEntries;
+    decisions = new LinkedHashMap<Key, Decision>(64, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<Key, Decision> eldest) {
+        return size() > TrustDecisionCache.this.maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Looks up a previous trust decision
+   *
+   * @param entityID the entity that presented the certificates
+   * @param hostName the host name the entity was connected to, or null if there isn't one
+   * @param chainFingerprint the fingerprint of the certificate chain it presented, e.g.
+   *                         from TrustContext.getChainFingerprint
+   * @param metadataVersion the version of the entity's metadata
+   * @param trustGeneration the generation of the trust anchors
+   * @return Boolean.TRUE or Boolean.FALSE if there's a current decision, otherwise null
+   */
+  public Boolean get(String entityID, String hostName, Fingerprint chainFingerprint, long metadataVersion,
+                     long trustGeneration) {
+    Key key = new Key(entityID, hostName, chainFingerprint, metadataVersion, trustGeneration);
+
+    Decision decision;
+    synchronized(decisions) {
+      decision = decisions.get(key);
+      if ((decision != null) && (decision.expires <= System.currentTimeMillis())) {
+        decisions.remove(key);
+        decision = null;
+      }
+    }
+
+    if (decision == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+
+    hits.incrementAndGet();
+    return Boolean.valueOf(decision.trusted);
+  }
+
+  /**
+   * Records a trust decision
+   *
+   * @param entityID the entity that presented the certificates
+   * @param hostName the host name the entity was connected to, or null if there isn't one
+   * @param chainFingerprint the fingerprint of the certificate chain it presented
+   * @param metadataVersion the version of the entity's metadata
+   * @param trustGeneration the generation of the trust anchors
+   * @param trusted true if the entity was trusted, otherwise false
+   * @param notAfter the latest time, in milliseconds, to keep the decision,
+   *                 e.g. when the certificate expires
+   */
+  public void put(String entityID, String hostName, Fingerprint chainFingerprint, long metadataVersion,
+                  long trustGeneration, boolean trusted, long notAfter) {
+    long expires = Math.min(System.currentTimeMillis() + (trusted ? positiveTTL : negativeTTL), notAfter);
+
+    synchronized(decisions) {
+      decisions.put(new Key(entityID, hostName, chainFingerprint, metadataVersion, trustGeneration),
+                    new Decision(trusted, expires));
+    }
+  }
+
+  /**
+   * Empties the cache
+   */
+  public void clear() {
+    synchronized(decisions) {
+      decisions.clear();
+    }
+  }
+
+  public int size() {
+    synchronized(decisions) {
+      return decisions.size();
+    }
+  }
+
+  public void setPositiveTTL(long positiveTTL) { this.positiveTTL = positiveTTL; }
+  public long getPositiveTTL() { return positiveTTL; }
+
+  public void setNegativeTTL(long negativeTTL) { this.negativeTTL = negativeTTL; }
+  public long getNegativeTTL() { return negativeTTL; }
+
+  public void setMaxEntries(int maxEntries) { this.maxEntries = maxEntries; }
+  public int getMaxEntries() { return maxEntries; }
+
+  public long getHits() { return hits.get(); }
+  public long getMisses() { return misses.get(); }
+
+  /**
+   * What a decision was made about
+   */
+  private static class Key {
+    final String entityID;
+    final String hostName;
+    final Fingerprint chainFingerprint;
+    final long metadataVersion;
+    final long trustGeneration;
+    final int hash;
+
+    Key(String entityID, String hostName, Fingerprint chainFingerprint, long metadataVersion, long trustGeneration) {
+      this.entityID = entityID;
+      this.hostName = hostName;
+      this.chainFingerprint = chainFingerprint;
+      this.metadataVersion = metadataVersion;
+      this.trustGeneration = trustGeneration;
+
+      int h = entityID.hashCode();
+      h = (31 * h) + ((hostName == null) ? 0 : hostName.hashCode());
+      h = (31 * h) + chainFingerprint.hashCode();
+      h = (31 * h) + (int)(metadataVersion ^ (metadataVersion >>> 32));
+      h = (31 * h) + (int)(trustGeneration ^ (trustGeneration >>> 32));
+      hash = h;
+    }
+
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+
+      Key other = (Key)obj;
+      return (metadataVersion == other.metadataVersion) &&
+             (trustGeneration == other.trustGeneration) &&
+             (entityID.equals(other.entityID)) &&
+             ((hostName == null) ? (other.hostName == null) : hostName.equals(other.hostName)) &&
+             (chainFingerprint.equals(other.chainFingerprint));
+    }
+
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  /**
+   * A decision and when to forget it
+   */
+  private static class Decision {
+    final boolean trusted;
+    final long expires;
+
+    Decision(boolean trusted, long expires) {
+      this.trusted = trusted;
+      this.expires = expires;
+    }
+  }
+}
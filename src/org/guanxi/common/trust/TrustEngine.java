@@ -19,11 +19,19 @@ package org.guanxi.common.trust;
 import org.guanxi.common.metadata.Metadata;
 import org.guanxi.common.GuanxiException;
 
+import java.security.cert.PKIXCertPathChecker;
 import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Future;
 
 /**
  * Encapsulation of basic trust
  *
+ * Methods are added to this interface from time to time, so implementations should
+ * extend SimpleTrustEngine, which implements all of them apart from trustEntity.
+ * Anything implementing the interface directly has to implement the new methods.
+ *
  * @author alistair
  */
 public interface TrustEngine {
@@ -36,6 +44,16 @@ public interface TrustEngine {
    */
   public void addCACert(X509Certificate x509CACert);
 
+  /**
+   * Replaces all the CA certs the trust engine is using as trust anchors in one go.
+   * Entities being checked while this happens are checked against either the old
+   * set or the new one, never a mixture or an empty set.
+   *
+   * @param caCerts X509Certificates of all the trusted CAs
+   * @param verifyDepth the maximum number of CAs, including the anchor, in a certificate chain
+   */
+  public void setCACerts(Collection<X509Certificate> caCerts, int verifyDepth);
+
   /**
    * Retrieves all the CA certs the trust engine is using as trust anchors
    *
@@ -43,10 +61,36 @@ public interface TrustEngine {
    */
   public X509Certificate[] getCACerts();
 
+  /**
+   * Sets how far above an entity's certificate the engine will look for a trust
+   * anchor, e.g. from shibmeta:KeyAuthority/@VerifyDepth. The anchor counts, so
+   * a depth of 1 means the anchor must have issued the entity's certificate.
+   *
+   * @param verifyDepth the maximum number of CAs, including the anchor, in a certificate chain
+   */
+  public void setVerifyDepth(int verifyDepth);
+
+  /**
+   * Sets what checks certificates haven't been revoked when their path to a trust
+   * anchor is validated, e.g. a CRLCertPathChecker. This moves the generation on,
+   * so nothing worked out with the old checker is used again.
+   *
+   * @param revocationChecker the revocation checker or null not to check revocation
+   */
+  public void setRevocationChecker(PKIXCertPathChecker revocationChecker);
+
   /**
    * Removes all trust information from the engine
    */
   public void reset();
+
+  /**
+   * Returns the generation of the engine's trust anchors. This goes up every time
+   * the anchors change, so anything worked out from them can be keyed on it.
+   *
+   * @return the current generation of the trust anchors
+   */
+  public long getGeneration();
   
   /**
    * Apply the rules of the engine to determine if an entity is to be
@@ -59,4 +103,24 @@ public interface TrustEngine {
    * @return true if the entity is trusted, otherwise false
    */
   public boolean trustEntity(Metadata entityMetadata, Object entityData) throws GuanxiException;
+
+  /**
+   * Applies the rules of the engine to a batch of entities. The entities may be
+   * checked in parallel but the results come back in the same order as the requests.
+   * An error checking one entity is recorded in its result rather than thrown.
+   *
+   * @param requests the entities to check
+   * @return the result for each request, in the same order
+   */
+  public List<TrustResult> trustEntities(List<TrustRequest> requests);
+
+  /**
+   * Applies the rules of the engine to an entity without waiting for the result.
+   * Any error checking the entity is recorded in the result rather than thrown.
+   *
+   * @param entityMetadata the Metadata for the entity
+   * @param entityData entity specific data, such as a SAML AuthenticationStatement
+   * @return the pending result
+   */
+  public Future<TrustResult> trustEntityAsync(Metadata entityMetadata, Object entityData);
 }
@@ -0,0 +1,46 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.trust;
+
+import org.guanxi.common.metadata.Metadata;
+
+/**
+ * One entity to be checked by TrustEngine.trustEntities, i.e. the same
+ * arguments as TrustEngine.trustEntity.
+ *
+ * @author alistair
+ */
+public class TrustRequest {
+  /** The Metadata for the entity */
+  private final Metadata entityMetadata;
+  /** Entity specific data, such as a SAML Response or X509Certificate */
+  private final Object entityData;
+
+  /**
+   * Creates a request to check an entity
+   *
+   * @param entityMetadata the Metadata for the entity
+   * @param entityData entity specific data, such as a SAML Response or X509Certificate
+   */
+  public TrustRequest(Metadata entityMetadata, Object entityData) {
+    this.entityMetadata = entityMetadata;
+    this.entityData = entityData;
+  }
+
+  public Metadata getEntityMetadata() { return entityMetadata; }
+  public Object getEntityData() { return entityData; }
+}
@@ -0,0 +1,79 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.trust;
+
+import org.guanxi.common.GuanxiException;
+
+/**
+ * The outcome of checking one entity asynchronously or as part of a batch. An
+ * entity that couldn't be checked because of an error isn't trusted, and the
+ * error is kept so one bad entity doesn't lose the results for the rest.
+ *
+ * @author alistair
+ */
+public class TrustResult {
+  /** The request that was checked */
+  private final TrustRequest request;
+  /** Whether the entity is trusted */
+  private final boolean trusted;
+  /** Why the entity couldn't be checked, or null if it was */
+  private final GuanxiException error;
+
+  /**
+   * Creates the result of a completed check
+   *
+   * @param request the request that was checked
+   * @param trusted true if the entity is trusted, otherwise false
+   */
+  public TrustResult(TrustRequest request, boolean trusted) {
+    this.request = request;
+    this.trusted = trusted;
+    this.error = null;
+  }
+
+  /**
+   * Creates the result of a check that failed
+   *
+   * @param request the request that was being checked
+   * @param error why the entity couldn't be checked
+   */
+  public TrustResult(TrustRequest request, GuanxiException error) {
+    this.request = request;
+    this.trusted = false;
+    this.error = error;
+  }
+
+  /**
+   * Determines whether the entity is trusted. This is false if there was an error.
+   *
+   * @return true if the entity is trusted, otherwise false
+   */
+  public boolean isTrusted() {
+    return trusted;
+  }
+
+  /**
+   * Gets the error that stopped the entity being checked
+   *
+   * @return the error or null if the entity was checked
+   */
+  public GuanxiException getError() {
+    return error;
+  }
+
+  public TrustRequest getRequest() { return request; }
+}
@@ -0,0 +1,54 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.trust;
+
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.metadata.Metadata;
+
+/**
+ * One way of deciding whether to trust the certificate an entity presented, such
+ * as finding its key in the entity's metadata or validating a path from it to a
+ * trust anchor. A TrustStrategyChain tries its strategies until one of them trusts
+ * the entity, so a strategy only has to say yes or no, never why not.
+ *
+ * Strategies are shared by all threads so mustn't keep any state about a decision.
+ * A strategy whose policy can change while it's in use must call
+ * TrustStrategyChain.policyChanged when it does, as decisions may be cached.
+ *
+ * @author alistair
+ */
+public interface TrustStrategy {
+  /**
+   * Gets the name the strategy's statistics are kept under
+   *
+   * @return the name of the strategy
+   */
+  public String getName();
+
+  /**
+   * Decides whether to trust the certificate an entity presented
+   *
+   * @param entityMetadata the Metadata for the entity
+   * @param context the trust context for the message signature or secure connection
+   * @param entityType the TrustUtils.ENTITY_TYPE_* whose part of the metadata to use
+   * @param trustAnchors the trust engine's CAs
+   * @return true if the strategy trusts the entity, otherwise false
+   * @throws GuanxiException if an error occurs
+   */
+  public boolean trust(Metadata entityMetadata, TrustContext context, int entityType,
+                       TrustAnchorStore trustAnchors) throws GuanxiException;
+}
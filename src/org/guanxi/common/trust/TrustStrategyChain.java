@@ -0,0 +1,365 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.trust;
+
+import org.apache.log4j.Logger;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.metadata.Metadata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tries a list of TrustStrategies in turn until one of them trusts an entity.
+ * How long each strategy takes and how often it succeeds is recorded, both
+ * overall and for each entity.
+ *
+ * Normally the strategies are tried in the order they were given. If the chain is
+ * adaptive, the strategies for an entity are instead tried in order of their
+ * expected cost to reach a decision, i.e. their average time divided by how often
+ * they succeed, so an entity that's always trusted via one strategy goes straight
+ * to it. Which strategy is tried first never changes the outcome, as the entity
+ * is trusted if any of them trusts it.
+ *
+ * A strategy that's been moved down the order is only tried for an entity when the
+ * ones ahead of it don't trust it, so what's known about it could go out of date.
+ * To stop that, one in every exploreInterval decisions tries the strategy that's
+ * been tried least for the entity first, whatever it's expected to cost.
+ *
+ * A strategy that fails with an error counts as not trusting the entity and the
+ * rest of the chain is still tried.
+ *
+ * @author alistair
+ */
+public class TrustStrategyChain {
+  /** Default maximum number of entities to keep statistics for */
+  public static final int DEFAULT_MAX_ENTITIES = 4096;
+  /** How many times a strategy must have been tried before its statistics are used for ordering */
+  public static final int MIN_SAMPLES = 10;
+  /** Default number of decisions between each one that tries the least tried strategy first */
+  public static final int DEFAULT_EXPLORE_INTERVAL = 100;
+
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(TrustStrategyChain.class.getName());
+  /** Goes up whenever a strategy's policy changes, so cached decisions made under the old one can be dropped */
+  private static final AtomicLong policyGeneration = new AtomicLong();
+
+  /** The strategies in the order they were given */
+  private final List<TrustStrategy> strategies;
+  /** The statistics for each strategy across all entities */
+  private final Stats[] overallStats;
+  /** The statistics for each strategy for each entity, in least recently used order */
+  private final LinkedHashMap<String, Stats[]> entityStats;
+  /** The maximum number of entities to keep statistics for */
+  private volatile int maxEntities = DEFAULT_MAX_ENTITIES;
+  /** Whether to reorder the strategies for each entity */
+  private volatile boolean adaptive = false;
+  /** How many decisions between each one that tries the least tried strategy first, 0 for never */
+  private volatile int exploreInterval = DEFAULT_EXPLORE_INTERVAL;
+  /** How many decisions the chain has made */
+  private final AtomicLong decisions = new AtomicLong();
+
+  /**
+   * Creates a chain that tries strategies in the given order
+   *
+   * @param strategies the strategies to try
+   */
+  public TrustStrategyChain(List<TrustStrategy> strategies) {
+    this.strategies = Collections.unmodifiableList(new ArrayList<TrustStrategy>(strategies));
+    overallStats = newStats();
+    entityStats = new LinkedHashMap<String, Stats[]>(64, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<String, Stats[]> eldest) {
+        return size() > TrustStrategyChain.this.maxEntities;
+      }
+    };
+  }
+
+  /**
+   * Records that a strategy's policy has changed, e.g. a pin was removed, so that
+   * trust decisions cached under the old policy are dropped. Applies to all chains.
+   */
+  public static void policyChanged() {
+    policyGeneration.incrementAndGet();
+  }
+
+  /**
+   * Gets the generation of the strategies' policies, which goes up whenever
+   * policyChanged is called
+   *
+   * @return the policy generation
+   */
+  public static long getPolicyGeneration() {
+    return policyGeneration.get();
+  }
+
+  /**
+   * Tries the strategies until one of them trusts the entity. A strategy that fails
+   * with an error is logged and treated as not trusting the entity.
+   *
+   * @param entityMetadata the Metadata for the entity
+   * @param context the trust context for the message signature or secure connection
+   * @param entityType the TrustUtils.ENTITY_TYPE_* whose part of the metadata to use
+   * @param trustAnchors the trust engine's CAs
+   * @return true if any of the strategies trusts the entity, otherwise false
+   */
+  public boolean trust(Metadata entityMetadata, TrustContext context, int entityType,
+                       TrustAnchorStore trustAnchors) {
+    Stats[] stats = getEntityStats(entityMetadata.getEntityID());
+
+    Integer[] order = getOrder(stats);
+    int interval = exploreInterval;
+    if ((adaptive) && (interval > 0) && (decisions.incrementAndGet() % interval == 0)) {
+      explore(order, stats);
+    }
+
+    for (int index : order) {
+      TrustStrategy strategy = strategies.get(index);
+      boolean trusted = false;
+      boolean failed = false;
+      long start = System.nanoTime();
+      try {
+        trusted = strategy.trust(entityMetadata, context, entityType, trustAnchors);
+      }
+      catch(GuanxiException ge) {
+        logger.error("Trust strategy " + strategy.getName() + " failed for " + entityMetadata.getEntityID(), ge);
+        failed = true;
+      }
+      long elapsed = System.nanoTime() - start;
+
+      overallStats[index].record(trusted, failed, elapsed);
+      stats[index].record(trusted, failed, elapsed);
+
+      if (trusted) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Returns the strategies in the order they'd be tried for an entity
+   *
+   * @param entityID the entity
+   * @return the strategies in order
+   */
+  public List<TrustStrategy> getOrder(String entityID) {
+    Stats[] stats;
+    synchronized(entityStats) {
+      stats = entityStats.get(entityID);
+    }
+
+    List<TrustStrategy> order = new ArrayList<TrustStrategy>();
+    for (int index : getOrder((stats == null) ? newStats() : stats)) {
+      order.add(strategies.get(index));
+    }
+    return order;
+  }
+
+  /**
+   * Returns the statistics for a strategy across all entities
+   *
+   * @param name the name of the strategy
+   * @return the strategy's statistics or null if there's no strategy with that name
+   */
+  public Stats getStats(String name) {
+    for (int c=0; c < strategies.size(); c++) {
+      if (strategies.get(c).getName().equals(name)) {
+        return overallStats[c];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the statistics for a strategy for one entity
+   *
+   * @param entityID the entity
+   * @param name the name of the strategy
+   * @return the strategy's statistics or null if there's no strategy with that name or
+   * the entity hasn't been seen
+   */
+  public Stats getStats(String entityID, String name) {
+    Stats[] stats;
+    synchronized(entityStats) {
+      stats = entityStats.get(entityID);
+    }
+    if (stats == null) {
+      return null;
+    }
+
+    for (int c=0; c < strategies.size(); c++) {
+      if (strategies.get(c).getName().equals(name)) {
+        return stats[c];
+      }
+    }
+    return null;
+  }
+
+  public List<TrustStrategy> getStrategies() { return strategies; }
+
+  public void setAdaptive(boolean adaptive) { this.adaptive = adaptive; }
+  public boolean isAdaptive() { return adaptive; }
+
+  public void setMaxEntities(int maxEntities) { this.maxEntities = maxEntities; }
+  public int getMaxEntities() { return maxEntities; }
+
+  public void setExploreInterval(int exploreInterval) { this.exploreInterval = exploreInterval; }
+  public int getExploreInterval() { return exploreInterval; }
+
+  /**
+   * Works out the order to try the strategies in. The strategies are only reordered if
+   * the chain is adaptive and there's enough known about all of them, either for the
+   * entity or overall.
+   *
+   * @param stats the entity's statistics
+   * @return the indexes of the strategies in the order to try them
+   */
+  private Integer[] getOrder(Stats[] stats) {
+    Integer[] order = new Integer[strategies.size()];
+    for (int c=0; c < order.length; c++) {
+      order[c] = c;
+    }
+
+    if (!adaptive) {
+      return order;
+    }
+
+    final double[] expectedCost = new double[order.length];
+    for (int c=0; c < order.length; c++) {
+      Stats known = (stats[c].getAttempts() >= MIN_SAMPLES) ? stats[c] : overallStats[c];
+      if (known.getAttempts() < MIN_SAMPLES) {
+        return order;
+      }
+      expectedCost[c] = known.getExpectedCost();
+    }
+
+    // The sort is stable so strategies that cost the same stay in the order they were given
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer one, Integer two) {
+        return Double.compare(expectedCost[one], expectedCost[two]);
+      }
+    });
+    return order;
+  }
+
+  /**
+   * Moves the strategy that's been tried least for an entity to the front of the order,
+   * leaving the others in the order they were in
+   *
+   * @param order the indexes of the strategies in the order to try them
+   * @param stats the entity's statistics
+   */
+  private void explore(Integer[] order, Stats[] stats) {
+    int least = 0;
+    for (int c=1; c < order.length; c++) {
+      if (stats[order[c]].getAttempts() < stats[order[least]].getAttempts()) {
+        least = c;
+      }
+    }
+
+    Integer index = order[least];
+    System.arraycopy(order, 0, order, 1, least);
+    order[0] = index;
+  }
+
+  private Stats[] getEntityStats(String entityID) {
+    synchronized(entityStats) {
+      Stats[] stats = entityStats.get(entityID);
+      if (stats == null) {
+        stats = newStats();
+        entityStats.put(entityID, stats);
+      }
+      return stats;
+    }
+  }
+
+  private Stats[] newStats() {
+    Stats[] stats = new Stats[strategies.size()];
+    for (int c=0; c < stats.length; c++) {
+      stats[c] = new Stats();
+    }
+    return stats;
+  }
+
+  /**
+   * How often a strategy has been tried, how often it trusted the entity, how often it
+   * failed with an error and how long it took
+   */
+  public static class Stats {
+    private final AtomicLong attempts = new AtomicLong();
+    private final AtomicLong successes = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong nanos = new AtomicLong();
+
+    void record(boolean trusted, boolean failed, long elapsed) {
+      attempts.incrementAndGet();
+      if (trusted) {
+        successes.incrementAndGet();
+      }
+      if (failed) {
+        errors.incrementAndGet();
+      }
+      nanos.addAndGet(elapsed);
+    }
+
+    public long getAttempts() { return attempts.get(); }
+    public long getSuccesses() { return successes.get(); }
+    public long getErrors() { return errors.get(); }
+
+    /**
+     * Returns the fraction of attempts where the strategy trusted the entity
+     *
+     * @return the hit rate, between 0 and 1
+     */
+    public double getHitRate() {
+      long tried = attempts.get();
+      return (tried == 0) ? 0 : (double)successes.get() / tried;
+    }
+
+    /**
+     * Returns the average time the strategy takes
+     *
+     * @return the average cost in nanoseconds
+     */
+    public double getAverageCost() {
+      long tried = attempts.get();
+      return (tried == 0) ? 0 : (double)nanos.get() / tried;
+    }
+
+    /**
+     * Returns how long the strategy can be expected to take per entity it trusts
+     *
+     * @return the average cost divided by the hit rate, or infinity if it's never trusted an entity
+     */
+    public double getExpectedCost() {
+      long trusted = successes.get();
+      return (trusted == 0) ? Double.POSITIVE_INFINITY : (double)nanos.get() / trusted;
+    }
+
+    public String toString() {
+      return "Stats[attempts=" + getAttempts() + ", hitRate=" + getHitRate() + ", errors=" + getErrors() +
+             ", averageCost=" + getAverageCost() + "]";
+    }
+  }
+}
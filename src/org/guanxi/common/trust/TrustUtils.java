@@ -22,25 +22,24 @@ import org.guanxi.xal.w3.xmldsig.X509DataType;
 import org.guanxi.xal.w3.xmldsig.KeyInfoType;
 import org.guanxi.xal.saml_1_0.protocol.ResponseDocument;
 import org.guanxi.common.GuanxiException;
+import org.guanxi.common.Utils;
+import org.guanxi.common.XMLFactory;
 import org.apache.log4j.Logger;
 import org.apache.xml.security.signature.XMLSignature;
 import org.apache.xml.security.exceptions.XMLSecurityException;
-import org.apache.xml.security.utils.Constants;
 import org.apache.xmlbeans.XmlObject;
 import org.w3c.dom.*;
 import org.bouncycastle.openssl.PEMReader;
 import org.xml.sax.SAXException;
 
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.xpath.*;
 import java.security.cert.*;
 import java.security.*;
 import java.security.interfaces.RSAPublicKey;
 import java.security.interfaces.DSAPublicKey;
-import java.io.ByteArrayInputStream;
+import java.security.interfaces.ECPublicKey;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.*;
 import java.net.URL;
@@ -56,27 +55,18 @@ public class TrustUtils {
   public static final int ENTITY_TYPE_SSO = 1;
   public static final int ENTITY_TYPE_AA = 2;
   public static final int ENTITY_TYPE_SP = 3;
+  /** Trust generation for CA certs that don't come from a trust engine. PKIX results for these are not cached */
+  public static final long NO_TRUST_GENERATION = -1;
 
   /** Our logger */
   private static final Logger logger = Logger.getLogger(TrustUtils.class.getName());
+  /** The prefixes used in our XPath expressions */
+  private static final SAMLNamespaceContext SAML_NAMESPACES = new SAMLNamespaceContext();
   /**
    * This holds the path to the Reference node of a signed SAML Response.
    * This is used to validate the signature in the SAML Response.
    */
-  private static XPathExpression referencePath;
-
-  // Setup the XPath stuff and precompile any expressions
-  static {
-    XPathFactory factory = XPathFactory.newInstance();
-    XPath xPath = factory.newXPath();
-    xPath.setNamespaceContext(new SAMLNamespaceContext());
-    try {
-      referencePath = xPath.compile("//ds:Signature/ds:SignedInfo/ds:Reference");
-    }
-    catch (XPathExpressionException e) {
-      throw new ExceptionInInitializerError(e);
-    }
-  }
+  private static final String REFERENCE_PATH = "//ds:Signature/ds:SignedInfo/ds:Reference";
 
   /**
    * Performs trust validation via X509 certificates. The trust is in the context
@@ -133,7 +123,8 @@ public class TrustUtils {
    */
   public static boolean validateEmbeddedCert(EntityDescriptorType saml2Metadata, X509Certificate[] clientCerts, int entityType) throws GuanxiException {
     try {
-      CertificateFactory certFactory = CertificateFactory.getInstance("x.509");
+      X509CertificateCache certCache = X509CertificateCache.getInstance();
+      PublicKey clientKey = clientCerts[0].getPublicKey();
 
       KeyDescriptorType[] keyDescriptors = null;
       if (entityType == ENTITY_TYPE_SSO) {
@@ -153,14 +144,12 @@ public class TrustUtils {
           byte[][] x509CertsBytes = x509Data.getX509CertificateArray();
 
           for (byte[] x509CertBytes : x509CertsBytes) {
-            ByteArrayInputStream certByteStream = new ByteArrayInputStream(x509CertBytes);
-            X509Certificate metadataCert = (X509Certificate)certFactory.generateCertificate(certByteStream);
-            certByteStream.close();
-
-            if ((metadataCert.getPublicKey() instanceof DSAPublicKey) &&
-                (clientCerts[0].getPublicKey() instanceof DSAPublicKey)) {
-              DSAPublicKey metadataDSA = (DSAPublicKey)metadataCert.getPublicKey();
-              DSAPublicKey clientDSA = (DSAPublicKey)clientCerts[0].getPublicKey();
+            PublicKey metadataKey = certCache.getPublicKey(x509CertBytes);
+
+            if ((metadataKey instanceof DSAPublicKey) &&
+                (clientKey instanceof DSAPublicKey)) {
+              DSAPublicKey metadataDSA = (DSAPublicKey)metadataKey;
+              DSAPublicKey clientDSA = (DSAPublicKey)clientKey;
               if (metadataDSA.getY().equals(clientDSA.getY()) &&
                   metadataDSA.getParams().getG().equals(clientDSA.getParams().getG()) &&
                   metadataDSA.getParams().getP().equals(clientDSA.getParams().getP()) &&
@@ -168,10 +157,10 @@ public class TrustUtils {
                 return true;
               }
             }
-            else if ((metadataCert.getPublicKey() instanceof RSAPublicKey) &&
-                     (clientCerts[0].getPublicKey() instanceof RSAPublicKey)) {
-              RSAPublicKey metadataRSA = (RSAPublicKey)metadataCert.getPublicKey();
-              RSAPublicKey clientRSA = (RSAPublicKey)clientCerts[0].getPublicKey();
+            else if ((metadataKey instanceof RSAPublicKey) &&
+                     (clientKey instanceof RSAPublicKey)) {
+              RSAPublicKey metadataRSA = (RSAPublicKey)metadataKey;
+              RSAPublicKey clientRSA = (RSAPublicKey)clientKey;
               if (metadataRSA.getPublicExponent().equals(clientRSA.getPublicExponent()) &&
                   metadataRSA.getModulus().equals(clientRSA.getModulus())) {
                 return true;
@@ -188,6 +177,35 @@ public class TrustUtils {
     }
   }
 
+  /**
+   * Performs explicit key validation using the precomputed key index for an entity. This is
+   * the same check as validateEmbeddedCert but it doesn't need to decode anything from the
+   * metadata, it just hashes the presented key and looks it up.
+   *
+   * @param keyIndex The key index built from the SAML2 metadata for the entity
+   * @param clientCerts The X509 certificates from the message signature or secure connection
+   * @param entityType ENTITY_TYPE_SSO to validate an AuthenticationStatement
+   *                   ENTITY_TYPE_AA to validate a back channel secure connection to an Attribute Authority
+   *                   ENTITY_TYPE_SP to validate a back channel secure connection from a Service Provider
+   * @return true if explicit key validation passes, otherwise false
+   */
+  public static boolean validateEmbeddedKey(EntityKeyIndex keyIndex, X509Certificate[] clientCerts, int entityType) {
+    return keyIndex.containsKey(entityType, clientCerts[0].getPublicKey());
+  }
+
+  /**
+   * Performs explicit key validation using the precomputed key index for an entity and
+   * the key fingerprint already worked out for the message or connection.
+   *
+   * @param keyIndex The key index built from the SAML2 metadata for the entity
+   * @param context The trust context for the message or connection
+   * @param entityType ENTITY_TYPE_SSO, ENTITY_TYPE_AA or ENTITY_TYPE_SP
+   * @return true if explicit key validation passes, otherwise false
+   */
+  public static boolean validateEmbeddedKey(EntityKeyIndex keyIndex, TrustContext context, int entityType) {
+    return keyIndex.containsKeyFingerprint(entityType, context.getKeyFingerprint());
+  }
+
   /**
    * Performs PKIX path validation based on certificates from metadata
    *
@@ -201,18 +219,37 @@ public class TrustUtils {
   public static boolean validatePKIX(ResponseDocument samlResponse, EntityDescriptorType saml2Metadata,
                                      Vector<X509Certificate> caCerts,
                                      String hostName) throws GuanxiException {
+    return validatePKIX(samlResponse, saml2Metadata, new TrustAnchorStore(caCerts, NO_TRUST_GENERATION), hostName);
+  }
+
+  /**
+   * Performs PKIX path validation based on certificates from metadata, using the
+   * indexed CA store of a trust engine.
+   *
+   * @param samlResponse The SAML Response from an IdP containing an AuthenticationStatement
+   * @param saml2Metadata The metadata for the IdP
+   * @param trustAnchors The CA root certs to use as trust anchors
+   * @param hostName The hostname for the validation context
+   * @return true if validation succeeds otherwise false
+   * @throws GuanxiException if an error occurs
+   */
+  public static boolean validatePKIX(ResponseDocument samlResponse, EntityDescriptorType saml2Metadata,
+                                     TrustAnchorStore trustAnchors, String hostName) throws GuanxiException {
     /* PKIX Path Validation
      * quickie summary:
      * - Match X509 in SAML Response signature to KeyName in IdP metadata
      * - Match issuer of X509 in SAML Response to one of the X509s in shibmeta:keyauthority
      *   in global metadata
      */
-    X509Certificate x509CertFromSig = getX509CertFromSignature(samlResponse);
+    X509Certificate[] x509CertsFromSig = getX509CertsFromSignature(samlResponse);
+    X509Certificate x509CertFromSig = x509CertsFromSig[0];
 
     // First find a match between the X509 in the signature and a KeyName in the metadata...
     if (matchCertToKeyName(x509CertFromSig, saml2Metadata, hostName)) {
-      // ...then follow the chain from the X509 in the signature back to a supported CA in the metadata
-      if (validateCertPath(x509CertFromSig, caCerts)) {
+      /* ...then follow the chain from the X509 in the signature back to a supported CA in the metadata,
+       * via any intermediate CAs in the signature
+       */
+      if (validateCertPath(x509CertFromSig, x509CertsFromSig, trustAnchors)) {
         return true;
       }
     }
@@ -234,6 +271,45 @@ public class TrustUtils {
                                        EntityDescriptorType saml2Metadata,
                                        Vector<X509Certificate> caCerts,
                                        String hostName) throws GuanxiException {
+    return validatePKIXBC(x509CertFromConnection, saml2Metadata, new TrustAnchorStore(caCerts, NO_TRUST_GENERATION), hostName);
+  }
+
+  /**
+   * Performs PKIX path validation based on certificates from a back channel connection,
+   * using the indexed CA store of a trust engine.
+   *
+   * @param x509CertFromConnection The certificate from the connection
+   * @param saml2Metadata The metadata for the IdP
+   * @param trustAnchors The CA root certs to use as trust anchors
+   * @param hostName The hostname for the validation context
+   * @return true if validation succeeds otherwise false
+   * @throws GuanxiException if an error occurs
+   */
+  public static boolean validatePKIXBC(X509Certificate x509CertFromConnection,
+                                       EntityDescriptorType saml2Metadata,
+                                       TrustAnchorStore trustAnchors,
+                                       String hostName) throws GuanxiException {
+    return validatePKIXBC(new X509Certificate[] {x509CertFromConnection}, saml2Metadata, trustAnchors, hostName);
+  }
+
+  /**
+   * Performs PKIX path validation based on the certificate chain from a back channel connection,
+   * using the indexed CA store of a trust engine. Any intermediate CAs the entity sent
+   * along with its certificate are used to build the path to the trust anchor.
+   *
+   * @param x509ChainFromConnection The certificate chain from the connection, starting with the entity's certificate
+   * @param saml2Metadata The metadata for the IdP
+   * @param trustAnchors The CA root certs to use as trust anchors
+   * @param hostName The hostname for the validation context
+   * @return true if validation succeeds otherwise false
+   * @throws GuanxiException if an error occurs
+   */
+  public static boolean validatePKIXBC(X509Certificate[] x509ChainFromConnection,
+                                       EntityDescriptorType saml2Metadata,
+                                       TrustAnchorStore trustAnchors,
+                                       String hostName) throws GuanxiException {
+    X509Certificate x509CertFromConnection = x509ChainFromConnection[0];
+
     /* PKIX Path Validation
      * quickie summary:
      * - Match X509 from connection to KeyName in IdP metadata
@@ -244,7 +320,7 @@ public class TrustUtils {
     // First find a match between the X509 from the connection and a KeyName in the metadata...
     if (matchAACertToKeyName(x509CertFromConnection, saml2Metadata, hostName)) {
       // ...then follow the chain from the X509 in the signature back to a supported CA in the metadata
-      if (validateCertPath(x509CertFromConnection, caCerts)) {
+      if (validateCertPath(x509CertFromConnection, x509ChainFromConnection, trustAnchors)) {
         return true;
       }
     }
@@ -253,6 +329,46 @@ public class TrustUtils {
   }
 
 
+  /**
+   * Performs PKIX path validation using the KeyNames precompiled into an entity's key index.
+   * The first certificate must match a KeyName for the role and then chain back to a trust anchor.
+   *
+   * @param context The trust context for the message or connection, whose certificates
+   *                are the entity's own first followed by any intermediate CAs
+   * @param keyIndex The key index built from the SAML2 metadata for the entity
+   * @param entityType The TrustUtils.ENTITY_TYPE_* whose KeyNames to match against
+   * @param trustAnchors The CA root certs to use as trust anchors
+   * @param hostName The hostname for the validation context
+   * @return true if validation succeeds otherwise false
+   */
+  public static boolean validatePKIX(TrustContext context, EntityKeyIndex keyIndex, int entityType,
+                                     TrustAnchorStore trustAnchors, String hostName) {
+    return validatePKIX(context.getCertificates(), keyIndex, entityType, trustAnchors, hostName);
+  }
+
+  /**
+   * Performs PKIX path validation using the KeyNames precompiled into an entity's key index.
+   * The first certificate must match a KeyName for the role and then chain back to a trust anchor.
+   *
+   * @param x509Certs The certificates from the signature or connection, the entity's own first
+   *                  followed by any intermediate CAs
+   * @param keyIndex The key index built from the SAML2 metadata for the entity
+   * @param entityType The TrustUtils.ENTITY_TYPE_* whose KeyNames to match against
+   * @param trustAnchors The CA root certs to use as trust anchors
+   * @param hostName The hostname for the validation context
+   * @return true if validation succeeds otherwise false
+   */
+  public static boolean validatePKIX(X509Certificate[] x509Certs, EntityKeyIndex keyIndex, int entityType,
+                                     TrustAnchorStore trustAnchors, String hostName) {
+    // First find a match between the X509 and a KeyName in the metadata...
+    if (keyIndex.getKeyNameMatcher(entityType).matches(ParsedSubject.getInstance(x509Certs[0]), hostName)) {
+      // ...then follow the chain back to a supported CA in the metadata
+      return validateCertPath(x509Certs[0], x509Certs, trustAnchors);
+    }
+
+    return false;
+  }
+
   /**
    * Retrieves the X509Certificate from a digital signature
    *
@@ -271,19 +387,49 @@ public class TrustUtils {
 
     try {
       byte[] x509CertBytes = keyInfo.getX509DataArray(0).getX509CertificateArray(0);
-      CertificateFactory certFactory = CertificateFactory.getInstance("x.509");
-      ByteArrayInputStream certByteStream = new ByteArrayInputStream(x509CertBytes);
-      X509Certificate cert = (X509Certificate)certFactory.generateCertificate(certByteStream);
-      certByteStream.close();
-      return cert;
+      return X509CertificateCache.getInstance().getCertificate(x509CertBytes);
     }
     catch(CertificateException ce) {
-      logger.error("Error obtaining certificate factory", ce);
+      logger.error("Error decoding certificate", ce);
       throw new GuanxiException(ce);
     }
-    catch(IOException ioe) {
-      logger.error("Error closing certificate byte stream", ioe);
-      throw new GuanxiException(ioe);
+  }
+
+  /**
+   * Retrieves all the X509Certificates from a digital signature. The first is the
+   * signer's, any others may be intermediate CAs.
+   *
+   * @param samlResponse The SAML Response containing the signature
+   * @return the X509Certificates from the signature, in the order they appear
+   * @throws GuanxiException if an error occurs
+   */
+  public static X509Certificate[] getX509CertsFromSignature(XmlObject samlResponse) throws GuanxiException {
+    KeyInfoType keyInfo = null;
+    if (samlResponse instanceof org.guanxi.xal.saml_1_0.protocol.ResponseDocument) {
+      keyInfo = ((org.guanxi.xal.saml_1_0.protocol.ResponseDocument)(samlResponse)).getResponse().getSignature().getKeyInfo();
+    }
+    else if (samlResponse instanceof org.guanxi.xal.saml_2_0.protocol.ResponseDocument) {
+      keyInfo = ((org.guanxi.xal.saml_2_0.protocol.ResponseDocument)(samlResponse)).getResponse().getSignature().getKeyInfo();
+    }
+
+    try {
+      X509CertificateCache certCache = X509CertificateCache.getInstance();
+      ArrayList<X509Certificate> x509Certs = new ArrayList<X509Certificate>();
+      for (X509DataType x509Data : keyInfo.getX509DataArray()) {
+        for (byte[] x509CertBytes : x509Data.getX509CertificateArray()) {
+          x509Certs.add(certCache.getCertificate(x509CertBytes));
+        }
+      }
+
+      if (x509Certs.isEmpty()) {
+        throw new GuanxiException("No X509Certificate in signature");
+      }
+
+      return x509Certs.toArray(new X509Certificate[x509Certs.size()]);
+    }
+    catch(CertificateException ce) {
+      logger.error("Error decoding certificate", ce);
+      throw new GuanxiException(ce);
     }
   }
 
@@ -297,20 +443,12 @@ public class TrustUtils {
   public static X509Certificate getX509CertFromSignature(KeyInfoType keyInfo) throws GuanxiException {
     try {
       byte[] x509CertBytes = keyInfo.getX509DataArray(0).getX509CertificateArray(0);
-      CertificateFactory certFactory = CertificateFactory.getInstance("x.509");
-      ByteArrayInputStream certByteStream = new ByteArrayInputStream(x509CertBytes);
-      X509Certificate cert = (X509Certificate)certFactory.generateCertificate(certByteStream);
-      certByteStream.close();
-      return cert;
+      return X509CertificateCache.getInstance().getCertificate(x509CertBytes);
     }
     catch(CertificateException ce) {
-      logger.error("Error obtaining certificate factory", ce);
+      logger.error("Error decoding certificate", ce);
       throw new GuanxiException(ce);
     }
-    catch(IOException ioe) {
-      logger.error("Error closing certificate byte stream", ioe);
-      throw new GuanxiException(ioe);
-    }
   }
 
   /**
@@ -366,30 +504,21 @@ public class TrustUtils {
    * @return if a match was found
    */
   public static boolean validateX509WithKeyName(X509Certificate x509, KeyDescriptorType[] keyDescriptors, String hostName) {
+    ParsedSubject subject = ParsedSubject.getInstance(x509);
+
     for (KeyDescriptorType keyDescriptor : keyDescriptors) {
       // EntityDescriptor/IDPSSODescriptor/KeyDescriptor/KeyInfo
       if (keyDescriptor.getKeyInfo() != null) {
         // EntityDescriptor/IDPSSODescriptor/KeyDescriptor/KeyInfo/KeyName
-        if (keyDescriptor.getKeyInfo().getKeyNameArray() != null) {
-          ArrayList<String> allKeyNames = new ArrayList<String>();
-          
-          String[] metadataKeyNames = keyDescriptor.getKeyInfo().getKeyNameArray();
-          for (String metadataKeyName : metadataKeyNames) {
-            allKeyNames.add(metadataKeyName);
-          }
-          // Shibboleth spec says the hostname is also a KeyName
-          if (hostName != null) {
-            allKeyNames.add(hostName);
+        for (String keyName : keyDescriptor.getKeyInfo().getKeyNameArray()) {
+          if (KeyNameMatcher.matchesKeyName(subject, keyName)) {
+            return true;
           }
+        }
 
-          for (String keyName : allKeyNames) {
-            String metadataKeyName = new String(keyName.getBytes());
-
-            // Do the hard work of comparison
-            if (compareX509SubjectWithKeyName(x509, metadataKeyName)) {
-              return true;
-            }
-          }
+        // Shibboleth spec says the hostname is also a KeyName
+        if ((hostName != null) && (KeyNameMatcher.matchesKeyName(subject, hostName))) {
+          return true;
         }
       }
     }
@@ -409,34 +538,13 @@ public class TrustUtils {
    * @return if they match, otherwise false
    */
   public static boolean compareX509SubjectWithKeyName(X509Certificate x509, String keyName) {
-    logger.debug("subject DN : " + x509.getSubjectDN().getName() + ", KeyName : " + keyName);
+    ParsedSubject subject = ParsedSubject.getInstance(x509);
 
-    // Try the full DN
-    logger.debug("trying DN : " + x509.getSubjectDN().getName() + " KeyName : " + keyName);
-    if (x509.getSubjectDN().getName().equals(keyName)) {
-      logger.debug("matched DN");
-      return true;
-    }
-
-    // Try the CN
-    String[] split;
-    for (String currentEntry : x509.getSubjectDN().getName().split(",\\s*")) {
-      split = currentEntry.split("=");
-      if (split[0].equals("CN")) {
-        if (split[1].equals(keyName)) {
-          logger.debug("matched CN");
-          return true;
-        }
-
-        // Try getting down to the hostname
-        String[] nameParts = split[1].split("/");
-        for (String namePart : nameParts) {
-          if (namePart.equalsIgnoreCase(keyName)) {
-            logger.debug("matched hostname : " + keyName);
-            return true;
-          }
-        }
+    if (KeyNameMatcher.matchesKeyName(subject, keyName)) {
+      if (logger.isDebugEnabled()) {
+        logger.debug("matched subject DN : " + subject + " with KeyName : " + keyName);
       }
+      return true;
     }
 
     return false;
@@ -451,57 +559,105 @@ public class TrustUtils {
    * @return true if we trust the cert, otherwise false
    */
   public static boolean validateCertPath(X509Certificate x509ToVerify, Vector<X509Certificate> caCerts) {
-    for (X509Certificate caX509 : caCerts) {
-      if (caX509.getSubjectDN().getName().equals(x509ToVerify.getIssuerDN().getName())) {
-        return validatePKIXPath(x509ToVerify, caX509);
-      }
-    }
+    return validateCertPath(x509ToVerify, new TrustAnchorStore(caCerts, NO_TRUST_GENERATION));
+  }
 
-    return false;
+  /**
+   * Validates a certificate path starting with the mystery cert and working
+   * back to a trust anchor, using the indexed CA store of a trust engine.
+   * Every CA that could have issued the cert is tried, not just the first.
+   * If the store has a generation, the outcome is remembered for it.
+   *
+   * @param x509ToVerify the mystery cert, should we trust it?
+   * @param trustAnchors the CA root certs to trust
+   * @return true if we trust the cert, otherwise false
+   */
+  public static boolean validateCertPath(X509Certificate x509ToVerify, TrustAnchorStore trustAnchors) {
+    return validateCertPath(x509ToVerify, null, trustAnchors);
   }
 
   /**
-   * Performs PKIX path validation on a set of certificates
+   * Validates a certificate path starting with the mystery cert and working
+   * back through any intermediate CAs to a trust anchor, using the indexed CA store
+   * of a trust engine. The path can be no longer than the store's verify depth.
+   * If the store has a generation, the outcome is remembered for it.
    *
-   * @param x509ToVerify The X509Certificate to validate
-   * @param caX509 The root trust anchor X509Certificate
-   * @return true if successful otherwise false
+   * @param x509ToVerify the mystery cert, should we trust it?
+   * @param intermediates untrusted certs, such as the rest of a TLS chain, to build the path from. Can be null
+   * @param trustAnchors the CA root certs to trust
+   * @return true if we trust the cert, otherwise false
    */
-  public static boolean validatePKIXPath(X509Certificate x509ToVerify, X509Certificate caX509) {
-    try {
-      ArrayList<X509Certificate> certsList = new ArrayList<X509Certificate>();
-      certsList.add(caX509);
-      certsList.add(x509ToVerify);
+  public static boolean validateCertPath(X509Certificate x509ToVerify, X509Certificate[] intermediates,
+                                         TrustAnchorStore trustAnchors) {
+    long trustGeneration = trustAnchors.getGeneration();
+    if (trustGeneration == NO_TRUST_GENERATION) {
+      return X509ChainBuilder.build(x509ToVerify, intermediates, trustAnchors) != null;
+    }
 
-      CollectionCertStoreParameters certStoreParams = new CollectionCertStoreParameters(certsList);
-      CertStore certStore = CertStore.getInstance("Collection", certStoreParams, "BC");
+    // The result depends on which intermediates were offered as well as the cert
+    X509Certificate[] presented;
+    if (intermediates == null) {
+      presented = new X509Certificate[] {x509ToVerify};
+    }
+    else {
+      presented = new X509Certificate[intermediates.length + 1];
+      presented[0] = x509ToVerify;
+      System.arraycopy(intermediates, 0, presented, 1, intermediates.length);
+    }
 
-      CertificateFactory certFactory = CertificateFactory.getInstance("X.509", "BC");
-      ArrayList<X509Certificate> certChain = new ArrayList<X509Certificate>();
-      certChain.add(x509ToVerify);
+    PKIXValidationCache pkixCache = PKIXValidationCache.getInstance();
+    Boolean cached = pkixCache.get(presented, trustGeneration);
+    if (cached != null) {
+      return cached.booleanValue();
+    }
 
-      CertPath certPath = certFactory.generateCertPath(certChain);
-      Set<TrustAnchor> trust = Collections.singleton(new TrustAnchor(caX509, null));
+    X509Certificate[] chain = X509ChainBuilder.build(x509ToVerify, intermediates, trustAnchors);
+    if (chain != null) {
+      // Forget the result when the anchor expires
+      pkixCache.put(presented, trustGeneration, true, chain[chain.length - 1].getNotAfter().getTime());
+      return true;
+    }
 
-      CertPathValidator validator = CertPathValidator.getInstance("PKIX", "BC");
-      PKIXParameters pkixParams = new PKIXParameters(trust);
+    pkixCache.put(presented, trustGeneration, false);
+    return false;
+  }
 
-      pkixParams.addCertStore(certStore);
-      //pkixParams.setDate(new Date());
+  /**
+   * Performs PKIX path validation on a set of certificates, using a previous result
+   * for the same certificates and trust engine generation if there is one.
+   *
+   * @param x509ToVerify The X509Certificate to validate
+   * @param caX509 The root trust anchor X509Certificate
+   * @param trustGeneration the generation of the trust engine caX509 came from,
+   *                        or NO_TRUST_GENERATION to always validate the path
+   * @return true if successful otherwise false
+   */
+  public static boolean validatePKIXPath(X509Certificate x509ToVerify, X509Certificate caX509, long trustGeneration) {
+    if (trustGeneration == NO_TRUST_GENERATION) {
+      return validatePKIXPath(x509ToVerify, caX509);
+    }
 
-      /* In case we get here via a "virtual" KeyName, we're not interested
-       * in the validity of the cert per se.
-       */
-      pkixParams.setRevocationEnabled(false);
+    PKIXValidationCache pkixCache = PKIXValidationCache.getInstance();
+    Boolean cached = pkixCache.get(x509ToVerify, caX509, trustGeneration);
+    if (cached != null) {
+      return cached.booleanValue();
+    }
 
-      // Do the path validation
-      validator.validate(certPath, pkixParams);
+    boolean valid = validatePKIXPath(x509ToVerify, caX509);
+    pkixCache.put(x509ToVerify, caX509, trustGeneration, valid);
+    return valid;
+  }
 
-      return true;
-    }
-    catch(Exception e) {
-      return false;
-    }
+  /**
+   * Performs PKIX path validation on a set of certificates
+   *
+   * @param x509ToVerify The X509Certificate to validate
+   * @param caX509 The root trust anchor X509Certificate
+   * @return true if successful otherwise false
+   */
+  public static boolean validatePKIXPath(X509Certificate x509ToVerify, X509Certificate caX509) {
+    TrustAnchorStore trustAnchor = new TrustAnchorStore(Collections.singletonList(caX509), NO_TRUST_GENERATION);
+    return X509ChainBuilder.validatePath(Collections.singletonList(x509ToVerify), trustAnchor.getPKIXParameters()) != null;
   }
 
   /**
@@ -512,22 +668,52 @@ public class TrustUtils {
    * @throws GuanxiException if an error occurs
    */
   public static boolean verifySignature(XmlObject samlMessage) throws GuanxiException {
-    try {
-      /* We need to check for ID attributes, which requires DOM Level 3, which XMLBeans
-       * does not support. So we need to jump into DOM land.
-       */
-      DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-      dbf.setNamespaceAware(true);
-      dbf.setAttribute("http://xml.org/sax/features/namespaces", Boolean.TRUE);
-      DocumentBuilder db = dbf.newDocumentBuilder();
-      db.setErrorHandler(new org.apache.xml.security.utils.IgnoreAllErrorHandler());
-      Document doc = db.parse(samlMessage.newInputStream());
+    return verifySignature(TrustContext.forMessage(samlMessage));
+  }
 
+  /**
+   * Verifies the digital signature on a SAML Response straight from the wire, e.g. the
+   * decoded body of a POST. This parses the message once, rather than having XMLBeans
+   * parse it and then copying it into a DOM for verifySignature(XmlObject).
+   * If the message verifies, the XmlObject can be got from the same Document with
+   * the XMLBeans Factory.parse(Node) method.
+   *
+   * @param rawMessage The SAML Response
+   * @return the parsed Response if the signature verifies, otherwise null
+   * @throws GuanxiException if an error occurs
+   */
+  public static Document verifySignature(InputStream rawMessage) throws GuanxiException {
+    Document doc = parseMessage(rawMessage);
+    return verifySignature(doc) ? doc : null;
+  }
+
+  /**
+   * Verifies the digital signature on a SAML Response that has already been parsed.
+   * The document must be a fully fledged DOM Level 3 one, as the root element is
+   * marked as the ID the signature refers to.
+   *
+   * @param doc The SAML Response, namespace aware
+   * @return true if the signature verifies otherwise false
+   * @throws GuanxiException if an error occurs
+   */
+  public static boolean verifySignature(Document doc) throws GuanxiException {
+    return verifySignature(TrustContext.forMessage(doc));
+  }
+
+  /**
+   * Verifies the digital signature on a SAML Response, using the signature and certificate
+   * already worked out for it.
+   *
+   * @param context The trust context for the SAML Response
+   * @return true if the signature verifies otherwise false
+   * @throws GuanxiException if an error occurs
+   */
+  public static boolean verifySignature(TrustContext context) throws GuanxiException {
+    try {
+      Document doc = context.getDocument();
       setIdNode(doc);
 
-      NodeList nodes = doc.getElementsByTagNameNS(Constants.SignatureSpecNS, "Signature");
-      Element sigElement = (Element)nodes.item(0);
-      XMLSignature xmlSignature = new XMLSignature(sigElement, "");
+      XMLSignature xmlSignature = context.getSignature();
 
       /* Stop the Signature/Object attack where the original Response is copied
        * into Signature/Object and the signature removed from the copied Response.
@@ -550,14 +736,15 @@ public class TrustUtils {
       }
 
       // Make sure the signature reference is not suspicious
+      Element root = doc.getDocumentElement();
       String rootResponseID = null;
-      if (doc.getFirstChild().getAttributes().getNamedItem("ID") != null) {
+      if (root.getAttributeNode("ID") != null) {
         // SAML2
-        rootResponseID = doc.getFirstChild().getAttributes().getNamedItem("ID").getTextContent();
+        rootResponseID = root.getAttribute("ID");
       }
-      else if (doc.getFirstChild().getAttributes().getNamedItem("ResponseID") != null) {
+      else if (root.getAttributeNode("ResponseID") != null) {
         // Shibboleth
-        rootResponseID = doc.getFirstChild().getAttributes().getNamedItem("ResponseID").getTextContent();
+        rootResponseID = root.getAttribute("ResponseID");
       }
 
       if (rootResponseID == null) {
@@ -569,12 +756,23 @@ public class TrustUtils {
         throw new GuanxiException("The signature reference is not for the Response");
       }
 
-      X509Certificate cert = xmlSignature.getKeyInfo().getX509Certificate();
-
-      return xmlSignature.checkSignatureValue(cert);
+      return xmlSignature.checkSignatureValue(context.getCertificate());
     }
-    catch(ParserConfigurationException pce) {
-      throw new GuanxiException(pce);
+    catch(XMLSecurityException xse) {
+      throw new GuanxiException(xse);
+    }
+  }
+
+  /**
+   * Parses a SAML message into a namespace aware DOM suitable for signature verification
+   *
+   * @param message The SAML message
+   * @return the parsed message
+   * @throws GuanxiException if the message can't be parsed
+   */
+  private static Document parseMessage(InputStream message) throws GuanxiException {
+    try {
+      return XMLFactory.getDocumentBuilder().parse(message);
     }
     catch(SAXException se) {
       throw new GuanxiException(se);
@@ -582,9 +780,6 @@ public class TrustUtils {
     catch(IOException ioe) {
       throw new GuanxiException(ioe);
     }
-    catch(XMLSecurityException xse) {
-      throw new GuanxiException(xse);
-    }
   }
 
   /**
@@ -597,6 +792,7 @@ public class TrustUtils {
   private static void setIdNode(Document doc) throws GuanxiException {
     try {
       // Look for the Reference node in the Signature...
+      XPathExpression referencePath = XMLFactory.getXPathExpression(REFERENCE_PATH, SAML_NAMESPACES);
       NodeList sigReference = (NodeList)referencePath.evaluate(doc, XPathConstants.NODESET);
 
       // ...to see if it has a value...
@@ -676,24 +872,14 @@ public class TrustUtils {
 
                   // SSODescriptor/KeyDescriptor/KeyInfo/X509Data/X509Certificate
                   try {
-                    CertificateFactory certFactory = CertificateFactory.getInstance("x.509");
-
                     for (byte[] x509bytes : x509bytesArray) {
-                      ByteArrayInputStream certByteStream = new ByteArrayInputStream(x509bytes);
-                      X509Certificate x509CertFromMetadata = (X509Certificate)certFactory.generateCertificate(certByteStream);
-                      certByteStream.close();
-
-                      x509Certs.add(x509CertFromMetadata);
+                      x509Certs.add(X509CertificateCache.getInstance().getCertificate(x509bytes));
                     } // for (byte[] x509bytes : x509bytesArray)
                   }
                   catch(CertificateException ce) {
-                    logger.error("Error obtaining certificate factory", ce);
+                    logger.error("Error decoding certificate", ce);
                     throw new GuanxiException(ce);
                   }
-                  catch(IOException ioe) {
-                    logger.error("Error closing certificate byte stream", ioe);
-                    throw new GuanxiException(ioe);
-                  }
                 } // if (x509.getX509CertificateArray() != null)
               }
             }
@@ -772,18 +958,7 @@ public class TrustUtils {
    */
   public static boolean checkCertfingerprints(X509Certificate cert1, X509Certificate cert2) throws GuanxiException {
     try {
-      MessageDigest md = MessageDigest.getInstance("SHA1");
-
-      md.update(cert1.getEncoded());
-      byte[] cert1Fingerprint = md.digest();
-
-      md.update(cert2.getEncoded());
-      byte[] cert2Fingerprint = md.digest();
-
-      return byteArrayToHexString(cert1Fingerprint).equals(byteArrayToHexString(cert2Fingerprint));
-    }
-    catch(NoSuchAlgorithmException nsae) {
-      throw new GuanxiException(nsae);
+      return Fingerprint.of(Fingerprint.SHA1, cert1).equals(Fingerprint.of(Fingerprint.SHA1, cert2));
     }
     catch(CertificateEncodingException cee) {
       throw new GuanxiException(cee);
@@ -797,34 +972,10 @@ public class TrustUtils {
    * @return hex representation of bytes
    */
   public static String byteArrayToHexString(byte bytes[]) {
-    byte ch = 0x00;
-    int count = 0;
-
     if (bytes == null || bytes.length <= 0) return null;
 
-    String pseudo[] = {"0", "1", "2",
-                       "3", "4", "5", "6", "7", "8",
-                       "9", "A", "B", "C", "D", "E",
-                       "F"};
-
-    StringBuffer out = new StringBuffer(bytes.length * 2);
-
-    while (count < bytes.length) {
-      ch = (byte) (bytes[count] & 0xF0);
-      ch = (byte) (ch >>> 4);
-      ch = (byte) (ch & 0x0F);
-      out.append(pseudo[ (int) ch]);
-      ch = (byte) (bytes[count] & 0x0F);
-      out.append(pseudo[ (int) ch]);
-
-      if (count < (bytes.length -1)) {
-        out.append(":");
-      }
-
-      count++;
-    }
-
-    return new String(out);
+    // Two hex digits per byte with a colon between each pair
+    return Utils.toHex(bytes, ':');
   }
 
   /**
@@ -854,27 +1005,37 @@ public class TrustUtils {
    *
    * @param keyOne PublicKey to compare
    * @param keyTwo PublicKey to compare
-   * @return true if the keys are the same
-   * @throws GuanxiException if an error occurs
+   * @return true if the keys are the same, false if they're the same type of key but differ
+   * @throws GuanxiException if the keys are different types or can't be compared
    */
   public static boolean compareKeys(PublicKey keyOne, PublicKey keyTwo) throws GuanxiException {
     if ((keyOne instanceof DSAPublicKey) && (keyTwo instanceof DSAPublicKey)) {
       DSAPublicKey keyOneDSA = (DSAPublicKey)keyOne;
       DSAPublicKey keyTwoDSA = (DSAPublicKey)keyTwo;
-      if (keyOneDSA.getY().equals(keyTwoDSA.getY()) &&
-          keyOneDSA.getParams().getG().equals(keyTwoDSA.getParams().getG()) &&
-          keyOneDSA.getParams().getP().equals(keyTwoDSA.getParams().getP()) &&
-          keyOneDSA.getParams().getQ().equals(keyTwoDSA.getParams().getQ())) {
-        return true;
-      }
+      return (keyOneDSA.getY().equals(keyTwoDSA.getY()) &&
+              keyOneDSA.getParams().getG().equals(keyTwoDSA.getParams().getG()) &&
+              keyOneDSA.getParams().getP().equals(keyTwoDSA.getParams().getP()) &&
+              keyOneDSA.getParams().getQ().equals(keyTwoDSA.getParams().getQ()));
     }
     else if ((keyOne instanceof RSAPublicKey) && (keyTwo instanceof RSAPublicKey)) {
       RSAPublicKey keyOneRSA = (RSAPublicKey)keyOne;
       RSAPublicKey keyTwoRSA = (RSAPublicKey)keyTwo;
-      if (keyOneRSA.getPublicExponent().equals(keyTwoRSA.getPublicExponent()) &&
-          keyOneRSA.getModulus().equals(keyTwoRSA.getModulus())) {
-        return true;
-      }
+      return (keyOneRSA.getPublicExponent().equals(keyTwoRSA.getPublicExponent()) &&
+              keyOneRSA.getModulus().equals(keyTwoRSA.getModulus()));
+    }
+    else if ((keyOne instanceof ECPublicKey) && (keyTwo instanceof ECPublicKey)) {
+      ECPublicKey keyOneEC = (ECPublicKey)keyOne;
+      ECPublicKey keyTwoEC = (ECPublicKey)keyTwo;
+      return (keyOneEC.getW().equals(keyTwoEC.getW()) &&
+              keyOneEC.getParams().getCurve().equals(keyTwoEC.getParams().getCurve()) &&
+              keyOneEC.getParams().getGenerator().equals(keyTwoEC.getParams().getGenerator()) &&
+              keyOneEC.getParams().getOrder().equals(keyTwoEC.getParams().getOrder()) &&
+              (keyOneEC.getParams().getCofactor() == keyTwoEC.getParams().getCofactor()));
+    }
+    else if ((keyOne.getAlgorithm().equals(keyTwo.getAlgorithm())) &&
+             ("X.509".equals(keyOne.getFormat())) && ("X.509".equals(keyTwo.getFormat()))) {
+      // Providers that don't expose the key parameters, e.g. older BouncyCastle EC keys
+      return Arrays.equals(keyOne.getEncoded(), keyTwo.getEncoded());
     }
     throw new GuanxiException("Unsupported PublicKey type");
   }
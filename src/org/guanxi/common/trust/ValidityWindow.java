@@ -0,0 +1,81 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.trust;
+
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+/**
+ * The period a key in metadata is usable for, i.e. from the earliest notBefore to
+ * the latest notAfter of the metadata certificates carrying it. A key that's been
+ * reissued in a new certificate is usable for as long as any of its certificates.
+ *
+ * @author alistair
+ */
+public class ValidityWindow {
+  /** Start of the window, in milliseconds */
+  private final long notBefore;
+  /** End of the window, in milliseconds */
+  private final long notAfter;
+
+  /**
+   * Creates a window from a certificate's validity period
+   *
+   * @param x509 the certificate
+   */
+  public ValidityWindow(X509Certificate x509) {
+    this(x509.getNotBefore().getTime(), x509.getNotAfter().getTime());
+  }
+
+  /**
+   * Creates a window
+   *
+   * @param notBefore start of the window, in milliseconds
+   * @param notAfter end of the window, in milliseconds
+   */
+  public ValidityWindow(long notBefore, long notAfter) {
+    this.notBefore = notBefore;
+    this.notAfter = notAfter;
+  }
+
+  /**
+   * Works out the window covering this one and another
+   *
+   * @param other the other window
+   * @return the combined window
+   */
+  public ValidityWindow merge(ValidityWindow other) {
+    return new ValidityWindow(Math.min(notBefore, other.notBefore), Math.max(notAfter, other.notAfter));
+  }
+
+  /**
+   * Determines whether a time is inside the window
+   *
+   * @param time the time, in milliseconds
+   * @return true if the time is inside the window, otherwise false
+   */
+  public boolean contains(long time) {
+    return (time >= notBefore) && (time <= notAfter);
+  }
+
+  public long getNotBefore() { return notBefore; }
+  public long getNotAfter() { return notAfter; }
+
+  public String toString() {
+    return "[" + new Date(notBefore) + " - " + new Date(notAfter) + "]";
+  }
+}
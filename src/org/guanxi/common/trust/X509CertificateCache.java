@@ -0,0 +1,217 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.trust;
+
+import java.io.ByteArrayInputStream;
+import java.security.PublicKey;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide cache of decoded X509 certificates. The same certificate bytes from
+ * metadata and SAML messages turn up on every request from an entity so rather than
+ * run them through a CertificateFactory each time, they're decoded once and looked
+ * up by the SHA-256 Fingerprint of their DER encoding.
+ *
+ * The cache is bounded and evicts the least recently used certificate when it's full.
+ *
+ * @author alistair
+ */
+public class X509CertificateCache {
+  /** The default maximum number of certificates to hold */
+  public static final int DEFAULT_MAX_ENTRIES = 2048;
+
+  /** The cache shared by all of TrustUtils */
+  private static final X509CertificateCache instance = new X509CertificateCache(DEFAULT_MAX_ENTRIES);
+
+  /** CertificateFactory isn't guaranteed to be thread safe so each thread gets its own */
+  private static final ThreadLocal<CertificateFactory> certFactory = new ThreadLocal<CertificateFactory>() {
+    protected CertificateFactory initialValue() {
+      try {
+        return CertificateFactory.getInstance("x.509");
+      }
+      catch(CertificateException ce) {
+        throw new IllegalStateException(ce);
+      }
+    }
+  };
+
+  /** The decoded certificates, in least recently used order */
+  private final LinkedHashMap<Fingerprint, CachedCertificate> certs;
+  /** The maximum number of certificates to hold before evicting */
+  private volatile int maxEntries;
+  /** How many lookups found an already decoded certificate */
+  private final AtomicLong hits = new AtomicLong();
+  /** How many lookups had to decode the certificate */
+  private final AtomicLong misses = new AtomicLong();
+  /** How many certificates have been evicted to make room */
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * Returns the certificate cache shared by the trust code
+   *
+   * @return the process wide X509CertificateCache
+   */
+  public static X509CertificateCache getInstance() {
+    return instance;
+  }
+
+  /**
+   * Creates a new cache
+   *
+   * @param maxEntries the maximum number of certificates to hold
+   */
+  public X509CertificateCache(int maxEntries) {
+    this.maxEntries = maxEntries;
+    certs = new LinkedHashMap<Fingerprint, CachedCertificate>(64, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<Fingerprint, CachedCertificate> eldest) {
+        if (size() > X509CertificateCache.this.maxEntries) {
+          evictions.incrementAndGet();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Returns the decoded form of a DER encoded X509 certificate, decoding it only
+   * if it's not already in the cache.
+   *
+   * @param der the DER encoding of the certificate, e.g. from an X509Certificate node in metadata
+   * @return the decoded certificate and its public key
+   * @throws CertificateException if the bytes can't be decoded
+   */
+  public CachedCertificate getEntry(byte[] der) throws CertificateException {
+    Fingerprint key = Fingerprint.of(der);
+
+    CachedCertificate cached;
+    synchronized(certs) {
+      cached = certs.get(key);
+    }
+    if (cached != null) {
+      hits.incrementAndGet();
+      return cached;
+    }
+
+    // Decode outside the lock so a slow certificate doesn't hold up everyone else
+    misses.incrementAndGet();
+    X509Certificate x509 = (X509Certificate)certFactory.get().generateCertificate(new ByteArrayInputStream(der));
+    CachedCertificate decoded = new CachedCertificate(x509);
+
+    synchronized(certs) {
+      // Another thread may have beaten us to it, in which case use theirs
+      cached = certs.get(key);
+      if (cached == null) {
+        certs.put(key, decoded);
+        cached = decoded;
+      }
+    }
+
+    return cached;
+  }
+
+  /**
+   * Returns the decoded form of a DER encoded X509 certificate
+   *
+   * @param der the DER encoding of the certificate
+   * @return the decoded certificate
+   * @throws CertificateException if the bytes can't be decoded
+   */
+  public X509Certificate getCertificate(byte[] der) throws CertificateException {
+    return getEntry(der).getCertificate();
+  }
+
+  /**
+   * Returns the public key of a DER encoded X509 certificate
+   *
+   * @param der the DER encoding of the certificate
+   * @return the public key from the certificate
+   * @throws CertificateException if the bytes can't be decoded
+   */
+  public PublicKey getPublicKey(byte[] der) throws CertificateException {
+    return getEntry(der).getPublicKey();
+  }
+
+  /**
+   * Sets the maximum number of certificates to hold. If the cache is already bigger
+   * than this it will shrink as new certificates are added.
+   *
+   * @param maxEntries the maximum number of certificates to hold
+   */
+  public void setMaxEntries(int maxEntries) {
+    this.maxEntries = maxEntries;
+  }
+
+  public int getMaxEntries() { return maxEntries; }
+
+  /**
+   * Returns the number of certificates currently in the cache
+   *
+   * @return number of cached certificates
+   */
+  public int size() {
+    synchronized(certs) {
+      return certs.size();
+    }
+  }
+
+  /**
+   * Empties the cache. The statistics are left alone.
+   */
+  public void clear() {
+    synchronized(certs) {
+      certs.clear();
+    }
+  }
+
+  public long getHits() { return hits.get(); }
+  public long getMisses() { return misses.get(); }
+  public long getEvictions() { return evictions.get(); }
+
+  /**
+   * Summary of the cache statistics, suitable for logging
+   *
+   * @return the statistics as a String
+   */
+  public String toString() {
+    return "X509CertificateCache[size=" + size() + ", max=" + maxEntries + ", hits=" + hits.get() +
+           ", misses=" + misses.get() + ", evictions=" + evictions.get() + "]";
+  }
+
+  /**
+   * A decoded certificate along with its already parsed public key
+   */
+  public static class CachedCertificate {
+    /** The decoded certificate */
+    private final X509Certificate certificate;
+    /** The certificate's public key */
+    private final PublicKey publicKey;
+
+    CachedCertificate(X509Certificate certificate) {
+      this.certificate = certificate;
+      publicKey = certificate.getPublicKey();
+    }
+
+    public X509Certificate getCertificate() { return certificate; }
+    public PublicKey getPublicKey() { return publicKey; }
+  }
+}
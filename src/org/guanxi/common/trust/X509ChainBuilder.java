@@ -0,0 +1,170 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.trust;
+
+import org.apache.log4j.Logger;
+
+import java.security.GeneralSecurityException;
+import java.security.cert.CertPath;
+import java.security.cert.CertPathValidator;
+import java.security.cert.CertPathValidatorException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.PKIXCertPathValidatorResult;
+import java.security.cert.PKIXParameters;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds a certificate chain from an end entity certificate back to one of the
+ * anchors in a TrustAnchorStore and validates it with PKIX. The intermediate CAs
+ * come from wherever the entity supplied them, such as the X509Data in a signature's
+ * KeyInfo or the certificate chain from a TLS connection, and the chain can be no
+ * longer than the verify depth of the store.
+ *
+ * CertificateFactory and CertPathValidator aren't guaranteed to be thread safe
+ * so each thread keeps its own, rather than creating new ones for every validation.
+ *
+ * @author alistair
+ */
+public class X509ChainBuilder {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(X509ChainBuilder.class.getName());
+  /** The provider to do the PKIX work */
+  private static final String PROVIDER = "BC";
+
+  /** Each thread's CertificateFactory */
+  private static final ThreadLocal<CertificateFactory> certFactory = new ThreadLocal<CertificateFactory>();
+  /** Each thread's CertPathValidator */
+  private static final ThreadLocal<CertPathValidator> pathValidator = new ThreadLocal<CertPathValidator>();
+
+  private X509ChainBuilder() {}
+
+  /**
+   * Builds and validates a chain from a certificate to a trust anchor
+   *
+   * @param x509ToVerify the mystery cert, should we trust it?
+   * @param intermediates certificates that may be intermediate CAs between the cert and
+   *                      an anchor. These aren't trusted, they only help build the chain.
+   *                      The cert itself can be among them.
+   * @param trustAnchors the CA root certs to trust
+   * @return the validated chain, starting with the cert and ending with the anchor,
+   * or null if there's no chain to an anchor that validates
+   */
+  public static X509Certificate[] build(X509Certificate x509ToVerify, X509Certificate[] intermediates,
+                                        TrustAnchorStore trustAnchors) {
+    PKIXParameters pkixParams = trustAnchors.getPKIXParameters();
+    if (pkixParams == null) {
+      return null;
+    }
+
+    List<X509Certificate> path = new ArrayList<X509Certificate>();
+    path.add(x509ToVerify);
+
+    return build(path, intermediates, trustAnchors, pkixParams);
+  }
+
+  /**
+   * Validates a certificate path that's already been put together
+   *
+   * @param path the certificates in the path, starting with the end entity. The anchor isn't included.
+   * @param pkixParams the PKIX settings, including the trust anchors
+   * @return the anchor the path validated against, or null if it didn't validate
+   */
+  public static X509Certificate validatePath(List<X509Certificate> path, PKIXParameters pkixParams) {
+    try {
+      CertPath certPath = getCertificateFactory().generateCertPath(path);
+      PKIXCertPathValidatorResult result = (PKIXCertPathValidatorResult)getCertPathValidator().validate(certPath, pkixParams);
+      return result.getTrustAnchor().getTrustedCert();
+    }
+    catch(CertPathValidatorException cpve) {
+      if (logger.isDebugEnabled()) {
+        logger.debug("Path from " + path.get(0).getSubjectX500Principal() + " did not validate : " + cpve.getMessage());
+      }
+      return null;
+    }
+    catch(GeneralSecurityException gse) {
+      logger.error("Could not validate path from " + path.get(0).getSubjectX500Principal(), gse);
+      return null;
+    }
+  }
+
+  /**
+   * Extends a partial chain one intermediate at a time until it reaches an anchor
+   * that it validates against or it runs out of depth.
+   *
+   * @param path the chain so far, starting with the end entity
+   * @param intermediates the untrusted certificates to build from
+   * @param trustAnchors the CA root certs to trust
+   * @param pkixParams the PKIX settings for the anchors
+   * @return the validated chain including the anchor, or null
+   */
+  private static X509Certificate[] build(List<X509Certificate> path, X509Certificate[] intermediates,
+                                         TrustAnchorStore trustAnchors, PKIXParameters pkixParams) {
+    X509Certificate last = path.get(path.size() - 1);
+
+    // Have we reached an anchor?
+    if (!trustAnchors.getCandidateIssuers(last).isEmpty()) {
+      X509Certificate anchor = validatePath(path, pkixParams);
+      if (anchor != null) {
+        List<X509Certificate> chain = new ArrayList<X509Certificate>(path);
+        chain.add(anchor);
+        return chain.toArray(new X509Certificate[chain.size()]);
+      }
+    }
+
+    // The anchor counts towards the depth, so there's only room for depth - 1 intermediates
+    if ((intermediates == null) || (path.size() >= trustAnchors.getVerifyDepth())) {
+      return null;
+    }
+
+    for (X509Certificate intermediate : intermediates) {
+      if ((intermediate == null) || (path.contains(intermediate))) {
+        continue;
+      }
+
+      if (intermediate.getSubjectX500Principal().equals(last.getIssuerX500Principal())) {
+        path.add(intermediate);
+        X509Certificate[] chain = build(path, intermediates, trustAnchors, pkixParams);
+        if (chain != null) {
+          return chain;
+        }
+        path.remove(path.size() - 1);
+      }
+    }
+
+    return null;
+  }
+
+  private static CertificateFactory getCertificateFactory() throws GeneralSecurityException {
+    CertificateFactory factory = certFactory.get();
+    if (factory == null) {
+      factory = CertificateFactory.getInstance("X.509", PROVIDER);
+      certFactory.set(factory);
+    }
+    return factory;
+  }
+
+  private static CertPathValidator getCertPathValidator() throws GeneralSecurityException {
+    CertPathValidator validator = pathValidator.get();
+    if (validator == null) {
+      validator = CertPathValidator.getInstance("PKIX", PROVIDER);
+      pathValidator.set(validator);
+    }
+    return validator;
+  }
+}
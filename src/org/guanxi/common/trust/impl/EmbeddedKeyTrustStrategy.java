@@ -0,0 +1,93 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.trust.impl;
+
+import org.apache.log4j.Logger;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.metadata.Metadata;
+import org.guanxi.common.metadata.impl.GuanxiSAML2MetadataImpl;
+import org.guanxi.common.trust.EntityKeyIndex;
+import org.guanxi.common.trust.TrustAnchorStore;
+import org.guanxi.common.trust.TrustContext;
+import org.guanxi.common.trust.TrustStrategy;
+import org.guanxi.common.trust.TrustStrategyChain;
+import org.guanxi.common.trust.TrustUtils;
+import org.guanxi.common.trust.ValidityWindow;
+import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
+
+/**
+ * Trusts an entity if the key it presented is embedded in its metadata, i.e.
+ * explicit key validation. The entity's precomputed key index is used if the
+ * metadata handler has one, otherwise the metadata is walked.
+ *
+ * With a key index, a key whose metadata certificates have all expired or aren't
+ * valid yet is logged, or rejected if the strategy's been told to reject them.
+ *
+ * @author alistair
+ */
+public class EmbeddedKeyTrustStrategy implements TrustStrategy {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(EmbeddedKeyTrustStrategy.class.getName());
+
+  /** Whether to reject keys outside their validity window */
+  private boolean rejectExpired = false;
+
+  /** @see org.guanxi.common.trust.TrustStrategy#getName() */
+  public String getName() {
+    return "embedded-key";
+  }
+
+  /** @see org.guanxi.common.trust.TrustStrategy#trust(org.guanxi.common.metadata.Metadata, org.guanxi.common.trust.TrustContext, int, org.guanxi.common.trust.TrustAnchorStore) */
+  public boolean trust(Metadata entityMetadata, TrustContext context, int entityType,
+                       TrustAnchorStore trustAnchors) throws GuanxiException {
+    if (entityMetadata instanceof GuanxiSAML2MetadataImpl) {
+      EntityKeyIndex keyIndex = ((GuanxiSAML2MetadataImpl)entityMetadata).getKeyIndex();
+      if (!TrustUtils.validateEmbeddedKey(keyIndex, context, entityType)) {
+        return false;
+      }
+
+      ValidityWindow window = keyIndex.getValidity(context.getKeyFingerprint());
+      if ((window != null) && (!window.contains(System.currentTimeMillis()))) {
+        if (rejectExpired) {
+          logger.error("Rejecting key for " + entityMetadata.getEntityID() + " outside its validity window " + window);
+          return false;
+        }
+        logger.warn("Key for " + entityMetadata.getEntityID() + " used outside its validity window " + window);
+      }
+
+      return true;
+    }
+
+    return TrustUtils.validateEmbeddedCert((EntityDescriptorType)entityMetadata.getPrivateData(),
+                                           context.getCertificates(), entityType);
+  }
+
+  /**
+   * Sets whether to reject keys whose metadata certificates have all expired or aren't valid yet.
+   * Shibboleth doesn't, so by default they're only logged.
+   *
+   * @param rejectExpired true to reject keys outside their validity window
+   */
+  public void setRejectExpired(boolean rejectExpired) {
+    this.rejectExpired = rejectExpired;
+    TrustStrategyChain.policyChanged();
+  }
+
+  public boolean isRejectExpired() {
+    return rejectExpired;
+  }
+}
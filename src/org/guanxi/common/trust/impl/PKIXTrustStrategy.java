@@ -0,0 +1,69 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.trust.impl;
+
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.metadata.Metadata;
+import org.guanxi.common.metadata.impl.GuanxiSAML2MetadataImpl;
+import org.guanxi.common.trust.TrustAnchorStore;
+import org.guanxi.common.trust.TrustContext;
+import org.guanxi.common.trust.TrustStrategy;
+import org.guanxi.common.trust.TrustUtils;
+import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
+
+import java.security.cert.X509Certificate;
+
+/**
+ * Trusts an entity if its certificate matches one of the KeyNames in its metadata
+ * and chains back to one of the trust engine's CAs. KeyNames are matched with the
+ * entity's precomputed key index if the metadata handler has one, otherwise the
+ * metadata is walked.
+ *
+ * A back channel connection is always matched against the AttributeAuthority
+ * KeyNames, whatever part of the metadata the embedded key was looked for in.
+ *
+ * @author alistair
+ */
+public class PKIXTrustStrategy implements TrustStrategy {
+  /** @see org.guanxi.common.trust.TrustStrategy#getName() */
+  public String getName() {
+    return "pkix";
+  }
+
+  /** @see org.guanxi.common.trust.TrustStrategy#trust(org.guanxi.common.metadata.Metadata, org.guanxi.common.trust.TrustContext, int, org.guanxi.common.trust.TrustAnchorStore) */
+  public boolean trust(Metadata entityMetadata, TrustContext context, int entityType,
+                       TrustAnchorStore trustAnchors) throws GuanxiException {
+    if (context.isConnection()) {
+      entityType = TrustUtils.ENTITY_TYPE_AA;
+    }
+
+    if (entityMetadata instanceof GuanxiSAML2MetadataImpl) {
+      return TrustUtils.validatePKIX(context, ((GuanxiSAML2MetadataImpl)entityMetadata).getKeyIndex(), entityType,
+                                     trustAnchors, entityMetadata.getHostName());
+    }
+
+    X509Certificate[] certs = context.getCertificates();
+
+    EntityDescriptorType saml2Metadata = (EntityDescriptorType)entityMetadata.getPrivateData();
+    if (entityType == TrustUtils.ENTITY_TYPE_SSO) {
+      return TrustUtils.matchCertToKeyName(certs[0], saml2Metadata, entityMetadata.getHostName()) &&
+             TrustUtils.validateCertPath(certs[0], certs, trustAnchors);
+    }
+
+    return TrustUtils.validatePKIXBC(certs, saml2Metadata, trustAnchors, entityMetadata.getHostName());
+  }
+}
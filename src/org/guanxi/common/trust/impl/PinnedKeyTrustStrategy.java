@@ -0,0 +1,73 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.common.trust.impl;
+
+import org.guanxi.common.metadata.Metadata;
+import org.guanxi.common.trust.Fingerprint;
+import org.guanxi.common.trust.TrustAnchorStore;
+import org.guanxi.common.trust.TrustContext;
+import org.guanxi.common.trust.TrustStrategy;
+import org.guanxi.common.trust.TrustStrategyChain;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Trusts an entity if the key it presented is one that's been pinned for it locally,
+ * whatever its metadata says. Pins are the SHA-256 fingerprints of the entity's
+ * SubjectPublicKeyInfo, in hex, and are configured by entityID.
+ *
+ * @author alistair
+ */
+public class PinnedKeyTrustStrategy implements TrustStrategy {
+  /** The pinned key fingerprints for each entity */
+  private volatile Map<String, Set<Fingerprint>> pins = Collections.emptyMap();
+
+  /** @see org.guanxi.common.trust.TrustStrategy#getName() */
+  public String getName() {
+    return "pinned-key";
+  }
+
+  /** @see org.guanxi.common.trust.TrustStrategy#trust(org.guanxi.common.metadata.Metadata, org.guanxi.common.trust.TrustContext, int, org.guanxi.common.trust.TrustAnchorStore) */
+  public boolean trust(Metadata entityMetadata, TrustContext context, int entityType, TrustAnchorStore trustAnchors) {
+    Set<Fingerprint> entityPins = pins.get(entityMetadata.getEntityID());
+    return (entityPins != null) && (entityPins.contains(context.getKeyFingerprint()));
+  }
+
+  /**
+   * Sets the pinned keys
+   *
+   * @param pins the hex SHA-256 fingerprints of the pinned keys for each entityID.
+   *             Colons between the bytes are allowed.
+   */
+  public void setPins(Map<String, List<String>> pins) {
+    Map<String, Set<Fingerprint>> parsed = new HashMap<String, Set<Fingerprint>>();
+    for (Map.Entry<String, List<String>> entry : pins.entrySet()) {
+      Set<Fingerprint> entityPins = new HashSet<Fingerprint>();
+      for (String pin : entry.getValue()) {
+        entityPins.add(Fingerprint.fromHex(Fingerprint.SHA256, pin));
+      }
+      parsed.put(entry.getKey(), entityPins);
+    }
+    this.pins = parsed;
+    TrustStrategyChain.policyChanged();
+  }
+}
@@ -17,14 +17,25 @@
 package org.guanxi.common.trust.impl;
 
 import org.guanxi.common.metadata.Metadata;
+import org.guanxi.common.metadata.impl.GuanxiSAML2MetadataImpl;
 import org.guanxi.common.GuanxiException;
+import org.guanxi.common.trust.ReplayCache;
+import org.guanxi.common.trust.TrustContext;
+import org.guanxi.common.trust.TrustDecisionCache;
+import org.guanxi.common.trust.TrustStrategy;
+import org.guanxi.common.trust.TrustStrategyChain;
 import org.guanxi.common.trust.TrustUtils;
 import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
+import org.guanxi.xal.saml_1_0.assertion.AssertionType;
 import org.guanxi.xal.saml_1_0.protocol.ResponseDocument;
+import org.guanxi.xal.saml_1_0.protocol.ResponseType;
 import org.apache.xml.security.Init;
 import org.apache.log4j.Logger;
 
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
 
 /**
  * TrustEngine implementation that implements the rules of a Shibboleth federation such
@@ -36,11 +47,26 @@ public class ShibbolethTrustEngineImpl extends SimpleTrustEngine {
   /** Our logger */
   private static final Logger logger = Logger.getLogger(ShibbolethTrustEngineImpl.class.getName());
 
+  /** The Responses already accepted. If this is null, replays aren't checked for */
+  private ReplayCache replayCache = null;
+  /** The back channel trust decisions already made. If this is null, every connection is validated in full */
+  private TrustDecisionCache decisionCache = null;
+  /** The policy generation of the strategies the cached decisions were made under */
+  private volatile long decisionPolicyGeneration = TrustStrategyChain.getPolicyGeneration();
+  /** The ways an entity can be trusted, tried in turn */
+  private TrustStrategyChain strategyChain = null;
+
   public ShibbolethTrustEngineImpl() {
     super();
 
     // Initialise the Apache security engine
     Init.init();
+
+    // Explicit key validation first as it's the cheapest, then PKIX
+    List<TrustStrategy> strategies = new ArrayList<TrustStrategy>();
+    strategies.add(new EmbeddedKeyTrustStrategy());
+    strategies.add(new PKIXTrustStrategy());
+    strategyChain = new TrustStrategyChain(strategies);
   }
 
   /** @see org.guanxi.common.trust.TrustEngine#trustEntity(org.guanxi.common.metadata.Metadata, Object)
@@ -55,28 +81,34 @@ public class ShibbolethTrustEngineImpl extends SimpleTrustEngine {
       // Entity data is the SAML Response from the IdP
       ResponseDocument samlResponse = (ResponseDocument)entityData;
 
+      // The Response is converted and its certificates decoded once, for all the checks
+      TrustContext context = TrustContext.forMessage(samlResponse);
+
       // First thing is check to see if the signature verifies
-      if (!TrustUtils.verifySignature(samlResponse)) {
+      if (!TrustUtils.verifySignature(context)) {
         logger.error("IdP signature failed validation");
         return false;
       }
 
-      // Validation via embedded certificates
-      X509Certificate x509CertFromSig = TrustUtils.getX509CertFromSignature(samlResponse);
-      if (TrustUtils.validateEmbeddedCert(saml2Metadata, new X509Certificate[] {x509CertFromSig}, TrustUtils.ENTITY_TYPE_SSO)) {
-        return true;
-      }
-
-      // Validation via PKIX
-      if (TrustUtils.validatePKIX((ResponseDocument)entityData, saml2Metadata, caCerts, entityMetadata.getHostName())) {
-        return true;
+      // Validation via the strategies, by default embedded certificates or failing that, PKIX
+      if (strategyChain.trust(entityMetadata, context, TrustUtils.ENTITY_TYPE_SSO, getTrustAnchors())) {
+        // Only a trusted Response counts, otherwise anyone could block a real one by sending a fake first
+        return !isReplay(entityMetadata, samlResponse);
       }
     }
 
     // Back channel connection validation
-    if (entityData instanceof X509Certificate) {
-      // Entity data is the X509 from the connection
-      X509Certificate x509CertFromConnection = (X509Certificate)entityData;
+    if ((entityData instanceof X509Certificate) || (entityData instanceof X509Certificate[])) {
+      /* Entity data is the X509 from the connection or the whole chain from
+       * EntityConnection.getServerCertChain, which may include intermediate CAs
+       */
+      TrustContext context;
+      if (entityData instanceof X509Certificate) {
+        context = TrustContext.forConnection(new X509Certificate[] {(X509Certificate)entityData});
+      }
+      else {
+        context = TrustContext.forConnection((X509Certificate[])entityData);
+      }
 
       /* SAML2 Web Browser SSO metadata may not have an AttributeAuthorityDescriptor.
        * In this case the cert will be in the IdPSSODescriptor.
@@ -89,14 +121,136 @@ public class ShibbolethTrustEngineImpl extends SimpleTrustEngine {
         entityType = TrustUtils.ENTITY_TYPE_SSO;
       }
 
-      if (!TrustUtils.validateEmbeddedCert(saml2Metadata, new X509Certificate[] {x509CertFromConnection}, entityType)) {
-        return TrustUtils.validatePKIXBC(x509CertFromConnection, saml2Metadata, caCerts, entityMetadata.getHostName());
+      // The same AA presents the same certificate on every attribute query
+      if ((decisionCache != null) && (entityMetadata instanceof GuanxiSAML2MetadataImpl)) {
+        // A decision made before a strategy's policy changed may not be made now
+        long policyGeneration = TrustStrategyChain.getPolicyGeneration();
+        if (policyGeneration != decisionPolicyGeneration) {
+          decisionCache.clear();
+          decisionPolicyGeneration = policyGeneration;
+        }
+
+        long metadataVersion = ((GuanxiSAML2MetadataImpl)entityMetadata).getVersion();
+        long trustGeneration = getGeneration();
+        // PKIX depends on the host name and any intermediates as well as the entity's certificate
+        String hostName = entityMetadata.getHostName();
+        Boolean trusted = decisionCache.get(entityMetadata.getEntityID(), hostName, context.getChainFingerprint(),
+                                            metadataVersion, trustGeneration);
+        if (trusted == null) {
+          trusted = Boolean.valueOf(strategyChain.trust(entityMetadata, context, entityType, getTrustAnchors()));
+          if (TrustStrategyChain.getPolicyGeneration() == policyGeneration) {
+            decisionCache.put(entityMetadata.getEntityID(), hostName, context.getChainFingerprint(), metadataVersion,
+                              trustGeneration, trusted.booleanValue(), context.getCertificate().getNotAfter().getTime());
+          }
+        }
+        return trusted.booleanValue();
       }
 
-      return true;
+      return strategyChain.trust(entityMetadata, context, entityType, getTrustAnchors());
     }
 
 
     return false;
   }
+
+  /**
+   * Checks whether a trusted Response, or any of the assertions in it, has been
+   * accepted before and if not, remembers them. They're remembered until the first
+   * of the assertions expires.
+   *
+   * @param entityMetadata the Metadata for the IdP that issued the Response
+   * @param samlResponse the Response
+   * @return true if the Response is a replay, otherwise false
+   */
+  private boolean isReplay(Metadata entityMetadata, ResponseDocument samlResponse) {
+    if (replayCache == null) {
+      return false;
+    }
+
+    // Response/@ResponseID followed by the Assertion/@AssertionID of its assertions
+    ResponseType response = samlResponse.getResponse();
+    AssertionType[] assertions = response.getAssertionArray();
+    String[] messageIDs = new String[assertions.length + 1];
+    long notOnOrAfter = 0;
+    messageIDs[0] = response.getResponseID();
+    for (int c=0; c < assertions.length; c++) {
+      messageIDs[c + 1] = assertions[c].getAssertionID();
+      if (assertions[c].getConditions() != null) {
+        notOnOrAfter = earliest(notOnOrAfter, assertions[c].getConditions().getNotOnOrAfter());
+      }
+    }
+
+    if (replayCache.isReplay(entityMetadata.getEntityID(), messageIDs, notOnOrAfter)) {
+      logger.error("Replayed Response " + messageIDs[0] + " from " + entityMetadata.getEntityID());
+      return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * Works out which of two expiry times comes first
+   *
+   * @param notOnOrAfter the earliest expiry so far, in milliseconds, or 0 if there isn't one
+   * @param conditionsNotOnOrAfter an assertion's Conditions/@NotOnOrAfter, which can be null
+   * @return the earlier of the two, or 0 if neither says
+   */
+  private static long earliest(long notOnOrAfter, Calendar conditionsNotOnOrAfter) {
+    if (conditionsNotOnOrAfter == null) {
+      return notOnOrAfter;
+    }
+    long assertionNotOnOrAfter = conditionsNotOnOrAfter.getTimeInMillis();
+    return ((notOnOrAfter == 0) || (assertionNotOnOrAfter < notOnOrAfter)) ? assertionNotOnOrAfter : notOnOrAfter;
+  }
+
+  /**
+   * Sets the cache of accepted Responses. Once this is set, a Response is only
+   * trusted the first time it or any of its assertions is seen.
+   *
+   * @param replayCache the cache of accepted Responses, or null to stop checking for replays
+   */
+  public void setReplayCache(ReplayCache replayCache) {
+    this.replayCache = replayCache;
+  }
+
+  public ReplayCache getReplayCache() {
+    return replayCache;
+  }
+
+  /**
+   * Sets the cache of back channel trust decisions. There's no cache unless one is
+   * set here, so by default every connection is validated in full. The cache is
+   * emptied, as its decisions may have been made by other strategies. It's emptied
+   * again whenever a strategy calls TrustStrategyChain.policyChanged.
+   *
+   * @param decisionCache the cache of trust decisions, or null to validate every connection in full
+   */
+  public void setDecisionCache(TrustDecisionCache decisionCache) {
+    if (decisionCache != null) {
+      decisionCache.clear();
+    }
+    this.decisionCache = decisionCache;
+  }
+
+  public TrustDecisionCache getDecisionCache() {
+    return decisionCache;
+  }
+
+  /**
+   * Sets the ways an entity can be trusted. By default these are explicit key
+   * validation followed by PKIX.
+   *
+   * @param strategyChain the trust strategies to try
+   */
+  public void setStrategyChain(TrustStrategyChain strategyChain) {
+    this.strategyChain = strategyChain;
+    // Decisions made by the old strategies don't count
+    if (decisionCache != null) {
+      decisionCache.clear();
+    }
+  }
+
+  public TrustStrategyChain getStrategyChain() {
+    return strategyChain;
+  }
 }
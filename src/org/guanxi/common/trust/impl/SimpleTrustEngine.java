@@ -16,10 +16,27 @@
 
 package org.guanxi.common.trust.impl;
 
+import org.apache.log4j.Logger;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.metadata.Metadata;
 import org.guanxi.common.trust.TrustEngine;
+import org.guanxi.common.trust.TrustAnchorStore;
+import org.guanxi.common.trust.TrustRequest;
+import org.guanxi.common.trust.TrustResult;
 
+import java.security.cert.PKIXCertPathChecker;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Abstract TrustEngine for more specialised implementations to use
@@ -27,31 +44,276 @@ import java.util.Vector;
  * @author alistair
  */
 public abstract class SimpleTrustEngine implements TrustEngine {
-  /** The CA store used for trust anchors */
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(SimpleTrustEngine.class.getName());
+  /** Source of generation numbers for all trust engines */
+  private static final AtomicLong generations = new AtomicLong();
+
+  /** The CA store used for trust anchors. This is replaced, never modified, whenever the CAs change
+   *  so readers don't need to lock */
+  private volatile TrustAnchorStore trustAnchors = null;
+  /**
+   * The CA certs used as trust anchors. This is replaced whenever the CAs change. Adding,
+   * removing or clearing certs goes through to the engine but anything else changes only
+   * this copy.
+   *
+   * @deprecated use getCACerts, getTrustAnchors or the methods that change the CAs
+   */
+  @Deprecated
   protected Vector<X509Certificate> caCerts = null;
+  /** Checks certificates haven't been revoked, or null if they're not checked */
+  private volatile PKIXCertPathChecker revocationChecker = null;
+  /** Runs batch and asynchronous checks. If this is null they're run in the caller's thread */
+  private volatile ExecutorService executor = null;
 
   /**
    * Default constructor
    */
   protected SimpleTrustEngine() {
     // New CA store
-    caCerts = new Vector<X509Certificate>();
+    publish(new TrustAnchorStore(new ArrayList<X509Certificate>(), generations.incrementAndGet()));
   }
 
   /** @see org.guanxi.common.trust.TrustEngine#addCACert(java.security.cert.X509Certificate) */
-  public void addCACert(X509Certificate x509CACert) {
+  public synchronized void addCACert(X509Certificate x509CACert) {
+    List<X509Certificate> caCerts = new ArrayList<X509Certificate>(Arrays.asList(trustAnchors.getCertificates()));
     caCerts.add(x509CACert);
+    publish(new TrustAnchorStore(caCerts, trustAnchors.getVerifyDepth(), revocationChecker,
+                                 generations.incrementAndGet()));
+  }
+
+  /** @see org.guanxi.common.trust.TrustEngine#setCACerts(java.util.Collection, int) */
+  public synchronized void setCACerts(Collection<X509Certificate> caCerts, int verifyDepth) {
+    publish(new TrustAnchorStore(caCerts, verifyDepth, revocationChecker, generations.incrementAndGet()));
+  }
+
+  /** @see org.guanxi.common.trust.TrustEngine#setVerifyDepth(int) */
+  public synchronized void setVerifyDepth(int verifyDepth) {
+    if (verifyDepth != trustAnchors.getVerifyDepth()) {
+      publish(new TrustAnchorStore(Arrays.asList(trustAnchors.getCertificates()), verifyDepth,
+                                   revocationChecker, generations.incrementAndGet()));
+    }
   }
 
   /** @see org.guanxi.common.trust.TrustEngine#getCACerts()  */
   public X509Certificate[] getCACerts() {
-    X509Certificate[] x509CACerts = new X509Certificate[caCerts.size()];
-    caCerts.copyInto(x509CACerts);
-    return x509CACerts;
+    return trustAnchors.getCertificates();
   }
 
   /** @see org.guanxi.common.trust.TrustEngine#reset() */
-  public void reset() {
-    caCerts.clear();
+  public synchronized void reset() {
+    publish(new TrustAnchorStore(new ArrayList<X509Certificate>(), TrustAnchorStore.DEFAULT_VERIFY_DEPTH,
+                                 revocationChecker, generations.incrementAndGet()));
+  }
+
+  /** @see org.guanxi.common.trust.TrustEngine#setRevocationChecker(java.security.cert.PKIXCertPathChecker) */
+  public synchronized void setRevocationChecker(PKIXCertPathChecker revocationChecker) {
+    this.revocationChecker = revocationChecker;
+    publish(new TrustAnchorStore(Arrays.asList(trustAnchors.getCertificates()), trustAnchors.getVerifyDepth(),
+                                 revocationChecker, generations.incrementAndGet()));
+  }
+
+  public PKIXCertPathChecker getRevocationChecker() {
+    return revocationChecker;
+  }
+
+  /**
+   * Returns the current CA store. The store never changes so callers should get it
+   * once and use it for the whole of a trust decision.
+   *
+   * @return the CA store used for trust anchors
+   */
+  public TrustAnchorStore getTrustAnchors() {
+    return trustAnchors;
+  }
+
+  /**
+   * Generations are never reused, even across trust engines.
+   *
+   * @see org.guanxi.common.trust.TrustEngine#getGeneration()
+   */
+  public long getGeneration() {
+    return trustAnchors.getGeneration();
+  }
+
+  /** @see org.guanxi.common.trust.TrustEngine#trustEntities(java.util.List) */
+  public List<TrustResult> trustEntities(List<TrustRequest> requests) {
+    List<TrustResult> results = new ArrayList<TrustResult>(requests.size());
+
+    ExecutorService executor = this.executor;
+    if (executor == null) {
+      for (TrustRequest request : requests) {
+        results.add(check(request));
+      }
+      return results;
+    }
+
+    // Fan the requests out then collect the results in the order they were asked for
+    List<Future<TrustResult>> pending = new ArrayList<Future<TrustResult>>(requests.size());
+    for (TrustRequest request : requests) {
+      pending.add(executor.submit(new TrustCheck(request)));
+    }
+
+    for (int c=0; c < requests.size(); c++) {
+      results.add(getResult(requests.get(c), pending.get(c)));
+    }
+
+    return results;
+  }
+
+  /** @see org.guanxi.common.trust.TrustEngine#trustEntityAsync(org.guanxi.common.metadata.Metadata, Object) */
+  public Future<TrustResult> trustEntityAsync(Metadata entityMetadata, Object entityData) {
+    TrustCheck trustCheck = new TrustCheck(new TrustRequest(entityMetadata, entityData));
+
+    ExecutorService executor = this.executor;
+    if (executor == null) {
+      FutureTask<TrustResult> task = new FutureTask<TrustResult>(trustCheck);
+      task.run();
+      return task;
+    }
+
+    return executor.submit(trustCheck);
+  }
+
+  /**
+   * Sets what runs batch and asynchronous checks, e.g. a fixed thread pool or a
+   * ForkJoinPool. The engine doesn't shut it down.
+   *
+   * @param executor the executor or null to run checks in the caller's thread
+   */
+  public void setExecutor(ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  public ExecutorService getExecutor() {
+    return executor;
+  }
+
+  /**
+   * Checks one entity, turning any error into a result
+   *
+   * @param request the entity to check
+   * @return the result of the check
+   */
+  private TrustResult check(TrustRequest request) {
+    try {
+      return new TrustResult(request, trustEntity(request.getEntityMetadata(), request.getEntityData()));
+    }
+    catch(GuanxiException ge) {
+      return new TrustResult(request, ge);
+    }
+    catch(RuntimeException re) {
+      logger.error("Error checking trust of " + getEntityID(request), re);
+      return new TrustResult(request, new GuanxiException(re));
+    }
+  }
+
+  /**
+   * Waits for the result of a check that's been handed to the executor
+   *
+   * @param request the entity being checked
+   * @param pending the pending check
+   * @return the result of the check
+   */
+  private TrustResult getResult(TrustRequest request, Future<TrustResult> pending) {
+    try {
+      return pending.get();
+    }
+    catch(InterruptedException ie) {
+      // Leave the rest to finish on their own and let the caller know it was interrupted
+      Thread.currentThread().interrupt();
+      return new TrustResult(request, new GuanxiException(ie));
+    }
+    catch(ExecutionException ee) {
+      return new TrustResult(request, new GuanxiException(ee.getCause()));
+    }
+  }
+
+  /**
+   * Makes a new CA store the one used for trust anchors
+   *
+   * @param store the new CA store
+   */
+  @SuppressWarnings("deprecation")
+  private void publish(TrustAnchorStore store) {
+    trustAnchors = store;
+    caCerts = new CACertView(store.getCertificates());
+  }
+
+  /**
+   * Removes a CA cert from the trust anchors
+   *
+   * @param x509CACert the CA cert to remove
+   * @return true if it was one of the trust anchors, otherwise false
+   */
+  private synchronized boolean removeCACert(Object x509CACert) {
+    List<X509Certificate> caCerts = new ArrayList<X509Certificate>(Arrays.asList(trustAnchors.getCertificates()));
+    if (!caCerts.remove(x509CACert)) {
+      return false;
+    }
+    setCACerts(caCerts, trustAnchors.getVerifyDepth());
+    return true;
+  }
+
+  private static String getEntityID(TrustRequest request) {
+    return (request.getEntityMetadata() == null) ? null : request.getEntityMetadata().getEntityID();
+  }
+
+  /**
+   * The CA certs as they were in the old caCerts field, for subclasses that still use it
+   */
+  private class CACertView extends Vector<X509Certificate> {
+    private static final long serialVersionUID = 1L;
+
+    CACertView(X509Certificate[] x509CACerts) {
+      super(Arrays.asList(x509CACerts));
+    }
+
+    public boolean add(X509Certificate x509CACert) {
+      addCACert(x509CACert);
+      return true;
+    }
+
+    public void addElement(X509Certificate x509CACert) {
+      addCACert(x509CACert);
+    }
+
+    public boolean addAll(Collection<? extends X509Certificate> x509CACerts) {
+      for (X509Certificate x509CACert : x509CACerts) {
+        addCACert(x509CACert);
+      }
+      return !x509CACerts.isEmpty();
+    }
+
+    public boolean remove(Object x509CACert) {
+      return removeCACert(x509CACert);
+    }
+
+    public boolean removeElement(Object x509CACert) {
+      return removeCACert(x509CACert);
+    }
+
+    public void clear() {
+      reset();
+    }
+
+    public void removeAllElements() {
+      reset();
+    }
+  }
+
+  /**
+   * A trust check to run on the executor
+   */
+  private class TrustCheck implements Callable<TrustResult> {
+    private final TrustRequest request;
+
+    TrustCheck(TrustRequest request) {
+      this.request = request;
+    }
+
+    public TrustResult call() {
+      return check(request);
+    }
   }
 }
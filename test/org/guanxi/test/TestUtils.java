@@ -5,16 +5,46 @@ package org.guanxi.test;
 
 import static org.junit.Assert.assertEquals;
 
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.Date;
 import java.util.Map;
 import java.util.Random;
 
+import javax.security.auth.x500.X500Principal;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.xml.security.c14n.Canonicalizer;
+import org.apache.xml.security.transforms.params.InclusiveNamespaces;
+import org.apache.xml.security.signature.XMLSignature;
+import org.apache.xml.security.transforms.Transforms;
+
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.X509Extensions;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.x509.X509V2CRLGenerator;
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorDocument;
+import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
+import org.guanxi.xal.saml_2_0.metadata.KeyDescriptorType;
+import org.guanxi.xal.saml_2_0.metadata.RoleDescriptorType;
 import org.junit.ComparisonFailure;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 
 /**
  * @author matthew
  *
  */
 public class TestUtils {
+    /** The SAML2 protocol namespace */
+    private static final String SAML2_PROTOCOL_NS = "urn:oasis:names:tc:SAML:2.0:protocol";
+
     public static final Random random = new Random(System.currentTimeMillis());
     /**
      * This is a list of all the printable characters that I can type on
@@ -63,4 +93,234 @@ public class TestUtils {
             assertEquals("Differing values for key '" + key.toString() + "'", expected.get(key), actual.get(key));
         }
     }
+
+    /**
+     * This generates a key pair for use in test certificates.
+     * 
+     * @param algorithm RSA, DSA or EC
+     * @return a new key pair
+     * @throws Exception if the key pair can't be generated
+     */
+    public static KeyPair generateKeyPair(String algorithm) throws Exception {
+        KeyPairGenerator keyGen;
+        
+        keyGen = KeyPairGenerator.getInstance(algorithm, "BC");
+        keyGen.initialize(algorithm.equals("EC") ? 256 : 1024);
+        return keyGen.generateKeyPair();
+    }
+    
+    /**
+     * This generates an X509 certificate in the same way as SecUtils does.
+     * The BouncyCastle provider must be installed.
+     * 
+     * @param subjectDN the DN of the certificate subject
+     * @param subjectKey the public key to certify
+     * @param issuerDN the DN of the issuer, the same as subjectDN for a self signed certificate
+     * @param issuerKey the private key of the issuer
+     * @param notBefore start of the validity period
+     * @param notAfter end of the validity period
+     * @return the certificate
+     * @throws Exception if the certificate can't be generated
+     */
+    public static X509Certificate generateCertificate(String subjectDN, PublicKey subjectKey,
+                                                      String issuerDN, PrivateKey issuerKey,
+                                                      Date notBefore, Date notAfter) throws Exception {
+        return generateCertificate(subjectDN, subjectKey, issuerDN, issuerKey, notBefore, notAfter, false);
+    }
+    
+    /**
+     * This generates an X509 certificate for an intermediate CA, valid from ten minutes
+     * ago for a day. The BouncyCastle provider must be installed.
+     * 
+     * @param subjectDN the DN of the CA
+     * @param subjectKey the public key of the CA
+     * @param issuerDN the DN of the CA above it
+     * @param issuerKey the private key of the CA above it
+     * @return the certificate
+     * @throws Exception if the certificate can't be generated
+     */
+    public static X509Certificate generateCACertificate(String subjectDN, PublicKey subjectKey,
+                                                        String issuerDN, PrivateKey issuerKey) throws Exception {
+        long now;
+        
+        now = System.currentTimeMillis();
+        return generateCertificate(subjectDN, subjectKey, issuerDN, issuerKey,
+                                   new Date(now - (10 * 60 * 1000)), new Date(now + (24 * 60 * 60 * 1000)), true);
+    }
+    
+    private static X509Certificate generateCertificate(String subjectDN, PublicKey subjectKey,
+                                                       String issuerDN, PrivateKey issuerKey,
+                                                       Date notBefore, Date notAfter, boolean ca) throws Exception {
+        X509V3CertificateGenerator x509;
+        
+        x509 = new X509V3CertificateGenerator();
+        x509.setSignatureAlgorithm(issuerKey.getAlgorithm().equals("DSA") ? "SHA1withDSA" :
+                                   issuerKey.getAlgorithm().startsWith("EC") ? "SHA256withECDSA" : "SHA1withRSA");
+        x509.setIssuerDN(new X500Principal(issuerDN));
+        x509.setSubjectDN(new X500Principal(subjectDN));
+        x509.setPublicKey(subjectKey);
+        x509.setNotBefore(notBefore);
+        x509.setNotAfter(notAfter);
+        x509.setSerialNumber(new BigInteger(64, random));
+        if (ca) {
+            x509.addExtension(X509Extensions.BasicConstraints, true, new BasicConstraints(true));
+        }
+        return x509.generate(issuerKey, "BC");
+    }
+    
+    /**
+     * This generates a self signed X509 certificate valid from ten minutes ago for a day.
+     * The BouncyCastle provider must be installed.
+     * 
+     * @param subjectDN the DN of the certificate subject
+     * @param keyPair the key pair to certify and sign with
+     * @return the certificate
+     * @throws Exception if the certificate can't be generated
+     */
+    public static X509Certificate generateSelfSignedCertificate(String subjectDN, KeyPair keyPair) throws Exception {
+        long now;
+        
+        now = System.currentTimeMillis();
+        return generateCertificate(subjectDN, keyPair.getPublic(), subjectDN, keyPair.getPrivate(),
+                                   new Date(now - (10 * 60 * 1000)), new Date(now + (24 * 60 * 60 * 1000)));
+    }
+
+    /**
+     * This generates a CRL issued now, with its next update in a day.
+     * The BouncyCastle provider must be installed.
+     * 
+     * @param issuerDN the DN of the CA issuing the CRL
+     * @param issuerKey the private key of the CA
+     * @param serials the serial numbers of the revoked certificates
+     * @return the CRL
+     * @throws Exception if the CRL can't be generated
+     */
+    public static X509CRL generateCRL(String issuerDN, PrivateKey issuerKey, BigInteger... serials) throws Exception {
+        X509V2CRLGenerator crl;
+        Date now;
+        
+        now = new Date();
+        crl = new X509V2CRLGenerator();
+        crl.setSignatureAlgorithm("SHA1withRSA");
+        crl.setIssuerDN(new X500Principal(issuerDN));
+        crl.setThisUpdate(now);
+        crl.setNextUpdate(new Date(now.getTime() + (24 * 60 * 60 * 1000)));
+        for (BigInteger serial : serials) {
+            crl.addCRLEntry(serial, now, CRLReason.keyCompromise);
+        }
+        return crl.generate(issuerKey, "BC");
+    }
+
+    /**
+     * This creates the SAML2 metadata for an IdP with a single KeyDescriptor
+     * in its IDPSSODescriptor and AttributeAuthorityDescriptor.
+     * 
+     * @param entityID the entityID of the IdP
+     * @param x509 the certificate to embed in the KeyDescriptors, can be null
+     * @param keyNames the KeyNames to add to the KeyDescriptors
+     * @return the metadata for the IdP
+     * @throws Exception if the certificate can't be encoded
+     */
+    public static EntityDescriptorType createIdPMetadata(String entityID, X509Certificate x509, String... keyNames) throws Exception {
+        EntityDescriptorType entityDescriptor;
+        
+        entityDescriptor = EntityDescriptorDocument.Factory.newInstance().addNewEntityDescriptor();
+        entityDescriptor.setEntityID(entityID);
+        addKeyDescriptor(entityDescriptor.addNewIDPSSODescriptor(), x509, keyNames);
+        addKeyDescriptor(entityDescriptor.addNewAttributeAuthorityDescriptor(), x509, keyNames);
+        
+        return entityDescriptor;
+    }
+    
+    private static void addKeyDescriptor(RoleDescriptorType role, X509Certificate x509, String... keyNames) throws Exception {
+        KeyDescriptorType keyDescriptor;
+        
+        keyDescriptor = role.addNewKeyDescriptor();
+        keyDescriptor.addNewKeyInfo();
+        for (String keyName : keyNames) {
+            keyDescriptor.getKeyInfo().addKeyName(keyName);
+        }
+        if (x509 != null) {
+            keyDescriptor.getKeyInfo().addNewX509Data().addX509Certificate(x509.getEncoded());
+        }
+    }
+    
+    /**
+     * This creates a SAML2 Response signed in the same way as SecUtils.saml2Sign does it,
+     * with the certificate in the signature's KeyInfo. xml-security must be initialised.
+     * 
+     * @param responseID the ID of the Response, which the signature refers to
+     * @param keyPair the key pair to sign with
+     * @param x509 the certificate of the key pair
+     * @return the signed Response
+     * @throws Exception if the Response can't be signed
+     */
+    public static Document createSignedSAML2Response(String responseID, KeyPair keyPair, X509Certificate x509) throws Exception {
+        DocumentBuilderFactory dbf;
+        Document doc;
+        Element response;
+        Element issuer;
+        XMLSignature sig;
+        Transforms transforms;
+        
+        dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        doc = dbf.newDocumentBuilder().newDocument();
+        response = doc.createElementNS(SAML2_PROTOCOL_NS, "samlp:Response");
+        response.setAttributeNS("http://www.w3.org/2000/xmlns/", "xmlns:samlp", SAML2_PROTOCOL_NS);
+        response.setAttribute("ID", responseID);
+        response.setAttribute("Version", "2.0");
+        response.setAttribute("IssueInstant", "2010-01-01T00:00:00Z");
+        response.setIdAttribute("ID", true);
+        doc.appendChild(response);
+        issuer = doc.createElementNS("urn:oasis:names:tc:SAML:2.0:assertion", "saml:Issuer");
+        issuer.setAttributeNS("http://www.w3.org/2000/xmlns/", "xmlns:saml", "urn:oasis:names:tc:SAML:2.0:assertion");
+        issuer.setTextContent("urn:example:idp");
+        response.appendChild(issuer);
+        
+        sig = new XMLSignature(doc, "", XMLSignature.ALGO_ID_SIGNATURE_RSA, Canonicalizer.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
+        response.appendChild(sig.getElement());
+        transforms = new Transforms(doc);
+        transforms.addTransform(Transforms.TRANSFORM_ENVELOPED_SIGNATURE);
+        transforms.addTransform(Transforms.TRANSFORM_C14N_EXCL_OMIT_COMMENTS);
+        sig.addDocument("#" + responseID, transforms);
+        sig.addKeyInfo(x509);
+        sig.sign(keyPair.getPrivate());
+        
+        return doc;
+    }
+
+    /**
+     * This signs a metadata aggregate the way federations do, with an enveloped
+     * signature as the first child of the root, exclusive c14n and SHA-256.
+     * The root must have an ID attribute. xml-security must be initialised.
+     * 
+     * @param doc the aggregate, which is signed in place
+     * @param keyPair the key pair to sign with
+     * @param x509 the certificate of the key pair
+     * @param inclusivePrefixes the InclusiveNamespaces PrefixList for the c14n transform, can be null
+     * @return the signed aggregate
+     * @throws Exception if the aggregate can't be signed
+     */
+    public static Document signMetadata(Document doc, KeyPair keyPair, X509Certificate x509, String inclusivePrefixes) throws Exception {
+        Element root;
+        XMLSignature sig;
+        Transforms transforms;
+        
+        root = doc.getDocumentElement();
+        root.setIdAttribute("ID", true);
+        sig = new XMLSignature(doc, "", XMLSignature.ALGO_ID_SIGNATURE_RSA_SHA256, Canonicalizer.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
+        root.insertBefore(sig.getElement(), root.getFirstChild());
+        transforms = new Transforms(doc);
+        transforms.addTransform(Transforms.TRANSFORM_ENVELOPED_SIGNATURE);
+        transforms.addTransform(Transforms.TRANSFORM_C14N_EXCL_OMIT_COMMENTS);
+        if (inclusivePrefixes != null) {
+            transforms.item(1).getElement().appendChild(new InclusiveNamespaces(doc, inclusivePrefixes).getElement());
+        }
+        sig.addDocument("#" + root.getAttribute("ID"), transforms, "http://www.w3.org/2001/04/xmlenc#sha256");
+        sig.addKeyInfo(x509);
+        sig.sign(keyPair.getPrivate());
+        
+        return doc;
+    }
 }
@@ -0,0 +1,105 @@
+package org.guanxi.test.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.StringWriter;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+
+import org.guanxi.common.XMLFactory;
+import org.guanxi.common.trust.SAMLNamespaceContext;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * This tests the XMLFactory, which hands out parsers, transformers and XPath expressions.
+ *
+ * @author alistair
+ */
+public class XMLFactoryTest {
+    private static final String SIGNATURE = "<ds:Signature xmlns:ds=\"http://www.w3.org/2000/09/xmldsig#\">" +
+                                            "<ds:SignedInfo><ds:Reference URI=\"#_response\"/></ds:SignedInfo>" +
+                                            "</ds:Signature>";
+
+    /**
+     * This confirms that a thread reuses its own parser and XPath expressions,
+     * and that they work.
+     */
+    @Test
+    public void testReuse() throws Exception {
+        final DocumentBuilder[] otherThreadBuilder = new DocumentBuilder[1];
+        NamespaceContext namespaces;
+        XPathExpression expression;
+        Document doc;
+        Thread thread;
+
+        namespaces = new SAMLNamespaceContext();
+        expression = XMLFactory.getXPathExpression("//ds:Reference", namespaces);
+        assertSame("XPath expression was compiled twice", expression, XMLFactory.getXPathExpression("//ds:Reference", namespaces));
+
+        doc = XMLFactory.getDocumentBuilder().parse(new ByteArrayInputStream(SIGNATURE.getBytes("UTF-8")));
+        assertEquals("Namespaced XPath didn't match", 1, ((NodeList)expression.evaluate(doc, XPathConstants.NODESET)).getLength());
+        assertSame("Parser was not reused", XMLFactory.getDocumentBuilder(), XMLFactory.getDocumentBuilder());
+
+        thread = new Thread() {
+            public void run() {
+                otherThreadBuilder[0] = XMLFactory.getDocumentBuilder();
+            }
+        };
+        thread.start();
+        thread.join();
+        assertNotSame("Parser was shared between threads", XMLFactory.getDocumentBuilder(), otherThreadBuilder[0]);
+    }
+
+    /**
+     * This confirms that documents with a DTD, which could pull in external entities, are rejected.
+     */
+    @Test(expected = SAXException.class)
+    public void testNoDoctype() throws Exception {
+        String xxe;
+
+        xxe = "<?xml version=\"1.0\"?><!DOCTYPE foo [<!ENTITY xxe SYSTEM \"file:///etc/passwd\">]><foo>&xxe;</foo>";
+        XMLFactory.getDocumentBuilder().parse(new ByteArrayInputStream(xxe.getBytes("UTF-8")));
+    }
+
+    /**
+     * This confirms that the transformers won't load an external DTD.
+     */
+    @Test(expected = TransformerException.class)
+    public void testNoExternalDTD() throws Exception {
+        String external;
+        File dtd;
+        FileWriter out;
+
+        assertTrue("Secure processing is off", XMLFactory.getTransformerFactory().getFeature(XMLConstants.FEATURE_SECURE_PROCESSING));
+
+        // The DTD is there, so the only reason not to load it is that external DTDs are off
+        dtd = File.createTempFile("external", ".dtd");
+        try {
+            out = new FileWriter(dtd);
+            out.write("<!ELEMENT foo EMPTY>");
+            out.close();
+            external = "<?xml version=\"1.0\"?><!DOCTYPE foo SYSTEM \"" + dtd.toURI() + "\"><foo/>";
+            XMLFactory.getTransformer().transform(new StreamSource(new ByteArrayInputStream(external.getBytes("UTF-8"))),
+                                                  new StreamResult(new StringWriter()));
+        }
+        finally {
+            dtd.delete();
+        }
+    }
+}
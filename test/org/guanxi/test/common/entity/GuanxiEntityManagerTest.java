@@ -0,0 +1,147 @@
+package org.guanxi.test.common.entity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.guanxi.common.definitions.Guanxi;
+import org.guanxi.common.entity.impl.GuanxiEntityManagerImpl;
+import org.guanxi.common.metadata.Metadata;
+import org.guanxi.common.metadata.impl.GuanxiSAML2MetadataImpl;
+import org.guanxi.common.trust.CertificateValidityIndex;
+import org.guanxi.test.TestUtils;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * This will test that the entity manager from Guanxi Common publishes
+ * each change to its entities in one go.
+ *
+ * @author alistair
+ */
+public class GuanxiEntityManagerTest {
+    private static final int ENTITIES = 10;
+
+    private static X509Certificate x509;
+    private GuanxiEntityManagerImpl manager;
+
+    @BeforeClass
+    public static void generateCertificate() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        x509 = TestUtils.generateSelfSignedCertificate("CN=idp.example.org", TestUtils.generateKeyPair("RSA"));
+    }
+
+    @AfterClass
+    public static void removeProvider() {
+        Security.removeProvider(Guanxi.BOUNCY_CASTLE_PROVIDER_NAME);
+    }
+
+    @Before
+    public void createManager() {
+        manager = new GuanxiEntityManagerImpl();
+        manager.setEntityHandlerClass(GuanxiSAML2MetadataImpl.class.getName());
+        manager.init();
+    }
+
+    /**
+     * This confirms that replacing all the entities drops the old ones and
+     * that the validity index follows the entities.
+     */
+    @Test
+    public void testReplaceAll() throws Exception {
+        CertificateValidityIndex index;
+        
+        manager.addMetadata(createEntities("old", ENTITIES));
+        index = manager.getValidityIndex();
+        assertSame("Validity index was rebuilt", index, manager.getValidityIndex());
+        
+        manager.replaceAllMetadata(createEntities("new", 1));
+        assertEquals("Wrong number of entities", 1, manager.getEntityIDs().length);
+        assertFalse("Old entity is still handled", manager.handlesEntity("urn:example:old:0"));
+        assertTrue("New entity is not handled", manager.handlesEntity("urn:example:new:0"));
+        assertNotSame("Validity index was not rebuilt", index, manager.getValidityIndex());
+    }
+
+    /**
+     * This confirms that entities which are in every generation are never
+     * missing while the entities are replaced over and over again.
+     */
+    @Test
+    public void testReplaceIsAtomic() throws Exception {
+        final AtomicBoolean replacing = new AtomicBoolean(true);
+        final AtomicInteger missing = new AtomicInteger();
+        Thread reader;
+        
+        manager.replaceAllMetadata(createEntities("idp", ENTITIES));
+        reader = new Thread() {
+            public void run() {
+                while (replacing.get()) {
+                    for (int c=0; c < ENTITIES; c++) {
+                        if (manager.getMetadata("urn:example:idp:" + c) == null) {
+                            missing.incrementAndGet();
+                        }
+                    }
+                    if (manager.getEntityIDs().length != ENTITIES) {
+                        missing.incrementAndGet();
+                    }
+                }
+            }
+        };
+        reader.start();
+        
+        try {
+            for (int c=0; c < 200; c++) {
+                manager.replaceAllMetadata(createEntities("idp", ENTITIES));
+            }
+        }
+        finally {
+            replacing.set(false);
+            reader.join();
+        }
+        
+        assertEquals("Entities went missing during a reload", 0, missing.get());
+    }
+
+    /**
+     * This confirms that entities added and removed one at a time are seen
+     * straight away, along with the validity index.
+     */
+    @Test
+    public void testAddOne() throws Exception {
+        CertificateValidityIndex index;
+        
+        manager.replaceAllMetadata(createEntities("idp", ENTITIES));
+        index = manager.getValidityIndex();
+        
+        for (Metadata entity : createEntities("sp", ENTITIES)) {
+            manager.addMetadata(entity);
+        }
+        assertEquals("Wrong number of entities", ENTITIES * 2, manager.getEntityIDs().length);
+        assertTrue("Added entity is not handled", manager.handlesEntity("urn:example:sp:0"));
+        assertNotSame("Validity index was not rebuilt after an add", index, manager.getValidityIndex());
+        
+        index = manager.getValidityIndex();
+        manager.removeMetadata("urn:example:sp:0");
+        assertFalse("Removed entity is still handled", manager.handlesEntity("urn:example:sp:0"));
+        assertNotSame("Validity index was not rebuilt after a remove", index, manager.getValidityIndex());
+    }
+
+    private Metadata[] createEntities(String type, int count) throws Exception {
+        Metadata[] entities = new Metadata[count];
+        for (int c=0; c < count; c++) {
+            entities[c] = manager.createNewEntityHandler();
+            entities[c].setPrivateData(TestUtils.createIdPMetadata("urn:example:" + type + ":" + c, x509));
+        }
+        return entities;
+    }
+}
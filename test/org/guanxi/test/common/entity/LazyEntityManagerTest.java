@@ -0,0 +1,161 @@
+package org.guanxi.test.common.entity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.guanxi.common.definitions.Guanxi;
+import org.guanxi.common.entity.impl.LazyEntityManagerImpl;
+import org.guanxi.common.metadata.Metadata;
+import org.guanxi.common.metadata.MetadataSnapshot;
+import org.guanxi.common.metadata.impl.GuanxiSAML2MetadataImpl;
+import org.guanxi.common.trust.EntityKeyIndex;
+import org.guanxi.test.TestUtils;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * This will test the entity manager that loads entities from a memory
+ * mapped snapshot when they're asked for, from Guanxi Common.
+ *
+ * @author alistair
+ */
+public class LazyEntityManagerTest {
+    private static final int ENTITIES = 5;
+
+    private static X509Certificate x509;
+    private File snapshotFile;
+    private LazyEntityManagerImpl manager;
+
+    @BeforeClass
+    public static void generateCertificate() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        x509 = TestUtils.generateSelfSignedCertificate("CN=idp.example.org", TestUtils.generateKeyPair("RSA"));
+    }
+
+    @AfterClass
+    public static void removeProvider() {
+        Security.removeProvider(Guanxi.BOUNCY_CASTLE_PROVIDER_NAME);
+    }
+
+    @Before
+    public void createManager() throws Exception {
+        MetadataSnapshot.Writer writer;
+        
+        snapshotFile = File.createTempFile("metadata", ".snapshot");
+        writer = MetadataSnapshot.create(snapshotFile, "http://example.org/metadata.xml");
+        for (int c=0; c < ENTITIES; c++) {
+            writer.addEntity(TestUtils.createIdPMetadata("urn:example:idp:" + c, x509));
+        }
+        writer.commit(false, null);
+        
+        manager = new LazyEntityManagerImpl();
+        manager.setEntityHandlerClass(GuanxiSAML2MetadataImpl.class.getName());
+        manager.setMaxLoaded(2);
+        manager.setSnapshot(MetadataSnapshot.map(snapshotFile));
+    }
+
+    @After
+    public void deleteFile() {
+        // Windows can't delete the file while it's still mapped
+        manager = null;
+        snapshotFile.delete();
+    }
+
+    /**
+     * This confirms that entities are only loaded when they're asked for and
+     * that no more than the maximum are kept.
+     */
+    @Test
+    public void testLoadedOnDemand() throws Exception {
+        Metadata first;
+        
+        assertEquals("Wrong number of entities", ENTITIES, manager.getEntityIDs().length);
+        assertTrue("Entity in the snapshot is not handled", manager.handlesEntity("urn:example:idp:3"));
+        assertEquals("Entities were loaded before they were asked for", 0, manager.getLoads());
+        
+        first = manager.getMetadata("urn:example:idp:0");
+        assertEquals("Wrong entity loaded", "urn:example:idp:0", first.getEntityID());
+        assertSame("Entity was loaded twice", first, manager.getMetadata("urn:example:idp:0"));
+        assertEquals("Wrong number of loads", 1, manager.getLoads());
+        
+        manager.getMetadata("urn:example:idp:1");
+        manager.getMetadata("urn:example:idp:2");
+        assertEquals("Too many entities kept", 2, manager.getLoadedCount());
+        
+        // The first has been dropped so has to be loaded again
+        manager.getMetadata("urn:example:idp:0");
+        assertEquals("Dropped entity was not loaded again", 4, manager.getLoads());
+        assertNull("Unknown entity was found", manager.getMetadata("urn:example:unknown"));
+    }
+
+    /**
+     * This confirms that added metadata takes precedence over the snapshot and
+     * removed entities stay removed.
+     */
+    @Test
+    public void testAddAndRemove() throws Exception {
+        Metadata added;
+        
+        added = manager.createNewEntityHandler();
+        added.setPrivateData(TestUtils.createIdPMetadata("urn:example:idp:0", x509));
+        manager.addMetadata(added);
+        assertSame("Added metadata was not used", added, manager.getMetadata("urn:example:idp:0"));
+        
+        manager.removeMetadata("urn:example:idp:1");
+        assertFalse("Removed entity is still handled", manager.handlesEntity("urn:example:idp:1"));
+        assertNull("Removed entity was loaded", manager.getMetadata("urn:example:idp:1"));
+        assertEquals("Wrong number of entities", ENTITIES - 1, manager.getEntityIDs().length);
+        
+        manager.removeAllMetadata();
+        assertEquals("Entities were left behind", 0, manager.getEntityIDs().length);
+        assertNull("Snapshot was kept", manager.getSnapshot());
+    }
+
+    /**
+     * This confirms that the validity index covers entities that haven't been loaded.
+     */
+    @Test
+    public void testValidityIndex() throws Exception {
+        assertNotNull("Snapshot was not set", manager.getSnapshot());
+        assertEquals("Wrong number of keys indexed", ENTITIES, manager.getValidityIndex().size());
+        assertEquals("Entities were loaded to index them", 0, manager.getLoads());
+    }
+
+    /**
+     * This confirms that an index built while the entities changed isn't kept.
+     */
+    @Test
+    public void testStaleValidityIndex() throws Exception {
+        GuanxiSAML2MetadataImpl added;
+
+        // Remove an entity part way through building the index
+        added = new GuanxiSAML2MetadataImpl() {
+            private boolean removed = false;
+
+            public EntityKeyIndex getKeyIndex() {
+                if (!removed) {
+                    removed = true;
+                    manager.removeMetadata("urn:example:idp:1");
+                }
+                return super.getKeyIndex();
+            }
+        };
+        added.setPrivateData(TestUtils.createIdPMetadata("urn:example:added", x509));
+        manager.addMetadata(added);
+
+        assertEquals("Wrong number of keys indexed", ENTITIES + 1, manager.getValidityIndex().size());
+        assertEquals("Index from before the entities changed was kept", ENTITIES, manager.getValidityIndex().size());
+    }
+}
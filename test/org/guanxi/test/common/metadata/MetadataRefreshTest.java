@@ -0,0 +1,473 @@
+package org.guanxi.test.common.metadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.security.KeyPair;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.xml.security.Init;
+import org.apache.xmlbeans.XmlObject;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.guanxi.common.XMLFactory;
+import org.guanxi.common.definitions.Guanxi;
+import org.guanxi.common.entity.EntityManager;
+import org.guanxi.common.entity.impl.GuanxiEntityManagerImpl;
+import org.guanxi.common.entity.impl.LazyEntityManagerImpl;
+import org.guanxi.common.job.MetadataChanges;
+import org.guanxi.common.job.MetadataValidators;
+import org.guanxi.common.job.SAML2MetadataParserConfig;
+import org.guanxi.common.job.ShibbolethSAML2MetadataParser;
+import org.guanxi.common.metadata.Metadata;
+import org.guanxi.common.metadata.impl.GuanxiSAML2MetadataImpl;
+import org.guanxi.test.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This will test that the metadata parser only downloads and parses metadata
+ * that's changed, against a local HTTP server standing in for a federation.
+ *
+ * @author alistair
+ */
+public class MetadataRefreshTest extends ShibbolethSAML2MetadataParser {
+    private static final String METADATA =
+        "<md:EntitiesDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" Name=\"urn:example:federation\">" +
+        "<md:EntityDescriptor entityID=\"urn:example:idp:%s\"/>" +
+        "</md:EntitiesDescriptor>";
+    
+    private HttpServer server;
+    private File cacheDir;
+    /** What the stand-in currently serves */
+    private volatile String eTag;
+    private volatile String body;
+    /** How many times the stand-in sent the metadata */
+    private volatile int downloads;
+    /** The If-None-Match of the last request */
+    private volatile String ifNoneMatch;
+    /** Whether to keep a snapshot of the metadata */
+    private boolean snapshotting;
+
+    @Before
+    public void startServer() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/metadata.xml", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+                if (eTag.equals(ifNoneMatch)) {
+                    exchange.sendResponseHeaders(304, -1);
+                }
+                else {
+                    byte[] bytes = body.getBytes("UTF-8");
+                    exchange.getResponseHeaders().set("ETag", eTag);
+                    exchange.getResponseHeaders().set("Last-Modified", "Fri, 01 Jan 2010 00:00:00 GMT");
+                    exchange.sendResponseHeaders(200, bytes.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(bytes);
+                    out.close();
+                    downloads++;
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+        
+        cacheDir = new File(System.getProperty("java.io.tmpdir"), "metadata-refresh-" + TestUtils.random.nextInt(Integer.MAX_VALUE));
+        serve("\"v1\"", "one");
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+        File[] files = cacheDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        cacheDir.delete();
+    }
+
+    /**
+     * This confirms that once metadata has been loaded, a refresh that the
+     * source answers with 304 doesn't download or parse it again.
+     */
+    @Test
+    public void testNotModified() throws Exception {
+        refresh();
+        assertFalse("New metadata was treated as unchanged", isMetadataUnchanged());
+        assertNull("Validators were sent with no cache", ifNoneMatch);
+        loadAndCacheEntities();
+        assertEquals("Validators were not saved", "\"v1\"", MetadataValidators.load(config.getMetadataCacheFile()).getETag());
+        
+        refresh();
+        assertEquals("If-None-Match was not sent", "\"v1\"", ifNoneMatch);
+        assertTrue("Unchanged metadata was not spotted", isMetadataUnchanged());
+        assertEquals("Unchanged metadata was downloaded", 1, downloads);
+        assertNull("Unchanged metadata was kept between jobs", doc);
+        
+        // The job can still have the metadata if it needs it
+        loadAndCacheEntities();
+        assertEquals("Unchanged metadata was not loaded from the cache", "urn:example:idp:one", entityDescriptors[0].getEntityID());
+    }
+
+    /**
+     * This confirms that metadata the source says hasn't changed, but which hasn't
+     * been loaded since startup, is loaded from the cache rather than downloaded.
+     */
+    @Test
+    public void testNotModifiedAfterRestart() throws Exception {
+        File restarted;
+        GuanxiEntityManagerImpl manager;
+        
+        snapshotting = true;
+        refresh();
+        loadAndCacheEntities();
+        
+        // Nothing's been loaded from a cache in another directory
+        restarted = new File(cacheDir.getPath() + "-restarted");
+        assertTrue("Could not restart", cacheDir.renameTo(restarted));
+        cacheDir = restarted;
+        
+        refresh();
+        assertEquals("If-None-Match was not sent", "\"v1\"", ifNoneMatch);
+        assertEquals("Unchanged metadata was downloaded", 1, downloads);
+        assertFalse("Metadata that wasn't loaded was treated as unchanged", isMetadataUnchanged());
+        assertNotNull("Snapshot was not loaded", snapshot);
+        
+        manager = new GuanxiEntityManagerImpl();
+        manager.setEntityHandlerClass(GuanxiSAML2MetadataImpl.class.getName());
+        manager.init();
+        assertEquals("Wrong number of entities loaded", 1, loadEntities(manager));
+        
+        refresh();
+        assertTrue("Unchanged metadata was not spotted once it was loaded", isMetadataUnchanged());
+        assertNull("Snapshot was kept between jobs", snapshot);
+    }
+
+    /**
+     * This confirms that changed metadata is downloaded and its new validators saved.
+     */
+    @Test
+    public void testModified() throws Exception {
+        refresh();
+        loadAndCacheEntities();
+        
+        serve("\"v2\"", "two");
+        refresh();
+        assertFalse("Changed metadata was treated as unchanged", isMetadataUnchanged());
+        assertEquals("Changed metadata was not downloaded", 2, downloads);
+        assertEquals("Changed metadata was not loaded", "urn:example:idp:two", entityID());
+        loadAndCacheEntities();
+        assertEquals("New validators were not saved", "\"v2\"", MetadataValidators.load(config.getMetadataCacheFile()).getETag());
+    }
+
+    /**
+     * This confirms that metadata that was downloaded but never accepted is
+     * downloaded again, as its validators weren't saved.
+     */
+    @Test
+    public void testNotAccepted() throws Exception {
+        refresh();
+        assertNotNull("Metadata was not loaded", doc);
+        
+        refresh();
+        assertFalse("Unaccepted metadata was treated as unchanged", isMetadataUnchanged());
+        assertNull("Validators were sent for unaccepted metadata", ifNoneMatch);
+        assertEquals("Metadata was not downloaded again", 2, downloads);
+    }
+
+    /**
+     * This confirms that streamed metadata is loaded into the entity manager,
+     * becomes the cache once it's loaded and isn't downloaded again until it changes.
+     */
+    @Test
+    public void testStreamed() throws Exception {
+        GuanxiEntityManagerImpl manager;
+        
+        refresh(true);
+        assertNull("Streamed metadata was held as a document", doc);
+        assertFalse("Download was cached before it was loaded", new File(config.getMetadataCacheFile()).exists());
+        
+        manager = new GuanxiEntityManagerImpl();
+        manager.setEntityHandlerClass(GuanxiSAML2MetadataImpl.class.getName());
+        manager.init();
+        assertEquals("Wrong number of entities streamed", 1, loadEntities(manager));
+        assertTrue("Streamed entity was not loaded", manager.handlesEntity("urn:example:idp:one"));
+        assertTrue("Streamed metadata was not cached", new File(config.getMetadataCacheFile()).exists());
+        
+        refresh(true);
+        assertTrue("Unchanged streamed metadata was not spotted", isMetadataUnchanged());
+        assertEquals("Unchanged streamed metadata was downloaded", 1, downloads);
+    }
+
+    /**
+     * This confirms that the entity handlers can be built in parallel and are
+     * all added to the entity manager, whether or not the metadata is streamed,
+     * and that each handler has its own document so they don't take turns.
+     */
+    @Test
+    public void testParallelLoad() throws Exception {
+        ExecutorService executor;
+        StringBuilder entities;
+        
+        entities = new StringBuilder();
+        for (int c=0; c < 50; c++) {
+            entities.append("<md:EntityDescriptor entityID=\"urn:example:idp:").append(c).append("\"/>");
+        }
+        body = String.format(METADATA, "first").replace("<md:EntityDescriptor entityID=\"urn:example:idp:first\"/>", entities);
+        
+        executor = Executors.newFixedThreadPool(4);
+        try {
+            for (boolean streaming : new boolean[] {false, true}) {
+                GuanxiEntityManagerImpl manager;
+                
+                refresh(streaming);
+                config.setLoaderExecutor(executor);
+                manager = new GuanxiEntityManagerImpl();
+                manager.setEntityHandlerClass(GuanxiSAML2MetadataImpl.class.getName());
+                manager.init();
+                
+                assertEquals("Wrong number of entities loaded", 50, loadEntities(manager));
+                assertEquals("Not all entities were added", 50, manager.getEntityIDs().length);
+                assertNotNull("Entity handler was not built", manager.getMetadata("urn:example:idp:49"));
+                assertNotSame("Entity handlers share a document",
+                              ((XmlObject)manager.getMetadata("urn:example:idp:0").getPrivateData()).monitor(),
+                              ((XmlObject)manager.getMetadata("urn:example:idp:49").getPrivateData()).monitor());
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * This confirms that when the source can't be reached, the metadata is loaded
+     * from the snapshot rather than the cache file.
+     */
+    @Test
+    public void testSnapshot() throws Exception {
+        GuanxiEntityManagerImpl manager;
+        
+        snapshotting = true;
+        refresh();
+        loadAndCacheEntities();
+        assertTrue("Snapshot was not written", new File(config.getMetadataCacheFile() + SNAPSHOT_EXTENSION).exists());
+        
+        server.stop(0);
+        refresh();
+        assertNotNull("Snapshot was not loaded", snapshot);
+        assertNull("Cache file was parsed", doc);
+        assertFalse("Unsigned snapshot was trusted", verifyMetadataSignature());
+        
+        manager = new GuanxiEntityManagerImpl();
+        manager.setEntityHandlerClass(GuanxiSAML2MetadataImpl.class.getName());
+        manager.init();
+        assertEquals("Wrong number of entities loaded", 1, loadEntities(manager));
+        assertTrue("Entity was not loaded from the snapshot", manager.handlesEntity("urn:example:idp:one"));
+    }
+
+    /**
+     * This confirms that a snapshot of signed metadata is only trusted while the
+     * cache file is still the XML whose signature was verified.
+     */
+    @Test
+    public void testSignedSnapshot() throws Exception {
+        File cacheFile;
+        RandomAccessFile altered;
+        
+        signMetadata();
+        snapshotting = true;
+        refresh();
+        assertTrue("Signed metadata did not verify", verifyMetadataSignature());
+        loadAndCacheEntities();
+        
+        server.stop(0);
+        refresh();
+        assertNotNull("Signed snapshot was not loaded", snapshot);
+        assertTrue("Signed snapshot was not trusted", verifyMetadataSignature());
+        
+        // Change the cache file behind the snapshot's back
+        cacheFile = new File(config.getMetadataCacheFile());
+        altered = new RandomAccessFile(cacheFile, "rw");
+        try {
+            altered.seek(cacheFile.length());
+            altered.write(' ');
+        }
+        finally {
+            altered.close();
+        }
+        refresh();
+        assertNull("Snapshot of a different cache file was loaded", snapshot);
+        assertNotNull("Cache file was not parsed", doc);
+    }
+
+    /**
+     * This confirms that a lazy entity manager is given the snapshot rather than
+     * the entities, whether or not the metadata is streamed.
+     */
+    @Test
+    public void testLazy() throws Exception {
+        snapshotting = true;
+        for (boolean streaming : new boolean[] {true, false}) {
+            LazyEntityManagerImpl manager;
+            int entities;
+            
+            serve("\"" + streaming + "\"", "one");
+            refresh(streaming);
+            manager = new LazyEntityManagerImpl();
+            manager.setEntityHandlerClass(GuanxiSAML2MetadataImpl.class.getName());
+            if (!streaming) {
+                loadAndCacheEntities();
+            }
+            entities = loadEntities(manager);
+            
+            assertEquals("Wrong number of entities loaded", 1, entities);
+            assertNotNull("Manager was not given the snapshot", manager.getSnapshot());
+            assertEquals("Entities were loaded before they were asked for", 0, manager.getLoads());
+            assertNotNull("Entity was not loaded from the snapshot", manager.getMetadata("urn:example:idp:one"));
+        }
+    }
+
+    /**
+     * This confirms that a reload only replaces the entities that have changed,
+     * keeping the handlers of those that haven't, whether or not the metadata is
+     * streamed or the manager is lazy.
+     */
+    @Test
+    public void testIncrementalReload() throws Exception {
+        snapshotting = true;
+        for (int pass = 0; pass < 3; pass++) {
+            boolean streaming = (pass == 1);
+            boolean lazy = (pass == 2);
+            EntityManager manager;
+            MetadataChanges changes;
+            Metadata unchanged;
+            
+            if (lazy) {
+                manager = new LazyEntityManagerImpl();
+            }
+            else {
+                manager = new GuanxiEntityManagerImpl();
+                ((GuanxiEntityManagerImpl)manager).init();
+            }
+            manager.setEntityHandlerClass(GuanxiSAML2MetadataImpl.class.getName());
+            
+            serveEntities("\"" + pass + "a\"", "<md:EntityDescriptor entityID=\"urn:example:idp:one\"/>" +
+                                            "<md:EntityDescriptor entityID=\"urn:example:idp:two\"/>" +
+                                            "<md:EntityDescriptor entityID=\"urn:example:idp:three\"/>");
+            changes = reload(manager, streaming);
+            assertEquals("First reload did not add all the entities", 3, changes.getAdded().size());
+            unchanged = manager.getMetadata("urn:example:idp:one");
+            
+            serveEntities("\"" + pass + "b\"", "<md:EntityDescriptor entityID=\"urn:example:idp:one\"/>" +
+                                            "<md:EntityDescriptor entityID=\"urn:example:idp:two\" cacheDuration=\"PT1H\"/>" +
+                                            "<md:EntityDescriptor entityID=\"urn:example:idp:four\"/>");
+            changes = reload(manager, streaming);
+            assertEquals("Wrong entities added", Arrays.asList("urn:example:idp:four"), changes.getAdded());
+            assertEquals("Wrong entities replaced", Arrays.asList("urn:example:idp:two"), changes.getReplaced());
+            assertEquals("Wrong entities removed", Arrays.asList("urn:example:idp:three"), changes.getRemoved());
+            assertEquals("Wrong number of entities unchanged", 1, changes.getUnchanged());
+            assertSame("Unchanged entity was reloaded", unchanged, manager.getMetadata("urn:example:idp:one"));
+            assertFalse("Removed entity is still loaded", manager.handlesEntity("urn:example:idp:three"));
+            assertTrue("Added entity was not loaded", manager.handlesEntity("urn:example:idp:four"));
+            
+            // Nothing to do when the source hasn't changed
+            refresh(streaming);
+            assertFalse("Unchanged metadata was reloaded", reloadEntities(manager).hasChanges());
+        }
+    }
+
+    private MetadataChanges reload(EntityManager manager, boolean streaming) throws Exception {
+        refresh(streaming);
+        if ((!streaming) && (manager instanceof LazyEntityManagerImpl)) {
+            loadAndCacheEntities();
+        }
+        return reloadEntities(manager);
+    }
+
+    private void serveEntities(String eTag, String entities) {
+        this.eTag = eTag;
+        this.body = "<md:EntitiesDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" Name=\"urn:example:federation\">" +
+                    entities + "</md:EntitiesDescriptor>";
+    }
+
+    private void signMetadata() throws Exception {
+        KeyPair keyPair;
+        Document metadata;
+        ByteArrayOutputStream out;
+        
+        Init.init();
+        Security.addProvider(new BouncyCastleProvider());
+        try {
+            keyPair = TestUtils.generateKeyPair("RSA");
+            metadata = XMLFactory.getDocumentBuilder().parse(new ByteArrayInputStream(body.getBytes("UTF-8")));
+            metadata.getDocumentElement().setAttribute("ID", "federation");
+            TestUtils.signMetadata(metadata, keyPair, TestUtils.generateSelfSignedCertificate("CN=metadata.example.org", keyPair), null);
+        }
+        finally {
+            Security.removeProvider(Guanxi.BOUNCY_CASTLE_PROVIDER_NAME);
+        }
+        
+        out = new ByteArrayOutputStream();
+        TransformerFactory.newInstance().newTransformer().transform(new DOMSource(metadata), new StreamResult(out));
+        body = out.toString("UTF-8");
+    }
+
+    private void serve(String eTag, String entity) {
+        this.eTag = eTag;
+        this.body = String.format(METADATA, entity);
+    }
+
+    private void refresh() {
+        refresh(false);
+    }
+
+    private void refresh(boolean streaming) {
+        SAML2MetadataParserConfig parserConfig;
+        
+        parserConfig = new SAML2MetadataParserConfig();
+        parserConfig.setJobClass(getClass().getName());
+        parserConfig.setKey("TEST");
+        parserConfig.setMetadataURL("http://127.0.0.1:" + server.getAddress().getPort() + "/metadata.xml");
+        parserConfig.setWho(getClass().getName());
+        parserConfig.setCacheDir(cacheDir.getPath());
+        parserConfig.setCacheFile("metadata.xml");
+        parserConfig.setStreaming(streaming);
+        parserConfig.setSnapshot(snapshotting);
+        parserConfig.init();
+        
+        config = parserConfig;
+        doc = null;
+        init();
+    }
+
+    private String entityID() {
+        return doc.getEntitiesDescriptor().getEntityDescriptorArray(0).getEntityID();
+    }
+}
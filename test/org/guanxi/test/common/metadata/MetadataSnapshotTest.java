@@ -0,0 +1,238 @@
+package org.guanxi.test.common.metadata;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.List;
+
+import org.apache.xml.security.utils.Base64;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.definitions.Guanxi;
+import org.guanxi.common.metadata.MetadataSnapshot;
+import org.guanxi.common.trust.Fingerprint;
+import org.guanxi.test.TestUtils;
+import org.guanxi.xal.saml_2_0.metadata.EntitiesDescriptorDocument;
+import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * This will test the binary metadata snapshot from Guanxi Common.
+ *
+ * @author alistair
+ */
+public class MetadataSnapshotTest {
+    private static final String METADATA =
+        "<md:EntitiesDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" xmlns:ds=\"http://www.w3.org/2000/09/xmldsig#\"" +
+        " xmlns:shibmd=\"urn:mace:shibboleth:metadata:1.0\" Name=\"urn:example:federation\">" +
+        "<md:Extensions><shibmd:KeyAuthority VerifyDepth=\"1\"><ds:KeyInfo><ds:KeyName>ca</ds:KeyName></ds:KeyInfo></shibmd:KeyAuthority></md:Extensions>" +
+        "<md:EntityDescriptor entityID=\"urn:example:idp:one\">" +
+        "<md:IDPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">" +
+        "<md:KeyDescriptor><ds:KeyInfo><ds:X509Data><ds:X509Certificate>%s</ds:X509Certificate></ds:X509Data></ds:KeyInfo></md:KeyDescriptor>" +
+        "<md:SingleSignOnService Binding=\"urn:mace:shibboleth:1.0:profiles:AuthnRequest\" Location=\"https://idp.example.org/sso\"/>" +
+        "</md:IDPSSODescriptor>" +
+        "</md:EntityDescriptor>" +
+        "<md:EntitiesDescriptor Name=\"nested\"><md:EntityDescriptor entityID=\"urn:example:sp:two\"/></md:EntitiesDescriptor>" +
+        "</md:EntitiesDescriptor>";
+
+    private static X509Certificate idpCert;
+    private static X509Certificate signingCert;
+    private File snapshotFile;
+
+    @BeforeClass
+    public static void generateCertificates() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        idpCert = TestUtils.generateSelfSignedCertificate("CN=idp.example.org", TestUtils.generateKeyPair("RSA"));
+        signingCert = TestUtils.generateSelfSignedCertificate("CN=metadata.example.org", TestUtils.generateKeyPair("RSA"));
+    }
+
+    @AfterClass
+    public static void removeProvider() {
+        Security.removeProvider(Guanxi.BOUNCY_CASTLE_PROVIDER_NAME);
+    }
+
+    @Before
+    public void createFile() throws Exception {
+        snapshotFile = File.createTempFile("metadata", ".snapshot");
+    }
+
+    @After
+    public void deleteFile() {
+        snapshotFile.delete();
+    }
+
+    /**
+     * This confirms that everything written to a snapshot can be read back,
+     * and each entity on its own.
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        MetadataSnapshot snapshot;
+        EntityDescriptorType idp;
+        List<byte[]> certs;
+        
+        write();
+        snapshot = MetadataSnapshot.load(snapshotFile);
+        
+        assertEquals("Wrong source", "http://example.org/metadata.xml", snapshot.getSource());
+        assertTrue("Signature status was lost", snapshot.isSignatureVerified());
+        assertEquals("Wrong signing certificate", signingCert, snapshot.getSigningCertificate());
+        assertArrayEquals("Wrong entities", new String[] {"urn:example:idp:one", "urn:example:sp:two"}, snapshot.getEntityIDs());
+        assertEquals("Wrong root Extensions", 1, snapshot.getExtensions().getDomNode().getChildNodes().getLength());
+        
+        idp = snapshot.getEntityDescriptor("urn:example:idp:one");
+        assertEquals("Entity was not read back", "urn:example:idp:one", idp.getEntityID());
+        assertEquals("Entity's roles were not read back", "https://idp.example.org/sso",
+                     idp.getIDPSSODescriptorArray(0).getSingleSignOnServiceArray(0).getLocation());
+        assertEquals("Nested entity was not read back", "urn:example:sp:two", snapshot.getEntityDescriptor(1).getEntityID());
+        assertNull("Unknown entity was found", snapshot.getEntityDescriptor("urn:example:unknown"));
+        
+        certs = snapshot.getCertificates(0);
+        assertEquals("Wrong number of certificates", 1, certs.size());
+        assertArrayEquals("Wrong certificate", idpCert.getEncoded(), certs.get(0));
+        assertTrue("Entity without keys has certificates", snapshot.getCertificates(1).isEmpty());
+    }
+
+    /**
+     * This confirms that a snapshot written with a different layout isn't read.
+     */
+    @Test
+    public void testWrongVersion() throws Exception {
+        RandomAccessFile file;
+        
+        write();
+        file = new RandomAccessFile(snapshotFile, "rw");
+        try {
+            file.seek(4);
+            file.writeInt(MetadataSnapshot.VERSION + 1);
+        }
+        finally {
+            file.close();
+        }
+        
+        try {
+            MetadataSnapshot.load(snapshotFile);
+            fail("Snapshot with the wrong version was loaded");
+        }
+        catch(GuanxiException ge) {
+            // Expected
+        }
+    }
+
+    /**
+     * This confirms that a snapshot that's been changed since it was written
+     * is neither loaded nor mapped.
+     */
+    @Test
+    public void testChanged() throws Exception {
+        RandomAccessFile file;
+        int b;
+        
+        write();
+        file = new RandomAccessFile(snapshotFile, "rw");
+        try {
+            // Somewhere in the first entity's record
+            file.seek(20);
+            b = file.read();
+            file.seek(20);
+            file.write(b ^ 0x01);
+        }
+        finally {
+            file.close();
+        }
+        
+        try {
+            MetadataSnapshot.load(snapshotFile);
+            fail("Changed snapshot was loaded");
+        }
+        catch(GuanxiException ge) {
+            // Expected
+        }
+        try {
+            MetadataSnapshot.map(snapshotFile);
+            fail("Changed snapshot was mapped");
+        }
+        catch(GuanxiException ge) {
+            // Expected
+        }
+    }
+
+    /**
+     * This confirms that the snapshot only vouches for the signature while the
+     * cache file is still the XML the signature was verified on.
+     */
+    @Test
+    public void testSourceDigest() throws Exception {
+        File cacheFile;
+        FileOutputStream out;
+        MetadataSnapshot snapshot;
+        
+        cacheFile = File.createTempFile("metadata", ".xml");
+        try {
+            out = new FileOutputStream(cacheFile);
+            out.write(String.format(METADATA, Base64.encode(idpCert.getEncoded())).getBytes("UTF-8"));
+            out.close();
+            
+            write(null);
+            assertFalse("Signature vouched for without a cache file digest",
+                        MetadataSnapshot.load(snapshotFile).isSignatureVerified(cacheFile));
+            
+            write(MetadataSnapshot.digest(cacheFile));
+            snapshot = MetadataSnapshot.load(snapshotFile);
+            assertTrue("Signature not vouched for", snapshot.isSignatureVerified(cacheFile));
+            
+            out = new FileOutputStream(cacheFile, true);
+            out.write(' ');
+            out.close();
+            assertFalse("Signature vouched for after the cache file changed", snapshot.isSignatureVerified(cacheFile));
+        }
+        finally {
+            cacheFile.delete();
+        }
+    }
+
+    /**
+     * This confirms that an aborted snapshot leaves the previous one in place.
+     */
+    @Test
+    public void testAbort() throws Exception {
+        MetadataSnapshot.Writer writer;
+        
+        write();
+        writer = MetadataSnapshot.create(snapshotFile, "http://example.org/other.xml");
+        writer.abort();
+        
+        assertEquals("Aborted snapshot replaced the previous one", "http://example.org/metadata.xml",
+                     MetadataSnapshot.load(snapshotFile).getSource());
+        assertFalse("Aborted snapshot was left behind", new File(snapshotFile.getPath() + ".tmp").exists());
+    }
+
+    private void write() throws Exception {
+        write(null);
+    }
+
+    private void write(Fingerprint sourceDigest) throws Exception {
+        EntitiesDescriptorDocument doc;
+        MetadataSnapshot.Writer writer;
+        
+        doc = EntitiesDescriptorDocument.Factory.parse(String.format(METADATA, Base64.encode(idpCert.getEncoded())));
+        writer = MetadataSnapshot.create(snapshotFile, "http://example.org/metadata.xml");
+        writer.setExtensions(doc.getEntitiesDescriptor().getExtensions());
+        writer.addEntity(doc.getEntitiesDescriptor().getEntityDescriptorArray(0));
+        writer.addEntity(doc.getEntitiesDescriptor().getEntitiesDescriptorArray(0).getEntityDescriptorArray(0));
+        writer.commit(true, signingCert, sourceDigest);
+    }
+}
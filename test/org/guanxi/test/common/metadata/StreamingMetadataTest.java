@@ -0,0 +1,214 @@
+package org.guanxi.test.common.metadata;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.KeyPair;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.xml.security.Init;
+import org.apache.xml.security.signature.XMLSignature;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.XMLFactory;
+import org.guanxi.common.definitions.Guanxi;
+import org.guanxi.common.metadata.MetadataHandler;
+import org.guanxi.common.metadata.StreamedMetadataSignature;
+import org.guanxi.common.metadata.StreamingMetadataParser;
+import org.guanxi.test.TestUtils;
+import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
+import org.guanxi.xal.saml_2_0.metadata.ExtensionsType;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * This will test reading metadata aggregates one entity at a time and checking
+ * their signatures as they stream, from Guanxi Common.
+ *
+ * @author alistair
+ */
+public class StreamingMetadataTest {
+    /** An aggregate with the awkward bits of canonicalisation in it */
+    private static final String AGGREGATE =
+        "<md:EntitiesDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" xmlns:ds=\"http://www.w3.org/2000/09/xmldsig#\"" +
+        " xmlns:shibmd=\"urn:mace:shibboleth:metadata:1.0\" xmlns:unused=\"urn:unused\" Name=\"urn:example:federation\" ID=\"aggregate\">\n" +
+        "  <md:Extensions><shibmd:KeyAuthority VerifyDepth=\"2\"><ds:KeyInfo><ds:KeyName>ca</ds:KeyName></ds:KeyInfo></shibmd:KeyAuthority></md:Extensions>\n" +
+        "  <md:EntityDescriptor entityID=\"urn:example:idp:one\" xmlns:x=\"urn:x\" x:b=\"3\" a=\"tab&#9;newline&#10;&quot;&lt;&amp;\">\n" +
+        "    <!-- comments aren't signed -->\n" +
+        "    <md:Extensions><foo xmlns=\"urn:foo\"><bar xmlns=\"\">plain</bar><baz>foo</baz></foo></md:Extensions>\n" +
+        "    <md:Organization>\r\n" +
+        "      <md:OrganizationName xml:lang=\"en\">Tom &amp; Jerry &lt;Ltd&gt;</md:OrganizationName>\n" +
+        "      <md:OrganizationDisplayName xml:lang=\"en\"><![CDATA[A <b>bold</b> name]]></md:OrganizationDisplayName>\n" +
+        "      <md:OrganizationURL xml:lang=\"en\">http://example.org/?a=1&amp;b=2</md:OrganizationURL>\n" +
+        "    </md:Organization>\n" +
+        "    <md:ContactPerson contactType=\"technical\"><md:EmailAddress>admin@example.org</md:EmailAddress></md:ContactPerson>\n" +
+        "  </md:EntityDescriptor>\n" +
+        "  <md:EntitiesDescriptor Name=\"nested\">\n" +
+        "    <md:EntityDescriptor entityID=\"urn:example:sp:two\"><md:Extensions><shibmd:Scope regexp=\"false\">example.org</shibmd:Scope></md:Extensions></md:EntityDescriptor>\n" +
+        "  </md:EntitiesDescriptor>\n" +
+        "</md:EntitiesDescriptor>";
+
+    private static KeyPair keyPair;
+    private static X509Certificate signingCert;
+
+    @BeforeClass
+    public static void generateKeys() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        Init.init();
+        keyPair = TestUtils.generateKeyPair("RSA");
+        signingCert = TestUtils.generateSelfSignedCertificate("CN=metadata.example.org", keyPair);
+    }
+
+    @AfterClass
+    public static void removeProvider() {
+        Security.removeProvider(Guanxi.BOUNCY_CASTLE_PROVIDER_NAME);
+    }
+
+    /**
+     * This confirms that a signed aggregate that xml-security verifies from a DOM
+     * also verifies as it streams, and that the bytes are copied as they're read.
+     */
+    @Test
+    public void testSignatureVerifies() throws Exception {
+        byte[] aggregate;
+        ByteArrayOutputStream copy;
+        StreamedMetadataSignature signature;
+        
+        aggregate = sign(null);
+        assertTrue("xml-security did not verify the aggregate", verifyWithDOM(aggregate));
+        
+        copy = new ByteArrayOutputStream();
+        signature = StreamedMetadataSignature.read(new ByteArrayInputStream(aggregate), copy);
+        
+        assertTrue("Signature was not found", signature.isSigned());
+        assertTrue("Digest of the streamed aggregate did not match", signature.isDigestValid());
+        assertTrue("Streamed signature did not verify", signature.verify(signingCert));
+        assertEquals("Wrong signing certificate", signingCert, signature.getCertificate());
+        assertArrayEquals("Aggregate was not copied", aggregate, copy.toByteArray());
+    }
+
+    /**
+     * This confirms that namespaces in the InclusiveNamespaces PrefixList are
+     * canonicalised the same as xml-security does it.
+     */
+    @Test
+    public void testInclusiveNamespaces() throws Exception {
+        byte[] aggregate;
+        StreamedMetadataSignature signature;
+        
+        aggregate = sign("#default unused shibmd");
+        assertTrue("xml-security did not verify the aggregate", verifyWithDOM(aggregate));
+        
+        signature = StreamedMetadataSignature.read(new ByteArrayInputStream(aggregate), null);
+        assertTrue("Streamed signature did not verify", signature.verify(signingCert));
+    }
+
+    /**
+     * This confirms that any change to an entity stops the signature verifying.
+     */
+    @Test
+    public void testTampered() throws Exception {
+        String aggregate;
+        StreamedMetadataSignature signature;
+        
+        aggregate = new String(sign(null), "UTF-8").replace("admin@example.org", "evil@example.org");
+        signature = StreamedMetadataSignature.read(new ByteArrayInputStream(aggregate.getBytes("UTF-8")), null);
+        
+        assertTrue("Signature was not found", signature.isSigned());
+        assertFalse("Digest of a tampered aggregate matched", signature.isDigestValid());
+        assertFalse("Tampered aggregate verified", signature.verify(signingCert));
+    }
+
+    /**
+     * This confirms that an unsigned aggregate is seen as such.
+     */
+    @Test
+    public void testUnsigned() throws Exception {
+        StreamedMetadataSignature signature;
+        
+        signature = StreamedMetadataSignature.read(new ByteArrayInputStream(AGGREGATE.getBytes("UTF-8")), null);
+        assertFalse("Unsigned aggregate had a signature", signature.isSigned());
+        assertFalse("Unsigned aggregate verified", signature.verify(signingCert));
+    }
+
+    /**
+     * This confirms that every entity, including those in nested EntitiesDescriptors,
+     * is handed over along with the root Extensions.
+     */
+    @Test
+    public void testEntities() throws Exception {
+        final List<String> entityIDs;
+        final List<ExtensionsType> extensions;
+        int count;
+        
+        entityIDs = new ArrayList<String>();
+        extensions = new ArrayList<ExtensionsType>();
+        count = StreamingMetadataParser.parse(new ByteArrayInputStream(sign(null)), new MetadataHandler() {
+            public void handleExtensions(ExtensionsType rootExtensions) {
+                extensions.add(rootExtensions);
+            }
+            public void handleEntity(EntityDescriptorType entityDescriptor) {
+                entityIDs.add(entityDescriptor.getEntityID());
+            }
+        });
+        
+        assertEquals("Wrong number of entities", 2, count);
+        assertEquals("Wrong entities", "urn:example:idp:one", entityIDs.get(0));
+        assertEquals("Nested entity was not found", "urn:example:sp:two", entityIDs.get(1));
+        assertEquals("Root extensions were not found", 1, extensions.size());
+        assertNotNull("KeyAuthority missing from root extensions",
+                      extensions.get(0).getDomNode().getFirstChild());
+        assertEquals("Entity was missing its content", "Tom & Jerry <Ltd>",
+                     parseFirstEntity().getOrganization().getOrganizationNameArray(0).getStringValue());
+    }
+
+    private EntityDescriptorType parseFirstEntity() throws Exception {
+        final List<EntityDescriptorType> entities;
+        
+        entities = new ArrayList<EntityDescriptorType>();
+        StreamingMetadataParser.parse(new ByteArrayInputStream(AGGREGATE.getBytes("UTF-8")), new MetadataHandler() {
+            public void handleExtensions(ExtensionsType rootExtensions) {}
+            public void handleEntity(EntityDescriptorType entityDescriptor) throws GuanxiException {
+                entities.add(entityDescriptor);
+            }
+        });
+        return entities.get(0);
+    }
+
+    private static byte[] sign(String inclusivePrefixes) throws Exception {
+        Document doc;
+        ByteArrayOutputStream out;
+        
+        doc = XMLFactory.getDocumentBuilder().parse(new ByteArrayInputStream(AGGREGATE.getBytes("UTF-8")));
+        TestUtils.signMetadata(doc, keyPair, signingCert, inclusivePrefixes);
+        
+        out = new ByteArrayOutputStream();
+        TransformerFactory.newInstance().newTransformer().transform(new DOMSource(doc), new StreamResult(out));
+        return out.toByteArray();
+    }
+
+    private static boolean verifyWithDOM(byte[] aggregate) throws Exception {
+        Document doc;
+        Element signature;
+        
+        doc = XMLFactory.getDocumentBuilder().parse(new ByteArrayInputStream(aggregate));
+        doc.getDocumentElement().setIdAttribute("ID", true);
+        signature = (Element)doc.getElementsByTagNameNS("http://www.w3.org/2000/09/xmldsig#", "Signature").item(0);
+        return new XMLSignature(signature, "").checkSignatureValue(signingCert);
+    }
+}
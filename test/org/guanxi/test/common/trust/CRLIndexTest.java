@@ -0,0 +1,278 @@
+package org.guanxi.test.common.trust;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.security.KeyPair;
+import java.security.Security;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.guanxi.common.definitions.Guanxi;
+import org.guanxi.common.trust.CRLIndex;
+import org.guanxi.common.trust.CRLStore;
+import org.guanxi.common.trust.TrustUtils;
+import org.guanxi.common.trust.impl.ShibbolethTrustEngineImpl;
+import org.guanxi.test.TestUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This will test the CRLIndex and CRLStore from Guanxi Common.
+ *
+ * @author alistair
+ */
+public class CRLIndexTest {
+    private static final BigInteger LARGEST_SERIAL = BigInteger.ONE.shiftLeft(159);
+
+    private static KeyPair caKeyPair;
+    private static X509Certificate caX509;
+    private static X509CRL crl;
+
+    @BeforeClass
+    public static void generateCRL() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        caKeyPair = TestUtils.generateKeyPair("RSA");
+        caX509 = TestUtils.generateSelfSignedCertificate("CN=ca", caKeyPair);
+        crl = TestUtils.generateCRL("CN=ca", caKeyPair.getPrivate(),
+                                    BigInteger.ONE, BigInteger.valueOf(500), LARGEST_SERIAL);
+    }
+
+    @AfterClass
+    public static void removeProvider() {
+        Security.removeProvider(Guanxi.BOUNCY_CASTLE_PROVIDER_NAME);
+    }
+
+    /**
+     * This confirms that only the serial numbers in an issuer's CRL are revoked.
+     */
+    @Test
+    public void testIsRevoked() throws Exception {
+        File indexFile;
+        CRLIndex index;
+        X500Principal issuer;
+
+        indexFile = File.createTempFile("crl-index-", ".idx");
+        indexFile.deleteOnExit();
+        index = CRLIndex.build(Arrays.asList(crl), indexFile);
+        issuer = new X500Principal("CN=ca");
+
+        assertEquals("Wrong number of serial numbers", 3, index.size());
+        assertTrue("Serial number 1 not revoked", index.isRevoked(issuer, BigInteger.ONE));
+        assertTrue("Serial number 500 not revoked", index.isRevoked(issuer, BigInteger.valueOf(500)));
+        assertTrue("Largest serial number not revoked", index.isRevoked(issuer, LARGEST_SERIAL));
+        for (int serial = 2; serial < 500; serial++) {
+            assertFalse("Serial number " + serial + " revoked", index.isRevoked(issuer, BigInteger.valueOf(serial)));
+        }
+        assertFalse("Serial number revoked for another issuer", index.isRevoked(new X500Principal("CN=other"), BigInteger.ONE));
+        assertTrue("CRL not current", index.hasCurrentCRL(issuer, System.currentTimeMillis()));
+        assertFalse("CRL current after its next update", index.hasCurrentCRL(issuer, crl.getNextUpdate().getTime()));
+    }
+
+    /**
+     * This confirms that once a CRL is loaded into a trust engine, PKIX
+     * validation fails for revoked certificates and no others.
+     */
+    @Test
+    public void testRevocationChecking() throws Exception {
+        ShibbolethTrustEngineImpl engine;
+        CRLStore crlStore;
+        File crlDir;
+        FileOutputStream out;
+        X509Certificate revoked;
+        X509Certificate good;
+        long now;
+
+        now = System.currentTimeMillis();
+        revoked = TestUtils.generateCertificate("CN=revoked", TestUtils.generateKeyPair("RSA").getPublic(),
+                                                "CN=ca", caKeyPair.getPrivate(),
+                                                new Date(now - 60000), new Date(now + 60000));
+        good = TestUtils.generateCertificate("CN=good", TestUtils.generateKeyPair("RSA").getPublic(),
+                                             "CN=ca", caKeyPair.getPrivate(),
+                                             new Date(now - 60000), new Date(now + 60000));
+
+        crlDir = File.createTempFile("crls", "");
+        crlDir.delete();
+        crlDir.mkdirs();
+        out = new FileOutputStream(new File(crlDir, "ca.crl"));
+        out.write(TestUtils.generateCRL("CN=ca", caKeyPair.getPrivate(), revoked.getSerialNumber()).getEncoded());
+        out.close();
+
+        engine = new ShibbolethTrustEngineImpl();
+        engine.addCACert(caX509);
+        assertTrue("Certificate not trusted before CRL loaded", TrustUtils.validateCertPath(revoked, engine.getTrustAnchors()));
+
+        crlStore = new CRLStore();
+        crlStore.setCrlDir(crlDir.getPath());
+        crlStore.setTrustEngine(engine);
+        crlStore.init();
+
+        assertEquals("CRL not indexed", 1, crlStore.getIndex().size());
+        assertFalse("Revoked certificate trusted", TrustUtils.validateCertPath(revoked, engine.getTrustAnchors()));
+        assertTrue("Good certificate not trusted", TrustUtils.validateCertPath(good, engine.getTrustAnchors()));
+
+        for (File file : crlDir.listFiles()) {
+            file.delete();
+        }
+        crlDir.delete();
+    }
+
+    /**
+     * This confirms that refresh downloads a CRL from its distribution point, leaves
+     * the index alone when the CRL hasn't changed, and indexes again when the trust
+     * engine's CAs change. It also confirms that indexes left behind by earlier runs
+     * are removed.
+     */
+    @Test
+    public void testRefresh() throws Exception {
+        final byte[] crlBytes;
+        final AtomicInteger downloads;
+        HttpServer server;
+        ShibbolethTrustEngineImpl engine;
+        CRLStore crlStore;
+        File crlDir;
+        File staleIndex;
+        X509Certificate revoked;
+        CRLIndex index;
+        long now;
+
+        now = System.currentTimeMillis();
+        revoked = TestUtils.generateCertificate("CN=revoked", TestUtils.generateKeyPair("RSA").getPublic(),
+                                                "CN=ca", caKeyPair.getPrivate(),
+                                                new Date(now - 60000), new Date(now + 60000));
+        crlBytes = TestUtils.generateCRL("CN=ca", caKeyPair.getPrivate(), revoked.getSerialNumber()).getEncoded();
+
+        // The CRL never changes, so anyone who already has it gets a 304
+        downloads = new AtomicInteger();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/ca.crl", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                if (exchange.getRequestHeaders().getFirst("If-Modified-Since") != null) {
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_MODIFIED, -1);
+                }
+                else {
+                    downloads.incrementAndGet();
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, crlBytes.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(crlBytes);
+                    out.close();
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+
+        crlDir = File.createTempFile("crls", "");
+        crlDir.delete();
+        crlDir.mkdirs();
+        staleIndex = new File(crlDir, "crl-index-stale.idx");
+        staleIndex.createNewFile();
+
+        try {
+            engine = new ShibbolethTrustEngineImpl();
+            engine.addCACert(caX509);
+
+            crlStore = new CRLStore();
+            crlStore.setCrlDir(crlDir.getPath());
+            crlStore.setCrlURLs(Arrays.asList("http://127.0.0.1:" + server.getAddress().getPort() + "/ca.crl"));
+            crlStore.setTrustEngine(engine);
+            crlStore.init();
+
+            assertFalse("Old index was not removed", staleIndex.exists());
+            assertEquals("CRL indexed before it was downloaded", 0, crlStore.getIndex().size());
+
+            crlStore.refresh();
+            assertEquals("CRL was not downloaded", 1, downloads.get());
+            assertEquals("Downloaded CRL not indexed", 1, crlStore.getIndex().size());
+            assertFalse("Revoked certificate trusted", TrustUtils.validateCertPath(revoked, engine.getTrustAnchors()));
+
+            index = crlStore.getIndex();
+            crlStore.refresh();
+            assertEquals("Unchanged CRL was downloaded again", 1, downloads.get());
+            assertSame("Unchanged CRL was indexed again", index, crlStore.getIndex());
+
+            engine.setCACerts(Arrays.asList(TestUtils.generateSelfSignedCertificate("CN=ca", TestUtils.generateKeyPair("RSA"))), 1);
+            crlStore.refresh();
+            assertNotSame("CRLs not indexed again after the CAs changed", index, crlStore.getIndex());
+            assertEquals("CRL signed by a CA that's no longer trusted was indexed", 0, crlStore.getIndex().size());
+        }
+        finally {
+            server.stop(0);
+            for (File file : crlDir.listFiles()) {
+                file.delete();
+            }
+            crlDir.delete();
+        }
+    }
+
+    /**
+     * This confirms that a CRL signed by an intermediate CA is only used if the
+     * intermediate chains back to one of the trust engine's CAs.
+     */
+    @Test
+    public void testIntermediateCRL() throws Exception {
+        ShibbolethTrustEngineImpl engine;
+        CRLStore crlStore;
+        File crlDir;
+        FileOutputStream out;
+        KeyPair intermediateKeyPair;
+        X509Certificate intermediate;
+
+        intermediateKeyPair = TestUtils.generateKeyPair("RSA");
+        intermediate = TestUtils.generateCACertificate("CN=intermediate", intermediateKeyPair.getPublic(),
+                                                       "CN=ca", caKeyPair.getPrivate());
+
+        crlDir = File.createTempFile("crls", "");
+        crlDir.delete();
+        crlDir.mkdirs();
+        out = new FileOutputStream(new File(crlDir, "intermediate.crl"));
+        out.write(TestUtils.generateCRL("CN=intermediate", intermediateKeyPair.getPrivate(), BigInteger.ONE).getEncoded());
+        out.close();
+
+        try {
+            engine = new ShibbolethTrustEngineImpl();
+            engine.addCACert(caX509);
+
+            crlStore = new CRLStore();
+            crlStore.setCrlDir(crlDir.getPath());
+            crlStore.setTrustEngine(engine);
+            crlStore.init();
+            assertEquals("CRL from an unknown intermediate indexed", 0, crlStore.getIndex().size());
+
+            crlStore.setIntermediateCerts(Arrays.asList(intermediate));
+            crlStore.load();
+            assertEquals("CRL from a known intermediate not indexed", 1, crlStore.getIndex().size());
+
+            engine.setCACerts(Arrays.asList(TestUtils.generateSelfSignedCertificate("CN=ca", TestUtils.generateKeyPair("RSA"))), 1);
+            crlStore.load();
+            assertEquals("CRL from an intermediate that doesn't chain to a CA indexed", 0, crlStore.getIndex().size());
+        }
+        finally {
+            for (File file : crlDir.listFiles()) {
+                file.delete();
+            }
+            crlDir.delete();
+        }
+    }
+}
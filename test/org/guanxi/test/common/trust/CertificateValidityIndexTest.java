@@ -0,0 +1,105 @@
+package org.guanxi.test.common.trust;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.guanxi.common.definitions.Guanxi;
+import org.guanxi.common.metadata.Metadata;
+import org.guanxi.common.metadata.impl.GuanxiSAML2MetadataImpl;
+import org.guanxi.common.trust.CertificateValidityIndex;
+import org.guanxi.common.trust.TrustContext;
+import org.guanxi.common.trust.TrustUtils;
+import org.guanxi.common.trust.impl.EmbeddedKeyTrustStrategy;
+import org.guanxi.test.TestUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * This will test the CertificateValidityIndex from Guanxi Common.
+ *
+ * @author alistair
+ */
+public class CertificateValidityIndexTest {
+    private static final long ONE_DAY = 24L * 60 * 60 * 1000;
+
+    private static X509Certificate expired;
+    private static List<Metadata> entities;
+
+    @BeforeClass
+    public static void generateMetadata() throws Exception {
+        long now;
+
+        Security.addProvider(new BouncyCastleProvider());
+        now = System.currentTimeMillis();
+        expired = generateCertificate("CN=expired", now - (10 * ONE_DAY), now - ONE_DAY);
+
+        entities = new ArrayList<Metadata>();
+        entities.add(createEntity("urn:example:later", generateCertificate("CN=later", now - ONE_DAY, now + (60 * ONE_DAY))));
+        entities.add(createEntity("urn:example:expired", expired));
+        entities.add(createEntity("urn:example:soon", generateCertificate("CN=soon", now - ONE_DAY, now + (5 * ONE_DAY))));
+    }
+
+    @AfterClass
+    public static void removeProvider() {
+        Security.removeProvider(Guanxi.BOUNCY_CASTLE_PROVIDER_NAME);
+    }
+
+    /**
+     * This confirms that keys are found by when they expire.
+     */
+    @Test
+    public void testExpiring() {
+        CertificateValidityIndex index;
+
+        index = new CertificateValidityIndex(entities);
+        assertEquals("Wrong number of keys", 3, index.size());
+        assertEquals("Wrong number of expired keys", 1, index.getExpired().size());
+        assertEquals("Wrong expired key", "urn:example:expired", index.getExpired().get(0).getEntityID());
+        assertEquals("Wrong number of keys expiring within 30 days", 1, index.getExpiringWithin(30).size());
+        assertEquals("Wrong key expiring within 30 days", "urn:example:soon", index.getExpiringWithin(30).get(0).getEntityID());
+        assertEquals("Keys not in order of expiry", "urn:example:later",
+                     index.getExpiringBefore(System.currentTimeMillis() + (90 * ONE_DAY)).get(2).getEntityID());
+    }
+
+    /**
+     * This confirms that explicit key validation only rejects an expired key when told to.
+     */
+    @Test
+    public void testRejectExpired() throws Exception {
+        EmbeddedKeyTrustStrategy strategy;
+        TrustContext context;
+
+        strategy = new EmbeddedKeyTrustStrategy();
+        context = TrustContext.forConnection(new X509Certificate[] {expired});
+
+        assertTrue("Expired key rejected", strategy.trust(entities.get(1), context, TrustUtils.ENTITY_TYPE_SSO, null));
+        strategy.setRejectExpired(true);
+        assertFalse("Expired key trusted", strategy.trust(entities.get(1), context, TrustUtils.ENTITY_TYPE_SSO, null));
+    }
+
+    private static X509Certificate generateCertificate(String subjectDN, long notBefore, long notAfter) throws Exception {
+        KeyPair keyPair;
+
+        keyPair = TestUtils.generateKeyPair("RSA");
+        return TestUtils.generateCertificate(subjectDN, keyPair.getPublic(), subjectDN, keyPair.getPrivate(),
+                                             new Date(notBefore), new Date(notAfter));
+    }
+
+    private static Metadata createEntity(String entityID, X509Certificate x509) throws Exception {
+        GuanxiSAML2MetadataImpl metadata;
+
+        metadata = new GuanxiSAML2MetadataImpl();
+        metadata.setPrivateData(TestUtils.createIdPMetadata(entityID, x509));
+        return metadata;
+    }
+}
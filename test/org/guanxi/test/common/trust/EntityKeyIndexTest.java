@@ -0,0 +1,103 @@
+package org.guanxi.test.common.trust;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.guanxi.common.definitions.Guanxi;
+import org.guanxi.common.trust.EntityKeyIndex;
+import org.guanxi.common.trust.KeyNameMatcher;
+import org.guanxi.common.trust.ParsedSubject;
+import org.guanxi.common.trust.TrustUtils;
+import org.guanxi.test.TestUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * This will test the EntityKeyIndex from Guanxi Common.
+ *
+ * @author alistair
+ */
+public class EntityKeyIndexTest {
+    @BeforeClass
+    public static void addProvider() {
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+    @AfterClass
+    public static void removeProvider() {
+        Security.removeProvider(Guanxi.BOUNCY_CASTLE_PROVIDER_NAME);
+    }
+
+    /**
+     * This confirms that RSA, DSA and EC keys embedded in metadata are found
+     * for the roles they're in and that other keys aren't.
+     */
+    @Test
+    public void testEmbeddedKeys() throws Exception {
+        for (String algorithm : new String[] {"RSA", "DSA", "EC"}) {
+            KeyPair keyPair;
+            KeyPair otherKeyPair;
+            X509Certificate x509;
+            EntityKeyIndex keyIndex;
+
+            keyPair = TestUtils.generateKeyPair(algorithm);
+            otherKeyPair = TestUtils.generateKeyPair(algorithm);
+            x509 = TestUtils.generateSelfSignedCertificate("CN=idp.example.org", keyPair);
+            keyIndex = EntityKeyIndex.build(TestUtils.createIdPMetadata("urn:example:idp", x509));
+
+            assertTrue(algorithm + " SSO key not found", keyIndex.containsKey(TrustUtils.ENTITY_TYPE_SSO, keyPair.getPublic()));
+            assertTrue(algorithm + " AA key not found", keyIndex.containsKey(TrustUtils.ENTITY_TYPE_AA, x509.getPublicKey()));
+            assertFalse(algorithm + " SP key found in IdP metadata", keyIndex.containsKey(TrustUtils.ENTITY_TYPE_SP, keyPair.getPublic()));
+            assertFalse(algorithm + " unknown key found", keyIndex.containsKey(TrustUtils.ENTITY_TYPE_SSO, otherKeyPair.getPublic()));
+            assertEquals(algorithm + " wrong number of keys", 1, keyIndex.getKeyCount(TrustUtils.ENTITY_TYPE_SSO));
+        }
+    }
+
+    /**
+     * This confirms that compareKeys handles EC keys and doesn't treat
+     * different keys of the same type as an error.
+     */
+    @Test
+    public void testCompareKeys() throws Exception {
+        KeyPairGenerator keyGen;
+        KeyPair keyPair;
+
+        keyGen = KeyPairGenerator.getInstance("EC");
+        keyPair = keyGen.generateKeyPair();
+        assertTrue("EC keys not matched", TrustUtils.compareKeys(keyPair.getPublic(), keyPair.getPublic()));
+        assertFalse("Different EC keys matched", TrustUtils.compareKeys(keyPair.getPublic(), keyGen.generateKeyPair().getPublic()));
+        assertFalse("Different RSA keys matched", TrustUtils.compareKeys(TestUtils.generateKeyPair("RSA").getPublic(),
+                                                                          TestUtils.generateKeyPair("RSA").getPublic()));
+    }
+
+    /**
+     * This confirms that the compiled KeyNames match the same subjects as
+     * TrustUtils.compareX509SubjectWithKeyName.
+     */
+    @Test
+    public void testKeyNames() throws Exception {
+        X509Certificate x509;
+        X509Certificate otherX509;
+        KeyNameMatcher matcher;
+
+        x509 = TestUtils.generateSelfSignedCertificate("CN=IdP.Example.org/shibboleth, O=Example", TestUtils.generateKeyPair("RSA"));
+        otherX509 = TestUtils.generateSelfSignedCertificate("CN=sp.example.org, O=Example", TestUtils.generateKeyPair("RSA"));
+        matcher = EntityKeyIndex.build(TestUtils.createIdPMetadata("urn:example:idp", null, "idp.example.org"))
+                                .getKeyNameMatcher(TrustUtils.ENTITY_TYPE_SSO);
+
+        assertTrue("Host part of CN not matched", matcher.matches(ParsedSubject.getInstance(x509), null));
+        assertTrue("Host part not matched by compareX509SubjectWithKeyName",
+                   TrustUtils.compareX509SubjectWithKeyName(x509, "idp.example.org"));
+        assertFalse("Wrong subject matched", matcher.matches(ParsedSubject.getInstance(otherX509), null));
+        assertTrue("Hostname not treated as a KeyName", matcher.matches(ParsedSubject.getInstance(otherX509), "sp.example.org"));
+        assertTrue("Full DN not matched", TrustUtils.compareX509SubjectWithKeyName(otherX509, otherX509.getSubjectDN().getName()));
+    }
+}
@@ -0,0 +1,80 @@
+package org.guanxi.test.common.trust;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.security.MessageDigest;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.guanxi.common.definitions.Guanxi;
+import org.guanxi.common.trust.Fingerprint;
+import org.guanxi.common.trust.TrustUtils;
+import org.guanxi.test.TestUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * This will test the Fingerprint from Guanxi Common.
+ *
+ * @author alistair
+ */
+public class FingerprintTest {
+    private static X509Certificate certOne;
+    private static X509Certificate certTwo;
+
+    @BeforeClass
+    public static void generateCertificates() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        certOne = TestUtils.generateSelfSignedCertificate("CN=one", TestUtils.generateKeyPair("RSA"));
+        certTwo = TestUtils.generateSelfSignedCertificate("CN=two", TestUtils.generateKeyPair("RSA"));
+    }
+
+    @AfterClass
+    public static void removeProvider() {
+        Security.removeProvider(Guanxi.BOUNCY_CASTLE_PROVIDER_NAME);
+    }
+
+    /**
+     * This confirms that fingerprints are only equal for the same data and algorithm.
+     */
+    @Test
+    public void testEquality() throws Exception {
+        Fingerprint sha256;
+
+        sha256 = Fingerprint.of(Fingerprint.SHA256, certOne);
+        assertEquals("Same certificate gave different fingerprints", sha256, Fingerprint.of(certOne.getEncoded()));
+        assertEquals("Equal fingerprints have different hash codes", sha256.hashCode(), Fingerprint.of(certOne.getEncoded()).hashCode());
+        assertFalse("Different certificates gave the same fingerprint", sha256.equals(Fingerprint.of(Fingerprint.SHA256, certTwo)));
+        assertFalse("Different algorithms gave the same fingerprint", sha256.equals(Fingerprint.of(Fingerprint.SHA1, certOne)));
+
+        assertTrue("Same certificate fingerprints did not match", TrustUtils.checkCertfingerprints(certOne, certOne));
+        assertFalse("Different certificate fingerprints matched", TrustUtils.checkCertfingerprints(certOne, certTwo));
+    }
+
+    /**
+     * This confirms that the hex forms match what MessageDigest gives.
+     */
+    @Test
+    public void testHex() throws Exception {
+        Fingerprint sha1;
+        byte[] digest;
+        StringBuffer expected;
+
+        sha1 = Fingerprint.of(Fingerprint.SHA1, certOne);
+        digest = MessageDigest.getInstance("SHA-1").digest(certOne.getEncoded());
+        expected = new StringBuffer();
+        for (byte b : digest) {
+            expected.append(String.format("%02X", b));
+        }
+
+        assertEquals("Wrong hex form", expected.toString(), sha1.toHex());
+        assertSame("Hex form was worked out twice", sha1.toHex(), sha1.toHex());
+        assertEquals("Wrong colon separated hex form", expected.toString().replaceAll("(..)(?!$)", "$1:"),
+                     TrustUtils.byteArrayToHexString(digest));
+    }
+}
@@ -0,0 +1,77 @@
+package org.guanxi.test.common.trust;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.security.KeyPair;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.guanxi.common.definitions.Guanxi;
+import org.guanxi.common.trust.PKIXValidationCache;
+import org.guanxi.test.TestUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * This will test the PKIXValidationCache from Guanxi Common.
+ *
+ * @author alistair
+ */
+public class PKIXValidationCacheTest {
+    private static X509Certificate caX509;
+    private static X509Certificate x509;
+
+    @BeforeClass
+    public static void generateCertificates() throws Exception {
+        KeyPair caKeyPair;
+        long now;
+
+        Security.addProvider(new BouncyCastleProvider());
+        caKeyPair = TestUtils.generateKeyPair("RSA");
+        caX509 = TestUtils.generateSelfSignedCertificate("CN=ca", caKeyPair);
+        now = System.currentTimeMillis();
+        x509 = TestUtils.generateCertificate("CN=idp.example.org", TestUtils.generateKeyPair("RSA").getPublic(),
+                                             "CN=ca", caKeyPair.getPrivate(),
+                                             new Date(now - 60000), new Date(now + 60000));
+    }
+
+    @AfterClass
+    public static void removeProvider() {
+        Security.removeProvider(Guanxi.BOUNCY_CASTLE_PROVIDER_NAME);
+    }
+
+    /**
+     * This confirms that results are only returned for the same trust generation.
+     */
+    @Test
+    public void testGeneration() {
+        PKIXValidationCache cache;
+
+        cache = new PKIXValidationCache(10);
+        assertNull("Result found in empty cache", cache.get(x509, caX509, 1));
+
+        cache.put(x509, caX509, 1, true);
+        cache.put(caX509, caX509, 1, false);
+        assertEquals("Positive result not cached", Boolean.TRUE, cache.get(x509, caX509, 1));
+        assertEquals("Negative result not cached", Boolean.FALSE, cache.get(caX509, caX509, 1));
+        assertNull("Result found for a different generation", cache.get(x509, caX509, 2));
+    }
+
+    /**
+     * This confirms that results are forgotten when their time is up.
+     */
+    @Test
+    public void testExpiry() {
+        PKIXValidationCache cache;
+
+        cache = new PKIXValidationCache(10);
+        cache.setNegativeTTL(0);
+        cache.put(x509, caX509, 1, false);
+        assertNull("Expired result was returned", cache.get(x509, caX509, 1));
+        assertEquals("Expired result was not removed", 0, cache.size());
+    }
+}
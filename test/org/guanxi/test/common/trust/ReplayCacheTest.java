@@ -0,0 +1,82 @@
+package org.guanxi.test.common.trust;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.guanxi.common.trust.ReplayCache;
+import org.junit.Test;
+
+/**
+ * This will test the ReplayCache from Guanxi Common.
+ *
+ * @author alistair
+ */
+public class ReplayCacheTest {
+    /**
+     * This confirms that a message is only accepted once from the same issuer.
+     */
+    @Test
+    public void testReplay() {
+        ReplayCache cache;
+        long notOnOrAfter;
+
+        cache = new ReplayCache(100, 4);
+        notOnOrAfter = System.currentTimeMillis() + 60000;
+
+        assertFalse("New message treated as a replay", cache.isReplay("urn:example:idp", "_one", notOnOrAfter));
+        assertTrue("Replay not caught", cache.isReplay("urn:example:idp", "_one", notOnOrAfter));
+        assertFalse("Same ID from another issuer treated as a replay", cache.isReplay("urn:example:other", "_one", notOnOrAfter));
+        assertEquals("Replay not counted", 1, cache.getReplays());
+    }
+
+    /**
+     * This confirms that a new message carrying an assertion from one that's
+     * already been accepted is caught.
+     */
+    @Test
+    public void testAssertionReplay() {
+        ReplayCache cache;
+        long notOnOrAfter;
+
+        cache = new ReplayCache(100, 4);
+        notOnOrAfter = System.currentTimeMillis() + 60000;
+
+        assertFalse("New message treated as a replay", cache.isReplay("urn:example:idp", new String[] {"_response", "_assertion"}, notOnOrAfter));
+        assertTrue("Lifted assertion not caught", cache.isReplay("urn:example:idp", new String[] {"_other", "_assertion"}, notOnOrAfter));
+        assertTrue("Response ID was not remembered", cache.contains("urn:example:idp", "_other"));
+    }
+
+    /**
+     * This confirms that messages are forgotten once they and the clock skew have expired.
+     */
+    @Test
+    public void testExpiry() {
+        ReplayCache cache;
+
+        cache = new ReplayCache(100, 4);
+        cache.setClockSkew(0);
+        assertFalse("New message treated as a replay", cache.isReplay("urn:example:idp", "_one", System.currentTimeMillis() - 1));
+        assertFalse("Expired message treated as a replay", cache.contains("urn:example:idp", "_one"));
+    }
+
+    /**
+     * This confirms that the cache doesn't grow past its cap and counts
+     * the messages it has to forget early.
+     */
+    @Test
+    public void testCap() {
+        ReplayCache cache;
+        long notOnOrAfter;
+
+        cache = new ReplayCache(10, 1);
+        notOnOrAfter = System.currentTimeMillis() + 60000;
+        for (int c = 0; c < 20; c++) {
+            cache.isReplay("urn:example:idp", "_" + c, notOnOrAfter);
+        }
+
+        assertEquals("Cache grew past its cap", 10, cache.size());
+        assertEquals("Evictions not counted", 10, cache.getEvictions());
+        assertTrue("Newest message forgotten", cache.contains("urn:example:idp", "_19"));
+    }
+}
@@ -0,0 +1,118 @@
+package org.guanxi.test.common.trust;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.KeyPair;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.xml.security.Init;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.definitions.Guanxi;
+import org.guanxi.common.trust.EntityKeyIndex;
+import org.guanxi.common.trust.TrustContext;
+import org.guanxi.common.trust.TrustUtils;
+import org.guanxi.test.TestUtils;
+import org.guanxi.xal.saml_2_0.protocol.ResponseDocument;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+/**
+ * This will test the SAML Response signature verification in TrustUtils from Guanxi Common.
+ *
+ * @author alistair
+ */
+public class SignatureVerificationTest {
+    private static byte[] signedResponse;
+    private static X509Certificate signingCert;
+
+    @BeforeClass
+    public static void signResponse() throws Exception {
+        KeyPair keyPair;
+        X509Certificate x509;
+        ByteArrayOutputStream out;
+
+        Security.addProvider(new BouncyCastleProvider());
+        Init.init();
+        keyPair = TestUtils.generateKeyPair("RSA");
+        x509 = TestUtils.generateSelfSignedCertificate("CN=idp.example.org", keyPair);
+        signingCert = x509;
+
+        out = new ByteArrayOutputStream();
+        TransformerFactory.newInstance().newTransformer().transform(new DOMSource(TestUtils.createSignedSAML2Response("_response", keyPair, x509)),
+                                                                    new StreamResult(out));
+        signedResponse = out.toByteArray();
+    }
+
+    @AfterClass
+    public static void removeProvider() {
+        Security.removeProvider(Guanxi.BOUNCY_CASTLE_PROVIDER_NAME);
+    }
+
+    /**
+     * This confirms that a signed Response verifies whether it comes
+     * straight from the wire or through XMLBeans.
+     */
+    @Test
+    public void testVerify() throws Exception {
+        Document doc;
+
+        doc = TrustUtils.verifySignature(new ByteArrayInputStream(signedResponse));
+        assertNotNull("Raw Response did not verify", doc);
+        assertNotNull("Response could not be got from the verified document", ResponseDocument.Factory.parse(doc).getResponse());
+        assertTrue("XMLBeans Response did not verify", TrustUtils.verifySignature(ResponseDocument.Factory.parse(new ByteArrayInputStream(signedResponse))));
+    }
+
+    /**
+     * This confirms that a Response that's been changed since it was signed doesn't verify.
+     */
+    @Test
+    public void testTampered() throws Exception {
+        byte[] tampered;
+
+        tampered = new String(signedResponse, "UTF-8").replace("urn:example:idp", "urn:example:evil").getBytes("UTF-8");
+        assertNull("Tampered Response verified", TrustUtils.verifySignature(new ByteArrayInputStream(tampered)));
+        assertFalse("Tampered XMLBeans Response verified", TrustUtils.verifySignature(ResponseDocument.Factory.parse(new ByteArrayInputStream(tampered))));
+    }
+
+    /**
+     * This confirms that a signature that refers to something other than the Response is rejected.
+     */
+    @Test(expected = GuanxiException.class)
+    public void testWrongReference() throws Exception {
+        byte[] moved;
+
+        moved = new String(signedResponse, "UTF-8").replace("ID=\"_response\"", "ID=\"_moved\"").getBytes("UTF-8");
+        TrustUtils.verifySignature(new ByteArrayInputStream(moved));
+    }
+
+    /**
+     * This confirms that the trust context for a Response carries the signing
+     * certificate and its key fingerprint and can be verified without rework.
+     */
+    @Test
+    public void testTrustContext() throws Exception {
+        TrustContext context;
+
+        context = TrustContext.forMessage(ResponseDocument.Factory.parse(new ByteArrayInputStream(signedResponse)));
+        assertEquals("Wrong number of certificates", 1, context.getCertificates().length);
+        assertEquals("Wrong signing certificate", signingCert, context.getCertificate());
+        assertEquals("Wrong key fingerprint", EntityKeyIndex.hashKey(signingCert.getPublicKey()), context.getKeyFingerprint());
+        assertSame("Key fingerprint was worked out twice", context.getKeyFingerprint(), context.getKeyFingerprint());
+        assertTrue("Response did not verify from its trust context", TrustUtils.verifySignature(context));
+    }
+}
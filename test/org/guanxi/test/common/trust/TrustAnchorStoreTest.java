@@ -0,0 +1,90 @@
+package org.guanxi.test.common.trust;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.guanxi.common.definitions.Guanxi;
+import org.guanxi.common.trust.TrustAnchorStore;
+import org.guanxi.common.trust.TrustUtils;
+import org.guanxi.test.TestUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * This will test the TrustAnchorStore from Guanxi Common.
+ *
+ * @author alistair
+ */
+public class TrustAnchorStoreTest {
+    private static X509Certificate oldCaX509;
+    private static X509Certificate newCaX509;
+    private static X509Certificate otherCaX509;
+    private static X509Certificate x509;
+
+    @BeforeClass
+    public static void generateCertificates() throws Exception {
+        KeyPair newCaKeyPair;
+        long now;
+
+        Security.addProvider(new BouncyCastleProvider());
+        // Two CAs with the same name, as happens when a CA rolls over its key
+        oldCaX509 = TestUtils.generateSelfSignedCertificate("CN=ca", TestUtils.generateKeyPair("RSA"));
+        newCaKeyPair = TestUtils.generateKeyPair("RSA");
+        newCaX509 = TestUtils.generateSelfSignedCertificate("CN=ca", newCaKeyPair);
+        otherCaX509 = TestUtils.generateSelfSignedCertificate("CN=other", TestUtils.generateKeyPair("RSA"));
+
+        now = System.currentTimeMillis();
+        x509 = TestUtils.generateCertificate("CN=idp.example.org", TestUtils.generateKeyPair("RSA").getPublic(),
+                                             "CN=ca", newCaKeyPair.getPrivate(),
+                                             new Date(now - 60000), new Date(now + 60000));
+    }
+
+    @AfterClass
+    public static void removeProvider() {
+        Security.removeProvider(Guanxi.BOUNCY_CASTLE_PROVIDER_NAME);
+    }
+
+    /**
+     * This confirms that only the CAs with the issuer's name are candidates.
+     */
+    @Test
+    public void testCandidateIssuers() {
+        TrustAnchorStore store;
+        List<X509Certificate> candidates;
+
+        store = new TrustAnchorStore(anchors(), 1);
+        candidates = store.getCandidateIssuers(x509);
+
+        assertEquals("Wrong number of candidate issuers", 2, candidates.size());
+        assertFalse("Unrelated CA is a candidate issuer", candidates.contains(otherCaX509));
+        assertEquals("Wrong number of anchors", 3, store.size());
+    }
+
+    /**
+     * This confirms that path validation carries on past a CA with the right
+     * name but the wrong key.
+     */
+    @Test
+    public void testAllCandidatesTried() {
+        assertTrue("Certificate from rolled over CA not trusted",
+                   TrustUtils.validateCertPath(x509, new TrustAnchorStore(anchors(), TrustUtils.NO_TRUST_GENERATION)));
+    }
+
+    private static List<X509Certificate> anchors() {
+        List<X509Certificate> anchors = new ArrayList<X509Certificate>();
+        anchors.add(oldCaX509);
+        anchors.add(otherCaX509);
+        anchors.add(newCaX509);
+        return anchors;
+    }
+}
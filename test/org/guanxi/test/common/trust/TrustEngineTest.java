@@ -0,0 +1,244 @@
+package org.guanxi.test.common.trust;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.guanxi.common.definitions.Guanxi;
+import org.guanxi.common.metadata.impl.GuanxiSAML2MetadataImpl;
+import org.guanxi.common.trust.Fingerprint;
+import org.guanxi.common.trust.ReplayCache;
+import org.guanxi.common.trust.TrustDecisionCache;
+import org.guanxi.common.trust.TrustEngine;
+import org.guanxi.common.trust.TrustRequest;
+import org.guanxi.common.trust.TrustResult;
+import org.guanxi.common.trust.TrustStrategy;
+import org.guanxi.common.trust.TrustStrategyChain;
+import org.guanxi.common.trust.impl.PinnedKeyTrustStrategy;
+import org.guanxi.common.trust.impl.ShibbolethTrustEngineImpl;
+import org.guanxi.test.TestUtils;
+import org.guanxi.xal.saml_2_0.protocol.ResponseDocument;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * This will test the CA handling of the TrustEngine implementations from Guanxi Common.
+ *
+ * @author alistair
+ */
+public class TrustEngineTest {
+    private static X509Certificate caOne;
+    private static X509Certificate caTwo;
+
+    @BeforeClass
+    public static void generateCertificates() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        caOne = TestUtils.generateSelfSignedCertificate("CN=one", TestUtils.generateKeyPair("RSA"));
+        caTwo = TestUtils.generateSelfSignedCertificate("CN=two", TestUtils.generateKeyPair("RSA"));
+    }
+
+    @AfterClass
+    public static void removeProvider() {
+        Security.removeProvider(Guanxi.BOUNCY_CASTLE_PROVIDER_NAME);
+    }
+
+    /**
+     * This confirms that setting the CAs replaces the old ones rather than adding
+     * to them, and that every change moves the generation on.
+     */
+    @Test
+    public void testSetCACerts() {
+        TrustEngine engine;
+        long generation;
+
+        engine = new ShibbolethTrustEngineImpl();
+        engine.addCACert(caOne);
+        generation = engine.getGeneration();
+
+        engine.setCACerts(Arrays.asList(caTwo), 2);
+        assertArrayEquals("CAs were not replaced", new X509Certificate[] {caTwo}, engine.getCACerts());
+        assertTrue("Generation did not go up", engine.getGeneration() > generation);
+
+        generation = engine.getGeneration();
+        engine.reset();
+        assertEquals("CAs were not removed", 0, engine.getCACerts().length);
+        assertTrue("Generation did not go up", engine.getGeneration() > generation);
+    }
+
+    /**
+     * This confirms that subclasses still using the old caCerts field see the
+     * CAs and can change them.
+     */
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testCACertsField() {
+        ShibbolethTrustEngineImpl engine;
+
+        engine = new ShibbolethTrustEngineImpl() {
+            {
+                caCerts.add(caOne);
+                assertEquals("Field does not show the CAs", Arrays.asList(caOne), caCerts);
+                caCerts.clear();
+                assertTrue("Field does not show the CAs were removed", caCerts.isEmpty());
+                caCerts.addElement(caTwo);
+            }
+        };
+        assertArrayEquals("CA added through the field was not used", new X509Certificate[] {caTwo}, engine.getCACerts());
+    }
+
+    /**
+     * This confirms that back channel decisions are only cached when a cache is set,
+     * that a decision for one host or chain isn't used for another, and that reloading
+     * the metadata or the CAs means the decision is made again.
+     */
+    @Test
+    public void testDecisionCache() throws Exception {
+        ShibbolethTrustEngineImpl engine;
+        TrustDecisionCache cache;
+        GuanxiSAML2MetadataImpl metadata;
+
+        engine = new ShibbolethTrustEngineImpl();
+        assertNull("Decision cache was on by default", engine.getDecisionCache());
+        cache = new TrustDecisionCache();
+        engine.setDecisionCache(cache);
+        metadata = new GuanxiSAML2MetadataImpl();
+        metadata.setPrivateData(TestUtils.createIdPMetadata("urn:example:idp", caOne));
+
+        assertTrue("Embedded certificate was not trusted", engine.trustEntity(metadata, caOne));
+        assertTrue("Cached decision was not to trust", engine.trustEntity(metadata, caOne));
+        assertFalse("Unknown certificate was trusted", engine.trustEntity(metadata, caTwo));
+        assertFalse("Cached decision was to trust", engine.trustEntity(metadata, caTwo));
+        assertEquals("Decisions were not cached", 2, cache.getHits());
+
+        engine.trustEntity(metadata, new X509Certificate[] {caOne, caTwo});
+        metadata.setHostName("other.example.org");
+        engine.trustEntity(metadata, caOne);
+        assertEquals("Decision was used for another chain or host", 4, cache.getMisses());
+        metadata.setHostName(null);
+
+        metadata.setPrivateData(TestUtils.createIdPMetadata("urn:example:idp", caOne));
+        assertTrue("Embedded certificate was not trusted after metadata reload", engine.trustEntity(metadata, caOne));
+        engine.addCACert(caTwo);
+        assertTrue("Embedded certificate was not trusted after CA reload", engine.trustEntity(metadata, caOne));
+        assertEquals("Decision survived a reload", 6, cache.getMisses());
+    }
+
+    /**
+     * This confirms that cached decisions are dropped when the strategies change
+     * or one of them changes its policy, so a revoked pin isn't trusted.
+     */
+    @Test
+    public void testDecisionCachePolicy() throws Exception {
+        ShibbolethTrustEngineImpl engine;
+        TrustDecisionCache cache;
+        GuanxiSAML2MetadataImpl metadata;
+        PinnedKeyTrustStrategy pinned;
+        Map<String, List<String>> pins;
+
+        pinned = new PinnedKeyTrustStrategy();
+        pins = new HashMap<String, List<String>>();
+        pins.put("urn:example:idp", Arrays.asList(Fingerprint.of(caOne.getPublicKey()).toHex()));
+        pinned.setPins(pins);
+
+        engine = new ShibbolethTrustEngineImpl();
+        cache = new TrustDecisionCache();
+        engine.setDecisionCache(cache);
+        metadata = new GuanxiSAML2MetadataImpl();
+        metadata.setPrivateData(TestUtils.createIdPMetadata("urn:example:idp", null));
+        assertFalse("Unknown certificate was trusted", engine.trustEntity(metadata, caOne));
+
+        engine.setStrategyChain(new TrustStrategyChain(Arrays.<TrustStrategy>asList(pinned)));
+        assertEquals("Decisions of the old strategies were kept", 0, cache.size());
+        assertTrue("Pinned key was not trusted", engine.trustEntity(metadata, caOne));
+        assertTrue("Pinned key was not trusted from the cache", engine.trustEntity(metadata, caOne));
+        assertEquals("Decision was not cached", 1, cache.getHits());
+
+        pinned.setPins(new HashMap<String, List<String>>());
+        assertFalse("Revoked pin was trusted", engine.trustEntity(metadata, caOne));
+    }
+
+    /**
+     * This confirms that only SAML 1.1 Responses are trusted at message level, so a
+     * signed SAML2 Response isn't, however many times it's seen.
+     */
+    @Test
+    public void testSAML2ResponseNotTrusted() throws Exception {
+        ShibbolethTrustEngineImpl engine;
+        KeyPair keyPair;
+        X509Certificate x509;
+        GuanxiSAML2MetadataImpl metadata;
+        ResponseDocument response;
+
+        engine = new ShibbolethTrustEngineImpl();
+        engine.setReplayCache(new ReplayCache());
+        keyPair = TestUtils.generateKeyPair("RSA");
+        x509 = TestUtils.generateSelfSignedCertificate("CN=idp.example.org", keyPair);
+        metadata = new GuanxiSAML2MetadataImpl();
+        metadata.setPrivateData(TestUtils.createIdPMetadata("urn:example:idp", x509));
+        response = ResponseDocument.Factory.parse(TestUtils.createSignedSAML2Response("_response", keyPair, x509));
+
+        assertFalse("SAML2 Response was trusted", engine.trustEntity(metadata, response));
+        assertFalse("SAML2 Response was trusted the second time", engine.trustEntity(metadata, response));
+        assertEquals("SAML2 Response was counted as a replay", 0, engine.getReplayCache().getReplays());
+    }
+
+    /**
+     * This confirms that a batch comes back in order with an error for the
+     * entity that couldn't be checked, and that asynchronous checks work.
+     */
+    @Test
+    public void testTrustEntities() throws Exception {
+        ShibbolethTrustEngineImpl engine;
+        ExecutorService executor;
+        GuanxiSAML2MetadataImpl metadata;
+        List<TrustRequest> requests;
+        List<TrustResult> results;
+
+        engine = new ShibbolethTrustEngineImpl();
+        metadata = new GuanxiSAML2MetadataImpl();
+        metadata.setPrivateData(TestUtils.createIdPMetadata("urn:example:idp", caOne));
+
+        requests = new ArrayList<TrustRequest>();
+        for (int i = 0; i < 20; i++) {
+            requests.add(new TrustRequest(metadata, (i % 2 == 0) ? caOne : caTwo));
+        }
+        // No metadata, so this can't be checked
+        requests.add(new TrustRequest(null, caOne));
+
+        executor = Executors.newFixedThreadPool(4);
+        try {
+            engine.setExecutor(executor);
+            results = engine.trustEntities(requests);
+
+            assertEquals("Wrong number of results", requests.size(), results.size());
+            for (int i = 0; i < 20; i++) {
+                assertEquals("Result out of order", requests.get(i), results.get(i).getRequest());
+                assertEquals("Wrong result", i % 2 == 0, results.get(i).isTrusted());
+                assertNull("Unexpected error", results.get(i).getError());
+            }
+            assertFalse("Unchecked entity was trusted", results.get(20).isTrusted());
+            assertNotNull("Error was not recorded", results.get(20).getError());
+
+            assertTrue("Asynchronous check failed", engine.trustEntityAsync(metadata, caOne).get().isTrusted());
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+}
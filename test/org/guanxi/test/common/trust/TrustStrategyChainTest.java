@@ -0,0 +1,187 @@
+package org.guanxi.test.common.trust;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.definitions.Guanxi;
+import org.guanxi.common.metadata.Metadata;
+import org.guanxi.common.metadata.impl.GuanxiSAML2MetadataImpl;
+import org.guanxi.common.trust.Fingerprint;
+import org.guanxi.common.trust.TrustAnchorStore;
+import org.guanxi.common.trust.TrustContext;
+import org.guanxi.common.trust.TrustStrategy;
+import org.guanxi.common.trust.TrustStrategyChain;
+import org.guanxi.common.trust.TrustUtils;
+import org.guanxi.common.trust.impl.PinnedKeyTrustStrategy;
+import org.guanxi.test.TestUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * This will test the TrustStrategyChain from Guanxi Common.
+ *
+ * @author alistair
+ */
+public class TrustStrategyChainTest {
+    private static KeyPair keyPair;
+    private static X509Certificate x509;
+    private static GuanxiSAML2MetadataImpl metadata;
+
+    @BeforeClass
+    public static void generateCertificates() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        keyPair = TestUtils.generateKeyPair("RSA");
+        x509 = TestUtils.generateSelfSignedCertificate("CN=idp.example.org", keyPair);
+        metadata = new GuanxiSAML2MetadataImpl();
+        metadata.setPrivateData(TestUtils.createIdPMetadata("urn:example:idp", null));
+    }
+
+    @AfterClass
+    public static void removeProvider() {
+        Security.removeProvider(Guanxi.BOUNCY_CASTLE_PROVIDER_NAME);
+    }
+
+    /**
+     * This confirms that an adaptive chain moves the strategy that always trusts
+     * an entity ahead of the one that never does, and stops trying the other one.
+     */
+    @Test
+    public void testAdaptiveOrder() throws Exception {
+        CountingStrategy never;
+        CountingStrategy always;
+        TrustStrategyChain chain;
+        TrustContext context;
+
+        never = new CountingStrategy("never", false);
+        always = new CountingStrategy("always", true);
+        chain = new TrustStrategyChain(Arrays.<TrustStrategy>asList(never, always));
+        chain.setAdaptive(true);
+        context = TrustContext.forConnection(new X509Certificate[] {x509});
+
+        for (int i = 0; i < TrustStrategyChain.MIN_SAMPLES; i++) {
+            assertTrue("Entity not trusted", chain.trust(metadata, context, TrustUtils.ENTITY_TYPE_AA, null));
+        }
+        assertEquals("Strategies not tried in the order given", TrustStrategyChain.MIN_SAMPLES, never.calls);
+        assertEquals("Strategies not reordered", always, chain.getOrder("urn:example:idp").get(0));
+
+        assertTrue("Entity not trusted after reordering", chain.trust(metadata, context, TrustUtils.ENTITY_TYPE_AA, null));
+        assertEquals("Strategy that never trusts was tried first", TrustStrategyChain.MIN_SAMPLES, never.calls);
+        assertEquals("Wrong hit rate", 1.0, chain.getStats("always").getHitRate(), 0);
+        assertEquals("Wrong hit rate", 0.0, chain.getStats("urn:example:idp", "never").getHitRate(), 0);
+
+        // Another entity hasn't been seen but what's known overall is used for it
+        assertEquals("Overall statistics not used for a new entity", always, chain.getOrder("urn:example:other").get(0));
+    }
+
+    /**
+     * This confirms that a strategy failing with an error counts as a failure
+     * and the rest of the chain is still tried.
+     */
+    @Test
+    public void testStrategyError() throws Exception {
+        CountingStrategy broken;
+        CountingStrategy always;
+        TrustStrategyChain chain;
+        TrustContext context;
+
+        broken = new CountingStrategy("broken", false) {
+            public boolean trust(Metadata entityMetadata, TrustContext context, int entityType, TrustAnchorStore trustAnchors) throws GuanxiException {
+                super.trust(entityMetadata, context, entityType, trustAnchors);
+                throw new GuanxiException("broken");
+            }
+        };
+        always = new CountingStrategy("always", true);
+        chain = new TrustStrategyChain(Arrays.<TrustStrategy>asList(broken, always));
+        context = TrustContext.forConnection(new X509Certificate[] {x509});
+
+        assertTrue("Entity not trusted after a strategy failed", chain.trust(metadata, context, TrustUtils.ENTITY_TYPE_AA, null));
+        assertEquals("Rest of the chain not tried", 1, always.calls);
+        assertEquals("Error not counted", 1, chain.getStats("broken").getErrors());
+        assertEquals("Error counted as a success", 0, chain.getStats("broken").getSuccesses());
+    }
+
+    /**
+     * This confirms that an adaptive chain still tries a strategy it's moved
+     * down the order now and again.
+     */
+    @Test
+    public void testExploration() throws Exception {
+        CountingStrategy never;
+        CountingStrategy always;
+        TrustStrategyChain chain;
+        TrustContext context;
+
+        never = new CountingStrategy("never", false);
+        always = new CountingStrategy("always", true);
+        chain = new TrustStrategyChain(Arrays.<TrustStrategy>asList(never, always));
+        chain.setAdaptive(true);
+        chain.setExploreInterval(TrustStrategyChain.MIN_SAMPLES);
+        context = TrustContext.forConnection(new X509Certificate[] {x509});
+
+        for (int i = 0; i < TrustStrategyChain.MIN_SAMPLES * 10; i++) {
+            chain.trust(metadata, context, TrustUtils.ENTITY_TYPE_AA, null);
+        }
+        assertEquals("Strategies not reordered", always, chain.getOrder("urn:example:idp").get(0));
+        // Tried first every time until it was moved down, then once every interval after that
+        assertEquals("Demoted strategy not tried again", TrustStrategyChain.MIN_SAMPLES + 9, never.calls);
+    }
+
+    /**
+     * This confirms that a pinned key is trusted only for the entity it's pinned to.
+     */
+    @Test
+    public void testPinnedKey() throws Exception {
+        PinnedKeyTrustStrategy strategy;
+        Map<String, List<String>> pins;
+        List<String> idpPins;
+        TrustContext context;
+        GuanxiSAML2MetadataImpl other;
+
+        idpPins = new ArrayList<String>();
+        idpPins.add(TrustUtils.byteArrayToHexString(Fingerprint.of(keyPair.getPublic()).getBytes()).toLowerCase());
+        pins = new HashMap<String, List<String>>();
+        pins.put("urn:example:idp", idpPins);
+        strategy = new PinnedKeyTrustStrategy();
+        strategy.setPins(pins);
+
+        other = new GuanxiSAML2MetadataImpl();
+        other.setPrivateData(TestUtils.createIdPMetadata("urn:example:other", null));
+        context = TrustContext.forConnection(new X509Certificate[] {x509});
+
+        assertTrue("Pinned key not trusted", strategy.trust(metadata, context, TrustUtils.ENTITY_TYPE_AA, null));
+        assertFalse("Pinned key trusted for another entity", strategy.trust(other, context, TrustUtils.ENTITY_TYPE_AA, null));
+    }
+
+    private static class CountingStrategy implements TrustStrategy {
+        private final String name;
+        private final boolean result;
+        int calls = 0;
+
+        CountingStrategy(String name, boolean result) {
+            this.name = name;
+            this.result = result;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean trust(Metadata entityMetadata, TrustContext context, int entityType, TrustAnchorStore trustAnchors) throws GuanxiException {
+            calls++;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.guanxi.test.common.trust;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.security.Security;
+import java.security.cert.X509Certificate;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.guanxi.common.definitions.Guanxi;
+import org.guanxi.common.trust.X509CertificateCache;
+import org.guanxi.test.TestUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * This will test the X509CertificateCache from Guanxi Common.
+ *
+ * @author alistair
+ */
+public class X509CertificateCacheTest {
+    private static byte[] certOne;
+    private static byte[] certTwo;
+
+    @BeforeClass
+    public static void generateCertificates() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        certOne = TestUtils.generateSelfSignedCertificate("CN=one", TestUtils.generateKeyPair("RSA")).getEncoded();
+        certTwo = TestUtils.generateSelfSignedCertificate("CN=two", TestUtils.generateKeyPair("RSA")).getEncoded();
+    }
+
+    @AfterClass
+    public static void removeProvider() {
+        Security.removeProvider(Guanxi.BOUNCY_CASTLE_PROVIDER_NAME);
+    }
+
+    /**
+     * This confirms that the same DER bytes give back the same decoded
+     * certificate and that the hits and misses are counted.
+     */
+    @Test
+    public void testDecodedOnce() throws Exception {
+        X509CertificateCache cache;
+        X509Certificate first;
+
+        cache = new X509CertificateCache(10);
+        first = cache.getCertificate(certOne);
+
+        assertEquals("Wrong certificate decoded", "CN=one", first.getSubjectX500Principal().getName());
+        assertSame("Certificate was decoded twice", first, cache.getCertificate(certOne.clone()));
+        assertSame("Public key was not cached", first.getPublicKey(), cache.getPublicKey(certOne));
+        assertEquals("Wrong number of misses", 1, cache.getMisses());
+        assertEquals("Wrong number of hits", 2, cache.getHits());
+    }
+
+    /**
+     * This confirms that the cache doesn't grow past its maximum size.
+     */
+    @Test
+    public void testEviction() throws Exception {
+        X509CertificateCache cache;
+
+        cache = new X509CertificateCache(1);
+        cache.getCertificate(certOne);
+        cache.getCertificate(certTwo);
+
+        assertEquals("Cache grew past its maximum size", 1, cache.size());
+        assertEquals("Eviction was not counted", 1, cache.getEvictions());
+
+        // The evicted certificate has to be decoded again
+        cache.getCertificate(certOne);
+        assertEquals("Wrong number of misses", 3, cache.getMisses());
+        assertEquals("Wrong number of hits", 0, cache.getHits());
+    }
+}
@@ -0,0 +1,91 @@
+package org.guanxi.test.common.trust;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.security.KeyPair;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Date;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.guanxi.common.definitions.Guanxi;
+import org.guanxi.common.trust.TrustAnchorStore;
+import org.guanxi.common.trust.X509ChainBuilder;
+import org.guanxi.test.TestUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * This will test the X509ChainBuilder from Guanxi Common.
+ *
+ * @author alistair
+ */
+public class X509ChainBuilderTest {
+    private static X509Certificate rootX509;
+    private static X509Certificate intermediateX509;
+    private static X509Certificate x509;
+
+    @BeforeClass
+    public static void generateCertificates() throws Exception {
+        KeyPair rootKeyPair;
+        KeyPair intermediateKeyPair;
+        long now;
+
+        Security.addProvider(new BouncyCastleProvider());
+        rootKeyPair = TestUtils.generateKeyPair("RSA");
+        rootX509 = TestUtils.generateSelfSignedCertificate("CN=root", rootKeyPair);
+        intermediateKeyPair = TestUtils.generateKeyPair("RSA");
+        intermediateX509 = TestUtils.generateCACertificate("CN=intermediate", intermediateKeyPair.getPublic(),
+                                                           "CN=root", rootKeyPair.getPrivate());
+
+        now = System.currentTimeMillis();
+        x509 = TestUtils.generateCertificate("CN=idp.example.org", TestUtils.generateKeyPair("RSA").getPublic(),
+                                             "CN=intermediate", intermediateKeyPair.getPrivate(),
+                                             new Date(now - 60000), new Date(now + 60000));
+    }
+
+    @AfterClass
+    public static void removeProvider() {
+        Security.removeProvider(Guanxi.BOUNCY_CASTLE_PROVIDER_NAME);
+    }
+
+    /**
+     * This confirms that a chain is built through an intermediate CA
+     * supplied alongside the certificate, as in a TLS chain.
+     */
+    @Test
+    public void testIntermediate() {
+        X509Certificate[] chain;
+
+        chain = X509ChainBuilder.build(x509, new X509Certificate[] {x509, intermediateX509}, anchors(2));
+
+        assertNotNull("Chain through intermediate CA not built", chain);
+        assertEquals("Wrong chain length", 3, chain.length);
+        assertEquals("Chain doesn't end at the anchor", rootX509, chain[2]);
+    }
+
+    /**
+     * This confirms that the verify depth limits the length of the chain.
+     */
+    @Test
+    public void testVerifyDepth() {
+        assertNull("Chain longer than the verify depth was built",
+                   X509ChainBuilder.build(x509, new X509Certificate[] {intermediateX509}, anchors(1)));
+    }
+
+    /**
+     * This confirms that there's no chain if the intermediate CA is missing.
+     */
+    @Test
+    public void testMissingIntermediate() {
+        assertNull("Chain built without the intermediate CA", X509ChainBuilder.build(x509, null, anchors(2)));
+    }
+
+    private static TrustAnchorStore anchors(int verifyDepth) {
+        return new TrustAnchorStore(Collections.singletonList(rootX509), verifyDepth, 1);
+    }
+}